@@ -222,6 +222,16 @@ public final class Globals {
             org.apache.coyote.Constants.SENDFILE_SUPPORTED_ATTR;
 
 
+    /**
+     * The request attribute that is set to the value of {@code Boolean.TRUE}
+     * if connector processing this request supports non-blocking IO.
+     *
+     * Duplicated here for neater code in the catalina packages.
+     */
+    public static final String NONBLOCKING_IO_SUPPORTED_ATTR =
+            org.apache.coyote.Constants.NONBLOCKING_IO_SUPPORTED_ATTR;
+
+
     /**
      * The request attribute that can be used by a servlet to pass
      * to the connector the name of the file that is to be served
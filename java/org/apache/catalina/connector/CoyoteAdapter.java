@@ -39,6 +39,8 @@ import org.apache.catalina.util.SessionConfig;
 import org.apache.catalina.util.URLEncoder;
 import org.apache.coyote.ActionCode;
 import org.apache.coyote.Adapter;
+import org.apache.coyote.http11.upgrade.servlet31.ReadListener;
+import org.apache.coyote.http11.upgrade.servlet31.WriteListener;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 import org.apache.tomcat.util.ExceptionUtils;
@@ -47,7 +49,6 @@ import org.apache.tomcat.util.buf.ByteChunk;
 import org.apache.tomcat.util.buf.CharChunk;
 import org.apache.tomcat.util.buf.MessageBytes;
 import org.apache.tomcat.util.http.Cookies;
-import org.apache.tomcat.util.http.ServerCookie;
 import org.apache.tomcat.util.net.SSLSupport;
 import org.apache.tomcat.util.net.SocketStatus;
 import org.apache.tomcat.util.res.StringManager;
@@ -310,7 +311,59 @@ public class CoyoteAdapter implements Adapter {
                 if (t != null) {
                     asyncConImpl.setErrorState(t, true);
                 }
+                // Let any non-blocking listeners know
+                ReadListener readListener = req.getReadListener();
+                WriteListener writeListener = res.getWriteListener();
+                if (readListener != null || writeListener != null) {
+                    ClassLoader oldCL = Thread.currentThread().getContextClassLoader();
+                    ClassLoader newCL = request.getContext().getLoader().getClassLoader();
+                    try {
+                        Thread.currentThread().setContextClassLoader(newCL);
+                        if (readListener != null) {
+                            readListener.onError(t);
+                        }
+                        if (writeListener != null) {
+                            writeListener.onError(t);
+                        }
+                    } finally {
+                        Thread.currentThread().setContextClassLoader(oldCL);
+                    }
+                }
+            }
+
+            // Notify the non-blocking listeners if that is why the socket was
+            // dispatched
+            if (request.isAsyncStarted() && !request.isAsyncDispatching() &&
+                    (status == SocketStatus.OPEN_READ && req.getReadListener() != null ||
+                    status == SocketStatus.OPEN_WRITE && res.getWriteListener() != null)) {
+                ClassLoader oldCL = Thread.currentThread().getContextClassLoader();
+                ClassLoader newCL = request.getContext().getLoader().getClassLoader();
+                try {
+                    Thread.currentThread().setContextClassLoader(newCL);
+                    if (status == SocketStatus.OPEN_WRITE) {
+                        response.outputBuffer.onWritePossible();
+                    } else {
+                        if (!request.inputBuffer.isFinished()) {
+                            req.getReadListener().onDataAvailable();
+                        }
+                        if (request.inputBuffer.isFinished() &&
+                                request.inputBuffer.sendAllDataReadEvent()) {
+                            req.getReadListener().onAllDataRead();
+                        }
+                    }
+                } catch (Throwable t) {
+                    ExceptionUtils.handleThrowable(t);
+                    if (status == SocketStatus.OPEN_WRITE) {
+                        res.getWriteListener().onError(t);
+                    } else {
+                        req.getReadListener().onError(t);
+                    }
+                    asyncConImpl.setErrorState(t, true);
+                } finally {
+                    Thread.currentThread().setContextClassLoader(oldCL);
+                }
             }
+
             // Has an error occurred during async processing that needs to be
             // processed by the application's error page mechanism (or Tomcat's
             // if the application doesn't define one)?
@@ -734,45 +787,67 @@ public class CoyoteAdapter implements Adapter {
             req.serverName().setString(proxyName);
         }
 
-        // Copy the raw URI to the decodedURI
         MessageBytes decodedURI = req.decodedURI();
-        decodedURI.duplicate(req.requestURI());  // 将requestURI设置成编码之后的格式
+        MessageBytes requestURI = req.requestURI();
+        if (requestURI.getType() == MessageBytes.T_BYTES &&
+                isAsciiCompatible(connector.getURIEncoding()) &&
+                isNormalizedAscii(requestURI.getByteChunk())) {
+            // Nothing to strip, decode or normalize so convert the raw URI
+            // straight to chars. They are the same for any ASCII compatible
+            // encoding. The bytes of the decoded URI are not used after this
+            // point so they are not set, which also avoids the decoded URI
+            // sharing the buffer of the raw URI.
+            ByteChunk uriBC = requestURI.getByteChunk();
+            CharChunk uriCC = decodedURI.getCharChunk();
+            int length = uriBC.getLength();
+            uriCC.allocate(length, -1);
+            byte[] bbuf = uriBC.getBuffer();
+            char[] cbuf = uriCC.getBuffer();
+            int start = uriBC.getStart();
+            for (int i = 0; i < length; i++) {
+                cbuf[i] = (char) bbuf[i + start];
+            }
+            decodedURI.setChars(cbuf, 0, length);
+        } else {
+            // Copy the raw URI to the decodedURI
+            decodedURI.duplicate(req.requestURI());  // 将requestURI设置成编码之后的格式
 
-        // Parse the path parameters. This will:
-        //   - strip out the path parameters
-        //   - convert the decodedURI to bytes
-        parsePathParameters(req, request);
+            // Parse the path parameters. This will:
+            //   - strip out the path parameters
+            //   - convert the decodedURI to bytes
+            parsePathParameters(req, request);
 
-        // URI decoding
-        // %xx decoding of the URL
-        try {
-            // 对URI解码，初始化请求路径参数
-            req.getURLDecoder().convert(decodedURI, false);
-        } catch (IOException ioe) {
-            res.setStatus(400);
-            res.setMessage("Invalid URI: " + ioe.getMessage());
-            connector.getService().getContainer().logAccess(
-                    request, response, 0, true);
-            return false;
-        }
-        // Normalization
-        if (!normalize(req.decodedURI())) {
-            res.setStatus(400);
-            res.setMessage("Invalid URI");
-            connector.getService().getContainer().logAccess(
-                    request, response, 0, true);
-            return false;
-        }
-        // Character decoding
-        convertURI(decodedURI, request);
-        // Check that the URI is still normalized
-        // URI是否合法，如果非法，则返回响应码400
-        if (!checkNormalize(req.decodedURI())) {
-            res.setStatus(400);
-            res.setMessage("Invalid URI character encoding");
-            connector.getService().getContainer().logAccess(
-                    request, response, 0, true);
-            return false;
+            // URI decoding
+            // %xx decoding of the URL
+            try {
+                // 对URI解码，初始化请求路径参数
+                req.getURLDecoder().convert(decodedURI, false);
+            } catch (IOException ioe) {
+                res.setStatus(400);
+                res.setMessage("Invalid URI: " + ioe.getMessage());
+                connector.getService().getContainer().logAccess(
+                        request, response, 0, true);
+                return false;
+            }
+            // Normalization
+            if (!normalize(req.decodedURI())) {
+                res.setStatus(400);
+                res.setMessage("Invalid URI");
+                connector.getService().getContainer().logAccess(
+                        request, response, 0, true);
+                return false;
+            }
+            // Character decoding
+            convertURI(decodedURI, request);
+            // Check that the URI is still normalized
+            // URI是否合法，如果非法，则返回响应码400
+            if (!checkNormalize(req.decodedURI())) {
+                res.setStatus(400);
+                res.setMessage("Invalid URI character encoding");
+                connector.getService().getContainer().logAccess(
+                        request, response, 0, true);
+                return false;
+            }
         }
 
         // Request mapping.
@@ -1177,40 +1252,37 @@ public class CoyoteAdapter implements Adapter {
 
         // Parse session id from cookies
         // 请求中携带的cookie
+        // Only the session cookie is needed here so scan for it rather than
+        // parsing every cookie. The full parse happens if the application
+        // asks for the cookies.
+        // 当前Context所指定的sessionCookie的名字，表示cookie中的这个名字对应的就是sessionID
+        String sessionCookieName = SessionConfig.getSessionCookieName(context);
         Cookies serverCookies = req.getCookies();
-        int count = serverCookies.getCookieCount();
+        int count = serverCookies.findCookieValues(sessionCookieName);
         if (count <= 0) {
             return;
         }
 
-        // 当前Context所指定的sessionCookie的名字，表示cookie中的这个名字对应的就是sessionID
-        String sessionCookieName = SessionConfig.getSessionCookieName(context);
-
         for (int i = 0; i < count; i++) {
-            ServerCookie scookie = serverCookies.getCookie(i);
-            if (scookie.getName().equals(sessionCookieName)) {
-                // Override anything requested in the URL
-                if (!request.isRequestedSessionIdFromCookie()) {
-                    // 如果当前request中还没有设置SessionId，那么就从cookie中获取并设置
-                    // Accept only the first session id cookie
-                    convertMB(scookie.getValue());
-                    request.setRequestedSessionId
-                        (scookie.getValue().toString());
-                    request.setRequestedSessionCookie(true);
-                    request.setRequestedSessionURL(false);
-                    if (log.isDebugEnabled()) {
-                        log.debug(" Requested cookie session id is " +
-                            request.getRequestedSessionId());
-                    }
-                } else {
-                    if (!request.isRequestedSessionIdValid()) {
-                        // 如果request中已经有sessionId了，那么就去Manager中寻找是否存在对应的Session对象，如果不存在则表示不合法
-                        // 那么直接将cookie中的值更新到request中
-                        // Replace the session id until one is valid
-                        convertMB(scookie.getValue());
-                        request.setRequestedSessionId
-                            (scookie.getValue().toString());
-                    }
+            MessageBytes value = serverCookies.getCookieValue(i);
+            if (!request.isRequestedSessionIdFromCookie()) {
+                // 如果当前request中还没有设置SessionId，那么就从cookie中获取并设置
+                // Accept only the first session id cookie
+                convertMB(value);
+                request.setRequestedSessionId(value.toString());
+                request.setRequestedSessionCookie(true);
+                request.setRequestedSessionURL(false);
+                if (log.isDebugEnabled()) {
+                    log.debug(" Requested cookie session id is " +
+                        request.getRequestedSessionId());
+                }
+            } else {
+                if (!request.isRequestedSessionIdValid()) {
+                    // 如果request中已经有sessionId了，那么就去Manager中寻找是否存在对应的Session对象，如果不存在则表示不合法
+                    // 那么直接将cookie中的值更新到request中
+                    // Replace the session id until one is valid
+                    convertMB(value);
+                    request.setRequestedSessionId(value.toString());
                 }
             }
         }
@@ -1300,6 +1372,59 @@ public class CoyoteAdapter implements Adapter {
     }
 
 
+    /**
+     * @return <code>true</code> if bytes 0x00 to 0x7F decode to the character
+     *         with the same value in the given URI encoding
+     */
+    private static boolean isAsciiCompatible(String enc) {
+        return enc == null || "UTF-8".equalsIgnoreCase(enc) ||
+                "ISO-8859-1".equalsIgnoreCase(enc) ||
+                "US-ASCII".equalsIgnoreCase(enc);
+    }
+
+
+    /**
+     * Checks, in a single pass, whether a request URI is already in the form
+     * that decoding and {@link #normalize(MessageBytes)} would produce. That
+     * is the case if it starts with '/' and contains only ASCII characters
+     * other than the null byte, no '%', ';' or '\\', no "//" and no "." or
+     * ".." segments.
+     *
+     * @param uriBC The raw request URI
+     *
+     * @return <code>true</code> if the URI can be used as it is
+     */
+    protected static boolean isNormalizedAscii(ByteChunk uriBC) {
+        final byte[] b = uriBC.getBuffer();
+        final int start = uriBC.getStart();
+        final int end = uriBC.getEnd();
+
+        if (start == end || b[start] != (byte) '/') {
+            return false;
+        }
+        for (int pos = start; pos < end; pos++) {
+            byte c = b[pos];
+            if (c <= 0 || c == '%' || c == ';' || c == '\\') {
+                return false;
+            }
+            if (c == '/' && pos + 1 < end) {
+                byte next = b[pos + 1];
+                if (next == '/') {
+                    return false;
+                }
+                if (next == '.') {
+                    // "/." or "/.." followed by '/' or the end of the URI
+                    int dots = pos + 2 < end && b[pos + 2] == '.' ? 3 : 2;
+                    if (pos + dots == end || b[pos + dots] == '/') {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+
     /**
      * This method normalizes "\", "//", "/./" and "/../".
      *
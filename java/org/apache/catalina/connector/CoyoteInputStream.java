@@ -24,6 +24,7 @@ import java.security.PrivilegedExceptionAction;
 import javax.servlet.ServletInputStream;
 
 import org.apache.catalina.security.SecurityUtil;
+import org.apache.coyote.http11.upgrade.servlet31.ReadListener;
 
 /**
  * This class handles reading bytes.
@@ -209,6 +210,39 @@ public class CoyoteInputStream
     }
 
 
+    /**
+     * Has all of the request body been read? Mirrors the Servlet 3.1
+     * <code>ServletInputStream.isFinished()</code> method.
+     *
+     * @return <code>true</code> if there is no more data to read
+     */
+    public boolean isFinished() {
+        return ib.isFinished();
+    }
+
+
+    /**
+     * Can data be read without blocking? Mirrors the Servlet 3.1
+     * <code>ServletInputStream.isReady()</code> method.
+     *
+     * @return <code>true</code> if data can be read without blocking
+     */
+    public boolean isReady() {
+        return ib.isReady();
+    }
+
+
+    /**
+     * Switch to non-blocking reads. Mirrors the Servlet 3.1
+     * <code>ServletInputStream.setReadListener()</code> method.
+     *
+     * @param listener The listener to notify when data can be read
+     */
+    public void setReadListener(ReadListener listener) {
+        ib.setReadListener(listener);
+    }
+
+
     /**
      * Close the stream
      * Since we re-cycle, we can't allow the call to super.close()
@@ -20,6 +20,8 @@ import java.io.IOException;
 
 import javax.servlet.ServletOutputStream;
 
+import org.apache.coyote.http11.upgrade.servlet31.WriteListener;
+
 /**
  * Coyote implementation of the servlet output stream.
  *
@@ -74,6 +76,7 @@ public class CoyoteOutputStream
     @Override
     public void write(int i)
         throws IOException {
+        ob.checkNonBlockingWrite();
         ob.writeByte(i);
     }
 
@@ -88,6 +91,7 @@ public class CoyoteOutputStream
     @Override
     public void write(byte[] b, int off, int len)
         throws IOException {
+        ob.checkNonBlockingWrite();
         ob.write(b, off, len);
     }
 
@@ -98,6 +102,7 @@ public class CoyoteOutputStream
     @Override
     public void flush()
         throws IOException {
+        ob.checkNonBlockingWrite();
         ob.flush();
     }
 
@@ -109,5 +114,27 @@ public class CoyoteOutputStream
     }
 
 
+    /**
+     * Can data be written without blocking? Mirrors the Servlet 3.1
+     * <code>ServletOutputStream.isReady()</code> method.
+     *
+     * @return <code>true</code> if data can be written without blocking
+     */
+    public boolean isReady() {
+        return ob.isReady();
+    }
+
+
+    /**
+     * Switch to non-blocking writes. Mirrors the Servlet 3.1
+     * <code>ServletOutputStream.setWriteListener()</code> method.
+     *
+     * @param listener The listener to notify when data can be written
+     */
+    public void setWriteListener(WriteListener listener) {
+        ob.setWriteListener(listener);
+    }
+
+
 }
 
@@ -23,10 +23,14 @@ import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.catalina.Globals;
 import org.apache.catalina.security.SecurityUtil;
 import org.apache.coyote.ActionCode;
+import org.apache.coyote.ContainerThreadMarker;
 import org.apache.coyote.Request;
+import org.apache.coyote.http11.upgrade.servlet31.ReadListener;
 import org.apache.tomcat.util.buf.B2CConverter;
 import org.apache.tomcat.util.buf.ByteChunk;
 import org.apache.tomcat.util.buf.CharChunk;
@@ -128,6 +132,12 @@ public class InputBuffer extends Reader
     private int markPos = -1;
 
 
+    /**
+     * Has the read listener been told that all data has been read?
+     */
+    private boolean allDataReadEventSent = false;
+
+
     /**
      * Buffer size.
      */
@@ -222,6 +232,7 @@ public class InputBuffer extends Reader
 
         gotEnc = false;
         enc = null;
+        allDataReadEventSent = false;
 
     }
 
@@ -261,6 +272,105 @@ public class InputBuffer extends Reader
     }
 
 
+    /**
+     * Switch the input stream to non-blocking mode. The request must be in
+     * async mode and the connector must support non-blocking IO.
+     *
+     * @param listener The listener to notify when data can be read
+     */
+    public void setReadListener(ReadListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException(
+                    sm.getString("inputBuffer.nullListener"));
+        }
+        if (coyoteRequest.getReadListener() != null) {
+            throw new IllegalStateException(
+                    sm.getString("inputBuffer.listenerSet"));
+        }
+        AtomicBoolean result = new AtomicBoolean(false);
+        coyoteRequest.action(ActionCode.ASYNC_IS_ASYNC, result);
+        if (!result.get()) {
+            throw new IllegalStateException(
+                    sm.getString("inputBuffer.notAsync"));
+        }
+        if (!Boolean.TRUE.equals(coyoteRequest.getAttribute(
+                Globals.NONBLOCKING_IO_SUPPORTED_ATTR))) {
+            throw new IllegalStateException(
+                    sm.getString("inputBuffer.nonBlockingNotSupported"));
+        }
+
+        coyoteRequest.setReadListener(listener);
+
+        // Data may already be waiting (or there may be no body at all) in
+        // which case the listener needs to be called without waiting for the
+        // poller.
+        if (isFinished() || isReadyInternal()) {
+            coyoteRequest.action(ActionCode.DISPATCH_READ, null);
+        }
+    }
+
+
+    /**
+     * Can data be read without blocking? If not, the socket is registered
+     * for read interest and the read listener will be notified once data
+     * arrives.
+     *
+     * @return <code>true</code> if at least one byte can be read without
+     *         blocking
+     */
+    public boolean isReady() {
+        if (coyoteRequest.getReadListener() == null) {
+            throw new IllegalStateException(
+                    sm.getString("inputBuffer.requiresNonBlocking"));
+        }
+        if (isFinished()) {
+            // onAllDataRead() is only called from a container thread so
+            // trigger a dispatch if this is called from any other thread.
+            if (!ContainerThreadMarker.isContainerThread() && !allDataReadEventSent) {
+                coyoteRequest.action(ActionCode.DISPATCH_READ, null);
+            }
+            return false;
+        }
+        return isReadyInternal();
+    }
+
+
+    private boolean isReadyInternal() {
+        if (bb.getLength() > 0 || cb.getLength() > 0) {
+            return true;
+        }
+        AtomicBoolean result = new AtomicBoolean(false);
+        coyoteRequest.action(ActionCode.NB_READ_INTEREST, result);
+        return result.get();
+    }
+
+
+    /**
+     * @return <code>true</code> if all of the request body has been read by
+     *         the application
+     */
+    public boolean isFinished() {
+        return bb.getLength() == 0 && cb.getLength() == 0 &&
+                coyoteRequest.isFinished();
+    }
+
+
+    /**
+     * Record that the read listener is being told that all data has been
+     * read.
+     *
+     * @return <code>true</code> the first time this is called for the
+     *         current request
+     */
+    synchronized boolean sendAllDataReadEvent() {
+        if (allDataReadEventSent) {
+            return false;
+        }
+        allDataReadEventSent = true;
+        return true;
+    }
+
+
     // ------------------------------------------------- Bytes Handling Methods
 
 
@@ -23,15 +23,18 @@ import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.catalina.Globals;
 import org.apache.coyote.ActionCode;
 import org.apache.coyote.Response;
+import org.apache.coyote.http11.upgrade.servlet31.WriteListener;
 import org.apache.tomcat.util.buf.ByteChunk;
 import org.apache.tomcat.util.buf.C2BConverter;
 import org.apache.tomcat.util.buf.CharChunk;
+import org.apache.tomcat.util.res.StringManager;
 
 
 /**
@@ -55,6 +58,9 @@ public class OutputBuffer extends Writer
         org.apache.coyote.Constants.DEFAULT_CHARACTER_ENCODING;
     public static final int DEFAULT_BUFFER_SIZE = 8*1024;
 
+    protected static final StringManager sm =
+        StringManager.getManager(Constants.Package);
+
 
     // ----------------------------------------------------- Instance Variables
 
@@ -150,6 +156,27 @@ public class OutputBuffer extends Writer
     private boolean suspended = false;
 
 
+    /**
+     * Guards the non-blocking write state below, which is accessed by the
+     * application thread calling isReady() and by the container thread
+     * notifying the write listener.
+     */
+    private final Object nonBlockingStateLock = new Object();
+
+
+    /**
+     * Has the socket been registered for write interest?
+     */
+    private boolean registeredForWrite = false;
+
+
+    /**
+     * Should the write listener be called when the socket can be written to?
+     * Only set when isReady() has returned <code>false</code>.
+     */
+    private boolean fireListener = false;
+
+
     // ----------------------------------------------------------- Constructors
 
 
@@ -253,6 +280,11 @@ public class OutputBuffer extends Writer
         suspended = false;
         doFlush = false;
 
+        synchronized (nonBlockingStateLock) {
+            registeredForWrite = false;
+            fireListener = false;
+        }
+
         if (conv!= null) {
             conv.recycle();
         }
@@ -271,6 +303,112 @@ public class OutputBuffer extends Writer
     }
 
 
+    /**
+     * Switch the output stream to non-blocking mode. The request must be in
+     * async mode and the connector must support non-blocking IO.
+     *
+     * @param listener The listener to notify when data can be written
+     */
+    public void setWriteListener(WriteListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException(
+                    sm.getString("outputBuffer.nullListener"));
+        }
+        if (coyoteResponse.getWriteListener() != null) {
+            throw new IllegalStateException(
+                    sm.getString("outputBuffer.listenerSet"));
+        }
+        AtomicBoolean result = new AtomicBoolean(false);
+        coyoteResponse.action(ActionCode.ASYNC_IS_ASYNC, result);
+        if (!result.get()) {
+            throw new IllegalStateException(
+                    sm.getString("outputBuffer.notAsync"));
+        }
+        if (!Boolean.TRUE.equals(coyoteResponse.getRequest().getAttribute(
+                Globals.NONBLOCKING_IO_SUPPORTED_ATTR))) {
+            throw new IllegalStateException(
+                    sm.getString("outputBuffer.nonBlockingNotSupported"));
+        }
+
+        coyoteResponse.setWriteListener(listener);
+
+        // The specification requires that onWritePossible() is called once
+        // the listener is set if the stream can be written to.
+        if (isReady()) {
+            synchronized (nonBlockingStateLock) {
+                registeredForWrite = true;
+                fireListener = true;
+            }
+            coyoteResponse.action(ActionCode.DISPATCH_WRITE, null);
+        }
+    }
+
+
+    /**
+     * Can data be written without blocking? If not, the socket is
+     * registered for write interest and the write listener will be notified
+     * once all pending data has been written.
+     *
+     * @return <code>true</code> if data can be written without blocking
+     */
+    public boolean isReady() {
+        if (coyoteResponse.getWriteListener() == null) {
+            throw new IllegalStateException(
+                    sm.getString("outputBuffer.requiresNonBlocking"));
+        }
+        synchronized (nonBlockingStateLock) {
+            if (registeredForWrite) {
+                // A notification is already on its way
+                fireListener = true;
+                return false;
+            }
+            AtomicBoolean result = new AtomicBoolean(false);
+            coyoteResponse.action(ActionCode.NB_WRITE_INTEREST, result);
+            boolean ready = result.get();
+            registeredForWrite = !ready;
+            fireListener = !ready;
+            return ready;
+        }
+    }
+
+
+    /**
+     * In non-blocking mode data may only be written while the stream is
+     * ready. Anything else would have to be buffered without limit until the
+     * client reads it. As with isReady(), the write listener is notified once
+     * the stream is ready again.
+     *
+     * @throws IllegalStateException If the stream is not ready
+     */
+    void checkNonBlockingWrite() {
+        if (coyoteResponse.getWriteListener() != null && !isReady()) {
+            throw new IllegalStateException(
+                    sm.getString("outputBuffer.notReady"));
+        }
+    }
+
+
+    /**
+     * Called by the container once the socket can be written to. Notifies
+     * the write listener if the application is waiting for it.
+     *
+     * @throws IOException If the listener throws one
+     */
+    void onWritePossible() throws IOException {
+        boolean fire = false;
+        synchronized (nonBlockingStateLock) {
+            registeredForWrite = false;
+            if (fireListener) {
+                fireListener = false;
+                fire = true;
+            }
+        }
+        if (fire) {
+            coyoteResponse.getWriteListener().onWritePossible();
+        }
+    }
+
+
     /**
      * Close the output buffer. This tries to calculate the response size if
      * the response has not been committed yet.
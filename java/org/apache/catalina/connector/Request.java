@@ -1041,6 +1041,7 @@ public class Request implements HttpServletRequest {
      * <li>{@link Globals#SENDFILE_SUPPORTED_ATTR}</li>
      * <li>{@link Globals#COMET_SUPPORTED_ATTR}</li>
      * <li>{@link Globals#COMET_TIMEOUT_SUPPORTED_ATTR}</li>
+     * <li>{@link Globals#NONBLOCKING_IO_SUPPORTED_ATTR}</li>
      * </ul>
      * Connector implementations may return some, all or none of these
      * attributes and may also support additional attributes.
@@ -3370,7 +3371,9 @@ public class Request implements HttpServletRequest {
                 // 解析请求体数据为parameters
                 parameters.processParameters(formData, 0, len);
             } else if ("chunked".equalsIgnoreCase(
-                    coyoteRequest.getHeader("transfer-encoding"))) {
+                    coyoteRequest.getHeader("transfer-encoding")) ||
+                    coyoteRequest.isBodyInflated()) {
+                // The length of an inflated body is only known once read
                 byte[] formData = null;
                 try {
                     formData = readChunkedPostBody();
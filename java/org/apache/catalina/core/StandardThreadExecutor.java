@@ -24,14 +24,22 @@ import org.apache.catalina.Executor;
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.LifecycleState;
 import org.apache.catalina.util.LifecycleMBeanBase;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.res.StringManager;
 import org.apache.tomcat.util.threads.ResizableExecutor;
 import org.apache.tomcat.util.threads.TaskQueue;
 import org.apache.tomcat.util.threads.TaskThreadFactory;
 import org.apache.tomcat.util.threads.ThreadPoolExecutor;
+import org.apache.tomcat.util.threads.VirtualThreadExecutor;
 
 public class StandardThreadExecutor extends LifecycleMBeanBase
         implements Executor, ResizableExecutor {
 
+    private static final Log log = LogFactory.getLog(StandardThreadExecutor.class);
+    private static final StringManager sm =
+        StringManager.getManager(Constants.Package);
+
     // ---------------------------------------------- Properties
     /**
      * Default thread priority
@@ -107,6 +115,19 @@ public class StandardThreadExecutor extends LifecycleMBeanBase
     protected long threadRenewalDelay =
         org.apache.tomcat.util.threads.Constants.DEFAULT_THREAD_RENEWAL_DELAY;
 
+    /**
+     * Run each task on a new virtual thread rather than on a pooled platform
+     * thread. Ignored, with a warning, if the JRE does not support virtual
+     * threads.
+     */
+    protected boolean useVirtualThreads = false;
+
+    /**
+     * The executor used instead of {@link #executor} when virtual threads are
+     * in use
+     */
+    protected VirtualThreadExecutor virtualExecutor = null;
+
     private TaskQueue taskqueue = null;
     // ---------------------------------------------- Constructors
     public StandardThreadExecutor() {
@@ -132,6 +153,14 @@ public class StandardThreadExecutor extends LifecycleMBeanBase
     @Override
     protected void startInternal() throws LifecycleException {
 
+        if (useVirtualThreads) {
+            if (VirtualThreadExecutor.isSupported()) {
+                virtualExecutor = new VirtualThreadExecutor(namePrefix);
+                setState(LifecycleState.STARTING);
+                return;
+            }
+            log.warn(sm.getString("standardThreadExecutor.noVirtualThreads", getName()));
+        }
         taskqueue = new TaskQueue(maxQueueSize);
         TaskThreadFactory tf = new TaskThreadFactory(namePrefix,daemon,getThreadPriority());
         executor = new ThreadPoolExecutor(getMinSpareThreads(), getMaxThreads(), maxIdleTime, TimeUnit.MILLISECONDS,taskqueue, tf);
@@ -159,6 +188,8 @@ public class StandardThreadExecutor extends LifecycleMBeanBase
         if ( executor != null ) executor.shutdownNow();
         executor = null;
         taskqueue = null;
+        if (virtualExecutor != null) virtualExecutor.shutdownNow();
+        virtualExecutor = null;
     }
 
 
@@ -170,7 +201,10 @@ public class StandardThreadExecutor extends LifecycleMBeanBase
 
     @Override
     public void execute(Runnable command, long timeout, TimeUnit unit) {
-        if ( executor != null ) {
+        if (virtualExecutor != null) {
+            // There is no queue to wait for
+            virtualExecutor.execute(command);
+        } else if ( executor != null ) {
             executor.execute(command,timeout,unit);
         } else {
             throw new IllegalStateException("StandardThreadExecutor not started.");
@@ -180,7 +214,9 @@ public class StandardThreadExecutor extends LifecycleMBeanBase
 
     @Override
     public void execute(Runnable command) {
-        if ( executor != null ) {
+        if (virtualExecutor != null) {
+            virtualExecutor.execute(command);
+        } else if ( executor != null ) {
             try {
                 executor.execute(command);
             } catch (RejectedExecutionException rx) {
@@ -272,6 +308,14 @@ public class StandardThreadExecutor extends LifecycleMBeanBase
         this.name = name;
     }
 
+    public boolean getUseVirtualThreads() {
+        return useVirtualThreads;
+    }
+
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+    }
+
     public void setMaxQueueSize(int size) {
         this.maxQueueSize = size;
     }
@@ -294,23 +338,43 @@ public class StandardThreadExecutor extends LifecycleMBeanBase
     // Statistics from the thread pool
     @Override
     public int getActiveCount() {
+        if (virtualExecutor != null) {
+            return virtualExecutor.getActiveCount();
+        }
         return (executor != null) ? executor.getActiveCount() : 0;
     }
 
     public long getCompletedTaskCount() {
+        if (virtualExecutor != null) {
+            return virtualExecutor.getCompletedTaskCount();
+        }
         return (executor != null) ? executor.getCompletedTaskCount() : 0;
     }
 
+    /**
+     * @return the number of tasks passed to the virtual thread executor, or
+     *         -1 if virtual threads are not in use
+     */
+    public long getSubmittedTaskCount() {
+        return (virtualExecutor != null) ? virtualExecutor.getSubmittedTaskCount() : -1;
+    }
+
     public int getCorePoolSize() {
         return (executor != null) ? executor.getCorePoolSize() : 0;
     }
 
     public int getLargestPoolSize() {
+        if (virtualExecutor != null) {
+            return virtualExecutor.getLargestActiveCount();
+        }
         return (executor != null) ? executor.getLargestPoolSize() : 0;
     }
 
     @Override
     public int getPoolSize() {
+        if (virtualExecutor != null) {
+            return virtualExecutor.getActiveCount();
+        }
         return (executor != null) ? executor.getPoolSize() : 0;
     }
 
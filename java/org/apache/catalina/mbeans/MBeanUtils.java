@@ -50,6 +50,7 @@ import org.apache.catalina.deploy.ContextResourceLink;
 import org.apache.catalina.deploy.NamingResources;
 import org.apache.catalina.util.ContextName;
 import org.apache.catalina.valves.ValveBase;
+import org.apache.coyote.AbstractProtocol;
 import org.apache.coyote.ProtocolHandler;
 import org.apache.coyote.ajp.AjpAprProtocol;
 import org.apache.coyote.ajp.AjpProtocol;
@@ -1123,6 +1124,9 @@ public class MBeanUtils {
             worker = ((AjpProtocol)handler).getName();
         } else if (handler instanceof AjpAprProtocol) {
             worker = ((AjpAprProtocol)handler).getName();
+        } else if (handler instanceof AbstractProtocol) {
+            // E.g. the NIO.2 connector, which is only built with Java 7
+            worker = ((AbstractProtocol<?>)handler).getName();
         }
         ObjectName query = new ObjectName(
                 domain + ":type=RequestProcessor,worker=" + worker + ",*");
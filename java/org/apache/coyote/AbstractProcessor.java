@@ -201,6 +201,12 @@ public abstract class AbstractProcessor<S> implements ActionHook, Processor<S> {
         getAdapter().errorDispatch(request, response);
     }
 
+
+    @Override
+    public void destroy() {
+        // NO-OP by default
+    }
+
     @Override
     public abstract boolean isComet();
 
@@ -192,11 +192,42 @@ public abstract class AbstractProtocol<S> implements ProtocolHandler,
     }
 
 
+    public boolean getUseVirtualThreads() { return endpoint.getUseVirtualThreads(); }
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+        endpoint.setUseVirtualThreads(useVirtualThreads);
+    }
+
+
     public int getMaxThreads() { return endpoint.getMaxThreads(); }
     public void setMaxThreads(int maxThreads) {
         endpoint.setMaxThreads(maxThreads);
     }
 
+    public boolean getAdaptiveLimit() { return endpoint.getAdaptiveLimit(); }
+    public void setAdaptiveLimit(boolean adaptiveLimit) {
+        endpoint.setAdaptiveLimit(adaptiveLimit);
+    }
+
+    public int getAdaptiveLimitMin() { return endpoint.getAdaptiveLimitMin(); }
+    public void setAdaptiveLimitMin(int adaptiveLimitMin) {
+        endpoint.setAdaptiveLimitMin(adaptiveLimitMin);
+    }
+
+    public int getAdaptiveLimitMax() { return endpoint.getAdaptiveLimitMax(); }
+    public void setAdaptiveLimitMax(int adaptiveLimitMax) {
+        endpoint.setAdaptiveLimitMax(adaptiveLimitMax);
+    }
+
+    public int getQueueDelayTarget() { return endpoint.getQueueDelayTarget(); }
+    public void setQueueDelayTarget(int queueDelayTarget) {
+        endpoint.setQueueDelayTarget(queueDelayTarget);
+    }
+
+    public int getQueueDelayInterval() { return endpoint.getQueueDelayInterval(); }
+    public void setQueueDelayInterval(int queueDelayInterval) {
+        endpoint.setQueueDelayInterval(queueDelayInterval);
+    }
+
     public int getMaxConnections() { return endpoint.getMaxConnections(); }
     public void setMaxConnections(int maxConnections) {
         endpoint.setMaxConnections(maxConnections);
@@ -891,7 +922,10 @@ public abstract class AbstractProtocol<S> implements ProtocolHandler,
                     size.incrementAndGet();
                 }
             }
-            if (!result) handler.unregister(processor);
+            if (!result) {
+                handler.unregister(processor);
+                processor.destroy();
+            }
             return result;
         }
 
@@ -909,6 +943,7 @@ public abstract class AbstractProtocol<S> implements ProtocolHandler,
             Processor<S> next = poll();
             while (next != null) {
                 handler.unregister(next);
+                next.destroy();
                 next = poll();
             }
             super.clear();
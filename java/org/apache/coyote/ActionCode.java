@@ -236,5 +236,39 @@ public enum ActionCode {
      * Trigger end of request processing (remaining input swallowed, write any
      * remaining parts of the response etc.).
      */
-    END_REQUEST
+    END_REQUEST,
+
+    /**
+     * Callback to determine if the request body has been fully read. The
+     * result is returned in the {@link java.util.concurrent.atomic.AtomicBoolean}
+     * passed as the parameter.
+     */
+    REQUEST_BODY_FULLY_READ,
+
+    /**
+     * Callback used by non-blocking reads to determine if data can be read
+     * without blocking. If it can't, the socket is registered for read
+     * interest and the read listener will be notified once data arrives.
+     */
+    NB_READ_INTEREST,
+
+    /**
+     * Callback used by non-blocking writes to determine if data can be written
+     * without blocking. If it can't, the socket is registered for write
+     * interest and the write listener will be notified once the pending data
+     * has been written.
+     */
+    NB_WRITE_INTEREST,
+
+    /**
+     * Indicates that the read listener needs to be notified from a container
+     * thread.
+     */
+    DISPATCH_READ,
+
+    /**
+     * Indicates that the write listener needs to be notified from a container
+     * thread.
+     */
+    DISPATCH_WRITE
 }
@@ -36,6 +36,10 @@ import org.apache.tomcat.util.security.PrivilegedSetTccl;
  * STARTED          - ServletRequest.startAsync() has been called and the
  *                    request in which that call was made has finished
  *                    processing.
+ * READ_WRITE_OP    - Performing a non-blocking read or write: the read or
+ *                    write listener is being notified on a container thread.
+ *                    Calls to complete() and dispatch() are processed once the
+ *                    listener returns.
  * MUST_COMPLETE    - ServletRequest.startAsync() followed by complete() have
  *                    been called during a single Servlet.service() method. The
  *                    complete() will be processed as soon as the request
@@ -139,6 +143,7 @@ public class AsyncStateMachine<S> {
         DISPATCHED      (false, false, false, false),
         STARTING        (true,  true,  false, false),
         STARTED         (true,  true,  false, false),
+        READ_WRITE_OP   (true,  true,  false, false),
         MUST_COMPLETE   (true,  true,  true,  false),
         COMPLETE_PENDING(true,  true,  false, false),
         COMPLETING      (true,  false, true,  false),
@@ -259,6 +264,9 @@ public class AsyncStateMachine<S> {
             // This can occur if an async listener does a dispatch to an async
             // servlet during onTimeout
             return SocketState.LONG;
+        } else if (state == AsyncState.READ_WRITE_OP) {
+            state = AsyncState.STARTED;
+            return SocketState.LONG;
         } else {
             throw new IllegalStateException(
                     sm.getString("asyncStateMachine.invalidAsyncState",
@@ -281,7 +289,7 @@ public class AsyncStateMachine<S> {
 
     private synchronized boolean doComplete() {
         boolean doComplete = false;
-        if (state == AsyncState.STARTING) {
+        if (state == AsyncState.STARTING || state == AsyncState.READ_WRITE_OP) {
             state = AsyncState.MUST_COMPLETE;
         } else if (state == AsyncState.STARTED || state == AsyncState.COMPLETE_PENDING) {
             state = AsyncState.COMPLETING;
@@ -330,9 +338,10 @@ public class AsyncStateMachine<S> {
     private synchronized boolean doDispatch() {
         boolean doDispatch = false;
         if (state == AsyncState.STARTING ||
+                state == AsyncState.READ_WRITE_OP ||
                 state == AsyncState.TIMING_OUT ||
                 state == AsyncState.ERROR) {
-            // In these three cases processing is on a container thread so no
+            // In these four cases processing is on a container thread so no
             // need to transfer processing to a new container thread
             state = AsyncState.MUST_DISPATCH;
         } else if (state == AsyncState.STARTED || state == AsyncState.DISPATCH_PENDING) {
@@ -365,6 +374,30 @@ public class AsyncStateMachine<S> {
     }
 
 
+    /**
+     * @return <code>true</code> if the request is in the STARTED state, i.e. a
+     *         non-blocking read or write listener notification could start
+     */
+    public synchronized boolean isAsyncWaiting() {
+        return state == AsyncState.STARTED;
+    }
+
+
+    /**
+     * Marks the start of a non-blocking read or write listener notification.
+     *
+     * @return <code>true</code> if the listener may be notified, i.e. the
+     *         request was in the STARTED state, otherwise <code>false</code>
+     */
+    public synchronized boolean asyncOperation() {
+        if (state == AsyncState.STARTED) {
+            state = AsyncState.READ_WRITE_OP;
+            return true;
+        }
+        return false;
+    }
+
+
     public synchronized void asyncMustError() {
         if (state == AsyncState.STARTED) {
             state = AsyncState.MUST_ERROR;
@@ -380,6 +413,7 @@ public class AsyncStateMachine<S> {
         boolean doDispatch = false;
         if (state == AsyncState.STARTING ||
                 state == AsyncState.STARTED ||
+                state == AsyncState.READ_WRITE_OP ||
                 state == AsyncState.DISPATCHED ||
                 state == AsyncState.TIMING_OUT ||
                 state == AsyncState.MUST_COMPLETE ||
@@ -395,7 +429,8 @@ public class AsyncStateMachine<S> {
     }
 
     public synchronized void asyncRun(Runnable runnable) {
-        if (state == AsyncState.STARTING || state ==  AsyncState.STARTED) {
+        if (state == AsyncState.STARTING || state ==  AsyncState.STARTED ||
+                state == AsyncState.READ_WRITE_OP) {
             // Execute the runnable using a container thread from the
             // Connector's thread pool. Use a wrapper to prevent a memory leak
             ClassLoader oldCL;
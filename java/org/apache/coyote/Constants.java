@@ -97,6 +97,18 @@ public final class Constants {
         "org.apache.tomcat.sendfile.support";
 
 
+    /**
+     * The request attribute that is set to the value of {@code Boolean.TRUE}
+     * if connector processing this request supports non-blocking IO through
+     * read and write listeners.
+     *
+     * @see org.apache.catalina.connector.CoyoteInputStream#setReadListener
+     * @see org.apache.catalina.connector.CoyoteOutputStream#setWriteListener
+     */
+    public static final String NONBLOCKING_IO_SUPPORTED_ATTR =
+        "org.apache.tomcat.nonblocking.support";
+
+
     /**
      * The request attribute that can be used by a servlet to pass
      * to the connector the name of the file that is to be served
@@ -69,6 +69,12 @@ public interface Processor<S> {
 
     void recycle(boolean socketClosing);
 
+    /**
+     * Release any resources held for the life of the processor. Called when
+     * the processor is discarded rather than returned to the cache.
+     */
+    void destroy();
+
     void setSslSupport(SSLSupport sslSupport);
 
     AsyncStateMachine<S> getAsyncStateMachine();
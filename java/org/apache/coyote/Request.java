@@ -18,7 +18,9 @@ package org.apache.coyote;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.coyote.http11.upgrade.servlet31.ReadListener;
 import org.apache.tomcat.util.buf.ByteChunk;
 import org.apache.tomcat.util.buf.MessageBytes;
 import org.apache.tomcat.util.buf.UDecoder;
@@ -139,6 +141,17 @@ public final class Request {
     private long startTime = -1;
     private int available = 0;
 
+    /**
+     * Non-blocking read listener. <code>null</code> for blocking reads.
+     */
+    private volatile ReadListener readListener = null;
+
+    /**
+     * Is the request body being inflated by the connector? The length of an
+     * inflated body is not known until it has been read.
+     */
+    private boolean bodyInflated = false;
+
     private RequestInfo reqProcessorMX=new RequestInfo(this);
     // ------------------------------------------------------------- Properties
 
@@ -401,6 +414,32 @@ public final class Request {
         this.available = available;
     }
 
+    public ReadListener getReadListener() {
+        return readListener;
+    }
+
+    public void setReadListener(ReadListener readListener) {
+        this.readListener = readListener;
+    }
+
+    public boolean isBodyInflated() {
+        return bodyInflated;
+    }
+
+    public void setBodyInflated(boolean bodyInflated) {
+        this.bodyInflated = bodyInflated;
+    }
+
+    /**
+     * @return <code>true</code> if the request body has been fully read by the
+     *         protocol implementation
+     */
+    public boolean isFinished() {
+        AtomicBoolean result = new AtomicBoolean(false);
+        action(ActionCode.REQUEST_BODY_FULLY_READ, result);
+        return result.get();
+    }
+
     public boolean getSupportsRelativeRedirects() {
         if (protocol().equals("") || protocol().equals("HTTP/1.0")) {
             return false;
@@ -511,6 +550,8 @@ public final class Request {
         localPort = -1;
         remotePort = -1;
         available = 0;
+        readListener = null;
+        bodyInflated = false;
 
         cookies.recycle();
         parameters.recycle();
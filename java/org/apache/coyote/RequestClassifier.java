@@ -0,0 +1,39 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.coyote;
+
+/**
+ * Decides whether a request is high priority, for example a load balancer
+ * health check or an administration request. Work for the connection of a
+ * high priority request is dispatched ahead of other work when the executor
+ * is busy.
+ * <p>
+ * Implementations must be thread safe and must have a public no argument
+ * constructor so that they can be configured by class name.
+ */
+public interface RequestClassifier {
+
+    /**
+     * Called as soon as the request line has been parsed. The method, URI,
+     * query string and protocol are available but the headers are not.
+     *
+     * @param request The request to classify
+     *
+     * @return <code>true</code> if the request is high priority
+     */
+    public boolean isHighPriority(Request request);
+}
@@ -21,6 +21,7 @@ import java.io.StringReader;
 import java.util.Locale;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.coyote.http11.upgrade.servlet31.WriteListener;
 import org.apache.tomcat.util.buf.ByteChunk;
 import org.apache.tomcat.util.http.MimeHeaders;
 import org.apache.tomcat.util.http.parser.HttpParser;
@@ -146,6 +147,11 @@ public final class Response {
 
     Request req;
 
+    /**
+     * Non-blocking write listener. <code>null</code> for blocking writes.
+     */
+    private volatile WriteListener writeListener = null;
+
 
     // ------------------------------------------------------------- Properties
 
@@ -157,6 +163,14 @@ public final class Response {
         this.req=req;
     }
 
+    public WriteListener getWriteListener() {
+        return writeListener;
+    }
+
+    public void setWriteListener(WriteListener writeListener) {
+        this.writeListener = writeListener;
+    }
+
     public OutputBuffer getOutputBuffer() {
         return outputBuffer;
     }
@@ -598,6 +612,7 @@ public final class Response {
         errorException = null;
         errorState.set(0);
         headers.clear();
+        writeListener = null;
 
         // update counters
         contentWritten=0;
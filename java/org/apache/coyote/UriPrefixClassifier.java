@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.coyote;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import org.apache.tomcat.util.buf.MessageBytes;
+
+/**
+ * Classifies requests as high priority when the undecoded request URI starts
+ * with one of a configured list of prefixes.
+ */
+public class UriPrefixClassifier implements RequestClassifier {
+
+    private final String[] prefixes;
+
+
+    /**
+     * @param prefixes Comma separated list of URI prefixes
+     */
+    public UriPrefixClassifier(String prefixes) {
+        List<String> result = new ArrayList<String>();
+        StringTokenizer st = new StringTokenizer(prefixes, ",");
+        while (st.hasMoreTokens()) {
+            String prefix = st.nextToken().trim();
+            if (prefix.length() > 0) {
+                result.add(prefix);
+            }
+        }
+        this.prefixes = result.toArray(new String[result.size()]);
+    }
+
+
+    @Override
+    public boolean isHighPriority(Request request) {
+        MessageBytes uri = request.requestURI();
+        for (String prefix : prefixes) {
+            if (uri.getType() == MessageBytes.T_BYTES) {
+                if (uri.getByteChunk().startsWith(prefix, 0)) {
+                    return true;
+                }
+            } else if (uri.toString().startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
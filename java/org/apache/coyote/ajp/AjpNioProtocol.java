@@ -16,6 +16,7 @@
  */
 package org.apache.coyote.ajp;
 
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
 
@@ -112,6 +113,16 @@ public class AjpNioProtocol extends AbstractAjpProtocol<NioChannel> {
             return null;
         }
 
+        @Override
+        public boolean isClassifying() {
+            return false;
+        }
+
+        @Override
+        public boolean isHighPriority(ByteBuffer requestStart) {
+            return false;
+        }
+
         /**
          * Expected to be used by the Poller to release resources on socket
          * close, errors etc.
@@ -166,6 +177,9 @@ public class AjpNioProtocol extends AbstractAjpProtocol<NioChannel> {
                 // is when the socket is in keep-alive so set the appropriate
                 // timeout.
                 socket.setTimeout(getProtocol().getKeepAliveTimeout());
+                // Nothing is pending so the buffers are not needed until the
+                // next request arrives
+                socket.getSocket().releaseBuffers();
                 socket.getSocket().getPoller().add(socket.getSocket());
             }
         }
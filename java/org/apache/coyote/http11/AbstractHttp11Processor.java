@@ -28,6 +28,7 @@ import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -35,10 +36,12 @@ import org.apache.coyote.AbstractProcessor;
 import org.apache.coyote.ActionCode;
 import org.apache.coyote.AsyncContextCallback;
 import org.apache.coyote.ErrorState;
+import org.apache.coyote.RequestClassifier;
 import org.apache.coyote.RequestInfo;
 import org.apache.coyote.http11.filters.BufferedInputFilter;
 import org.apache.coyote.http11.filters.ChunkedInputFilter;
 import org.apache.coyote.http11.filters.ChunkedOutputFilter;
+import org.apache.coyote.http11.filters.GzipInputFilter;
 import org.apache.coyote.http11.filters.GzipOutputFilter;
 import org.apache.coyote.http11.filters.IdentityInputFilter;
 import org.apache.coyote.http11.filters.IdentityOutputFilter;
@@ -46,6 +49,7 @@ import org.apache.coyote.http11.filters.SavedRequestInputFilter;
 import org.apache.coyote.http11.filters.VoidInputFilter;
 import org.apache.coyote.http11.filters.VoidOutputFilter;
 import org.apache.coyote.http11.upgrade.servlet31.HttpUpgradeHandler;
+import org.apache.coyote.http2.Http2Protocol;
 import org.apache.tomcat.util.ExceptionUtils;
 import org.apache.tomcat.util.buf.Ascii;
 import org.apache.tomcat.util.buf.ByteChunk;
@@ -61,6 +65,7 @@ import org.apache.tomcat.util.net.AbstractEndpoint.Handler.SocketState;
 import org.apache.tomcat.util.net.SocketStatus;
 import org.apache.tomcat.util.net.SocketWrapper;
 import org.apache.tomcat.util.res.StringManager;
+import org.apache.tomcat.util.threads.AdaptiveLimiter;
 
 public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
 
@@ -108,6 +113,14 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
     protected boolean sendfileInProgress = false;
 
 
+    /**
+     * Set while {@link #process(SocketWrapper)} passes a request to the
+     * adapter. The response is then always ended by {@link #endRequest()}
+     * once the adapter returns.
+     */
+    private boolean serviceInProcess = false;
+
+
     /**
      * Flag that indicates if the request headers have been completely read.
      */
@@ -144,6 +157,19 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
     protected boolean comet = false;
 
 
+    /**
+     * The adaptive limiter the current request holds a permit from, if any.
+     */
+    private AdaptiveLimiter admissionLimiter = null;
+
+
+    /**
+     * The time, from {@link System#nanoTime()}, the current request was
+     * admitted by {@link #admissionLimiter}.
+     */
+    private long admissionTime;
+
+
     /**
      * Regular expression that defines the restricted user agents.
      */
@@ -225,6 +251,38 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
     protected int compressionMinSize = 2048;
 
 
+    /**
+     * Share of busy worker threads, in percent, from which compression is
+     * made cheaper. Zero or less disables the adaptive mode.
+     */
+    protected int adaptiveCompressionThreshold = 0;
+
+
+    /**
+     * Deflate level used while the adaptive threshold is reached.
+     */
+    protected int adaptiveCompressionLevel = Deflater.BEST_SPEED;
+
+
+    /**
+     * While the adaptive threshold is reached, responses with a known length
+     * up to this size are not compressed.
+     */
+    protected int adaptiveCompressionMinSize = 32 * 1024;
+
+
+    /**
+     * Inflate request bodies sent with a gzip or deflate Content-Encoding.
+     */
+    protected boolean decompressRequestBody = false;
+
+
+    /**
+     * Maximum size of an inflated request body. -1 means no limit.
+     */
+    protected int maxInflatedRequestBodySize = 10 * 1024 * 1024;
+
+
     /**
      * Socket buffering.
      */
@@ -258,6 +316,7 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
      * Allow a customized the server header for the tin-foil hat folks.
      */
     protected String server = null;
+    private byte[] serverBytes = null;
 
 
     /**
@@ -280,6 +339,20 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
     private boolean allowHostHeaderMismatch = true;
 
 
+    /**
+     * Classifiers used to mark connections with high priority requests. May be
+     * <code>null</code>.
+     */
+    private RequestClassifier[] requestClassifiers = null;
+
+
+    /**
+     * Set if clients may switch this connection to HTTP/2. May be
+     * <code>null</code>.
+     */
+    private Http2Protocol http2Protocol = null;
+
+
     protected HttpParser httpParser;
 
 
@@ -307,11 +380,45 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
     }
 
 
+    /**
+     * Set the classifiers consulted once the request line has been parsed.
+     * Work for a connection whose current request is classified as high
+     * priority is dispatched ahead of other work when the executor is busy.
+     *
+     * @param requestClassifiers The classifiers or <code>null</code> for none
+     */
+    public void setRequestClassifiers(RequestClassifier[] requestClassifiers) {
+        this.requestClassifiers = requestClassifiers;
+    }
+
+
     public AbstractHttp11Processor(AbstractEndpoint<S> endpoint) {
         super(endpoint);
     }
 
 
+    /**
+     * Allow clients to switch the connection to HTTP/2, either by sending the
+     * HTTP/2 connection preface or by requesting an upgrade to h2c.
+     *
+     * @param http2Protocol The HTTP/2 configuration or <code>null</code> to
+     *                      only support HTTP/1.1
+     */
+    public void setHttp2Protocol(Http2Protocol http2Protocol) {
+        this.http2Protocol = http2Protocol;
+    }
+
+
+    private boolean isHighPriority() {
+        for (RequestClassifier classifier : requestClassifiers) {
+            if (classifier.isHighPriority(request)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
     /**
      * Set compression level.
      */
@@ -342,6 +449,31 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
     }
 
 
+    public void setAdaptiveCompressionThreshold(int adaptiveCompressionThreshold) {
+        this.adaptiveCompressionThreshold = adaptiveCompressionThreshold;
+    }
+
+
+    public void setAdaptiveCompressionLevel(int adaptiveCompressionLevel) {
+        this.adaptiveCompressionLevel = adaptiveCompressionLevel;
+    }
+
+
+    public void setAdaptiveCompressionMinSize(int adaptiveCompressionMinSize) {
+        this.adaptiveCompressionMinSize = adaptiveCompressionMinSize;
+    }
+
+
+    public void setDecompressRequestBody(boolean decompressRequestBody) {
+        this.decompressRequestBody = decompressRequestBody;
+    }
+
+
+    public void setMaxInflatedRequestBodySize(int maxInflatedRequestBodySize) {
+        this.maxInflatedRequestBodySize = maxInflatedRequestBodySize;
+    }
+
+
     /**
      * Set no compression user agent pattern. Regular expression as supported
      * by {@link Pattern}.
@@ -597,8 +729,10 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
     public void setServer( String server ) {
         if (server==null || server.equals("")) {
             this.server = null;
+            this.serverBytes = null;
         } else {
             this.server = server;
+            this.serverBytes = AbstractOutputBuffer.encode(server);
         }
     }
 
@@ -785,7 +919,7 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
         getInputBuffer().addFilter(new BufferedInputFilter());
 
         // Create and add the gzip filters.
-        //getInputBuffer().addFilter(new GzipInputFilter());
+        getInputBuffer().addFilter(new GzipInputFilter());
         getOutputBuffer().addFilter(new GzipOutputFilter());
 
         pluggableFilterIndex = getInputBuffer().getFilters().length;
@@ -839,11 +973,17 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
 
         switch (actionCode) {
         case CLOSE: {
-            // End the processing of the current request
+            // End the processing of the current request. The socket write
+            // only waits when the next request is already buffered. Without
+            // a body, the buffered bytes can only be that request.
+            getOutputBuffer().setDeferFlush(serviceInProcess && !isAsync() && !comet &&
+                    !getInputBuffer().hasBody() && getInputBuffer().hasPipelinedData());
             try {
                 getOutputBuffer().endRequest();
             } catch (IOException e) {
                 setErrorState(ErrorState.CLOSE_NOW, e);
+            } finally {
+                getOutputBuffer().setDeferFlush(false);
             }
             break;
         }
@@ -892,6 +1032,10 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
             ((AtomicBoolean) param).set(getErrorState().isError());
             break;
         }
+        case REQUEST_BODY_FULLY_READ: {
+            ((AtomicBoolean) param).set(getInputBuffer().isFinished());
+            break;
+        }
         case DISABLE_SWALLOW_INPUT: {
             // Do not swallow request input and make sure we are closing the
             // connection
@@ -1105,6 +1249,9 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
                     setErrorState(ErrorState.CLOSE_CLEAN, null);
                 } else {
                     keptAlive = true;
+                    if (requestClassifiers != null) {
+                        socketWrapper.setHighPriority(isHighPriority());
+                    }
                     // Set this every time in case limit has been changed via JMX
                     // 每次处理一个请求就重新获取一下请求头和cookies的最大限制
                     request.getMimeHeaders().setLimit(endpoint.getMaxHeaderCount());
@@ -1153,6 +1300,11 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
                 getAdapter().log(request, response, 0);
             }
 
+            if (!getErrorState().isError() && isHttp2Preface()) {
+                upgradeToHttp2(false);
+                break;
+            }
+
             if (!getErrorState().isError()) {
                 // Setting up filters, and parse some request headers
                 rp.setStage(org.apache.coyote.Constants.STAGE_PREPARE);  // 设置请求状态为预处理状态
@@ -1171,6 +1323,11 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
                 }
             }
 
+            if (!getErrorState().isError() && isH2cUpgrade()) {
+                upgradeToHttp2(true);
+                break;
+            }
+
             if (maxKeepAliveRequests == 1) {
                 // 如果最大的活跃http请求数量仅仅只能为1的话，那么设置keepAlive为false，则不会继续从socket中获取Http请求了
                 keepAlive = false;
@@ -1180,11 +1337,53 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
                 keepAlive = false;
             }
 
+            // The flag is kept while the headers arrive in pieces so that it
+            // only ever applies to the first complete request of the dispatch
+            if (socketWrapper.isOverdue()) {
+                socketWrapper.setOverdue(false);
+                if (!getErrorState().isError()) {
+                    if (getLog().isDebugEnabled()) {
+                        getLog().debug(sm.getString("http11processor.request.overdue"));
+                    }
+                    // 503 - Service unavailable
+                    response.setStatus(503);
+                    setErrorState(ErrorState.CLOSE_CLEAN, null);
+                    getAdapter().log(request, response, 0);
+                    endpoint.incrementQueueShedCount();
+                }
+            }
+
+            if (!getErrorState().isError()) {
+                AdaptiveLimiter limiter = endpoint.getAdaptiveLimiter();
+                if (limiter != null) {
+                    if (limiter.tryAcquire()) {
+                        admissionLimiter = limiter;
+                        admissionTime = System.nanoTime();
+                    } else {
+                        if (getLog().isDebugEnabled()) {
+                            getLog().debug(sm.getString(
+                                    "http11processor.request.rejected",
+                                    Integer.valueOf(limiter.getLimit())));
+                        }
+                        // 503 - Service unavailable
+                        response.setStatus(503);
+                        setErrorState(ErrorState.CLOSE_CLEAN, null);
+                        getAdapter().log(request, response, 0);
+                    }
+                }
+            }
+
             // Process the request in the adapter
             if (!getErrorState().isError()) {
                 try {
                     rp.setStage(org.apache.coyote.Constants.STAGE_SERVICE); // 设置请求的状态为服务状态，表示正在处理请求
+                    serviceInProcess = true;
                     adapter.service(request, response); // 交给容器处理请求
+                    if (comet || isUpgrade() || getUpgradeInbound() != null) {
+                        // Long lived connections say nothing about request
+                        // latency and must not hold on to a permit
+                        releaseAdmission(false);
+                    }
                     // Handle when the response was committed before a serious
                     // error occurred.  Throwing a ServletException should both
                     // set the status to 500 and set the errorException.
@@ -1218,6 +1417,8 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
                     response.setStatus(500);
                     setErrorState(ErrorState.CLOSE_CLEAN, t);
                     getAdapter().log(request, response, 0);
+                } finally {
+                    serviceInProcess = false;
                 }
             }
 
@@ -1255,6 +1456,8 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
                     getInputBuffer().nextRequest();
                     getOutputBuffer().nextRequest();
                 }
+                // The next request on the connection is classified afresh
+                socketWrapper.setHighPriority(false);
             }
 
             if (!disableUploadTimeout) {
@@ -1277,6 +1480,16 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
         }
         // 至此，循环结束
 
+        // Write any response held back for a pipelined request that this
+        // loop did not get to
+        if (getErrorState().isIoAllowed()) {
+            try {
+                getOutputBuffer().flushDeferred();
+            } catch (IOException e) {
+                setErrorState(ErrorState.CLOSE_NOW, e);
+            }
+        }
+
         rp.setStage(org.apache.coyote.Constants.STAGE_ENDED);
 
         // 主要流程就是将socket的状态设置为CLOSED
@@ -1310,6 +1523,88 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
     }
 
 
+    /**
+     * Is the request just read the start of the HTTP/2 connection preface,
+     * i.e. is the client using HTTP/2 with prior knowledge?
+     */
+    private boolean isHttp2Preface() {
+        return http2Protocol != null &&
+                request.method().equals("PRI") &&
+                request.requestURI().equals("*") &&
+                request.protocol().equals("HTTP/2.0") &&
+                request.getMimeHeaders().size() == 0;
+    }
+
+
+    /**
+     * Does the request ask to upgrade to HTTP/2 in a way this connector
+     * supports? Requests with a body are processed using HTTP/1.1 rather than
+     * buffering the body until the upgrade completes.
+     */
+    private boolean isH2cUpgrade() {
+        if (http2Protocol == null || !http11 ||
+                request.getContentLengthLong() > 0 ||
+                request.getHeader("transfer-encoding") != null) {
+            return false;
+        }
+        MimeHeaders headers = request.getMimeHeaders();
+        int settings = 0;
+        for (int i = 0; i < headers.size(); i++) {
+            if (headers.getName(i).equalsIgnoreCase("HTTP2-Settings")) {
+                settings++;
+            }
+        }
+        return settings == 1 &&
+                containsToken(headers, "Upgrade",
+                        org.apache.coyote.http2.Constants.H2C) &&
+                containsToken(headers, Constants.CONNECTION, "Upgrade") &&
+                containsToken(headers, Constants.CONNECTION, "HTTP2-Settings");
+    }
+
+
+    private static boolean containsToken(MimeHeaders headers, String name,
+            String token) {
+        Enumeration<String> values = headers.values(name);
+        while (values.hasMoreElements()) {
+            StringTokenizer tokens = new StringTokenizer(values.nextElement(), ",");
+            while (tokens.hasMoreTokens()) {
+                if (tokens.nextToken().trim().equalsIgnoreCase(token)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Hand the connection over to HTTP/2. For an h2c upgrade the 101 response
+     * is sent first and the request becomes stream 1 of the new connection.
+     */
+    private void upgradeToHttp2(boolean h2c) {
+        // The connection details are only looked up on demand for HTTP/1.1
+        request.action(ActionCode.REQ_HOST_ADDR_ATTRIBUTE, null);
+        request.action(ActionCode.REQ_REMOTEPORT_ATTRIBUTE, null);
+        request.action(ActionCode.REQ_LOCAL_ADDR_ATTRIBUTE, null);
+        request.action(ActionCode.REQ_LOCALPORT_ATTRIBUTE, null);
+
+        if (h2c) {
+            response.setStatus(HttpServletResponse.SC_SWITCHING_PROTOCOLS);
+            response.setHeader(Constants.CONNECTION, "Upgrade");
+            response.setHeader("Upgrade", org.apache.coyote.http2.Constants.H2C);
+            action(ActionCode.CLOSE, null);
+            if (getErrorState().isError()) {
+                return;
+            }
+        }
+        httpUpgradeHandler = http2Protocol.createUpgradeHandler(getSocketWrapper(),
+                adapter, endpoint.getExecutor(), request, h2c,
+                getInputBuffer().getLeftover());
+        // Stop further HTTP/1.1 output
+        getOutputBuffer().finished = true;
+    }
+
+
     private void checkExpectationAndResponseStatus() {
         if (expectation && (response.getStatus() < 200 || response.getStatus() > 299)) {
             // Client sent Expect: 100-continue but received a
@@ -1604,6 +1899,19 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
             // the client is not broken and didn't send a body
             getInputBuffer().addActiveFilter(inputFilters[Constants.VOID_FILTER]);
             contentDelimitation = true;
+        } else if (decompressRequestBody) {
+            MessageBytes contentEncodingMB = headers.getValue("content-encoding");
+            if (GzipInputFilter.isSupported(contentEncodingMB)) {
+                GzipInputFilter gzipFilter =
+                        (GzipInputFilter) inputFilters[Constants.GZIP_INPUT_FILTER];
+                gzipFilter.setMaxInflatedSize(maxInflatedRequestBodySize);
+                getInputBuffer().addActiveFilter(gzipFilter);
+                // The application sees the inflated body
+                headers.removeHeader("content-encoding");
+                headers.removeHeader("content-length");
+                request.setContentLength(-1);
+                request.setBodyInflated(true);
+            }
         }
 
         // Advertise sendfile support through a request attribute
@@ -1700,10 +2008,18 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
         // Check for compression
         boolean isCompressible = false;
         boolean useCompression = false;
+        boolean busy = false;
         if (entityBody && (compressionLevel > 0) && !sendingWithSendfile) {
             isCompressible = isCompressible();
             if (isCompressible) {
-                useCompression = useCompression();
+                busy = adaptiveCompressionThreshold > 0 &&
+                        getEndpoint().getThreadsBusyPercent() >= adaptiveCompressionThreshold;
+                long contentLength = response.getContentLengthLong();
+                // Under load, mid-size responses are not worth the CPU
+                if (!busy || compressionLevel == 2 || contentLength == -1 ||
+                        contentLength > adaptiveCompressionMinSize) {
+                    useCompression = useCompression();
+                }
             }
             // Change content-length to -1 to force chunking
             if (useCompression) {
@@ -1749,6 +2065,10 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
         }
 
         if (useCompression) {
+            if (busy) {
+                ((GzipOutputFilter) outputFilters[Constants.GZIP_FILTER]).setLevel(
+                        adaptiveCompressionLevel);
+            }
             getOutputBuffer().addActiveFilter(outputFilters[Constants.GZIP_FILTER]);
             headers.setValue("Content-Encoding").setString("gzip");
         }
@@ -1760,8 +2080,8 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
         // Add date header unless application has already set one (e.g. in a
         // Caching Filter)
         if (headers.getValue("Date") == null) {
-            headers.setValue("Date").setString(
-                    FastHttpDateFormat.getCurrentDate());
+            byte[] date = FastHttpDateFormat.getCurrentDateBytes();
+            headers.setValue("Date").setBytes(date, 0, date.length);
         }
 
         // FIXME: Add transfer encoding header
@@ -1798,7 +2118,8 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
         // Add server header
         if (server != null) {
             // Always overrides anything the app might set
-            headers.setValue("Server").setString(server);
+            headers.setValue("Server").setBytes(serverBytes, 0,
+                    serverBytes.length);
         } else if (headers.getValue("Server") == null) {
             // If app didn't set the header, use the default
             getOutputBuffer().write(Constants.SERVER_BYTES);
@@ -1806,7 +2127,12 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
 
         int size = headers.size();
         for (int i = 0; i < size; i++) {
-            getOutputBuffer().sendHeader(headers.getName(i), headers.getValue(i));
+            byte[] name = headers.getEncodedName(i);
+            if (name == null) {
+                getOutputBuffer().sendHeader(headers.getName(i), headers.getValue(i));
+            } else {
+                getOutputBuffer().sendHeader(name, headers.getValue(i));
+            }
         }
         getOutputBuffer().endHeaders();
 
@@ -1882,6 +2208,7 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
                 endRequest();
                 getInputBuffer().nextRequest();
                 getOutputBuffer().nextRequest();
+                socketWrapper.setHighPriority(false);
                 return SocketState.OPEN;
             }
         }
@@ -1967,6 +2294,10 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
         }
         if (getErrorState().isIoAllowed()) {
             try {
+                // When the next request is already buffered its response
+                // can share the socket write with this one
+                getOutputBuffer().setDeferFlush(keepAlive && !isAsync() && !comet &&
+                        !getErrorState().isError() && getInputBuffer().hasPipelinedData());
                 getOutputBuffer().endRequest();
             } catch (IOException e) {
                 setErrorState(ErrorState.CLOSE_NOW, e);
@@ -1974,8 +2305,11 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
                 ExceptionUtils.handleThrowable(t);
                 setErrorState(ErrorState.CLOSE_NOW, t);
                 getLog().error(sm.getString("http11processor.response.finish"), t);
+            } finally {
+                getOutputBuffer().setDeferFlush(false);
             }
         }
+        releaseAdmission(!getErrorState().isError());
     }
 
 
@@ -2012,9 +2346,34 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
         remotePort = -1;
         localPort = -1;
         comet = false;
+        releaseAdmission(false);
         resetErrorState();
         recycleInternal();
     }
 
+
+    @Override
+    public void destroy() {
+        // End the Inflaters now rather than leaving their native memory to
+        // finalization
+        if (getInputBuffer() != null) {
+            ((GzipInputFilter) getInputBuffer().getFilters()[
+                    Constants.GZIP_INPUT_FILTER]).destroy();
+        }
+    }
+
+
+    private void releaseAdmission(boolean sample) {
+        AdaptiveLimiter limiter = admissionLimiter;
+        if (limiter != null) {
+            admissionLimiter = null;
+            if (sample) {
+                limiter.release(System.nanoTime() - admissionTime);
+            } else {
+                limiter.release();
+            }
+        }
+    }
+
     protected abstract void recycleInternal();
 }
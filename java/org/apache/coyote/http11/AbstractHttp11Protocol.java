@@ -16,6 +16,7 @@
  */
 package org.apache.coyote.http11;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
@@ -25,6 +26,10 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.coyote.AbstractProtocol;
+import org.apache.coyote.Request;
+import org.apache.coyote.RequestClassifier;
+import org.apache.coyote.UriPrefixClassifier;
+import org.apache.tomcat.util.collections.SynchronizedStack;
 import org.apache.tomcat.util.res.StringManager;
 
 public abstract class AbstractHttp11Protocol<S> extends AbstractProtocol<S> {
@@ -203,6 +208,60 @@ public abstract class AbstractHttp11Protocol<S> extends AbstractProtocol<S> {
     }
 
 
+    /**
+     * Percentage of busy worker threads from which compression uses
+     * adaptiveCompressionLevel and skips responses no larger than
+     * adaptiveCompressionMinSize. Zero disables the adaptive mode.
+     */
+    private int adaptiveCompressionThreshold = 0;
+    public int getAdaptiveCompressionThreshold() {
+        return adaptiveCompressionThreshold;
+    }
+    public void setAdaptiveCompressionThreshold(int valueI) {
+        adaptiveCompressionThreshold = valueI;
+    }
+
+
+    private int adaptiveCompressionLevel = 1;
+    public int getAdaptiveCompressionLevel() {
+        return adaptiveCompressionLevel;
+    }
+    public void setAdaptiveCompressionLevel(int valueI) {
+        adaptiveCompressionLevel = valueI;
+    }
+
+
+    private int adaptiveCompressionMinSize = 32 * 1024;
+    public int getAdaptiveCompressionMinSize() {
+        return adaptiveCompressionMinSize;
+    }
+    public void setAdaptiveCompressionMinSize(int valueI) {
+        adaptiveCompressionMinSize = valueI;
+    }
+
+
+    /**
+     * Inflate request bodies sent with a gzip or deflate Content-Encoding
+     * before they are passed to the application.
+     */
+    private boolean decompressRequestBody = false;
+    public boolean getDecompressRequestBody() { return decompressRequestBody; }
+    public void setDecompressRequestBody(boolean decompressRequestBody) {
+        this.decompressRequestBody = decompressRequestBody;
+    }
+
+
+    /**
+     * Maximum size, once inflated, of a compressed request body. -1 means no
+     * limit.
+     */
+    private int maxInflatedRequestBodySize = 10 * 1024 * 1024;
+    public int getMaxInflatedRequestBodySize() { return maxInflatedRequestBodySize; }
+    public void setMaxInflatedRequestBodySize(int maxInflatedRequestBodySize) {
+        this.maxInflatedRequestBodySize = maxInflatedRequestBodySize;
+    }
+
+
     /**
      * Regular expression that defines the User agents which should be
      * restricted to HTTP/1.0 support.
@@ -333,6 +392,177 @@ public abstract class AbstractHttp11Protocol<S> extends AbstractProtocol<S> {
     }
 
 
+    /**
+     * Comma separated list of URI prefixes of requests, such as load balancer
+     * health checks, that are dispatched ahead of other work when the
+     * executor is busy.
+     */
+    private String priorityUris = null;
+    public String getPriorityUris() { return priorityUris; }
+    public void setPriorityUris(String priorityUris) {
+        this.priorityUris = priorityUris;
+        requestClassifierArray = null;
+    }
+
+
+    /**
+     * Comma separated list of the class names of additional
+     * {@link RequestClassifier} implementations.
+     */
+    private String requestClassifiers = null;
+    public String getRequestClassifiers() { return requestClassifiers; }
+    public void setRequestClassifiers(String requestClassifiers) {
+        this.requestClassifiers = requestClassifiers;
+        requestClassifierArray = null;
+    }
+
+
+    private volatile RequestClassifier[] requestClassifierArray = null;
+    /**
+     * @return the classifiers built from {@link #getPriorityUris()} and
+     *         {@link #getRequestClassifiers()} or <code>null</code> if neither
+     *         is set
+     */
+    protected RequestClassifier[] getRequestClassifierArray() {
+        RequestClassifier[] result = requestClassifierArray;
+        if (result != null) {
+            return result.length == 0 ? null : result;
+        }
+        List<RequestClassifier> classifiers = new ArrayList<RequestClassifier>();
+        if (priorityUris != null && priorityUris.trim().length() > 0) {
+            classifiers.add(new UriPrefixClassifier(priorityUris));
+        }
+        if (requestClassifiers != null) {
+            for (String className : requestClassifiers.split(",")) {
+                className = className.trim();
+                if (className.length() == 0) {
+                    continue;
+                }
+                try {
+                    Class<?> clazz = Class.forName(className);
+                    classifiers.add(
+                            (RequestClassifier) clazz.getConstructor().newInstance());
+                } catch (Exception e) {
+                    getLog().warn(sm.getString(
+                            "http11protocol.classifier.error", className), e);
+                }
+            }
+        }
+        result = classifiers.toArray(new RequestClassifier[classifiers.size()]);
+        requestClassifierArray = result;
+        return result.length == 0 ? null : result;
+    }
+
+
+    private final SynchronizedStack<Request> classifierRequests =
+            new SynchronizedStack<Request>();
+    /**
+     * Classify a request from the data read so far for it, before the socket
+     * is passed to a worker thread.
+     *
+     * @param requestStart The data read so far for the request
+     *
+     * @return <code>true</code> if the request line is complete and one of
+     *         the classifiers considers the request high priority
+     */
+    protected boolean isHighPriority(ByteBuffer requestStart) {
+        RequestClassifier[] classifiers = getRequestClassifierArray();
+        if (classifiers == null) {
+            return false;
+        }
+        byte[] buf;
+        int start;
+        int end;
+        if (requestStart.hasArray()) {
+            buf = requestStart.array();
+            start = requestStart.arrayOffset() + requestStart.position();
+            end = requestStart.arrayOffset() + requestStart.limit();
+        } else {
+            buf = new byte[requestStart.remaining()];
+            requestStart.duplicate().get(buf);
+            start = 0;
+            end = buf.length;
+        }
+        Request request = classifierRequests.pop();
+        if (request == null) {
+            request = new Request();
+        }
+        try {
+            if (!parseRequestLine(buf, start, end, request)) {
+                return false;
+            }
+            for (RequestClassifier classifier : classifiers) {
+                if (classifier.isHighPriority(request)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            request.recycle();
+            classifierRequests.push(request);
+        }
+    }
+
+
+    /*
+     * A lenient version of the parsing in the input buffers that only has to
+     * extract enough of the request line to classify the request. Invalid
+     * request lines are rejected by the processor.
+     */
+    private static boolean parseRequestLine(byte[] buf, int pos, int end,
+            Request request) {
+        // Skip blank lines
+        while (pos < end && (buf[pos] == Constants.CR || buf[pos] == Constants.LF)) {
+            pos++;
+        }
+        int start = pos;
+        while (pos < end && buf[pos] != Constants.SP) {
+            if (buf[pos] == Constants.CR || buf[pos] == Constants.LF) {
+                return false;
+            }
+            pos++;
+        }
+        if (pos == end) {
+            return false;
+        }
+        request.method().setBytes(buf, start, pos - start);
+        while (pos < end && buf[pos] == Constants.SP) {
+            pos++;
+        }
+        start = pos;
+        int questionPos = -1;
+        while (pos < end && buf[pos] != Constants.SP &&
+                buf[pos] != Constants.CR && buf[pos] != Constants.LF) {
+            if (buf[pos] == Constants.QUESTION && questionPos == -1) {
+                questionPos = pos;
+            }
+            pos++;
+        }
+        if (pos == end || pos == start) {
+            return false;
+        }
+        if (questionPos == -1) {
+            request.requestURI().setBytes(buf, start, pos - start);
+        } else {
+            request.requestURI().setBytes(buf, start, questionPos - start);
+            request.queryString().setBytes(
+                    buf, questionPos + 1, pos - questionPos - 1);
+        }
+        while (pos < end && buf[pos] == Constants.SP) {
+            pos++;
+        }
+        start = pos;
+        while (pos < end && buf[pos] != Constants.CR && buf[pos] != Constants.LF) {
+            pos++;
+        }
+        if (pos == end) {
+            return false;
+        }
+        request.protocol().setBytes(buf, start, pos - start);
+        return true;
+    }
+
+
     // ------------------------------------------------ HTTP specific properties
     // ------------------------------------------ passed through to the EndPoint
 
@@ -363,6 +593,11 @@ public abstract class AbstractHttp11Protocol<S> extends AbstractProtocol<S> {
         processor.setDisableUploadTimeout(getDisableUploadTimeout());
         processor.setCompressionMinSize(getCompressionMinSize());
         processor.setCompression(getCompression());
+        processor.setAdaptiveCompressionThreshold(getAdaptiveCompressionThreshold());
+        processor.setAdaptiveCompressionLevel(getAdaptiveCompressionLevel());
+        processor.setAdaptiveCompressionMinSize(getAdaptiveCompressionMinSize());
+        processor.setDecompressRequestBody(getDecompressRequestBody());
+        processor.setMaxInflatedRequestBodySize(getMaxInflatedRequestBodySize());
         processor.setNoCompressionUserAgents(getNoCompressionUserAgents());
         processor.setCompressibleMimeTypes(getCompressibleMimeType());
         processor.setRestrictedUserAgents(getRestrictedUserAgents());
@@ -371,5 +606,6 @@ public abstract class AbstractHttp11Protocol<S> extends AbstractProtocol<S> {
         processor.setServer(getServer());
         processor.setMaxCookieCount(getMaxCookieCount());
         processor.setAllowHostHeaderMismatch(getAllowHostHeaderMismatch());
+        processor.setRequestClassifiers(getRequestClassifierArray());
     }
 }
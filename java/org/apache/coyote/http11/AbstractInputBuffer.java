@@ -20,6 +20,7 @@ import java.io.IOException;
 
 import org.apache.coyote.InputBuffer;
 import org.apache.coyote.Request;
+import org.apache.coyote.http11.filters.VoidInputFilter;
 import org.apache.tomcat.util.buf.ByteChunk;
 import org.apache.tomcat.util.http.MimeHeaders;
 import org.apache.tomcat.util.http.parser.HttpParser;
@@ -286,6 +287,56 @@ public abstract class AbstractInputBuffer<S> implements InputBuffer{
     }
 
 
+    /**
+     * Has the request body been read fully? Only the active filters are
+     * consulted so this never reads from the socket.
+     *
+     * @return <code>true</code> if the request body has been fully read
+     */
+    public boolean isFinished() {
+        if (lastActiveFilter >= 0) {
+            return activeFilters[lastActiveFilter].isFinished();
+        }
+        // No filters. The end of the body is only known when EOF is reached.
+        return false;
+    }
+
+
+    /**
+     * @return <code>false</code> if the current request is known not to have
+     *         a body
+     */
+    public boolean hasBody() {
+        return lastActiveFilter == -1 ||
+                !(activeFilters[lastActiveFilter] instanceof VoidInputFilter);
+    }
+
+
+    /**
+     * @return <code>true</code> if bytes following the current request have
+     *         already been read from the socket
+     */
+    public boolean hasPipelinedData() {
+        return lastValid - pos > 0;
+    }
+
+
+    /**
+     * Bytes that have been read from the socket but not yet consumed. Used
+     * when the connection switches to another protocol that must process them.
+     *
+     * @return a copy of the unconsumed bytes, possibly empty
+     */
+    public byte[] getLeftover() {
+        int length = lastValid - pos;
+        byte[] result = new byte[length > 0 ? length : 0];
+        if (length > 0) {
+            System.arraycopy(buf, pos, result, 0, length);
+        }
+        return result;
+    }
+
+
     // ---------------------------------------------------- InputBuffer Methods
 
     /**
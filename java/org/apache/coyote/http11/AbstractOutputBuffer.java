@@ -34,6 +34,14 @@ import org.apache.tomcat.util.res.StringManager;
 
 public abstract class AbstractOutputBuffer<S> implements OutputBuffer{
 
+    /**
+     * Encoded status lines for status codes 100 to 599, including the CRLF.
+     * Each is kept with the reason phrase it was built for so that a
+     * different phrase (custom or localized) is still written correctly.
+     */
+    private static final StatusLine[] statusLines = new StatusLine[500];
+
+
     // ----------------------------------------------------- Instance Variables
 
 
@@ -95,6 +103,14 @@ public abstract class AbstractOutputBuffer<S> implements OutputBuffer{
      */
     protected long byteCount = 0;
 
+    /**
+     * Set while ending a response when the next pipelined request has
+     * already been read. Connectors that buffer socket writes may then keep
+     * the end of the response buffered so that it is written together with
+     * the following responses.
+     */
+    protected boolean deferFlush = false;
+
     // -------------------------------------------------------------- Variables
 
 
@@ -268,6 +284,24 @@ public abstract class AbstractOutputBuffer<S> implements OutputBuffer{
     public void recycle() {
         // Sub-classes may wish to do more than this.
         nextRequest();
+        deferFlush = false;
+    }
+
+
+    public void setDeferFlush(boolean deferFlush) {
+        this.deferFlush = deferFlush;
+    }
+
+
+    /**
+     * Write any response data that was kept buffered because of
+     * {@link #setDeferFlush(boolean)}. The default implementation does
+     * nothing since connectors do not defer by default.
+     *
+     * @throws IOException an underlying I/O error occurred
+     */
+    public void flushDeferred() throws IOException {
+        // NO-OP
     }
 
     /**
@@ -331,12 +365,26 @@ public abstract class AbstractOutputBuffer<S> implements OutputBuffer{
      */
     public void sendStatus() {
 
+        int status = response.getStatus();
+        String message = null;
+        if (org.apache.coyote.Constants.USE_CUSTOM_STATUS_MSG_IN_HEADER &&
+                HttpMessages.isSafeInHttpHeader(response.getMessage())) {
+            message = response.getMessage();
+        }
+        if (message == null) {
+            message = HttpMessages.getInstance(
+                    response.getLocale()).getMessage(status);
+            if (status >= 100 && status < 600 && message != null) {
+                writeStatusLine(status, message);
+                return;
+            }
+        }
+
         // Write protocol name
         write(Constants.HTTP_11_BYTES);
         buf[pos++] = Constants.SP;
 
         // Write status code
-        int status = response.getStatus();
         switch (status) {
         case 200:
             write(Constants._200_BYTES);
@@ -354,17 +402,7 @@ public abstract class AbstractOutputBuffer<S> implements OutputBuffer{
         buf[pos++] = Constants.SP;
 
         // Write message
-        String message = null;
-        if (org.apache.coyote.Constants.USE_CUSTOM_STATUS_MSG_IN_HEADER &&
-                HttpMessages.isSafeInHttpHeader(response.getMessage())) {
-            message = response.getMessage();
-        }
-        if (message == null) {
-            write(HttpMessages.getInstance(
-                    response.getLocale()).getMessage(status));
-        } else {
-            write(message);
-        }
+        write(message);
 
         // End the response status line
         if (org.apache.coyote.Constants.IS_SECURITY_ENABLED){
@@ -386,6 +424,19 @@ public abstract class AbstractOutputBuffer<S> implements OutputBuffer{
     }
 
 
+    /*
+     * Status lines using the standard reason phrase are only encoded once.
+     */
+    private void writeStatusLine(int status, String message) {
+        StatusLine statusLine = statusLines[status - 100];
+        if (statusLine == null || !message.equals(statusLine.message)) {
+            statusLine = new StatusLine(status, message);
+            statusLines[status - 100] = statusLine;
+        }
+        write(statusLine.bytes);
+    }
+
+
     /**
      * Send a header.
      *
@@ -404,6 +455,24 @@ public abstract class AbstractOutputBuffer<S> implements OutputBuffer{
     }
 
 
+    /**
+     * Send a header with a pre-encoded name.
+     *
+     * @param name Header name
+     * @param value Header value
+     */
+    public void sendHeader(byte[] name, MessageBytes value) {
+
+        write(name);
+        buf[pos++] = Constants.COLON;
+        buf[pos++] = Constants.SP;
+        write(value);
+        buf[pos++] = Constants.CR;
+        buf[pos++] = Constants.LF;
+
+    }
+
+
     /**
      * End the header block.
      */
@@ -544,6 +613,27 @@ public abstract class AbstractOutputBuffer<S> implements OutputBuffer{
     }
 
 
+    /**
+     * Encode a String the same way {@link #write(String)} does so that it can
+     * be written later with a single array copy.
+     *
+     * @param s The String to encode
+     * @return the bytes {@link #write(String)} would write
+     */
+    static byte[] encode(String s) {
+        int len = s.length();
+        byte[] result = new byte[len];
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (((c <= 31) && (c != 9)) || c == 127 || c > 255) {
+                c = ' ';
+            }
+            result[i] = (byte) c;
+        }
+        return result;
+    }
+
+
     /**
      * Checks to see if there is enough space in the buffer to write the
      * requested number of bytes.
@@ -557,4 +647,21 @@ public abstract class AbstractOutputBuffer<S> implements OutputBuffer{
         }
     }
 
+
+
+    private static final class StatusLine {
+
+        private final String message;
+        private final byte[] bytes;
+
+        private StatusLine(int status, String message) {
+            this.message = message;
+            byte[] line = encode(Constants.HTTP_11 + " " + status + " " +
+                    message);
+            bytes = new byte[line.length + 2];
+            System.arraycopy(line, 0, bytes, 0, line.length);
+            bytes[line.length] = Constants.CR;
+            bytes[line.length + 1] = Constants.LF;
+        }
+    }
 }
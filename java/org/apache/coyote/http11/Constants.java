@@ -170,6 +170,12 @@ public final class Constants {
     public static final int BUFFERED_FILTER = 3;
 
 
+    /**
+     * GZIP filter (input).
+     */
+    public static final int GZIP_INPUT_FILTER = 4;
+
+
     /**
      * HTTP/1.0.
      */
@@ -158,6 +158,7 @@ public class Http11AprProcessor extends AbstractHttp11Processor<Long> {
         } else if (!comet) {
             inputBuffer.nextRequest();
             outputBuffer.nextRequest();
+            socketWrapper.setHighPriority(false);
             return SocketState.OPEN;
         } else {
             return SocketState.LONG;
@@ -343,6 +343,11 @@ public class Http11AprProtocol extends AbstractHttp11Protocol<Long> {
             processor.setDisableUploadTimeout(proto.getDisableUploadTimeout());
             processor.setCompressionMinSize(proto.getCompressionMinSize());
             processor.setCompression(proto.getCompression());
+            processor.setAdaptiveCompressionThreshold(proto.getAdaptiveCompressionThreshold());
+            processor.setAdaptiveCompressionLevel(proto.getAdaptiveCompressionLevel());
+            processor.setAdaptiveCompressionMinSize(proto.getAdaptiveCompressionMinSize());
+            processor.setDecompressRequestBody(proto.getDecompressRequestBody());
+            processor.setMaxInflatedRequestBodySize(proto.getMaxInflatedRequestBodySize());
             processor.setNoCompressionUserAgents(proto.getNoCompressionUserAgents());
             processor.setCompressableMimeTypes(proto.getCompressableMimeTypes());
             processor.setRestrictedUserAgents(proto.getRestrictedUserAgents());
@@ -351,6 +356,7 @@ public class Http11AprProtocol extends AbstractHttp11Protocol<Long> {
             processor.setServer(proto.getServer());
             processor.setClientCertProvider(proto.getClientCertProvider());
             processor.setMaxCookieCount(proto.getMaxCookieCount());
+            processor.setRequestClassifiers(proto.getRequestClassifierArray());
             register(processor);
             return processor;
         }
@@ -0,0 +1,368 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http11;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Set;
+
+import org.apache.coyote.ActionCode;
+import org.apache.coyote.ErrorState;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.http.parser.HttpParser;
+import org.apache.tomcat.util.net.AbstractEndpoint.Handler.SocketState;
+import org.apache.tomcat.util.net.Nio2Channel;
+import org.apache.tomcat.util.net.Nio2Endpoint;
+import org.apache.tomcat.util.net.SSLSupport;
+import org.apache.tomcat.util.net.SocketStatus;
+import org.apache.tomcat.util.net.SocketWrapper;
+
+
+/**
+ * Processes HTTP requests for the NIO.2 connector.
+ */
+public class Http11Nio2Processor extends AbstractHttp11Processor<Nio2Channel> {
+
+    private static final Log log = LogFactory.getLog(Http11Nio2Processor.class);
+    @Override
+    protected Log getLog() {
+        return log;
+    }
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    public Http11Nio2Processor(int maxHttpHeaderSize, boolean rejectIllegalHeaderName,
+            Nio2Endpoint endpoint, int maxTrailerSize, Set<String> allowedTrailerHeaders,
+            int maxExtensionSize, int maxSwallowSize, String relaxedPathChars,
+            String relaxedQueryChars) {
+
+        super(endpoint);
+
+        httpParser = new HttpParser(relaxedPathChars, relaxedQueryChars);
+
+        inputBuffer = new InternalNio2InputBuffer(request, maxHttpHeaderSize,
+                rejectIllegalHeaderName, httpParser);
+        request.setInputBuffer(inputBuffer);
+
+        outputBuffer = new InternalNio2OutputBuffer(response, maxHttpHeaderSize);
+        response.setOutputBuffer(outputBuffer);
+
+        initializeFilters(maxTrailerSize, allowedTrailerHeaders, maxExtensionSize, maxSwallowSize);
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+    /**
+     * Input.
+     */
+    protected InternalNio2InputBuffer inputBuffer = null;
+
+
+    /**
+     * Output.
+     */
+    protected InternalNio2OutputBuffer outputBuffer = null;
+
+
+    // --------------------------------------------------------- Public Methods
+
+    @Override
+    public SocketState event(SocketStatus status) throws IOException {
+        throw new IOException(
+                sm.getString("http11processor.comet.notsupported"));
+    }
+
+
+    @Override
+    protected void resetTimeouts() {
+        if (!getErrorState().isError() && socketWrapper != null &&
+                asyncStateMachine.isAsyncDispatching()) {
+            long soTimeout = endpoint.getSoTimeout();
+
+            //reset the timeout
+            if (keepAlive) {
+                socketWrapper.setTimeout(keepAliveTimeout);
+            } else {
+                socketWrapper.setTimeout(soTimeout);
+            }
+        }
+    }
+
+
+    @Override
+    protected boolean disableKeepAlive() {
+        return false;
+    }
+
+
+    @Override
+    protected void setRequestLineReadTimeout() throws IOException {
+        // socket.setTimeout()
+        //     - timeout used by the endpoint while waiting for data
+        // socket.getSocket().setReadTimeout()
+        //     - timeout used for blocking reads
+
+        // When entering the processing loop there will always be data to read
+        // so no point changing timeouts at this point
+
+        // For the second and subsequent executions of the processing loop, a
+        // non-blocking read is used so again no need to set the timeouts
+
+        // NO-OP
+    }
+
+
+    @Override
+    protected boolean handleIncompleteRequestLineRead() {
+        // Haven't finished reading the request so keep the socket
+        // open
+        openSocket = true;
+        // Check to see if we have read any of the request line yet. Unlike
+        // NIO, a non-blocking read only returns the data read by the endpoint
+        // so leading blank lines may span several reads. Keep the processor
+        // once any data has been read so the limit on the size of the request
+        // header is applied to them.
+        if (inputBuffer.getParsingRequestLinePhase() < 2 &&
+                request.getStartTime() < 0) {
+            if (socketWrapper.getLastAccess() > -1 || keptAlive) {
+                // Haven't read the request line and have previously processed a
+                // request. Must be keep-alive. Make sure poller uses keepAlive.
+                socketWrapper.setTimeout(endpoint.getKeepAliveTimeout());
+            }
+        } else {
+            // Started to read request line.
+            if (endpoint.isPaused()) {
+                // Partially processed the request so need to respond
+                response.setStatus(503);
+                setErrorState(ErrorState.CLOSE_CLEAN, null);
+                getAdapter().log(request, response, 0);
+                return false;
+            } else {
+                // Need to keep processor associated with socket
+                readComplete = false;
+                // Make sure the endpoint uses the right timeout
+                socketWrapper.setTimeout(endpoint.getSoTimeout());
+            }
+        }
+        return true;
+    }
+
+
+    @Override
+    protected void setSocketTimeout(int timeout) throws IOException {
+        socketWrapper.getSocket().setReadTimeout(timeout);
+    }
+
+
+    @Override
+    protected void setCometTimeouts(SocketWrapper<Nio2Channel> socketWrapper) {
+        // NO-OP for NIO.2
+    }
+
+
+    @Override
+    protected boolean breakKeepAliveLoop(SocketWrapper<Nio2Channel> socketWrapper) {
+        openSocket = keepAlive;
+        // The next request, if any, is read with a non-blocking read so there
+        // is no need to break the loop here
+        return false;
+    }
+
+
+    @Override
+    public void recycleInternal() {
+        socketWrapper = null;
+    }
+
+
+    // ----------------------------------------------------- ActionHook Methods
+
+
+    /**
+     * Send an action to the connector.
+     *
+     * @param actionCode Type of the action
+     * @param param Action parameter
+     */
+    @Override
+    @SuppressWarnings("incomplete-switch") // Other cases are handled by action()
+    public void actionInternal(ActionCode actionCode, Object param) {
+
+        switch (actionCode) {
+        case REQ_HOST_ADDR_ATTRIBUTE: {
+            if ((remoteAddr == null) && (socketWrapper != null)) {
+                InetSocketAddress inetAddr = getRemoteAddress();
+                if (inetAddr != null) {
+                    remoteAddr = inetAddr.getAddress().getHostAddress();
+                }
+            }
+            request.remoteAddr().setString(remoteAddr);
+            break;
+        }
+        case REQ_LOCAL_NAME_ATTRIBUTE: {
+            if ((localName == null) && (socketWrapper != null)) {
+                InetSocketAddress inetAddr = getLocalAddress();
+                if (inetAddr != null) {
+                    localName = inetAddr.getAddress().getHostName();
+                }
+            }
+            request.localName().setString(localName);
+            break;
+        }
+        case REQ_HOST_ATTRIBUTE: {
+            if ((remoteHost == null) && (socketWrapper != null)) {
+                InetSocketAddress inetAddr = getRemoteAddress();
+                if (inetAddr != null) {
+                    remoteHost = inetAddr.getAddress().getHostName();
+                }
+                if(remoteHost == null) {
+                    if(remoteAddr != null) {
+                        remoteHost = remoteAddr;
+                    } else { // all we can do is punt
+                        request.remoteHost().recycle();
+                    }
+                }
+            }
+            request.remoteHost().setString(remoteHost);
+            break;
+        }
+        case REQ_LOCAL_ADDR_ATTRIBUTE: {
+            if ((localAddr == null) && (socketWrapper != null)) {
+                InetSocketAddress inetAddr = getLocalAddress();
+                if (inetAddr != null) {
+                    localAddr = inetAddr.getAddress().getHostAddress();
+                }
+            }
+
+            request.localAddr().setString(localAddr);
+            break;
+        }
+        case REQ_REMOTEPORT_ATTRIBUTE: {
+            if ((remotePort == -1 ) && (socketWrapper !=null)) {
+                InetSocketAddress inetAddr = getRemoteAddress();
+                if (inetAddr != null) {
+                    remotePort = inetAddr.getPort();
+                }
+            }
+            request.setRemotePort(remotePort);
+            break;
+        }
+        case REQ_LOCALPORT_ATTRIBUTE: {
+            if ((localPort == -1 ) && (socketWrapper !=null)) {
+                InetSocketAddress inetAddr = getLocalAddress();
+                if (inetAddr != null) {
+                    localPort = inetAddr.getPort();
+                }
+            }
+            request.setLocalPort(localPort);
+            break;
+        }
+        case AVAILABLE: {
+            request.setAvailable(inputBuffer.available());
+            break;
+        }
+        case ASYNC_COMPLETE: {
+            if (asyncStateMachine.asyncComplete()) {
+                ((Nio2Endpoint) endpoint).processSocketAsync(this.socketWrapper,
+                        SocketStatus.OPEN_READ);
+            }
+            break;
+        }
+        case ASYNC_SETTIMEOUT: {
+            if (param == null || socketWrapper == null) {
+                return;
+            }
+            long timeout = ((Long)param).longValue();
+            socketWrapper.setTimeout(timeout);
+            break;
+        }
+        case ASYNC_DISPATCH: {
+            if (asyncStateMachine.asyncDispatch()) {
+                ((Nio2Endpoint) endpoint).processSocketAsync(this.socketWrapper,
+                        SocketStatus.OPEN_READ);
+            }
+            break;
+        }
+        }
+    }
+
+
+    private InetSocketAddress getRemoteAddress() {
+        try {
+            SocketAddress sa = socketWrapper.getSocket().getIOChannel().getRemoteAddress();
+            if (sa instanceof InetSocketAddress) {
+                return (InetSocketAddress) sa;
+            }
+        } catch (IOException e) {
+            // Ignore
+        }
+        return null;
+    }
+
+
+    private InetSocketAddress getLocalAddress() {
+        try {
+            SocketAddress sa = socketWrapper.getSocket().getIOChannel().getLocalAddress();
+            if (sa instanceof InetSocketAddress) {
+                return (InetSocketAddress) sa;
+            }
+        } catch (IOException e) {
+            // Ignore
+        }
+        return null;
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    @Override
+    protected void prepareRequestInternal() {
+        // NOOP for NIO.2
+    }
+
+    @Override
+    protected boolean prepareSendfile(OutputFilter[] outputFilters) {
+        // Should never, ever call this code
+        Exception e = new Exception();
+        log.error(sm.getString("http11processor.neverused"), e);
+        return false;
+    }
+
+    @Override
+    protected AbstractInputBuffer<Nio2Channel> getInputBuffer() {
+        return inputBuffer;
+    }
+
+    @Override
+    protected AbstractOutputBuffer<Nio2Channel> getOutputBuffer() {
+        return outputBuffer;
+    }
+
+    /**
+     * Set the SSL information for this HTTP connection.
+     */
+    @Override
+    public void setSslSupport(SSLSupport sslSupport) {
+        // SSL is not supported by the NIO.2 connector
+    }
+}
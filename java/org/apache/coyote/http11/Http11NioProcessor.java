@@ -21,6 +21,7 @@ import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.nio.channels.SelectionKey;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.net.ssl.SSLEngine;
 
@@ -165,6 +166,7 @@ public class Http11NioProcessor extends AbstractHttp11Processor<NioChannel> {
             if (keepAlive) {
                 inputBuffer.nextRequest();
                 outputBuffer.nextRequest();
+                socketWrapper.setHighPriority(false);
                 return SocketState.OPEN;
             } else {
                 return SocketState.CLOSED;
@@ -175,6 +177,48 @@ public class Http11NioProcessor extends AbstractHttp11Processor<NioChannel> {
     }
 
 
+    @Override
+    public SocketState asyncDispatch(SocketStatus status) {
+        // Only treat this as a non-blocking IO notification if the request is
+        // not already on its way to being completed or dispatched
+        if (status == SocketStatus.OPEN_WRITE && response.getWriteListener() != null &&
+                asyncStateMachine.isAsyncWaiting()) {
+            try {
+                if (outputBuffer.flushNonBlocking()) {
+                    // Not everything could be written. Wait until the socket
+                    // accepts more data before notifying the write listener.
+                    // The request stays STARTED so a timeout or a complete()
+                    // in the meantime is handled as usual.
+                    outputBuffer.registerWriteInterest();
+                    return SocketState.LONG;
+                }
+            } catch (IOException ioe) {
+                // The client has most likely gone away. Let the application
+                // know through the error handling of the adapter.
+                setErrorState(ErrorState.CLOSE_NOW, ioe);
+                return super.asyncDispatch(SocketStatus.ERROR);
+            }
+            // Only now is the write listener about to be notified
+            asyncStateMachine.asyncOperation();
+        } else if (status == SocketStatus.OPEN_READ && request.getReadListener() != null) {
+            asyncStateMachine.asyncOperation();
+        }
+        SocketState state = super.asyncDispatch(status);
+        if (!isAsync() && getErrorState().isIoAllowed() &&
+                outputBuffer.getBufferedLength() > 0) {
+            // Only the processing loop hands responses to the Poller so
+            // write the end of an async response now
+            try {
+                outputBuffer.flushDeferred();
+            } catch (IOException e) {
+                setErrorState(ErrorState.CLOSE_NOW, e);
+                return SocketState.CLOSED;
+            }
+        }
+        return state;
+    }
+
+
     @Override
     protected void resetTimeouts() {
         final NioEndpoint.KeyAttachment attach = (NioEndpoint.KeyAttachment)socketWrapper.getSocket().getAttachment();
@@ -249,6 +293,18 @@ public class Http11NioProcessor extends AbstractHttp11Processor<NioChannel> {
     }
 
 
+    /**
+     * Set the maximum size of request body that will be read, without
+     * blocking, before the request is passed to the application.
+     *
+     * @param maxPreReadBodySize The maximum size in bytes, zero or less to
+     *                           disable
+     */
+    public void setMaxPreReadBodySize(int maxPreReadBodySize) {
+        inputBuffer.setMaxPreReadBodySize(maxPreReadBodySize);
+    }
+
+
     @Override
     protected void setSocketTimeout(int timeout) throws IOException {
         socketWrapper.getSocket().getIOChannel().socket().setSoTimeout(timeout);
@@ -291,6 +347,14 @@ public class Http11NioProcessor extends AbstractHttp11Processor<NioChannel> {
             } else {
                 sendfileData.keepAliveState = SendfileKeepAliveState.NONE;
             }
+            // The file is written straight to the socket so anything still
+            // buffered has to go first
+            try {
+                getOutputBuffer().flushDeferred();
+            } catch (IOException e) {
+                setErrorState(ErrorState.CLOSE_NOW, e);
+                return true;
+            }
             SelectionKey key = socketWrapper.getSocket().getIOChannel().keyFor(
                     socketWrapper.getSocket().getPoller().getSelector());
             //do the first write on this thread, might as well
@@ -312,10 +376,52 @@ public class Http11NioProcessor extends AbstractHttp11Processor<NioChannel> {
                 return true;
             }
         }
+        // Hand the end of the response to the Poller if the client has not
+        // read it yet. Responses to pipelined requests are left to be written
+        // with the response that follows them.
+        if (!getErrorState().isError() && outputBuffer.getBufferedLength() > 0 &&
+                !(keepAlive && getInputBuffer().available() > 0)) {
+            return writeBehind(socketWrapper);
+        }
         return false;
     }
 
 
+    private boolean writeBehind(SocketWrapper<NioChannel> socketWrapper) {
+        NioEndpoint.WriteBehindData data = outputBuffer.takeBufferedData();
+        if (data == null) {
+            // Write it on this thread instead
+            try {
+                outputBuffer.flushDeferred();
+            } catch (IOException e) {
+                setErrorState(ErrorState.CLOSE_NOW, e);
+                return true;
+            }
+            return false;
+        }
+        data.keepAliveState = keepAlive ?
+                SendfileKeepAliveState.OPEN : SendfileKeepAliveState.NONE;
+        ((NioEndpoint) endpoint).startWriteBehind((KeyAttachment) socketWrapper, data);
+        SelectionKey key = socketWrapper.getSocket().getIOChannel().keyFor(
+                socketWrapper.getSocket().getPoller().getSelector());
+        // Try the first write on this thread
+        switch (socketWrapper.getSocket().getPoller().processWriteBehind(
+                key, (KeyAttachment) socketWrapper, true)) {
+        case DONE:
+            return false;
+        case PENDING:
+            // The Poller completes the response in the same way as for
+            // sendfile
+            sendfileInProgress = true;
+            return true;
+        case ERROR:
+        default:
+            setErrorState(ErrorState.CLOSE_NOW, null);
+            return true;
+        }
+    }
+
+
     @Override
     public void recycleInternal() {
         socketWrapper = null;
@@ -477,8 +583,44 @@ public class Http11NioProcessor extends AbstractHttp11Processor<NioChannel> {
             request.setAvailable(inputBuffer.available());
             break;
         }
+        case NB_READ_INTEREST: {
+            AtomicBoolean isReady = (AtomicBoolean) param;
+            try {
+                isReady.set(inputBuffer.isReadyForRead());
+            } catch (IOException ioe) {
+                // Let the next read report the problem to the application
+                isReady.set(true);
+            }
+            if (!isReady.get()) {
+                socketWrapper.getSocket().getPoller().add(
+                        socketWrapper.getSocket(), SelectionKey.OP_READ);
+            }
+            break;
+        }
+        case NB_WRITE_INTEREST: {
+            AtomicBoolean isReady = (AtomicBoolean) param;
+            // Checked before every non-blocking write so this must not
+            // touch the socket. The write listener notification flushes.
+            isReady.set(outputBuffer.canWrite());
+            if (!isReady.get()) {
+                outputBuffer.registerWriteInterest();
+            }
+            break;
+        }
+        case DISPATCH_READ: {
+            ((NioEndpoint)endpoint).processSocket(socketWrapper.getSocket(),
+                    SocketStatus.OPEN_READ, true);
+            break;
+        }
+        case DISPATCH_WRITE: {
+            ((NioEndpoint)endpoint).processSocket(socketWrapper.getSocket(),
+                    SocketStatus.OPEN_WRITE, true);
+            break;
+        }
         case COMET_BEGIN: {
             comet = true;
+            // Comet responses are written as the application flushes them
+            outputBuffer.setWriteBehind(false);
             break;
         }
         case COMET_END: {
@@ -553,6 +695,11 @@ public class Http11NioProcessor extends AbstractHttp11Processor<NioChannel> {
     @Override
     protected void prepareRequestInternal() {
         sendfileData = null;
+        outputBuffer.setWriteBehind(true);
+        // Advertise non-blocking IO support through a request attribute
+        request.setAttribute(
+                org.apache.coyote.Constants.NONBLOCKING_IO_SUPPORTED_ATTR,
+                Boolean.TRUE);
     }
 
     @Override
@@ -17,13 +17,16 @@
 package org.apache.coyote.http11;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
 
 import org.apache.coyote.AbstractProtocol;
 import org.apache.coyote.Processor;
+import org.apache.coyote.RequestGroupInfo;
 import org.apache.coyote.http11.upgrade.NioProcessor;
 import org.apache.coyote.http11.upgrade.servlet31.HttpUpgradeHandler;
+import org.apache.coyote.http2.Http2Protocol;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 import org.apache.tomcat.util.net.AbstractEndpoint;
@@ -70,6 +73,7 @@ public class Http11NioProtocol extends AbstractHttp11JsseProtocol<NioChannel> {
         endpoint=new NioEndpoint();
         cHandler = new Http11ConnectionHandler(this);
         ((NioEndpoint) endpoint).setHandler(cHandler);
+        http2Protocol.setGlobal((RequestGroupInfo) cHandler.getGlobal());
         setSoLinger(Constants.DEFAULT_CONNECTION_LINGER);
         setSoTimeout(Constants.DEFAULT_CONNECTION_TIMEOUT);
         setTcpNoDelay(Constants.DEFAULT_TCP_NO_DELAY);
@@ -85,6 +89,67 @@ public class Http11NioProtocol extends AbstractHttp11JsseProtocol<NioChannel> {
 
     private Http11ConnectionHandler cHandler;
 
+    // -------------------- HTTP/2 --------------------
+
+    private final Http2Protocol http2Protocol = new Http2Protocol();
+    private boolean http2Enabled = false;
+
+    /**
+     * Allow clients to use HTTP/2 over cleartext connections, either with
+     * prior knowledge or by upgrading an HTTP/1.1 request to h2c. HTTP/2 is
+     * never used on connections secured with SSL/TLS.
+     */
+    public boolean getHttp2Enabled() { return http2Enabled; }
+    public void setHttp2Enabled(boolean http2Enabled) {
+        this.http2Enabled = http2Enabled;
+    }
+
+    public int getHttp2MaxConcurrentStreams() {
+        return http2Protocol.getMaxConcurrentStreams();
+    }
+    public void setHttp2MaxConcurrentStreams(int maxConcurrentStreams) {
+        http2Protocol.setMaxConcurrentStreams(maxConcurrentStreams);
+    }
+
+    public int getHttp2InitialWindowSize() {
+        return http2Protocol.getInitialWindowSize();
+    }
+    public void setHttp2InitialWindowSize(int initialWindowSize) {
+        http2Protocol.setInitialWindowSize(initialWindowSize);
+    }
+
+    public int getHttp2MaxHeaderSize() {
+        return http2Protocol.getMaxHeaderSize();
+    }
+    public void setHttp2MaxHeaderSize(int maxHeaderSize) {
+        http2Protocol.setMaxHeaderSize(maxHeaderSize);
+    }
+
+    public long getHttp2KeepAliveTimeout() {
+        return http2Protocol.getKeepAliveTimeout();
+    }
+    public void setHttp2KeepAliveTimeout(long keepAliveTimeout) {
+        http2Protocol.setKeepAliveTimeout(keepAliveTimeout);
+    }
+
+    public long getHttp2StreamTimeout() {
+        return http2Protocol.getStreamTimeout();
+    }
+    public void setHttp2StreamTimeout(long streamTimeout) {
+        http2Protocol.setStreamTimeout(streamTimeout);
+    }
+
+    /**
+     * @return the HTTP/2 configuration if clients may use HTTP/2 on this
+     *         connector, otherwise <code>null</code>
+     */
+    protected Http2Protocol getHttp2Protocol() {
+        if (http2Enabled && !isSSLEnabled()) {
+            return http2Protocol;
+        }
+        return null;
+    }
+
     // -------------------- Pool setup --------------------
 
     public void setPollerThreadCount(int count) {
@@ -95,6 +160,22 @@ public class Http11NioProtocol extends AbstractHttp11JsseProtocol<NioChannel> {
         return ((NioEndpoint)endpoint).getPollerThreadCount();
     }
 
+    public void setSslHandshakeThreads(int sslHandshakeThreads) {
+        ((NioEndpoint)endpoint).setSslHandshakeThreads(sslHandshakeThreads);
+    }
+
+    public int getSslHandshakeThreads() {
+        return ((NioEndpoint)endpoint).getSslHandshakeThreads();
+    }
+
+    public void setAcceptorPollerAffinity(boolean acceptorPollerAffinity) {
+        ((NioEndpoint)endpoint).setAcceptorPollerAffinity(acceptorPollerAffinity);
+    }
+
+    public boolean getAcceptorPollerAffinity() {
+        return ((NioEndpoint)endpoint).getAcceptorPollerAffinity();
+    }
+
     public void setSelectorTimeout(long timeout) {
         ((NioEndpoint)endpoint).setSelectorTimeout(timeout);
     }
@@ -128,6 +209,35 @@ public class Http11NioProtocol extends AbstractHttp11JsseProtocol<NioChannel> {
         ((NioEndpoint)endpoint).setUseSendfile(useSendfile);
     }
 
+    public void setMaxWriteBehindSize(int maxWriteBehindSize) {
+        ((NioEndpoint)endpoint).setMaxWriteBehindSize(maxWriteBehindSize);
+    }
+
+    public int getMaxWriteBehindSize() {
+        return ((NioEndpoint)endpoint).getMaxWriteBehindSize();
+    }
+
+    public void setMaxWriteBehindTotal(long maxWriteBehindTotal) {
+        ((NioEndpoint)endpoint).setMaxWriteBehindTotal(maxWriteBehindTotal);
+    }
+
+    public long getMaxWriteBehindTotal() {
+        return ((NioEndpoint)endpoint).getMaxWriteBehindTotal();
+    }
+
+    /**
+     * Request bodies with a content length up to this size are read with
+     * non-blocking reads each time the poller reports data available and are
+     * fully buffered before the request is passed to the application. This
+     * stops slow uploads from holding a worker thread while the body is
+     * received. Zero (the default) or less disables pre-reading.
+     */
+    private int maxPreReadBodySize = 0;
+    public int getMaxPreReadBodySize() { return maxPreReadBodySize; }
+    public void setMaxPreReadBodySize(int maxPreReadBodySize) {
+        this.maxPreReadBodySize = maxPreReadBodySize;
+    }
+
     // -------------------- Tcp setup --------------------
     public void setOomParachute(int oomParachute) {
         ((NioEndpoint)endpoint).setOomParachute(oomParachute);
@@ -169,6 +279,16 @@ public class Http11NioProtocol extends AbstractHttp11JsseProtocol<NioChannel> {
             return proto.sslImplementation;
         }
 
+        @Override
+        public boolean isClassifying() {
+            return proto.getRequestClassifierArray() != null;
+        }
+
+        @Override
+        public boolean isHighPriority(ByteBuffer requestStart) {
+            return proto.isHighPriority(requestStart);
+        }
+
         /**
          * Expected to be used by the Poller to release resources on socket
          * close, errors etc.
@@ -231,6 +351,9 @@ public class Http11NioProtocol extends AbstractHttp11JsseProtocol<NioChannel> {
                 // is when the socket is in keep-alive so set the appropriate
                 // timeout.
                 socket.setTimeout(getProtocol().getKeepAliveTimeout());
+                // Nothing is pending so the buffers are not needed until the
+                // next request arrives
+                socket.getSocket().releaseBuffers();
                 socket.getSocket().getPoller().add(socket.getSocket());
             }
         }
@@ -285,6 +408,11 @@ public class Http11NioProtocol extends AbstractHttp11JsseProtocol<NioChannel> {
             processor.setDisableUploadTimeout(proto.getDisableUploadTimeout());
             processor.setCompressionMinSize(proto.getCompressionMinSize());
             processor.setCompression(proto.getCompression());
+            processor.setAdaptiveCompressionThreshold(proto.getAdaptiveCompressionThreshold());
+            processor.setAdaptiveCompressionLevel(proto.getAdaptiveCompressionLevel());
+            processor.setAdaptiveCompressionMinSize(proto.getAdaptiveCompressionMinSize());
+            processor.setDecompressRequestBody(proto.getDecompressRequestBody());
+            processor.setMaxInflatedRequestBodySize(proto.getMaxInflatedRequestBodySize());
             processor.setNoCompressionUserAgents(proto.getNoCompressionUserAgents());
             processor.setCompressableMimeTypes(proto.getCompressableMimeTypes());
             processor.setRestrictedUserAgents(proto.getRestrictedUserAgents());
@@ -292,6 +420,9 @@ public class Http11NioProtocol extends AbstractHttp11JsseProtocol<NioChannel> {
             processor.setMaxSavePostSize(proto.getMaxSavePostSize());
             processor.setServer(proto.getServer());
             processor.setMaxCookieCount(proto.getMaxCookieCount());
+            processor.setRequestClassifiers(proto.getRequestClassifierArray());
+            processor.setHttp2Protocol(proto.getHttp2Protocol());
+            processor.setMaxPreReadBodySize(proto.getMaxPreReadBodySize());
             register(processor);
             return processor;
         }
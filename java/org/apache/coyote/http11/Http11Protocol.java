@@ -176,6 +176,11 @@ public class Http11Protocol extends AbstractHttp11JsseProtocol<Socket> {
             processor.setDisableUploadTimeout(proto.getDisableUploadTimeout());
             processor.setCompressionMinSize(proto.getCompressionMinSize());
             processor.setCompression(proto.getCompression());
+            processor.setAdaptiveCompressionThreshold(proto.getAdaptiveCompressionThreshold());
+            processor.setAdaptiveCompressionLevel(proto.getAdaptiveCompressionLevel());
+            processor.setAdaptiveCompressionMinSize(proto.getAdaptiveCompressionMinSize());
+            processor.setDecompressRequestBody(proto.getDecompressRequestBody());
+            processor.setMaxInflatedRequestBodySize(proto.getMaxInflatedRequestBodySize());
             processor.setNoCompressionUserAgents(proto.getNoCompressionUserAgents());
             processor.setCompressableMimeTypes(proto.getCompressableMimeTypes());
             processor.setRestrictedUserAgents(proto.getRestrictedUserAgents());
@@ -185,6 +190,7 @@ public class Http11Protocol extends AbstractHttp11JsseProtocol<Socket> {
             processor.setDisableKeepAlivePercentage(
                     proto.getDisableKeepAlivePercentage());
             processor.setMaxCookieCount(proto.getMaxCookieCount());
+            processor.setRequestClassifiers(proto.getRequestClassifierArray());
             register(processor);
             return processor;
         }
@@ -94,4 +94,13 @@ public interface InputFilter extends InputBuffer {
     public int available();
 
 
+    /**
+     * Has the request body been read fully?
+     *
+     * @return {@code true} if the request body has been fully read, otherwise
+     *         {@code false}
+     */
+    public boolean isFinished();
+
+
 }
@@ -0,0 +1,101 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http11;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import org.apache.coyote.Request;
+import org.apache.tomcat.util.http.parser.HttpParser;
+import org.apache.tomcat.util.net.AbstractEndpoint;
+import org.apache.tomcat.util.net.Nio2Channel;
+import org.apache.tomcat.util.net.SocketWrapper;
+
+/**
+ * Implementation of InputBuffer which provides HTTP request header parsing as
+ * well as transfer decoding for the NIO.2 connector.
+ * <p>
+ * A non-blocking read only returns the data that the endpoint has already
+ * read into the channel while waiting for the request. If that is not enough
+ * to parse the request line and headers, the processor releases the thread and
+ * the endpoint waits for more data. A blocking read (used for the request
+ * body) waits for the read to complete, up to the read timeout of the channel.
+ */
+public class InternalNio2InputBuffer extends AbstractNioInputBuffer<Nio2Channel> {
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Alternate constructor.
+     */
+    public InternalNio2InputBuffer(Request request, int headerBufferSize,
+            boolean rejectIllegalHeaderName, HttpParser httpParser) {
+        super(request, headerBufferSize, rejectIllegalHeaderName, httpParser);
+    }
+
+    /**
+     * Underlying socket.
+     */
+    private Nio2Channel socket;
+
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * Recycle the input buffer. This should be called when closing the
+     * connection.
+     */
+    @Override
+    public void recycle() {
+        super.recycle();
+        socket = null;
+    }
+
+
+    @Override
+    protected int readSocket(boolean timeout, boolean block) throws IOException {
+        if (pos == buf.length) {
+            expand(pos + socketReadBufferSize);
+        }
+        int nRead = socket.read(buf, pos, buf.length - pos, block);
+        if (nRead > 0) {
+            lastValid = pos + nRead;
+            return nRead;
+        } else if (nRead == -1) {
+            throw new EOFException(sm.getString("iib.eof.error"));
+        } else {
+            return 0;
+        }
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+    @Override
+    protected void init(SocketWrapper<Nio2Channel> socketWrapper,
+            AbstractEndpoint<Nio2Channel> endpoint) throws IOException {
+
+        socket = socketWrapper.getSocket();
+        socketReadBufferSize = socket.getReadBuffer().capacity();
+
+        int bufLength = headerBufferSize + socketReadBufferSize;
+        if (buf == null || buf.length < bufLength) {
+            buf = new byte[bufLength];
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http11;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.coyote.ActionCode;
+import org.apache.coyote.OutputBuffer;
+import org.apache.coyote.Response;
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.http.HttpMessages;
+import org.apache.tomcat.util.net.AbstractEndpoint;
+import org.apache.tomcat.util.net.Nio2Channel;
+import org.apache.tomcat.util.net.SocketWrapper;
+
+/**
+ * Output buffer for the NIO.2 connector. Data is collected in the write buffer
+ * of the channel and written when the buffer is full or the response is
+ * flushed, waiting for each write to complete.
+ */
+public class InternalNio2OutputBuffer extends AbstractOutputBuffer<Nio2Channel> {
+
+
+    /**
+     * Default constructor.
+     */
+    public InternalNio2OutputBuffer(Response response, int headerBufferSize) {
+
+        this.response = response;
+
+        buf = new byte[headerBufferSize];
+
+        outputStreamOutputBuffer = new SocketOutputBuffer();
+
+        filterLibrary = new OutputFilter[0];
+        activeFilters = new OutputFilter[0];
+        lastActiveFilter = -1;
+
+        committed = false;
+        finished = false;
+
+        // Cause loading of HttpMessages
+        HttpMessages.getInstance(response.getLocale()).getMessage(200);
+
+    }
+
+
+    /**
+     * Underlying socket.
+     */
+    private SocketWrapper<Nio2Channel> socketWrapper;
+
+    /**
+     * Underlying channel.
+     */
+    private Nio2Channel socket;
+
+
+    /**
+     * Flush the response.
+     *
+     * @throws IOException an underlying I/O error occurred
+     *
+     */
+    @Override
+    public void flush() throws IOException {
+
+        super.flush();
+        flushBuffer();
+
+    }
+
+
+    /**
+     * Recycle the output buffer. This should be called when closing the
+     * connection.
+     */
+    @Override
+    public void recycle() {
+        super.recycle();
+        if (socket != null) {
+            socket.getWriteBuffer().clear();
+            socket = null;
+        }
+        socketWrapper = null;
+    }
+
+
+    /**
+     * End request.
+     *
+     * @throws IOException an underlying I/O error occurred
+     */
+    @Override
+    public void endRequest() throws IOException {
+        super.endRequest();
+        flushBuffer();
+    }
+
+
+    /**
+     * Send an acknowledgment.
+     */
+    @Override
+    public void sendAck() throws IOException {
+
+        if (!committed) {
+            socket.write(ByteBuffer.wrap(Constants.ACK_BYTES));
+        }
+
+    }
+
+
+    @Override
+    public void init(SocketWrapper<Nio2Channel> socketWrapper,
+            AbstractEndpoint<Nio2Channel> endpoint) throws IOException {
+
+        this.socketWrapper = socketWrapper;
+        socket = socketWrapper.getSocket();
+    }
+
+
+    /**
+     * Commit the response.
+     *
+     * @throws IOException an underlying I/O error occurred
+     */
+    @Override
+    protected void commit()
+        throws IOException {
+
+        // The response is now committed
+        committed = true;
+        response.setCommitted(true);
+
+        if (pos > 0) {
+            // Sending the response header buffer
+            addToBB(buf, 0, pos);
+        }
+
+    }
+
+    private synchronized void addToBB(byte[] buf, int offset, int length) throws IOException {
+        ByteBuffer writeBuffer = socket.getWriteBuffer();
+        while (length > 0) {
+            if (writeBuffer.remaining() == 0) {
+                flushBuffer();
+            }
+            int thisTime = Math.min(length, writeBuffer.remaining());
+            writeBuffer.put(buf, offset, thisTime);
+            length = length - thisTime;
+            offset = offset + thisTime;
+        }
+        //prevent timeouts for just doing client writes
+        socketWrapper.access();
+    }
+
+
+    /**
+     * Callback to write data from the buffer.
+     */
+    private synchronized void flushBuffer() throws IOException {
+        socketWrapper.access();
+        socket.flush();
+    }
+
+
+    // ----------------------------------- OutputStreamOutputBuffer Inner Class
+
+    /**
+     * This class is an output buffer which will write data to an output
+     * stream.
+     */
+    protected class SocketOutputBuffer implements OutputBuffer {
+
+        /**
+         * Write chunk.
+         */
+        @Override
+        public int doWrite(ByteChunk chunk, Response res) throws IOException {
+            try {
+                int len = chunk.getLength();
+                int start = chunk.getStart();
+                byte[] b = chunk.getBuffer();
+                addToBB(b, start, len);
+                byteCount += chunk.getLength();
+                return chunk.getLength();
+            } catch (IOException ioe) {
+                response.action(ActionCode.CLOSE_NOW, ioe);
+                throw ioe;
+            }
+        }
+
+
+        @Override
+        public long getBytesWritten() {
+            return byteCount;
+        }
+    }
+}
@@ -19,11 +19,8 @@ package org.apache.coyote.http11;
 import java.io.EOFException;
 import java.io.IOException;
 import java.nio.channels.Selector;
-import java.nio.charset.Charset;
 
-import org.apache.coyote.InputBuffer;
 import org.apache.coyote.Request;
-import org.apache.tomcat.util.buf.ByteChunk;
 import org.apache.tomcat.util.buf.MessageBytes;
 import org.apache.tomcat.util.http.parser.HttpParser;
 import org.apache.tomcat.util.net.AbstractEndpoint;
@@ -77,58 +74,7 @@ import org.apache.tomcat.util.net.SocketWrapper;
  *
  *
  */
-public class InternalNioInputBuffer extends AbstractInputBuffer<NioChannel> {
-
-    private static final org.apache.juli.logging.Log log =
-        org.apache.juli.logging.LogFactory.getLog(InternalNioInputBuffer.class);
-
-    private static final Charset DEFAULT_CHARSET =
-        Charset.forName("ISO-8859-1");
-
-    // -------------------------------------------------------------- Constants
-
-    enum HeaderParseStatus {
-        DONE, HAVE_MORE_HEADERS, NEED_MORE_DATA
-    }
-
-    enum HeaderParsePosition {
-        /**
-         * Start of a new header. A CRLF here means that there are no more
-         * headers. Any other character starts a header name.
-         */
-        HEADER_START,
-        /**
-         * Reading a header name. All characters of header are HTTP_TOKEN_CHAR.
-         * Header name is followed by ':'. No whitespace is allowed.<br />
-         * Any non-HTTP_TOKEN_CHAR (this includes any whitespace) encountered
-         * before ':' will result in the whole line being ignored.
-         */
-        HEADER_NAME,
-        /**
-         * Skipping whitespace before text of header value starts, either on the
-         * first line of header value (just after ':') or on subsequent lines
-         * when it is known that subsequent line starts with SP or HT.
-         */
-        HEADER_VALUE_START,
-        /**
-         * Reading the header value. We are inside the value. Either on the
-         * first line or on any subsequent line. We come into this state from
-         * HEADER_VALUE_START after the first non-SP/non-HT byte is encountered
-         * on the line.
-         */
-        HEADER_VALUE,
-        /**
-         * Before reading a new line of a header. Once the next byte is peeked,
-         * the state changes without advancing our position. The state becomes
-         * either HEADER_VALUE_START (if that first byte is SP or HT), or
-         * HEADER_START (otherwise).
-         */
-        HEADER_MULTI_LINE,
-        /**
-         * Reading all bytes until the next CRLF. The line is being ignored.
-         */
-        HEADER_SKIPLINE
-    }
+public class InternalNioInputBuffer extends AbstractNioInputBuffer<NioChannel> {
 
     // ----------------------------------------------------------- Constructors
 
@@ -138,43 +84,9 @@ public class InternalNioInputBuffer extends AbstractInputBuffer<NioChannel> {
      */
     public InternalNioInputBuffer(Request request, int headerBufferSize,
             boolean rejectIllegalHeaderName, HttpParser httpParser) {
-
-        this.request = request;
-        headers = request.getMimeHeaders();
-
-        this.headerBufferSize = headerBufferSize;
-        this.rejectIllegalHeaderName = rejectIllegalHeaderName;
-        this.httpParser = httpParser;
-
-        inputStreamInputBuffer = new SocketInputBuffer();
-
-        filterLibrary = new InputFilter[0];
-        activeFilters = new InputFilter[0];
-        lastActiveFilter = -1;
-
-        parsingHeader = true;
-        parsingRequestLine = true;
-        parsingRequestLinePhase = 0;
-        parsingRequestLineEol = false;
-        parsingRequestLineStart = 0;
-        parsingRequestLineQPos = -1;
-        headerParsePos = HeaderParsePosition.HEADER_START;
-        headerData.recycle();
-        swallowInput = true;
-
+        super(request, headerBufferSize, rejectIllegalHeaderName, httpParser);
     }
 
-    /**
-     * Parsing state - used for non blocking parsing so that
-     * when more data arrives, we can pick up where we left off.
-     */
-    private boolean parsingRequestLine;
-    private int parsingRequestLinePhase = 0;
-    private boolean parsingRequestLineEol = false;
-    private int parsingRequestLineStart = 0;
-    private int parsingRequestLineQPos = -1;
-    private HeaderParsePosition headerParsePos;
-
     /**
      * Underlying socket.
      */
@@ -185,17 +97,34 @@ public class InternalNioInputBuffer extends AbstractInputBuffer<NioChannel> {
      */
     private NioSelectorPool pool;
 
+    /**
+     * Request bodies with a content length up to this size are read with
+     * non-blocking reads, driven by the poller, before the request is passed
+     * to the application. Zero or less disables pre-reading.
+     */
+    private int maxPreReadBodySize = 0;
 
     /**
-     * Maximum allowed size of the HTTP request line plus headers plus any
-     * leading blank lines.
+     * Length of the request body currently being pre-read or -1 if the body
+     * is not being pre-read.
      */
-    private final int headerBufferSize;
+    private int preReadLength = -1;
 
     /**
-     * Known size of the NioChannel read buffer.
+     * Timeout to use while waiting for the rest of a pre-read body.
      */
-    private int socketReadBufferSize;
+    private int preReadTimeout;
+
+
+    // ------------------------------------------------------------- Properties
+
+    public int getMaxPreReadBodySize() {
+        return maxPreReadBodySize;
+    }
+
+    public void setMaxPreReadBodySize(int maxPreReadBodySize) {
+        this.maxPreReadBodySize = maxPreReadBodySize;
+    }
 
 
     // --------------------------------------------------------- Public Methods
@@ -208,248 +137,56 @@ public class InternalNioInputBuffer extends AbstractInputBuffer<NioChannel> {
     public void recycle() {
         super.recycle();
         socket = null;
-        headerParsePos = HeaderParsePosition.HEADER_START;
-        parsingRequestLine = true;
-        parsingRequestLinePhase = 0;
-        parsingRequestLineEol = false;
-        parsingRequestLineStart = 0;
-        parsingRequestLineQPos = -1;
-        headerData.recycle();
+        preReadLength = -1;
+        if (buf != null && buf.length > headerBufferSize + socketReadBufferSize) {
+            // Don't hold on to a buffer that was grown to pre-read a body
+            buf = null;
+        }
     }
 
 
     /**
      * End processing of current HTTP request.
-     * Note: All bytes of the current request should have been already
-     * consumed. This method only resets all the pointers so that we are ready
-     * to parse the next HTTP request.
      */
     @Override
     public void nextRequest() {
         super.nextRequest();
-        headerParsePos = HeaderParsePosition.HEADER_START;
-        parsingRequestLine = true;
-        parsingRequestLinePhase = 0;
-        parsingRequestLineEol = false;
-        parsingRequestLineStart = 0;
-        parsingRequestLineQPos = -1;
-        headerData.recycle();
+        preReadLength = -1;
+        int bufLength = headerBufferSize + socketReadBufferSize;
+        if (buf.length > bufLength && lastValid <= bufLength) {
+            // Shrink a buffer that was grown to pre-read a body, keeping any
+            // pipelined data
+            byte[] tmp = new byte[bufLength];
+            System.arraycopy(buf, 0, tmp, 0, lastValid);
+            buf = tmp;
+        }
     }
 
+
     /**
-     * Read the request line. This function is meant to be used during the
-     * HTTP request header parsing. Do NOT attempt to read the request body
-     * using it.
-     *
-     * @throws IOException If an exception occurs during the underlying socket
-     * read operations, or if the given buffer is not big enough to accommodate
-     * the whole line.
-     * @return true if data is properly fed; false if no data is available
-     * immediately and thread should be freed
+     * Parse the HTTP headers and, if enabled, pre-read the request body. As
+     * with the headers, <code>false</code> is returned if the body could not
+     * be read completely without blocking and parsing resumes from the same
+     * point when the poller signals that more data is available.
      */
     @Override
-    public boolean parseRequestLine(boolean useAvailableDataOnly)
-        throws IOException {
-
-        //check state
-        if ( !parsingRequestLine ) return true;
-        //
-        // Skipping blank lines
-        //
-        if ( parsingRequestLinePhase == 0 ) {
-            byte chr = 0;
-            do {
-
-                // Read new bytes if needed
-                if (pos >= lastValid) {
-                    // Nio默认这个值为false
-                    if (useAvailableDataOnly) {
-                        return false;
-                    }
-                    // Do a simple read with a short timeout
-                    // 把channel中的数据读到buf中，如果没有读到则会返回false
-                    if (!fill(true, false)) {
-                        return false;
-                    }
-                }
-                // Set the start time once we start reading data (even if it is
-                // just skipping blank lines)
-                if (request.getStartTime() < 0) {
-                    request.setStartTime(System.currentTimeMillis());
-                }
-                chr = buf[pos++];
-            } while ((chr == Constants.CR) || (chr == Constants.LF));
-            pos--;
-
-            parsingRequestLineStart = pos;
-            parsingRequestLinePhase = 2;
-            if (log.isDebugEnabled()) {
-                log.debug("Received ["
-                        + new String(buf, pos, lastValid - pos, DEFAULT_CHARSET)
-                        + "]");
+    public boolean parseHeaders() throws IOException {
+        if (preReadLength == -1) {
+            if (!super.parseHeaders()) {
+                return false;
             }
-        }
-        if ( parsingRequestLinePhase == 2 ) {
-            //
-            // Reading the method name
-            // Method name is a token
-            //
-            boolean space = false;
-            while (!space) {
-                // Read new bytes if needed
-                if (pos >= lastValid) {
-                    if (!fill(true, false)) //request line parsing
-                        return false;
-                }
-                // Spec says method name is a token followed by a single SP but
-                // also be tolerant of multiple SP and/or HT.
-                if (buf[pos] == Constants.SP || buf[pos] == Constants.HT) {
-                    space = true;
-                    request.method().setBytes(buf, parsingRequestLineStart, pos - parsingRequestLineStart);
-                } else if (!HttpParser.isToken(buf[pos])) {
-                    throw new IllegalArgumentException(sm.getString("iib.invalidmethod"));
-                }
-                pos++;
-            }
-            parsingRequestLinePhase = 3;
-        }
-        if ( parsingRequestLinePhase == 3 ) {
-            // Spec says single SP but also be tolerant of multiple SP and/or HT
-            boolean space = true;
-            while (space) {
-                // Read new bytes if needed
-                if (pos >= lastValid) {
-                    if (!fill(true, false)) //request line parsing
-                        return false;
-                }
-                if (buf[pos] == Constants.SP || buf[pos] == Constants.HT) {
-                    pos++;
-                } else {
-                    space = false;
-                }
+            preReadLength = getPreReadLength();
+            if (preReadLength == -1) {
+                return true;
             }
-            parsingRequestLineStart = pos;
-            parsingRequestLinePhase = 4;
         }
-        if (parsingRequestLinePhase == 4) {
-            // Mark the current buffer position
-
-            int end = 0;
-            //
-            // Reading the URI
-            //
-            boolean space = false;
-            while (!space) {
-                // Read new bytes if needed
-                if (pos >= lastValid) {
-                    if (!fill(true,false)) //request line parsing
-                        return false;
-                }
-                if (buf[pos] == Constants.SP || buf[pos] == Constants.HT) {
-                    space = true;
-                    end = pos;
-                } else if ((buf[pos] == Constants.CR)
-                           || (buf[pos] == Constants.LF)) {
-                    // HTTP/0.9 style request
-                    parsingRequestLineEol = true;
-                    space = true;
-                    end = pos;
-                } else if ((buf[pos] == Constants.QUESTION) && (parsingRequestLineQPos == -1)) {
-                    parsingRequestLineQPos = pos;
-                } else if (parsingRequestLineQPos != -1 && !httpParser.isQueryRelaxed(buf[pos])) {
-                    // %nn decoding will be checked at the point of decoding
-                    throw new IllegalArgumentException(sm.getString("iib.invalidRequestTarget"));
-                } else if (httpParser.isNotRequestTargetRelaxed(buf[pos])) {
-                    // This is a general check that aims to catch problems early
-                    // Detailed checking of each part of the request target will
-                    // happen in AbstractHttp11Processor#prepareRequest()
-                    throw new IllegalArgumentException(sm.getString("iib.invalidRequestTarget"));
-                }
-                pos++;
-            }
-            request.unparsedURI().setBytes(buf, parsingRequestLineStart, end - parsingRequestLineStart);
-            if (parsingRequestLineQPos >= 0) {
-                request.queryString().setBytes(buf, parsingRequestLineQPos + 1,
-                                               end - parsingRequestLineQPos - 1);
-                request.requestURI().setBytes(buf, parsingRequestLineStart, parsingRequestLineQPos - parsingRequestLineStart);
-            } else {
-                request.requestURI().setBytes(buf, parsingRequestLineStart, end - parsingRequestLineStart);
-            }
-            parsingRequestLinePhase = 5;
-        }
-        if ( parsingRequestLinePhase == 5 ) {
-            // Spec says single SP but also be tolerant of multiple and/or HT
-            boolean space = true;
-            while (space) {
-                // Read new bytes if needed
-                if (pos >= lastValid) {
-                    if (!fill(true, false)) //request line parsing
-                        return false;
-                }
-                if (buf[pos] == Constants.SP || buf[pos] == Constants.HT) {
-                    pos++;
-                } else {
-                    space = false;
-                }
-            }
-            parsingRequestLineStart = pos;
-            parsingRequestLinePhase = 6;
-
-            // Mark the current buffer position
-            end = 0;
-        }
-        if (parsingRequestLinePhase == 6) {
-            //
-            // Reading the protocol
-            // Protocol is always "HTTP/" DIGIT "." DIGIT
-            //
-            while (!parsingRequestLineEol) {
-                // Read new bytes if needed
-                if (pos >= lastValid) {
-                    if (!fill(true, false)) //request line parsing
-                        return false;
-                }
-
-                if (buf[pos] == Constants.CR) {
-                    end = pos;
-                } else if (buf[pos] == Constants.LF) {
-                    if (end == 0)
-                        end = pos;
-                    parsingRequestLineEol = true;
-                } else if (!HttpParser.isHttpProtocol(buf[pos])) {
-                    throw new IllegalArgumentException(sm.getString("iib.invalidHttpProtocol"));
-                }
-                pos++;
-            }
-
-            if ( (end - parsingRequestLineStart) > 0) {
-                request.protocol().setBytes(buf, parsingRequestLineStart, end - parsingRequestLineStart);
-            } else {
-                request.protocol().setString("");
-            }
-            parsingRequestLine = false;
-            parsingRequestLinePhase = 0;
-            parsingRequestLineEol = false;
-            parsingRequestLineStart = 0;
+        if (preReadBody()) {
+            preReadLength = -1;
             return true;
         }
-        throw new IllegalStateException("Invalid request line parse phase:"+parsingRequestLinePhase);
+        return false;
     }
 
-    private void expand(int newsize) {
-        if ( newsize > buf.length ) {
-            if (parsingHeader) {
-                throw new IllegalArgumentException(
-                        sm.getString("iib.requestheadertoolarge.error"));
-            }
-            // Should not happen
-            log.warn("Expanding buffer size. Old size: " + buf.length
-                    + ", new size: " + newsize, new Exception());
-            byte[] tmp = new byte[newsize];
-            System.arraycopy(buf,0,tmp,0,buf.length);
-            buf = tmp;
-        }
-    }
 
     /**
      * Perform blocking read with a timeout if desired
@@ -459,13 +196,18 @@ public class InternalNioInputBuffer extends AbstractInputBuffer<NioChannel> {
      * @throws IOException if a socket exception occurs
      * @throws EOFException if end of stream is reached
      */
-
-    private int readSocket(boolean timeout, boolean block) throws IOException {
+    @Override
+    protected int readSocket(boolean timeout, boolean block) throws IOException {
         // 读请求体数据的时候需要阻塞读
 
         int nRead = 0;
-        socket.getBufHandler().getReadBuffer().clear();
-        if ( block ) {
+        boolean peeked = socket.isPeeked();
+        if (peeked) {
+            // Read by the Poller to classify the request
+            socket.setPeeked(false);
+            nRead = socket.getBufHandler().getReadBuffer().remaining();
+        } else if ( block ) {
+            socket.getBufHandler().getReadBuffer().clear();
             Selector selector = null;
             try {
                 selector = pool.get();
@@ -488,11 +230,14 @@ public class InternalNioInputBuffer extends AbstractInputBuffer<NioChannel> {
             }
         } else {
             // 非阻塞读，没有读到不会阻塞，立即返回0，如果在处理这次NIo事件中没有读到数据，那么此事件其实就是处理结束了，等待下一次事件
+            socket.getBufHandler().getReadBuffer().clear();
             nRead = socket.read(socket.getBufHandler().getReadBuffer());
         }
         if (nRead > 0) {
-            socket.getBufHandler().getReadBuffer().flip();
-            socket.getBufHandler().getReadBuffer().limit(nRead);
+            if (!peeked) {
+                socket.getBufHandler().getReadBuffer().flip();
+                socket.getBufHandler().getReadBuffer().limit(nRead);
+            }
             expand(nRead + pos);
             // 把readBuffer中的数据转移到buf中
             socket.getBufHandler().getReadBuffer().get(buf, pos, nRead);
@@ -506,311 +251,99 @@ public class InternalNioInputBuffer extends AbstractInputBuffer<NioChannel> {
         }
     }
 
-    /**
-     * Parse the HTTP headers.
-     */
-    @Override
-    public boolean parseHeaders()
-        throws IOException {
-        if (!parsingHeader) {
-            throw new IllegalStateException(
-                    sm.getString("iib.parseheaders.ise.error"));
-        }
-
-        HeaderParseStatus status = HeaderParseStatus.HAVE_MORE_HEADERS;
-
-        do {
-            status = parseHeader();
-            // Checking that
-            // (1) Headers plus request line size does not exceed its limit
-            // (2) There are enough bytes to avoid expanding the buffer when
-            // reading body
-            // Technically, (2) is technical limitation, (1) is logical
-            // limitation to enforce the meaning of headerBufferSize
-            // From the way how buf is allocated and how blank lines are being
-            // read, it should be enough to check (1) only.
-            if (pos > headerBufferSize
-                    || buf.length - pos < socketReadBufferSize) {
-                throw new IllegalArgumentException(
-                        sm.getString("iib.requestheadertoolarge.error"));
-            }
-        } while ( status == HeaderParseStatus.HAVE_MORE_HEADERS );
-        if (status == HeaderParseStatus.DONE) {
-            parsingHeader = false;
-            end = pos;
-            return true;
-        } else {
-            return false;
-        }
-    }
 
+    // ------------------------------------------------------ Protected Methods
 
     /**
-     * Parse an HTTP header.
+     * Determine if the body of the request that has just been parsed should
+     * be pre-read. Only bodies delimited by a content length that is within
+     * the configured limit are pre-read. Requests that expect a 100-continue
+     * response are excluded since the client waits before sending the body.
      *
-     * @return false after reading a blank line (which indicates that the
-     * HTTP header parsing is done
+     * @return the number of body bytes to pre-read or -1 if the body should
+     *         be left for the application to read
      */
-    private HeaderParseStatus parseHeader()
-        throws IOException {
-
-        //
-        // Check for blank line
-        //
-
-        byte chr = 0;
-        while (headerParsePos == HeaderParsePosition.HEADER_START) {
-
-            // Read new bytes if needed
-            if (pos >= lastValid) {
-                if (!fill(true,false)) {//parse header
-                    headerParsePos = HeaderParsePosition.HEADER_START;
-                    return HeaderParseStatus.NEED_MORE_DATA;
-                }
-            }
-
-            chr = buf[pos];
-
-            if (chr == Constants.CR) {
-                // Skip
-            } else if (chr == Constants.LF) {
-                pos++;
-                return HeaderParseStatus.DONE;
-            } else {
-                break;
-            }
-
-            pos++;
-
+    private int getPreReadLength() {
+        if (maxPreReadBodySize <= 0) {
+            return -1;
         }
-
-        if ( headerParsePos == HeaderParsePosition.HEADER_START ) {
-            // Mark the current buffer position
-            headerData.start = pos;
-            headerParsePos = HeaderParsePosition.HEADER_NAME;
+        if (headers.getValue("transfer-encoding") != null) {
+            return -1;
         }
-
-        //
-        // Reading the header name
-        // Header name is always US-ASCII
-        //
-
-        while (headerParsePos == HeaderParsePosition.HEADER_NAME) {
-
-            // Read new bytes if needed
-            if (pos >= lastValid) {
-                if (!fill(true,false)) { //parse header
-                    return HeaderParseStatus.NEED_MORE_DATA;
-                }
-            }
-
-            chr = buf[pos];
-            if (chr == Constants.COLON) {
-                headerParsePos = HeaderParsePosition.HEADER_VALUE_START;
-                headerData.headerValue = headers.addValue(buf, headerData.start, pos - headerData.start);
-                pos++;
-                // Mark the current buffer position
-                headerData.start = pos;
-                headerData.realPos = pos;
-                headerData.lastSignificantChar = pos;
-                break;
-            } else if (!HttpParser.isToken(chr)) {
-                // Non-token characters are illegal in header names
-                // Parsing continues so the error can be reported in context
-                headerData.lastSignificantChar = pos;
-                // skipLine() will handle the error
-                return skipLine();
-            }
-
-            // chr is next byte of header name. Convert to lowercase.
-            if ((chr >= Constants.A) && (chr <= Constants.Z)) {
-                buf[pos] = (byte) (chr - Constants.LC_OFFSET);
-            }
-            pos++;
+        MessageBytes expect = headers.getValue("expect");
+        if (expect != null && expect.indexOfIgnoreCase("100-continue", 0) != -1) {
+            return -1;
         }
-
-        // Skip the line and ignore the header
-        if (headerParsePos == HeaderParsePosition.HEADER_SKIPLINE) {
-            return skipLine();
+        long contentLength;
+        try {
+            contentLength = request.getContentLengthLong();
+        } catch (IllegalArgumentException e) {
+            // Invalid or duplicate header. Leave it to prepareRequest() to
+            // reject the request.
+            return -1;
         }
-
-        //
-        // Reading the header value (which can be spanned over multiple lines)
-        //
-
-        while (headerParsePos == HeaderParsePosition.HEADER_VALUE_START ||
-               headerParsePos == HeaderParsePosition.HEADER_VALUE ||
-               headerParsePos == HeaderParsePosition.HEADER_MULTI_LINE) {
-
-            if ( headerParsePos == HeaderParsePosition.HEADER_VALUE_START ) {
-                // Skipping spaces
-                while (true) {
-                    // Read new bytes if needed
-                    if (pos >= lastValid) {
-                        if (!fill(true,false)) {//parse header
-                            //HEADER_VALUE_START
-                            return HeaderParseStatus.NEED_MORE_DATA;
-                        }
-                    }
-
-                    chr = buf[pos];
-                    if (chr == Constants.SP || chr == Constants.HT) {
-                        pos++;
-                    } else {
-                        headerParsePos = HeaderParsePosition.HEADER_VALUE;
-                        break;
-                    }
-                }
-            }
-            if ( headerParsePos == HeaderParsePosition.HEADER_VALUE ) {
-
-                // Reading bytes until the end of the line
-                boolean eol = false;
-                while (!eol) {
-
-                    // Read new bytes if needed
-                    if (pos >= lastValid) {
-                        if (!fill(true,false)) {//parse header
-                            //HEADER_VALUE
-                            return HeaderParseStatus.NEED_MORE_DATA;
-                        }
-                    }
-
-                    chr = buf[pos];
-                    if (chr == Constants.CR) {
-                        // Skip
-                    } else if (chr == Constants.LF) {
-                        eol = true;
-                    } else if (chr == Constants.SP || chr == Constants.HT) {
-                        buf[headerData.realPos] = chr;
-                        headerData.realPos++;
-                    } else {
-                        buf[headerData.realPos] = chr;
-                        headerData.realPos++;
-                        headerData.lastSignificantChar = headerData.realPos;
-                    }
-
-                    pos++;
-                }
-
-                // Ignore whitespaces at the end of the line
-                headerData.realPos = headerData.lastSignificantChar;
-
-                // Checking the first character of the new line. If the character
-                // is a LWS, then it's a multiline header
-                headerParsePos = HeaderParsePosition.HEADER_MULTI_LINE;
-            }
-            // Read new bytes if needed
-            if (pos >= lastValid) {
-                if (!fill(true,false)) {//parse header
-
-                    //HEADER_MULTI_LINE
-                    return HeaderParseStatus.NEED_MORE_DATA;
-                }
-            }
-
-            chr = buf[pos];
-            if ( headerParsePos == HeaderParsePosition.HEADER_MULTI_LINE ) {
-                if ( (chr != Constants.SP) && (chr != Constants.HT)) {
-                    headerParsePos = HeaderParsePosition.HEADER_START;
-                    break;
-                } else {
-                    // Copying one extra space in the buffer (since there must
-                    // be at least one space inserted between the lines)
-                    buf[headerData.realPos] = chr;
-                    headerData.realPos++;
-                    headerParsePos = HeaderParsePosition.HEADER_VALUE_START;
-                }
-            }
+        if (contentLength <= 0 || contentLength > maxPreReadBodySize) {
+            return -1;
         }
-        // Set the header value
-        headerData.headerValue.setBytes(buf, headerData.start,
-                headerData.lastSignificantChar - headerData.start);
-        headerData.recycle();
-        return HeaderParseStatus.HAVE_MORE_HEADERS;
+        return (int) contentLength;
     }
 
-    public int getParsingRequestLinePhase() {
-        return parsingRequestLinePhase;
-    }
-
-    private HeaderParseStatus skipLine() throws IOException {
-        headerParsePos = HeaderParsePosition.HEADER_SKIPLINE;
-        boolean eol = false;
-
-        // Reading bytes until the end of the line
-        while (!eol) {
-
-            // Read new bytes if needed
-            if (pos >= lastValid) {
-                if (!fill(true,false)) {
-                    return HeaderParseStatus.NEED_MORE_DATA;
-                }
-            }
-
-            if (buf[pos] == Constants.CR) {
-                // Skip
-            } else if (buf[pos] == Constants.LF) {
-                eol = true;
-            } else {
-                headerData.lastSignificantChar = pos;
-            }
 
-            pos++;
+    /**
+     * Read, without blocking, as much of the request body as is available
+     * from the socket, appending it after any body bytes that arrived with
+     * the headers.
+     *
+     * @return <code>true</code> if the whole body is now buffered
+     * @throws IOException if the socket has been closed or an I/O error occurs
+     */
+    private boolean preReadBody() throws IOException {
+        int required = end + preReadLength;
+        if (buf.length < required + socketReadBufferSize) {
+            byte[] tmp = new byte[required + socketReadBufferSize];
+            System.arraycopy(buf, 0, tmp, 0, lastValid);
+            buf = tmp;
         }
-        if (rejectIllegalHeaderName || log.isDebugEnabled()) {
-            String message = sm.getString("iib.invalidheader", new String(buf, headerData.start,
-                    headerData.lastSignificantChar - headerData.start + 1, DEFAULT_CHARSET));
-            if (rejectIllegalHeaderName) {
-                throw new IllegalArgumentException(message);
+        while (lastValid < required) {
+            // readSocket() appends at pos
+            pos = lastValid;
+            int nRead;
+            try {
+                nRead = readSocket(true, false);
+            } finally {
+                pos = end;
+            }
+            if (nRead <= 0) {
+                // Partially read request so make sure the poller uses
+                // soTimeout rather than the keep-alive timeout
+                NioEndpoint.KeyAttachment att =
+                        (NioEndpoint.KeyAttachment) socket.getAttachment();
+                if (att != null) {
+                    att.setTimeout(preReadTimeout);
+                }
+                return false;
             }
-            log.debug(message);
         }
-
-        headerParsePos = HeaderParsePosition.HEADER_START;
-        return HeaderParseStatus.HAVE_MORE_HEADERS;
+        return true;
     }
 
-    private HeaderParseData headerData = new HeaderParseData();
-    public static class HeaderParseData {
-        /**
-         * When parsing header name: first character of the header.<br />
-         * When skipping broken header line: first character of the header.<br />
-         * When parsing header value: first character after ':'.
-         */
-        int start = 0;
-        /**
-         * When parsing header name: not used (stays as 0).<br />
-         * When skipping broken header line: not used (stays as 0).<br />
-         * When parsing header value: starts as the first character after ':'.
-         * Then is increased as far as more bytes of the header are harvested.
-         * Bytes from buf[pos] are copied to buf[realPos]. Thus the string from
-         * [start] to [realPos-1] is the prepared value of the header, with
-         * whitespaces removed as needed.<br />
-         */
-        int realPos = 0;
-        /**
-         * When parsing header name: not used (stays as 0).<br />
-         * When skipping broken header line: last non-CR/non-LF character.<br />
-         * When parsing header value: position after the last not-LWS character.<br />
-         */
-        int lastSignificantChar = 0;
-        /**
-         * MB that will store the value of the header. It is null while parsing
-         * header name and is created after the name has been parsed.
-         */
-        MessageBytes headerValue = null;
-        public void recycle() {
-            start = 0;
-            realPos = 0;
-            lastSignificantChar = 0;
-            headerValue = null;
+
+    /**
+     * Determines, without blocking, whether request body data can be read. If
+     * nothing is buffered a non-blocking read from the socket is attempted.
+     *
+     * @return <code>true</code> if data is available to read
+     * @throws IOException if the socket has been closed or an I/O error occurs
+     */
+    protected boolean isReadyForRead() throws IOException {
+        if (available() > 0) {
+            return true;
         }
+        fill(true, false);
+        return available() > 0;
     }
 
 
-    // ------------------------------------------------------ Protected Methods
-
     @Override
     protected void init(SocketWrapper<NioChannel> socketWrapper,
             AbstractEndpoint<NioChannel> endpoint) throws IOException {
@@ -825,70 +358,6 @@ public class InternalNioInputBuffer extends AbstractInputBuffer<NioChannel> {
         }
 
         pool = ((NioEndpoint)endpoint).getSelectorPool();
-    }
-
-
-    /**
-     * Fill the internal buffer using data from the underlying input stream.
-     *
-     * @return false if at end of stream
-     */
-    @Override
-    protected boolean fill(boolean block) throws IOException, EOFException {
-        return fill(true,block);
-    }
-
-    protected boolean fill(boolean timeout, boolean block) throws IOException, EOFException {
-        // 读请求体数据的时候需要阻塞读
-
-        boolean read = false;
-
-        if (parsingHeader) {
-
-            if (lastValid > headerBufferSize) {
-                throw new IllegalArgumentException
-                    (sm.getString("iib.requestheadertoolarge.error"));
-            }
-
-            // Do a simple read with a short timeout
-            read = readSocket(timeout,block)>0;
-        } else {
-            lastValid = pos = end;
-            // Do a simple read with a short timeout
-            read = readSocket(timeout, block)>0;
-        }
-        return read;
-    }
-
-
-    // ------------------------------------- InputStreamInputBuffer Inner Class
-
-
-    /**
-     * This class is an input buffer which will read its data from an input
-     * stream.
-     */
-    protected class SocketInputBuffer
-        implements InputBuffer {
-
-
-        /**
-         * Read bytes into the specified chunk.
-         */
-        @Override
-        public int doRead(ByteChunk chunk, Request req )
-            throws IOException {
-
-            if (pos >= lastValid) {
-                if (!fill(true,true)) //read body, must be blocking, as the thread is inside the app
-                    return -1;
-            }
-
-            int length = lastValid - pos;
-            chunk.setBytes(buf, pos, length);
-            pos = lastValid;
-
-            return (length);
-        }
+        preReadTimeout = endpoint.getSoTimeout();
     }
 }
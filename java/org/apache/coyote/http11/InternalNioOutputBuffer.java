@@ -17,6 +17,7 @@
 
 package org.apache.coyote.http11;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
@@ -31,6 +32,7 @@ import org.apache.tomcat.util.net.AbstractEndpoint;
 import org.apache.tomcat.util.net.NioChannel;
 import org.apache.tomcat.util.net.NioEndpoint;
 import org.apache.tomcat.util.net.NioSelectorPool;
+import org.apache.tomcat.util.net.SecureNioChannel;
 import org.apache.tomcat.util.net.SocketWrapper;
 
 /**
@@ -82,6 +84,40 @@ public class InternalNioOutputBuffer extends AbstractOutputBuffer<NioChannel> {
      */
     private NioSelectorPool pool;
 
+    /**
+     * Endpoint that holds the write-behind budget.
+     */
+    private NioEndpoint endpoint;
+
+    /**
+     * Used to write the content of the socket write buffer and a large block
+     * of data with a single gathering write.
+     */
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[2];
+
+    /**
+     * Data that did not fit in the socket write buffer and could not be
+     * written without blocking while a write listener is registered.
+     */
+    private ByteChunk pendingWrites = null;
+
+    /**
+     * Largest amount of response data that may be buffered for the Poller to
+     * write once the request completes. Zero disables write-behind.
+     */
+    private int writeBehindLimit = 0;
+
+    /**
+     * May the current response use write-behind?
+     */
+    private boolean writeBehind = false;
+
+    /**
+     * Number of bytes of the write-behind budget reserved for the response
+     * data buffered by this connection.
+     */
+    private int writeBehindReserved = 0;
+
 
     // --------------------------------------------------------- Public Methods
 
@@ -97,7 +133,11 @@ public class InternalNioOutputBuffer extends AbstractOutputBuffer<NioChannel> {
 
         super.flush();
         // Flush the current buffer
-        flushBuffer();
+        if (isNonBlocking()) {
+            flushNonBlocking();
+        } else {
+            flushBuffer();
+        }
 
     }
 
@@ -109,10 +149,19 @@ public class InternalNioOutputBuffer extends AbstractOutputBuffer<NioChannel> {
     @Override
     public void recycle() {
         super.recycle();
+        writeBehind = false;
+        releaseWriteBehind();
         if (socket != null) {
             socket.getBufHandler().getWriteBuffer().clear();
             socket = null;
         }
+        if (pendingWrites != null) {
+            if (pendingWrites.getBuffer().length > 65536) {
+                pendingWrites = null;
+            } else {
+                pendingWrites.recycle();
+            }
+        }
     }
 
 
@@ -124,6 +173,21 @@ public class InternalNioOutputBuffer extends AbstractOutputBuffer<NioChannel> {
     @Override
     public void endRequest() throws IOException {
         super.endRequest();
+        if (isWriteBehind()) {
+            // Write what the socket accepts now. The processor passes
+            // anything left to the Poller.
+            flushNonBlocking();
+            trimWriteBehind();
+        } else if (!deferFlush || hasPendingWrites()) {
+            // Data left over from non-blocking writes has to go before
+            // anything written for the next request
+            flushBuffer();
+        }
+    }
+
+
+    @Override
+    public void flushDeferred() throws IOException {
         flushBuffer();
     }
 
@@ -137,6 +201,10 @@ public class InternalNioOutputBuffer extends AbstractOutputBuffer<NioChannel> {
     public void sendAck() throws IOException {
 
         if (!committed) {
+            if (hasPendingWrites()) {
+                // The end of the previous response has to go first
+                flushBuffer();
+            }
             //Socket.send(socket, Constants.ACK_BYTES, 0, Constants.ACK_BYTES.length) < 0
             socket.getBufHandler() .getWriteBuffer().put(Constants.ACK_BYTES,0,Constants.ACK_BYTES.length);
             writeToSocket(socket.getBufHandler() .getWriteBuffer(),true,true);
@@ -181,6 +249,24 @@ public class InternalNioOutputBuffer extends AbstractOutputBuffer<NioChannel> {
     }
 
 
+    private synchronized void writeToSocket(ByteBuffer[] buffers) throws IOException {
+        NioEndpoint.KeyAttachment att = (NioEndpoint.KeyAttachment)socket.getAttachment();
+        if ( att == null ) throw new IOException("Key must be cancelled");
+        long writeTimeout = att.getWriteTimeout();
+        Selector selector = null;
+        try {
+            selector = pool.get();
+        } catch ( IOException x ) {
+            //ignore
+        }
+        try {
+            pool.write(buffers, socket, selector, writeTimeout);
+        } finally {
+            if ( selector != null ) pool.put(selector);
+        }
+    }
+
+
     // ------------------------------------------------------ Protected Methods
 
     @Override
@@ -188,7 +274,13 @@ public class InternalNioOutputBuffer extends AbstractOutputBuffer<NioChannel> {
             AbstractEndpoint<NioChannel> endpoint) throws IOException {
 
         socket = socketWrapper.getSocket();
-        pool = ((NioEndpoint)endpoint).getSelectorPool();
+        this.endpoint = (NioEndpoint) endpoint;
+        pool = this.endpoint.getSelectorPool();
+        if (socket instanceof SecureNioChannel) {
+            writeBehindLimit = 0;
+        } else {
+            writeBehindLimit = this.endpoint.getMaxWriteBehindSize();
+        }
     }
 
 
@@ -213,6 +305,47 @@ public class InternalNioOutputBuffer extends AbstractOutputBuffer<NioChannel> {
     }
 
     private synchronized void addToBB(byte[] buf, int offset, int length) throws IOException {
+        if (isNonBlocking()) {
+            addToBBNonBlocking(buf, offset, length);
+            return;
+        }
+        if (isWriteBehind()) {
+            // Reserve the budget before anything is buffered. The data is
+            // copied through the write buffer, so large writes only use a
+            // gathering write once write-behind has been given up.
+            if (getBufferedLength() + length <= writeBehindLimit &&
+                    reserveWriteBehind(length)) {
+                addToBBNonBlocking(buf, offset, length);
+                trimWriteBehind();
+                return;
+            }
+            // Too much for the Poller to take over so write it now
+            flushBuffer();
+        }
+        if (hasPendingWrites()) {
+            // Keep the data in order
+            flushBuffer();
+        }
+        ByteBuffer writeBuffer = socket.getBufHandler().getWriteBuffer();
+        if (length > writeBuffer.remaining() && !(socket instanceof SecureNioChannel)) {
+            // The data does not fit in the write buffer. Rather than copying
+            // it through the write buffer one buffer-full at a time, send
+            // whatever has been buffered so far (response headers, chunk
+            // header, ...) together with the data in one gathering write.
+            writeBuffer.flip();
+            gatherBuffers[0] = writeBuffer;
+            gatherBuffers[1] = ByteBuffer.wrap(buf, offset, length);
+            try {
+                writeToSocket(gatherBuffers);
+            } finally {
+                gatherBuffers[0] = null;
+                gatherBuffers[1] = null;
+                writeBuffer.clear();
+            }
+            NioEndpoint.KeyAttachment ka = (NioEndpoint.KeyAttachment)socket.getAttachment();
+            if ( ka!= null ) ka.access();//prevent timeouts for just doing client writes
+            return;
+        }
         while (length > 0) {
             int thisTime = length;
             // ByteBuffer中已经满了则把数据写入到socket中
@@ -255,6 +388,214 @@ public class InternalNioOutputBuffer extends AbstractOutputBuffer<NioChannel> {
             // 以阻塞的方式写入，表示下面这个方法一定要把数据写入到socket中
             writeToSocket(socket.getBufHandler().getWriteBuffer(),true, false);
         }
+
+        // Then anything left over from non-blocking writes
+        if (hasPendingWrites()) {
+            writeToSocket(ByteBuffer.wrap(pendingWrites.getBuffer(),
+                    pendingWrites.getStart(), pendingWrites.getLength()), true, false);
+            pendingWrites.recycle();
+        }
+        releaseWriteBehind();
+    }
+
+
+    // ------------------------------------------------- Write-behind Methods
+
+
+    /**
+     * Allow or prevent the current response being buffered for the Poller to
+     * write. Only responses that are completed by the processing loop can
+     * be handed to the Poller.
+     */
+    protected void setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+
+    private boolean isWriteBehind() {
+        return writeBehind && writeBehindLimit > 0 && !isNonBlocking();
+    }
+
+
+    /**
+     * @return the number of response bytes buffered but not yet written to
+     *         the socket
+     */
+    protected synchronized int getBufferedLength() {
+        if (socket == null) {
+            return 0;
+        }
+        int length = socket.getBufHandler().getWriteBuffer().position();
+        if (pendingWrites != null) {
+            length += pendingWrites.getLength();
+        }
+        return length;
+    }
+
+
+    /**
+     * Hand all the buffered response data over so it can be written by the
+     * Poller. Only the content of the socket write buffer is copied, the data
+     * waiting behind it is handed over as it is. The write-behind budget
+     * reserved for the data goes with it.
+     *
+     * @return the buffered data, ready to be written, or <code>null</code> if
+     *         it does not fit in the write-behind limits, in which case
+     *         nothing has changed
+     */
+    protected synchronized NioEndpoint.WriteBehindData takeBufferedData() {
+        int length = getBufferedLength();
+        if (length > writeBehindLimit ||
+                !reserveWriteBehind(length - writeBehindReserved)) {
+            return null;
+        }
+        ByteBuffer writeBuffer = socket.getBufHandler().getWriteBuffer();
+        writeBuffer.flip();
+        byte[] head = new byte[writeBuffer.remaining()];
+        writeBuffer.get(head);
+        writeBuffer.clear();
+        ByteBuffer tail;
+        if (hasPendingWrites()) {
+            tail = ByteBuffer.wrap(pendingWrites.getBuffer(),
+                    pendingWrites.getStart(), pendingWrites.getLength());
+            // The Poller owns the buffer now
+            pendingWrites = null;
+        } else {
+            tail = ByteBuffer.allocate(0);
+        }
+        writeBehindReserved = 0;
+        return new NioEndpoint.WriteBehindData(ByteBuffer.wrap(head), tail);
+    }
+
+
+    private boolean reserveWriteBehind(int bytes) {
+        if (bytes <= 0) {
+            return true;
+        }
+        if (endpoint.reserveWriteBehind(bytes)) {
+            writeBehindReserved += bytes;
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Give back the part of the reservation that is no longer needed because
+     * the socket accepted the data.
+     */
+    private void trimWriteBehind() {
+        int unused = writeBehindReserved - getBufferedLength();
+        if (unused > 0) {
+            endpoint.releaseWriteBehind(unused);
+            writeBehindReserved -= unused;
+        }
+    }
+
+
+    private void releaseWriteBehind() {
+        if (writeBehindReserved > 0) {
+            endpoint.releaseWriteBehind(writeBehindReserved);
+            writeBehindReserved = 0;
+        }
+    }
+
+
+    // ------------------------------------------------ Non-blocking IO Methods
+
+
+    /**
+     * Writes are non-blocking once the application has registered a write
+     * listener. The end of the request is still written with blocking IO.
+     */
+    private boolean isNonBlocking() {
+        return response.getWriteListener() != null;
+    }
+
+
+    private boolean hasPendingWrites() {
+        return pendingWrites != null && pendingWrites.getLength() > 0;
+    }
+
+
+    private void addToBBNonBlocking(byte[] buf, int offset, int length)
+            throws IOException {
+        ByteBuffer writeBuffer = socket.getBufHandler().getWriteBuffer();
+        if (!hasPendingWrites() && length <= writeBuffer.remaining()) {
+            writeBuffer.put(buf, offset, length);
+        } else {
+            // Keep the data in order behind anything already waiting and
+            // write as much as the socket will take
+            if (pendingWrites == null) {
+                pendingWrites = new ByteChunk(length);
+            }
+            pendingWrites.append(buf, offset, length);
+            flushNonBlocking();
+        }
+        NioEndpoint.KeyAttachment ka = (NioEndpoint.KeyAttachment)socket.getAttachment();
+        if ( ka!= null ) ka.access();//prevent timeouts for just doing client writes
+    }
+
+
+    /**
+     * Writes as much of the buffered response data as the socket accepts
+     * without blocking.
+     *
+     * @return <code>true</code> if some data is still waiting to be written
+     *
+     * @throws IOException an underlying I/O error occurred
+     */
+    protected synchronized boolean flushNonBlocking() throws IOException {
+        ByteBuffer writeBuffer = socket.getBufHandler().getWriteBuffer();
+        while (true) {
+            // Top up the write buffer with the data waiting behind it
+            if (hasPendingWrites() && writeBuffer.hasRemaining()) {
+                int length = Math.min(pendingWrites.getLength(), writeBuffer.remaining());
+                writeBuffer.put(pendingWrites.getBuffer(), pendingWrites.getStart(), length);
+                if (length == pendingWrites.getLength()) {
+                    pendingWrites.recycle();
+                } else {
+                    pendingWrites.setOffset(pendingWrites.getStart() + length);
+                }
+            }
+            if (writeBuffer.position() == 0) {
+                break;
+            }
+            writeBuffer.flip();
+            int written;
+            try {
+                written = socket.write(writeBuffer);
+            } finally {
+                writeBuffer.compact();
+            }
+            if (written == -1) {
+                throw new EOFException();
+            }
+            if (written == 0) {
+                break;
+            }
+        }
+        return writeBuffer.position() > 0 || hasPendingWrites() ||
+                !socket.flush(false, null, 0);
+    }
+
+
+    /**
+     * @return <code>true</code> if the write buffer has room for more data and
+     *         no data is waiting behind it
+     */
+    protected synchronized boolean canWrite() {
+        return !hasPendingWrites() &&
+                socket.getBufHandler().getWriteBuffer().hasRemaining();
+    }
+
+
+    /**
+     * Registers the socket with the Poller so the write listener is notified
+     * once the socket can accept more data.
+     */
+    protected void registerWriteInterest() {
+        socket.getPoller().add(socket, SelectionKey.OP_WRITE);
     }
 
 
@@ -250,7 +250,20 @@ public class InternalOutputBuffer extends AbstractOutputBuffer<Socket>
             try {
                 int length = chunk.getLength();
                 // 如果再次发送到缓冲区中，则该缓冲区慢了之后就会发送，或者当前请求要结束时发送
-                if (useSocketBuffer) {
+                if (useSocketBuffer &&
+                        length > socketBuffer.getLimit() - socketBuffer.getEnd()) {
+                    // java.io streams have no gathering write. The closest
+                    // is to top up the socket buffer so that the buffered
+                    // bytes (headers, chunk header, ...) go out as one full
+                    // write, then write the rest of the data directly in one
+                    // call rather than one buffer-full at a time.
+                    int avail = socketBuffer.getLimit() - socketBuffer.getEnd();
+                    socketBuffer.append(chunk.getBuffer(), chunk.getStart(),
+                                        avail);
+                    socketBuffer.flushBuffer();
+                    outputStream.write(chunk.getBuffer(),
+                            chunk.getStart() + avail, length - avail);
+                } else if (useSocketBuffer) {
                     socketBuffer.append(chunk.getBuffer(), chunk.getStart(),
                                         length);
                 } else {
@@ -281,6 +281,12 @@ public class ChunkedInputFilter implements InputFilter {
     }
 
 
+    @Override
+    public boolean isFinished() {
+        return endChunk;
+    }
+
+
     /**
      * Set the next buffer in the filter pipeline.
      */
@@ -0,0 +1,182 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http11.filters;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.apache.tomcat.util.compat.JreCompat;
+import org.apache.tomcat.util.res.StringManager;
+
+/**
+ * GZIP output stream that compresses with a {@link Deflater} supplied by the
+ * caller instead of creating its own, so Deflaters can be pooled. The stream
+ * itself is reusable: {@link #start(Deflater)} begins a new GZIP member and
+ * {@link #detach()} hands the Deflater back once it is no longer needed.
+ * {@link #flush()} uses <code>SYNC_FLUSH</code> and so requires Java 7.
+ */
+public class DeflaterGzipOutputStream extends OutputStream {
+
+    private static final StringManager sm = StringManager.getManager(
+            DeflaterGzipOutputStream.class.getPackage().getName());
+
+    // Magic number, CM=deflate, no flags, no mtime, no XFL, OS=FAT as written
+    // by GZIPOutputStream
+    private static final byte[] HEADER = new byte[] {
+            0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+    private final OutputStream out;
+    private final CRC32 crc = new CRC32();
+    private final byte[] buf = new byte[512];
+    private final byte[] singleByte = new byte[1];
+
+    private Deflater deflater;
+    private boolean headerWritten;
+    private boolean finished;
+
+
+    public DeflaterGzipOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+
+    /**
+     * Begin a new GZIP member compressed with the given Deflater.
+     *
+     * @param deflater  A raw (nowrap) Deflater that has no pending input
+     */
+    public void start(Deflater deflater) {
+        this.deflater = deflater;
+        crc.reset();
+        headerWritten = false;
+        finished = false;
+    }
+
+
+    /**
+     * @return the Deflater passed to {@link #start(Deflater)} or
+     *         <code>null</code> if there is none. The stream no longer uses
+     *         it afterwards.
+     */
+    public Deflater detach() {
+        Deflater result = deflater;
+        deflater = null;
+        return result;
+    }
+
+
+    @Override
+    public void write(int b) throws IOException {
+        singleByte[0] = (byte) b;
+        write(singleByte, 0, 1);
+    }
+
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkWritable();
+        if (len == 0) {
+            return;
+        }
+        writeHeader();
+        crc.update(b, off, len);
+        deflater.setInput(b, off, len);
+        while (!deflater.needsInput()) {
+            int n = deflater.deflate(buf, 0, buf.length);
+            if (n > 0) {
+                out.write(buf, 0, n);
+            }
+        }
+    }
+
+
+    @Override
+    public void flush() throws IOException {
+        if (deflater == null || finished) {
+            return;
+        }
+        writeHeader();
+        int n;
+        while ((n = JreCompat.getInstance().deflateSyncFlush(
+                deflater, buf, 0, buf.length)) > 0) {
+            out.write(buf, 0, n);
+            if (n < buf.length) {
+                break;
+            }
+        }
+        out.flush();
+    }
+
+
+    /**
+     * Complete the GZIP member without closing the underlying stream.
+     *
+     * @throws IOException if writing to the underlying stream fails
+     */
+    public void finish() throws IOException {
+        checkWritable();
+        writeHeader();
+        deflater.finish();
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buf, 0, buf.length);
+            if (n > 0) {
+                out.write(buf, 0, n);
+            }
+        }
+        writeInt((int) crc.getValue());
+        writeInt(deflater.getTotalIn());
+        finished = true;
+    }
+
+
+    /**
+     * Finishes the GZIP member. The underlying stream is not closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (deflater != null && !finished) {
+            finish();
+        }
+    }
+
+
+    private void checkWritable() throws IOException {
+        if (deflater == null || finished) {
+            throw new IOException(sm.getString("deflaterGzipOutputStream.notWritable"));
+        }
+    }
+
+
+    private void writeHeader() throws IOException {
+        if (!headerWritten) {
+            out.write(HEADER, 0, HEADER.length);
+            headerWritten = true;
+        }
+    }
+
+
+    // Little endian as required by RFC 1952
+    private void writeInt(int i) throws IOException {
+        buf[0] = (byte) i;
+        buf[1] = (byte) (i >> 8);
+        buf[2] = (byte) (i >> 16);
+        buf[3] = (byte) (i >> 24);
+        out.write(buf, 0, 4);
+    }
+}
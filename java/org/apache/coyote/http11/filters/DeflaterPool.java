@@ -0,0 +1,73 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http11.filters;
+
+import java.util.zip.Deflater;
+
+import org.apache.tomcat.util.collections.SynchronizedStack;
+
+/**
+ * A bounded pool of {@link Deflater}s producing raw deflate data, as used
+ * inside GZIP streams. Creating a Deflater allocates native memory that is
+ * only freed by {@link Deflater#end()} or the finalizer so reusing them
+ * avoids that cost for every compressed response. Deflaters returned when the
+ * pool is full are ended immediately.
+ */
+public class DeflaterPool {
+
+    private final SynchronizedStack<Deflater> deflaters;
+
+
+    /**
+     * @param size  The maximum number of idle Deflaters kept for reuse
+     */
+    public DeflaterPool(int size) {
+        int limit = Math.max(0, size);
+        deflaters = new SynchronizedStack<Deflater>(
+                Math.min(SynchronizedStack.DEFAULT_SIZE, limit), limit);
+    }
+
+
+    /**
+     * Obtain a Deflater, reusing an idle one if possible.
+     *
+     * @param level The compression level to use
+     * @return a Deflater ready for new input
+     */
+    public Deflater borrow(int level) {
+        Deflater deflater = deflaters.pop();
+        if (deflater == null) {
+            return new Deflater(level, true);
+        }
+        deflater.setLevel(level);
+        return deflater;
+    }
+
+
+    /**
+     * Return a Deflater obtained from {@link #borrow(int)}. It must not be used
+     * by the caller afterwards.
+     *
+     * @param deflater The Deflater to return
+     */
+    public void release(Deflater deflater) {
+        deflater.reset();
+        if (!deflaters.push(deflater)) {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http11.filters;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.coyote.InputBuffer;
+import org.apache.coyote.Request;
+import org.apache.coyote.http11.InputFilter;
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.apache.tomcat.util.res.StringManager;
+
+/**
+ * Input filter that inflates a request body sent with a
+ * <code>Content-Encoding</code> of <code>gzip</code>, <code>x-gzip</code> or
+ * <code>deflate</code>. It must be placed after the filter that delimits the
+ * body (identity or chunked), since it reads until that filter reports the
+ * end of the body.
+ */
+public class GzipInputFilter implements InputFilter {
+
+    private static final StringManager sm = StringManager.getManager(
+            GzipInputFilter.class.getPackage().getName());
+
+
+    // -------------------------------------------------------------- Constants
+
+
+    protected static final String ENCODING_NAME = "gzip";
+    protected static final ByteChunk ENCODING = new ByteChunk();
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+
+    // ----------------------------------------------------- Static Initializer
+
+
+    static {
+        ENCODING.setBytes(ENCODING_NAME.getBytes(Charset.defaultCharset()), 0,
+                ENCODING_NAME.length());
+    }
+
+
+    /**
+     * Check if a <code>Content-Encoding</code> value is one this filter can
+     * decode.
+     */
+    public static boolean isSupported(MessageBytes contentEncoding) {
+        return getMode(contentEncoding) != NONE;
+    }
+
+
+    private static final int NONE = 0;
+    private static final int GZIP = 1;
+    private static final int DEFLATE = 2;
+
+    private static int getMode(MessageBytes contentEncoding) {
+        if (contentEncoding == null || contentEncoding.isNull()) {
+            return NONE;
+        }
+        String value = contentEncoding.toString().trim().toLowerCase(Locale.ENGLISH);
+        if (value.equals("gzip") || value.equals("x-gzip")) {
+            return GZIP;
+        } else if (value.equals("deflate")) {
+            return DEFLATE;
+        }
+        return NONE;
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * Next buffer in the pipeline.
+     */
+    protected InputBuffer buffer;
+
+
+    /**
+     * Compressed bytes read from the next buffer and not yet passed to the
+     * inflater.
+     */
+    private final ByteChunk input = new ByteChunk();
+
+
+    /**
+     * Inflated bytes returned to the caller.
+     */
+    private final byte[] output = new byte[8192];
+
+
+    /**
+     * Inflaters are kept for the life of the processor, one for the raw
+     * deflate data of gzip members and one for zlib wrapped data.
+     */
+    private Inflater gzipInflater;
+    private Inflater zlibInflater;
+    private Inflater inflater;
+
+    private final CRC32 crc = new CRC32();
+
+    private int mode = NONE;
+    private boolean headerRead = false;
+    private boolean finished = false;
+    private long memberSize = 0;
+    private long inflated = 0;
+
+    private long maxInflatedSize = -1;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Set the maximum number of bytes a request body may inflate to. A value
+     * less than zero means no limit.
+     */
+    public void setMaxInflatedSize(long maxInflatedSize) {
+        this.maxInflatedSize = maxInflatedSize;
+    }
+
+
+    public long getMaxInflatedSize() {
+        return maxInflatedSize;
+    }
+
+
+    // ---------------------------------------------------- InputBuffer Methods
+
+
+    @Override
+    public int doRead(ByteChunk chunk, Request req) throws IOException {
+        if (finished || mode == NONE) {
+            chunk.recycle();
+            return -1;
+        }
+
+        if (!headerRead) {
+            if (mode == GZIP) {
+                if (!readHeader(true)) {
+                    throw new EOFException(sm.getString("gzipInputFilter.eos"));
+                }
+            } else {
+                inflater = getZlibInflater();
+            }
+            headerRead = true;
+        }
+
+        int n = 0;
+        while (n == 0) {
+            if (inflater.needsInput()) {
+                if (fill() < 0) {
+                    throw new EOFException(sm.getString("gzipInputFilter.eos"));
+                }
+                inflater.setInput(input.getBytes(), input.getStart(), input.getLength());
+                input.setOffset(input.getEnd());
+            }
+            try {
+                n = inflater.inflate(output, 0, output.length);
+            } catch (DataFormatException e) {
+                throw new IOException(sm.getString("gzipInputFilter.invalid"), e);
+            }
+            if (n == 0 && inflater.needsDictionary()) {
+                throw new IOException(sm.getString("gzipInputFilter.invalid"));
+            }
+            if (mode == GZIP) {
+                crc.update(output, 0, n);
+                memberSize += n;
+            }
+            if (inflater.finished()) {
+                // Give back the bytes the inflater did not consume
+                input.setOffset(input.getEnd() - inflater.getRemaining());
+                if (mode == GZIP) {
+                    readTrailer();
+                    // A gzip body may be made of several members
+                    finished = !readHeader(false);
+                } else {
+                    finished = true;
+                }
+                if (finished && n == 0) {
+                    chunk.recycle();
+                    return -1;
+                }
+            }
+        }
+
+        inflated += n;
+        if (maxInflatedSize > -1 && inflated > maxInflatedSize) {
+            throw new IOException(sm.getString("gzipInputFilter.maxInflatedSize",
+                    Long.valueOf(maxInflatedSize)));
+        }
+
+        chunk.setBytes(output, 0, n);
+        return n;
+    }
+
+
+    // ---------------------------------------------------- InputFilter Methods
+
+
+    /**
+     * Read the content encoding from the request.
+     */
+    @Override
+    public void setRequest(Request request) {
+        mode = getMode(request.getMimeHeaders().getValue("content-encoding"));
+    }
+
+
+    /**
+     * The compressed body is delimited by the previous filter, which is
+     * therefore responsible for swallowing what has not been read.
+     */
+    @Override
+    public long end() throws IOException {
+        if (buffer instanceof InputFilter) {
+            return ((InputFilter) buffer).end();
+        }
+        return 0;
+    }
+
+
+    /**
+     * Amount of bytes still available in a buffer.
+     */
+    @Override
+    public int available() {
+        if (finished || mode == NONE) {
+            return 0;
+        }
+        int result = input.getLength();
+        if (inflater != null) {
+            result += inflater.getRemaining();
+        }
+        return result;
+    }
+
+
+    @Override
+    public boolean isFinished() {
+        return finished || mode == NONE;
+    }
+
+
+    /**
+     * Set the next buffer in the filter pipeline.
+     */
+    @Override
+    public void setBuffer(InputBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+
+    /**
+     * Make the filter ready to process the next request.
+     */
+    @Override
+    public void recycle() {
+        if (inflater != null) {
+            inflater.reset();
+            inflater = null;
+        }
+        input.recycle();
+        crc.reset();
+        mode = NONE;
+        headerRead = false;
+        finished = false;
+        memberSize = 0;
+        inflated = 0;
+    }
+
+
+    /**
+     * End the Inflaters. The filter must not be used afterwards.
+     */
+    public void destroy() {
+        recycle();
+        if (gzipInflater != null) {
+            gzipInflater.end();
+            gzipInflater = null;
+        }
+        if (zlibInflater != null) {
+            zlibInflater.end();
+            zlibInflater = null;
+        }
+    }
+
+
+    /**
+     * Return the name of the associated encoding; Here, the value is
+     * "gzip".
+     */
+    @Override
+    public ByteChunk getEncodingName() {
+        return ENCODING;
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    private Inflater getGzipInflater() {
+        if (gzipInflater == null) {
+            gzipInflater = new Inflater(true);
+        }
+        return gzipInflater;
+    }
+
+
+    private Inflater getZlibInflater() {
+        if (zlibInflater == null) {
+            zlibInflater = new Inflater();
+        }
+        return zlibInflater;
+    }
+
+
+    /**
+     * Make sure there are compressed bytes available.
+     *
+     * @return the number of bytes available or -1 at the end of the body
+     */
+    private int fill() throws IOException {
+        if (input.getLength() == 0) {
+            int n = buffer.doRead(input, null);
+            if (n <= 0) {
+                return -1;
+            }
+        }
+        return input.getLength();
+    }
+
+
+    private int readUByte() throws IOException {
+        if (fill() < 0) {
+            throw new EOFException(sm.getString("gzipInputFilter.eos"));
+        }
+        return input.substract();
+    }
+
+
+    private int readUShort() throws IOException {
+        return readUByte() | (readUByte() << 8);
+    }
+
+
+    private long readUInt() throws IOException {
+        return (readUShort() & 0xffffL) | ((long) readUShort() << 16);
+    }
+
+
+    /**
+     * Read the header of a gzip member (RFC 1952).
+     *
+     * @param first <code>true</code> for the first member of the body
+     * @return <code>false</code> if the body ended before another member
+     */
+    private boolean readHeader(boolean first) throws IOException {
+        if (fill() < 0) {
+            return false;
+        }
+        if (readUShort() != GZIP_MAGIC) {
+            throw new IOException(sm.getString("gzipInputFilter.invalid"));
+        }
+        if (readUByte() != 8) {
+            throw new IOException(sm.getString("gzipInputFilter.invalid"));
+        }
+        int flags = readUByte();
+        // MTIME, XFL and OS are ignored
+        for (int i = 0; i < 6; i++) {
+            readUByte();
+        }
+        if ((flags & FEXTRA) != 0) {
+            int length = readUShort();
+            for (int i = 0; i < length; i++) {
+                readUByte();
+            }
+        }
+        if ((flags & FNAME) != 0) {
+            while (readUByte() != 0) {
+                // Skip
+            }
+        }
+        if ((flags & FCOMMENT) != 0) {
+            while (readUByte() != 0) {
+                // Skip
+            }
+        }
+        if ((flags & FHCRC) != 0) {
+            readUShort();
+        }
+        if (first) {
+            inflater = getGzipInflater();
+        } else {
+            inflater.reset();
+        }
+        crc.reset();
+        memberSize = 0;
+        return true;
+    }
+
+
+    private void readTrailer() throws IOException {
+        if (readUInt() != crc.getValue() ||
+                readUInt() != (memberSize & 0xffffffffL)) {
+            throw new IOException(sm.getString("gzipInputFilter.invalid"));
+        }
+    }
+}
@@ -19,7 +19,7 @@ package org.apache.coyote.http11.filters;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
 
 import org.apache.coyote.OutputBuffer;
 import org.apache.coyote.Response;
@@ -42,6 +42,15 @@ public class GzipOutputFilter implements OutputFilter {
         org.apache.juli.logging.LogFactory.getLog(GzipOutputFilter.class);
 
 
+    /**
+     * Deflaters shared by all the GZIP filters. On Java 6 the filter falls
+     * back to a GZIPOutputStream per response and the pool is unused.
+     */
+    private static final DeflaterPool deflaterPool = new DeflaterPool(
+            Integer.getInteger("org.apache.coyote.http11.filters.GzipOutputFilter.DEFLATER_POOL_SIZE",
+                    128).intValue());
+
+
     // ----------------------------------------------------- Instance Variables
 
 
@@ -54,7 +63,7 @@ public class GzipOutputFilter implements OutputFilter {
     /**
      * Compression output stream.
      */
-    protected GZIPOutputStream compressionStream = null;
+    protected OutputStream compressionStream = null;
 
 
     /**
@@ -63,6 +72,37 @@ public class GzipOutputFilter implements OutputFilter {
     protected OutputStream fakeOutputStream = new FakeOutputStream();
 
 
+    /**
+     * Reusable GZIP stream backed by a pooled Deflater.
+     */
+    private DeflaterGzipOutputStream pooledStream = null;
+
+
+    /**
+     * Compression level for the current response.
+     */
+    private int level = Deflater.DEFAULT_COMPRESSION;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Set the compression level used for the current response. It is reset
+     * to the default when the filter is recycled. It has no effect on Java 6.
+     *
+     * @param level A compression level accepted by {@link Deflater}
+     */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+
+    public int getLevel() {
+        return level;
+    }
+
+
     // --------------------------------------------------- OutputBuffer Methods
 
 
@@ -75,12 +115,7 @@ public class GzipOutputFilter implements OutputFilter {
     public int doWrite(ByteChunk chunk, Response res)
         throws IOException {
         if (compressionStream == null) {
-            if (JreCompat.isJre7Available()) {
-                compressionStream =
-                        JreCompat.getInstance().getFlushableGZipOutputStream(fakeOutputStream);
-            } else {
-                compressionStream = new FlushableGZIPOutputStream(fakeOutputStream);
-            }
+            createCompressionStream();
         }
         compressionStream.write(chunk.getBytes(), chunk.getStart(),
                                 chunk.getLength());
@@ -141,14 +176,9 @@ public class GzipOutputFilter implements OutputFilter {
     @Override
     public long end() throws IOException {
         if (compressionStream == null) {
-            if (JreCompat.isJre7Available()) {
-                compressionStream =
-                        JreCompat.getInstance().getFlushableGZipOutputStream(fakeOutputStream);
-            } else {
-                compressionStream = new FlushableGZIPOutputStream(fakeOutputStream);
-            }
+            createCompressionStream();
         }
-        compressionStream.finish();
+        // Closing finishes the GZIP stream but not the underlying buffer
         compressionStream.close();
         return ((OutputFilter) buffer).end();
     }
@@ -161,6 +191,26 @@ public class GzipOutputFilter implements OutputFilter {
     public void recycle() {
         // Set compression stream to null
         compressionStream = null;
+        if (pooledStream != null) {
+            Deflater deflater = pooledStream.detach();
+            if (deflater != null) {
+                deflaterPool.release(deflater);
+            }
+        }
+        level = Deflater.DEFAULT_COMPRESSION;
+    }
+
+
+    private void createCompressionStream() throws IOException {
+        if (JreCompat.isJre7Available()) {
+            if (pooledStream == null) {
+                pooledStream = new DeflaterGzipOutputStream(fakeOutputStream);
+            }
+            pooledStream.start(deflaterPool.borrow(level));
+            compressionStream = pooledStream;
+        } else {
+            compressionStream = new FlushableGZIPOutputStream(fakeOutputStream);
+        }
     }
 
 
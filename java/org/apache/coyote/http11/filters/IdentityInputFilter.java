@@ -238,6 +238,14 @@ public class IdentityInputFilter implements InputFilter {
     }
 
 
+    @Override
+    public boolean isFinished() {
+        // Only finished if a content length is defined and there is no data
+        // remaining
+        return contentLength > -1 && remaining <= 0;
+    }
+
+
     /**
      * Set the next buffer in the filter pipeline.
      */
@@ -107,6 +107,11 @@ public class SavedRequestInputFilter implements InputFilter {
         return input.getLength();
     }
 
+    @Override
+    public boolean isFinished() {
+        return input.getLength() == 0;
+    }
+
     /**
      * End the current request (has no effect).
      */
@@ -136,4 +136,10 @@ public class VoidInputFilter implements InputFilter {
         return 0;
     }
 
+
+    @Override
+    public boolean isFinished() {
+        return true;
+    }
+
 }
@@ -138,6 +138,12 @@ public abstract class AbstractProcessor<S>
     }
 
 
+    @Override
+    public final void destroy() {
+        // NO-OP
+    }
+
+
     @Override
     public final AsyncStateMachine<S> getAsyncStateMachine() {
         return null;
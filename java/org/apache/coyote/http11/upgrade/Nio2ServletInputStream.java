@@ -0,0 +1,55 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http11.upgrade;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import org.apache.tomcat.util.net.Nio2Channel;
+import org.apache.tomcat.util.net.SocketWrapper;
+
+public class Nio2ServletInputStream extends AbstractServletInputStream {
+
+    private final Nio2Channel channel;
+
+    public Nio2ServletInputStream(SocketWrapper<Nio2Channel> wrapper) {
+        this.channel = wrapper.getSocket();
+    }
+
+    @Override
+    protected boolean doIsReady() throws IOException {
+        // Only data that has already been read by the endpoint is available
+        // without waiting. If there is none, the endpoint will dispatch the
+        // connection again when more data arrives.
+        return channel.hasBufferedData();
+    }
+
+    @Override
+    protected int doRead(boolean block, byte[] b, int off, int len)
+            throws IOException {
+        int nRead = channel.read(b, off, len, block);
+        if (nRead == -1) {
+            throw new EOFException();
+        }
+        return nRead;
+    }
+
+    @Override
+    protected void doClose() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http11.upgrade;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.tomcat.util.net.Nio2Channel;
+import org.apache.tomcat.util.net.SocketWrapper;
+
+public class Nio2ServletOutputStream extends AbstractServletOutputStream {
+
+    private final Nio2Channel channel;
+
+    public Nio2ServletOutputStream(SocketWrapper<Nio2Channel> socketWrapper,
+            int asyncWriteBufferSize) {
+        super(asyncWriteBufferSize);
+        channel = socketWrapper.getSocket();
+    }
+
+    @Override
+    protected int doWrite(boolean block, byte[] b, int off, int len)
+            throws IOException {
+        // Writes always complete before returning
+        return channel.write(ByteBuffer.wrap(b, off, len));
+    }
+
+    @Override
+    protected void doFlush() throws IOException {
+        // NO-OP
+    }
+
+    @Override
+    protected void doClose() throws IOException {
+        channel.close();
+    }
+}
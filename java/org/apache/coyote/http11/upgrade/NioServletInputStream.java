@@ -134,6 +134,11 @@ public class NioServletInputStream extends AbstractServletInputStream {
             }
         } else {
             nRead = channel.read(channel.getBufHandler().getReadBuffer());
+            if (nRead == -1) {
+                // Report the closed connection now. Otherwise the poller
+                // keeps signalling it as readable.
+                throw new EOFException();
+            }
         }
         return nRead;
     }
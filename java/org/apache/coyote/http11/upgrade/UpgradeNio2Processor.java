@@ -0,0 +1,84 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http11.upgrade;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.tomcat.util.net.Nio2Channel;
+import org.apache.tomcat.util.net.SocketWrapper;
+
+/**
+ * @deprecated  Will be removed in Tomcat 8.0.x.
+ */
+@Deprecated
+public class UpgradeNio2Processor extends UpgradeProcessor<Nio2Channel> {
+
+    private final Nio2Channel channel;
+
+    public UpgradeNio2Processor(SocketWrapper<Nio2Channel> wrapper,
+            UpgradeInbound upgradeInbound) {
+        super(upgradeInbound);
+
+        wrapper.setTimeout(upgradeInbound.getReadTimeout());
+        wrapper.getSocket().setReadTimeout(upgradeInbound.getReadTimeout());
+        this.channel = wrapper.getSocket();
+    }
+
+
+    /*
+     * Output methods
+     */
+    @Override
+    public void flush() throws IOException {
+        // NO-OP
+    }
+
+
+    @Override
+    public void write(int b) throws IOException {
+        channel.write(ByteBuffer.wrap(new byte[] {(byte) b}));
+    }
+
+
+    @Override
+    public void write(byte[]b, int off, int len) throws IOException {
+        channel.write(ByteBuffer.wrap(b, off, len));
+    }
+
+
+    /*
+     * Input methods
+     */
+    @Override
+    public int read() throws IOException {
+        byte[] bytes = new byte[1];
+        int result = channel.read(bytes, 0, 1, true);
+        if (result == -1) {
+            return -1;
+        } else {
+            return bytes[0] & 0xFF;
+        }
+    }
+
+
+    @Override
+    public int read(boolean block, byte[] bytes, int off, int len)
+            throws IOException {
+        return channel.read(bytes, off, len, block);
+    }
+}
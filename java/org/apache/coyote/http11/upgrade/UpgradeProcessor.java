@@ -95,6 +95,12 @@ public abstract class UpgradeProcessor<S> implements Processor<S> {
     }
 
 
+    @Override
+    public final void destroy() {
+        // NO-OP
+    }
+
+
     // Servlet 3.1 based HTTP upgrade mechanism. NO-OPs for the proprietary
     // Tomcat upgrade mechanism.
     @Override
@@ -0,0 +1,413 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http2;
+
+import org.apache.tomcat.util.res.StringManager;
+
+/**
+ * The parts of HPACK (RFC 7541), the HTTP/2 header compression format, that
+ * are shared by {@link HpackDecoder} and {@link HpackEncoder}: the static
+ * table, the dynamic table and the Huffman code.
+ */
+final class Hpack {
+
+    private static final StringManager sm =
+            StringManager.getManager(Constants.Package);
+
+    /**
+     * The size of a dynamic table entry is the length of its name and value
+     * plus this overhead.
+     */
+    static final int ENTRY_OVERHEAD = 32;
+
+    /**
+     * The static table. Entry <code>i</code> has HPACK index <code>i + 1</code>.
+     */
+    static final String[][] STATIC_TABLE = {
+            { ":authority", "" },
+            { ":method", "GET" },
+            { ":method", "POST" },
+            { ":path", "/" },
+            { ":path", "/index.html" },
+            { ":scheme", "http" },
+            { ":scheme", "https" },
+            { ":status", "200" },
+            { ":status", "204" },
+            { ":status", "206" },
+            { ":status", "304" },
+            { ":status", "400" },
+            { ":status", "404" },
+            { ":status", "500" },
+            { "accept-charset", "" },
+            { "accept-encoding", "gzip, deflate" },
+            { "accept-language", "" },
+            { "accept-ranges", "" },
+            { "accept", "" },
+            { "access-control-allow-origin", "" },
+            { "age", "" },
+            { "allow", "" },
+            { "authorization", "" },
+            { "cache-control", "" },
+            { "content-disposition", "" },
+            { "content-encoding", "" },
+            { "content-language", "" },
+            { "content-length", "" },
+            { "content-location", "" },
+            { "content-range", "" },
+            { "content-type", "" },
+            { "cookie", "" },
+            { "date", "" },
+            { "etag", "" },
+            { "expect", "" },
+            { "expires", "" },
+            { "from", "" },
+            { "host", "" },
+            { "if-match", "" },
+            { "if-modified-since", "" },
+            { "if-none-match", "" },
+            { "if-range", "" },
+            { "if-unmodified-since", "" },
+            { "last-modified", "" },
+            { "link", "" },
+            { "location", "" },
+            { "max-forwards", "" },
+            { "proxy-authenticate", "" },
+            { "proxy-authorization", "" },
+            { "range", "" },
+            { "referer", "" },
+            { "refresh", "" },
+            { "retry-after", "" },
+            { "server", "" },
+            { "set-cookie", "" },
+            { "strict-transport-security", "" },
+            { "transfer-encoding", "" },
+            { "user-agent", "" },
+            { "vary", "" },
+            { "via", "" },
+            { "www-authenticate", "" }
+    };
+
+    static final int STATIC_TABLE_LENGTH = STATIC_TABLE.length;
+
+    /*
+     * The Huffman code of each symbol, right aligned, and its length in bits
+     * (RFC 7541, Appendix B). Symbol 256 is EOS.
+     */
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5,
+            0xfffffe6, 0xfffffe7, 0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9,
+            0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec, 0xfffffed, 0xfffffee,
+            0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9,
+            0xffffffa, 0xffffffb, 0x14, 0x3f8, 0x3f9, 0xffa,
+            0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa, 0x3fb,
+            0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b,
+            0x1c, 0x1d, 0x1e, 0x1f, 0x5c, 0xfb,
+            0x7ffc, 0x20, 0xffb, 0x3fc, 0x1ffa, 0x21,
+            0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e,
+            0x6f, 0x70, 0x71, 0x72, 0xfc, 0x73,
+            0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5,
+            0x25, 0x26, 0x27, 0x6, 0x74, 0x75,
+            0x28, 0x29, 0x2a, 0x7, 0x2b, 0x76,
+            0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd,
+            0x1ffd, 0xffffffc, 0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8,
+            0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda,
+            0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1,
+            0x7fffe2, 0x7fffe3, 0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5,
+            0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef, 0x3fffda, 0x1fffdd,
+            0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf,
+            0x7fffeb, 0x7fffec, 0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2,
+            0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2,
+            0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2,
+            0x3fffe8, 0x1ffffec, 0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde,
+            0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3,
+            0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3,
+            0x7ffffe4, 0x7ffffe5, 0xfffec, 0xfffff3, 0xfffed, 0x1fffe6,
+            0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3, 0x3fffea, 0x3fffeb,
+            0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8,
+            0x7ffffe9, 0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed,
+            0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee, 0x3fffffff
+    };
+
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+
+    private static final int EOS = 256;
+
+    /*
+     * Binary decoding tree for the Huffman code. The children of node n are
+     * at 2n and 2n + 1. A positive child is the index of another node, a
+     * negative child is a leaf holding symbol -(child + 1).
+     */
+    private static final int[] HUFFMAN_TREE;
+
+    static {
+        int[] tree = new int[2 * HUFFMAN_CODES.length];
+        int nodes = 1;
+        for (int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+            int code = HUFFMAN_CODES[symbol];
+            int length = HUFFMAN_LENGTHS[symbol];
+            int node = 0;
+            for (int i = length - 1; i > 0; i--) {
+                int slot = 2 * node + ((code >>> i) & 1);
+                if (tree[slot] == 0) {
+                    tree[slot] = nodes++;
+                }
+                node = tree[slot];
+            }
+            tree[2 * node + (code & 1)] = -(symbol + 1);
+        }
+        HUFFMAN_TREE = tree;
+    }
+
+
+    private Hpack() {
+        // Utility class
+    }
+
+
+    /**
+     * Decode a Huffman coded string.
+     *
+     * @param src   The buffer holding the coded string
+     * @param off   The offset of the first byte of the coded string
+     * @param len   The length in bytes of the coded string
+     * @param sb    The builder to append the decoded characters to
+     *
+     * @throws Http2Exception if the string is not validly coded
+     */
+    static void huffmanDecode(byte[] src, int off, int len, StringBuilder sb)
+            throws Http2Exception {
+        int node = 0;
+        int paddingBits = 0;
+        boolean paddingOnes = true;
+        for (int i = off; i < off + len; i++) {
+            int b = src[i] & 0xFF;
+            for (int bit = 7; bit >= 0; bit--) {
+                int value = (b >>> bit) & 1;
+                int child = HUFFMAN_TREE[2 * node + value];
+                if (child < 0) {
+                    int symbol = -(child + 1);
+                    if (symbol == EOS) {
+                        throw new Http2Exception(sm.getString("hpack.huffmanEos"),
+                                0, Constants.COMPRESSION_ERROR);
+                    }
+                    sb.append((char) symbol);
+                    node = 0;
+                    paddingBits = 0;
+                    paddingOnes = true;
+                } else {
+                    node = child;
+                    paddingBits++;
+                    paddingOnes &= (value == 1);
+                }
+            }
+        }
+        // Any bits left over must be a prefix of EOS, i.e. all ones, and must
+        // be shorter than a byte
+        if (paddingBits > 7 || !paddingOnes) {
+            throw new Http2Exception(sm.getString("hpack.huffmanPadding"),
+                    0, Constants.COMPRESSION_ERROR);
+        }
+    }
+
+
+    /**
+     * @param s The string to measure. Characters are treated as ISO-8859-1.
+     *
+     * @return the length in bytes of the Huffman coded string
+     */
+    static int huffmanLength(String s) {
+        long bits = 0;
+        for (int i = 0; i < s.length(); i++) {
+            bits += HUFFMAN_LENGTHS[s.charAt(i) & 0xFF];
+        }
+        return (int) ((bits + 7) >>> 3);
+    }
+
+
+    /**
+     * Huffman code a string.
+     *
+     * @param s     The string to code. Characters are treated as ISO-8859-1.
+     * @param dst   The buffer to write to. It must have at least
+     *              {@link #huffmanLength(String)} bytes from pos.
+     * @param pos   The position to start writing at
+     *
+     * @return the position after the last byte written
+     */
+    static int huffmanEncode(String s, byte[] dst, int pos) {
+        long current = 0;
+        int bits = 0;
+        for (int i = 0; i < s.length(); i++) {
+            int symbol = s.charAt(i) & 0xFF;
+            int length = HUFFMAN_LENGTHS[symbol];
+            current = (current << length) | HUFFMAN_CODES[symbol];
+            bits += length;
+            while (bits >= 8) {
+                bits -= 8;
+                dst[pos++] = (byte) (current >>> bits);
+            }
+        }
+        if (bits > 0) {
+            // Pad with the most significant bits of EOS, which are all ones
+            current = (current << (8 - bits)) | (0xFF >>> bits);
+            dst[pos++] = (byte) current;
+        }
+        return pos;
+    }
+
+
+    /**
+     * An HPACK dynamic table. Entries are numbered from 1, the most recently
+     * added entry, and are evicted oldest first when the table grows beyond
+     * its maximum size.
+     */
+    static final class DynamicTable {
+
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        // Where the next entry will be added
+        private int insertPos = 0;
+        private int count = 0;
+        private int size = 0;
+        private int maxSize;
+
+        DynamicTable(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        int getSize() {
+            return size;
+        }
+
+        int getMaxSize() {
+            return maxSize;
+        }
+
+        String getName(int index) {
+            return names[slot(index)];
+        }
+
+        String getValue(int index) {
+            return values[slot(index)];
+        }
+
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(0);
+        }
+
+        void add(String name, String value) {
+            int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+            if (entrySize > maxSize) {
+                // Adding an entry larger than the table empties it
+                evict(maxSize);
+                return;
+            }
+            evict(entrySize);
+            if (count == names.length) {
+                String[] newNames = new String[names.length * 2];
+                String[] newValues = new String[names.length * 2];
+                for (int i = 0; i < count; i++) {
+                    // Oldest first
+                    newNames[i] = getName(count - i);
+                    newValues[i] = getValue(count - i);
+                }
+                names = newNames;
+                values = newValues;
+                insertPos = count;
+            }
+            names[insertPos] = name;
+            values[insertPos] = value;
+            insertPos = (insertPos + 1) % names.length;
+            count++;
+            size += entrySize;
+        }
+
+        /**
+         * @return the index of the most recent entry with the given name and
+         *         value, or minus the index of the most recent entry with the
+         *         given name, or 0 if no entry has the given name
+         */
+        int find(String name, String value) {
+            int nameIndex = 0;
+            for (int i = 1; i <= count; i++) {
+                int slot = slot(i);
+                if (names[slot].equals(name)) {
+                    if (values[slot].equals(value)) {
+                        return i;
+                    }
+                    if (nameIndex == 0) {
+                        nameIndex = -i;
+                    }
+                }
+            }
+            return nameIndex;
+        }
+
+        private int slot(int index) {
+            int slot = insertPos - index;
+            if (slot < 0) {
+                slot += names.length;
+            }
+            return slot;
+        }
+
+        private void evict(int required) {
+            while (count > 0 && size + required > maxSize) {
+                int slot = slot(count);
+                size -= names[slot].length() + values[slot].length() +
+                        ENTRY_OVERHEAD;
+                names[slot] = null;
+                values[slot] = null;
+                count--;
+            }
+        }
+    }
+}
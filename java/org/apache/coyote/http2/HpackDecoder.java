@@ -0,0 +1,193 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http2;
+
+import org.apache.tomcat.util.buf.B2CConverter;
+import org.apache.tomcat.util.res.StringManager;
+
+/**
+ * Decodes HPACK (RFC 7541) header blocks received from the peer. One instance
+ * is used per connection since the dynamic table is connection state.
+ */
+class HpackDecoder {
+
+    private static final StringManager sm =
+            StringManager.getManager(Constants.Package);
+
+    /**
+     * Receives the decoded headers of a header block in order.
+     */
+    interface HeaderEmitter {
+        void emitHeader(String name, String value) throws Http2Exception;
+    }
+
+
+    private final Hpack.DynamicTable dynamicTable;
+    private final int maxTableSize;
+    private final StringBuilder stringBuilder = new StringBuilder();
+
+    private byte[] buf;
+    private int pos;
+    private int end;
+
+
+    /**
+     * @param maxTableSize  The maximum dynamic table size advertised to the
+     *                      peer via SETTINGS_HEADER_TABLE_SIZE
+     */
+    HpackDecoder(int maxTableSize) {
+        this.maxTableSize = maxTableSize;
+        this.dynamicTable = new Hpack.DynamicTable(maxTableSize);
+    }
+
+
+    /**
+     * Decode a complete header block.
+     *
+     * @param buf       The buffer holding the header block
+     * @param off       The offset of the header block
+     * @param len       The length of the header block
+     * @param emitter   The receiver of the decoded headers
+     *
+     * @throws Http2Exception if the header block is not valid. Since the
+     *         dynamic table is then in an unknown state, this is always a
+     *         connection error.
+     */
+    void decode(byte[] buf, int off, int len, HeaderEmitter emitter)
+            throws Http2Exception {
+        this.buf = buf;
+        this.pos = off;
+        this.end = off + len;
+        boolean sizeUpdateAllowed = true;
+        try {
+            while (pos < end) {
+                int b = buf[pos] & 0xFF;
+                if ((b & 0x80) != 0) {
+                    // Indexed header field
+                    int index = readInteger(7);
+                    emitter.emitHeader(getName(index), getValue(index));
+                    sizeUpdateAllowed = false;
+                } else if ((b & 0x40) != 0) {
+                    // Literal header field with incremental indexing
+                    int index = readInteger(6);
+                    String name = index == 0 ? readString() : getName(index);
+                    String value = readString();
+                    dynamicTable.add(name, value);
+                    emitter.emitHeader(name, value);
+                    sizeUpdateAllowed = false;
+                } else if ((b & 0x20) != 0) {
+                    // Dynamic table size update
+                    if (!sizeUpdateAllowed) {
+                        throw error("hpack.sizeUpdatePosition");
+                    }
+                    int size = readInteger(5);
+                    if (size > maxTableSize) {
+                        throw error("hpack.sizeUpdateTooLarge");
+                    }
+                    dynamicTable.setMaxSize(size);
+                } else {
+                    // Literal header field without indexing or never indexed
+                    int index = readInteger(4);
+                    String name = index == 0 ? readString() : getName(index);
+                    String value = readString();
+                    emitter.emitHeader(name, value);
+                    sizeUpdateAllowed = false;
+                }
+            }
+        } finally {
+            this.buf = null;
+        }
+    }
+
+
+    int getDynamicTableSize() {
+        return dynamicTable.getSize();
+    }
+
+
+    private String getName(int index) throws Http2Exception {
+        if (index > 0 && index <= Hpack.STATIC_TABLE_LENGTH) {
+            return Hpack.STATIC_TABLE[index - 1][0];
+        }
+        int dynamicIndex = index - Hpack.STATIC_TABLE_LENGTH;
+        if (index <= 0 || dynamicIndex > dynamicTable.getCount()) {
+            throw error("hpack.invalidIndex");
+        }
+        return dynamicTable.getName(dynamicIndex);
+    }
+
+
+    private String getValue(int index) {
+        // Only called after getName() has validated the index
+        if (index <= Hpack.STATIC_TABLE_LENGTH) {
+            return Hpack.STATIC_TABLE[index - 1][1];
+        }
+        return dynamicTable.getValue(index - Hpack.STATIC_TABLE_LENGTH);
+    }
+
+
+    private int readInteger(int prefixBits) throws Http2Exception {
+        int mask = (1 << prefixBits) - 1;
+        int value = buf[pos++] & mask;
+        if (value < mask) {
+            return value;
+        }
+        int shift = 0;
+        int b;
+        do {
+            if (pos >= end) {
+                throw error("hpack.truncated");
+            }
+            b = buf[pos++] & 0xFF;
+            long next = value + ((long) (b & 0x7F) << shift);
+            if (shift > 28 || next > Integer.MAX_VALUE) {
+                throw error("hpack.integerOverflow");
+            }
+            value = (int) next;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+
+    private String readString() throws Http2Exception {
+        if (pos >= end) {
+            throw error("hpack.truncated");
+        }
+        boolean huffman = (buf[pos] & 0x80) != 0;
+        int length = readInteger(7);
+        if (length > end - pos) {
+            throw error("hpack.truncated");
+        }
+        String result;
+        if (huffman) {
+            stringBuilder.setLength(0);
+            Hpack.huffmanDecode(buf, pos, length, stringBuilder);
+            result = stringBuilder.toString();
+        } else {
+            result = new String(buf, pos, length, B2CConverter.ISO_8859_1);
+        }
+        pos += length;
+        return result;
+    }
+
+
+    private static Http2Exception error(String key) {
+        return new Http2Exception(sm.getString(key), 0,
+                Constants.COMPRESSION_ERROR);
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http2;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Encodes header blocks sent to the peer using HPACK (RFC 7541). One instance
+ * is used per connection and callers must serialise access to it since the
+ * dynamic table is connection state and header blocks must be sent in the
+ * order they were encoded.
+ */
+class HpackEncoder {
+
+    /**
+     * Headers whose values rarely repeat. Adding them to the dynamic table
+     * would only evict more useful entries.
+     */
+    private static final Set<String> NOT_INDEXED = new HashSet<String>();
+
+    /**
+     * Maps a header name to the index of the first static table entry with
+     * that name. Entries with the same name are adjacent.
+     */
+    private static final Map<String,Integer> STATIC_NAMES =
+            new HashMap<String,Integer>();
+
+    static {
+        NOT_INDEXED.add("age");
+        NOT_INDEXED.add("content-length");
+        NOT_INDEXED.add("content-range");
+        NOT_INDEXED.add("date");
+        NOT_INDEXED.add("etag");
+        NOT_INDEXED.add("expires");
+        NOT_INDEXED.add("last-modified");
+        NOT_INDEXED.add("location");
+        NOT_INDEXED.add("set-cookie");
+
+        for (int i = Hpack.STATIC_TABLE_LENGTH; i > 0; i--) {
+            STATIC_NAMES.put(Hpack.STATIC_TABLE[i - 1][0], Integer.valueOf(i));
+        }
+    }
+
+
+    private final Hpack.DynamicTable dynamicTable =
+            new Hpack.DynamicTable(Constants.DEFAULT_HEADER_TABLE_SIZE);
+
+    private int pendingTableSize = -1;
+    private int pendingMinTableSize = -1;
+
+    private byte[] buf = new byte[256];
+    private int length;
+
+
+    /**
+     * Apply a new SETTINGS_HEADER_TABLE_SIZE received from the peer. The
+     * dynamic table never grows beyond the default size whatever the peer
+     * allows. The change is signalled at the start of the next header block.
+     */
+    void setMaxTableSize(int size) {
+        int newSize = Math.min(size, Constants.DEFAULT_HEADER_TABLE_SIZE);
+        if (pendingTableSize == -1) {
+            if (newSize == dynamicTable.getMaxSize()) {
+                return;
+            }
+            pendingMinTableSize = newSize;
+        } else {
+            pendingMinTableSize = Math.min(pendingMinTableSize, newSize);
+        }
+        pendingTableSize = newSize;
+    }
+
+
+    /**
+     * Start a new header block, discarding the previous one.
+     */
+    void startBlock() {
+        length = 0;
+        if (pendingTableSize != -1) {
+            if (pendingMinTableSize < pendingTableSize) {
+                writeInteger(0x20, 5, pendingMinTableSize);
+            }
+            writeInteger(0x20, 5, pendingTableSize);
+            dynamicTable.setMaxSize(pendingTableSize);
+            pendingTableSize = -1;
+            pendingMinTableSize = -1;
+        }
+    }
+
+
+    /**
+     * Add a header to the current block.
+     *
+     * @param name  The header name which must already be in lower case
+     * @param value The header value
+     */
+    void addHeader(String name, String value) {
+        int nameIndex = 0;
+        Integer staticIndex = STATIC_NAMES.get(name);
+        if (staticIndex != null) {
+            nameIndex = staticIndex.intValue();
+            for (int i = nameIndex; i <= Hpack.STATIC_TABLE_LENGTH &&
+                    Hpack.STATIC_TABLE[i - 1][0].equals(name); i++) {
+                if (Hpack.STATIC_TABLE[i - 1][1].equals(value)) {
+                    writeInteger(0x80, 7, i);
+                    return;
+                }
+            }
+        }
+        boolean index = !NOT_INDEXED.contains(name);
+        if (index) {
+            int dynamicIndex = dynamicTable.find(name, value);
+            if (dynamicIndex > 0) {
+                writeInteger(0x80, 7, Hpack.STATIC_TABLE_LENGTH + dynamicIndex);
+                return;
+            }
+            if (nameIndex == 0 && dynamicIndex < 0) {
+                nameIndex = Hpack.STATIC_TABLE_LENGTH - dynamicIndex;
+            }
+            writeInteger(0x40, 6, nameIndex);
+            dynamicTable.add(name, value);
+        } else {
+            writeInteger(0x00, 4, nameIndex);
+        }
+        if (nameIndex == 0) {
+            writeString(name);
+        }
+        writeString(value);
+    }
+
+
+    byte[] getBuffer() {
+        return buf;
+    }
+
+
+    int getLength() {
+        return length;
+    }
+
+
+    private void writeInteger(int flags, int prefixBits, int value) {
+        ensureCapacity(6);
+        int mask = (1 << prefixBits) - 1;
+        if (value < mask) {
+            buf[length++] = (byte) (flags | value);
+            return;
+        }
+        buf[length++] = (byte) (flags | mask);
+        value -= mask;
+        while (value >= 0x80) {
+            buf[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[length++] = (byte) value;
+    }
+
+
+    private void writeString(String s) {
+        int huffmanLength = Hpack.huffmanLength(s);
+        if (huffmanLength < s.length()) {
+            writeInteger(0x80, 7, huffmanLength);
+            ensureCapacity(huffmanLength);
+            length = Hpack.huffmanEncode(s, buf, length);
+        } else {
+            writeInteger(0x00, 7, s.length());
+            ensureCapacity(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                buf[length++] = (byte) s.charAt(i);
+            }
+        }
+    }
+
+
+    private void ensureCapacity(int required) {
+        if (length + required > buf.length) {
+            byte[] newBuf = new byte[Math.max(buf.length * 2, length + required)];
+            System.arraycopy(buf, 0, newBuf, 0, length);
+            buf = newBuf;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http2;
+
+import java.io.IOException;
+
+/**
+ * An HTTP/2 error detected while processing frames. A stream identifier of
+ * zero indicates a connection error that requires the connection to be closed
+ * after a GOAWAY frame has been sent. Any other stream identifier indicates a
+ * stream error that is handled by resetting that stream.
+ */
+public class Http2Exception extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int streamId;
+    private final int errorCode;
+
+
+    public Http2Exception(String message, int streamId, int errorCode) {
+        super(message);
+        this.streamId = streamId;
+        this.errorCode = errorCode;
+    }
+
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+
+    public boolean isConnectionError() {
+        return streamId == 0;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http2;
+
+import java.util.concurrent.Executor;
+
+import org.apache.coyote.Adapter;
+import org.apache.coyote.Request;
+import org.apache.coyote.RequestGroupInfo;
+import org.apache.coyote.http11.upgrade.servlet31.HttpUpgradeHandler;
+import org.apache.tomcat.util.collections.SynchronizedStack;
+import org.apache.tomcat.util.net.SocketWrapper;
+
+/**
+ * Configuration for HTTP/2 connections and the factory for the
+ * {@link HttpUpgradeHandler} that processes them. HTTP/2 is reached either by
+ * a client that sends the connection preface directly (prior knowledge) or by
+ * an HTTP/1.1 request that asks to upgrade to h2c.
+ */
+public class Http2Protocol {
+
+    private int maxConcurrentStreams = 100;
+    private int initialWindowSize = Constants.DEFAULT_WINDOW_SIZE;
+    private int maxHeaderSize = 8 * 1024;
+    private long keepAliveTimeout = 20000;
+    private long streamTimeout = 20000;
+    private int processorCache = 200;
+
+    private volatile RequestGroupInfo global = null;
+    private volatile SynchronizedStack<StreamProcessor> recycledProcessors =
+            new SynchronizedStack<StreamProcessor>(
+                    SynchronizedStack.DEFAULT_SIZE, processorCache);
+
+
+    /**
+     * The maximum number of streams a client may have open at the same time
+     * on one connection. Further streams are refused.
+     */
+    public int getMaxConcurrentStreams() {
+        return maxConcurrentStreams;
+    }
+    public void setMaxConcurrentStreams(int maxConcurrentStreams) {
+        this.maxConcurrentStreams = maxConcurrentStreams;
+    }
+
+
+    /**
+     * The flow control window advertised for each stream. This is also the
+     * most request body data that is buffered for a stream the application
+     * has not read yet.
+     */
+    public int getInitialWindowSize() {
+        return initialWindowSize;
+    }
+    public void setInitialWindowSize(int initialWindowSize) {
+        if (initialWindowSize < 1 || initialWindowSize > Constants.MAX_WINDOW_SIZE) {
+            throw new IllegalArgumentException();
+        }
+        this.initialWindowSize = initialWindowSize;
+    }
+
+
+    /**
+     * The maximum size of the decoded request headers of a stream, counted as
+     * defined for SETTINGS_MAX_HEADER_LIST_SIZE.
+     */
+    public int getMaxHeaderSize() {
+        return maxHeaderSize;
+    }
+    public void setMaxHeaderSize(int maxHeaderSize) {
+        this.maxHeaderSize = maxHeaderSize;
+    }
+
+
+    /**
+     * The time in milliseconds a connection without any open stream is kept
+     * open.
+     */
+    public long getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+    public void setKeepAliveTimeout(long keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+
+    /**
+     * The time in milliseconds a stream waits for the client, either for
+     * request body data or for flow control window to send the response.
+     * Zero or less means wait indefinitely.
+     */
+    public long getStreamTimeout() {
+        return streamTimeout;
+    }
+    public void setStreamTimeout(long streamTimeout) {
+        this.streamTimeout = streamTimeout;
+    }
+
+
+    /**
+     * The maximum number of idle stream processors kept for re-use.
+     */
+    public int getProcessorCache() {
+        return processorCache;
+    }
+    public void setProcessorCache(int processorCache) {
+        this.processorCache = processorCache;
+        this.recycledProcessors = new SynchronizedStack<StreamProcessor>(
+                SynchronizedStack.DEFAULT_SIZE, processorCache);
+    }
+
+
+    /**
+     * Set the statistics that the requests processed on HTTP/2 streams are
+     * added to.
+     */
+    public void setGlobal(RequestGroupInfo global) {
+        this.global = global;
+    }
+
+
+    /**
+     * Create the handler for a connection that is switching to HTTP/2.
+     *
+     * @param socketWrapper     The connection
+     * @param adapter           The adapter that streams are passed to
+     * @param executor          The executor that streams are processed on
+     * @param request           The HTTP/1.1 request. It must have the remote
+     *                          and local addresses populated. If it asked to
+     *                          upgrade to h2c, it becomes stream 1. Otherwise
+     *                          it is the pseudo request of the connection
+     *                          preface.
+     * @param upgrade           <code>true</code> if the request asked to
+     *                          upgrade to h2c
+     * @param leftover          Bytes read after the HTTP/1.1 request
+     *
+     * @return the handler to process the connection
+     */
+    public HttpUpgradeHandler createUpgradeHandler(SocketWrapper<?> socketWrapper,
+            Adapter adapter, Executor executor, Request request,
+            boolean upgrade, byte[] leftover) {
+        return new Http2UpgradeHandler(this, socketWrapper, adapter, executor,
+                request, upgrade, leftover);
+    }
+
+
+    StreamProcessor popProcessor(Adapter adapter) {
+        StreamProcessor processor = recycledProcessors.pop();
+        if (processor == null) {
+            processor = new StreamProcessor(adapter);
+            RequestGroupInfo global = this.global;
+            if (global != null) {
+                processor.getRequest().getRequestProcessor().setGlobalProcessor(global);
+            }
+        }
+        return processor;
+    }
+
+
+    void recycleProcessor(StreamProcessor processor) {
+        processor.recycle();
+        if (!recycledProcessors.push(processor)) {
+            processor.getRequest().getRequestProcessor().setGlobalProcessor(null);
+        }
+    }
+}
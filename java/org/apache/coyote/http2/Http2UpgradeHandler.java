@@ -0,0 +1,1295 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http2;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.coyote.Adapter;
+import org.apache.coyote.Request;
+import org.apache.coyote.http11.upgrade.AbstractServletInputStream;
+import org.apache.coyote.http11.upgrade.AbstractServletOutputStream;
+import org.apache.coyote.http11.upgrade.servlet31.HttpUpgradeHandler;
+import org.apache.coyote.http11.upgrade.servlet31.ReadListener;
+import org.apache.coyote.http11.upgrade.servlet31.WebConnection;
+import org.apache.coyote.http11.upgrade.servlet31.WriteListener;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.apache.tomcat.util.codec.binary.Base64;
+import org.apache.tomcat.util.http.MimeHeaders;
+import org.apache.tomcat.util.net.SocketWrapper;
+import org.apache.tomcat.util.res.StringManager;
+
+/**
+ * Processes an HTTP/2 connection (RFC 7540).
+ * <p>
+ * Frames are read without blocking by whichever container thread handles the
+ * read event for the connection. The request of each stream is processed on
+ * its own container thread by a {@link StreamProcessor}. The connection is
+ * written without blocking. Control frames, such as the acknowledgements of
+ * PING and SETTINGS and WINDOW_UPDATE, are queued and written as soon as the
+ * connection accepts them so that the thread reading the connection never
+ * waits for the client to read. The threads of the streams wait, without
+ * holding the write lock, until the queue is empty and the connection accepts
+ * more data before they write HEADERS and DATA. The HPACK encoder is only used
+ * under the write lock, immediately before the block is written, so header
+ * blocks reach the client in the order they were encoded.
+ */
+public class Http2UpgradeHandler
+        implements HttpUpgradeHandler, ReadListener, WriteListener {
+
+    private static final Log log = LogFactory.getLog(Http2UpgradeHandler.class);
+    private static final StringManager sm =
+            StringManager.getManager(Constants.Package);
+
+    private static final byte[] EMPTY = new byte[0];
+
+    // A client that keeps sending frames that must be acknowledged without
+    // reading the acknowledgements is not allowed to queue them indefinitely
+    private static final int MAX_QUEUED_CONTROL_FRAMES = 1024;
+
+    private static final HpackDecoder.HeaderEmitter DISCARD =
+            new HpackDecoder.HeaderEmitter() {
+        @Override
+        public void emitHeader(String name, String value) {
+            // NO-OP
+        }
+    };
+
+
+    private final Http2Protocol protocol;
+    private final SocketWrapper<?> socketWrapper;
+    private final Adapter adapter;
+    private final Executor executor;
+
+    private final String remoteAddr;
+    private final int remotePort;
+    private final String localAddr;
+    private final String localName;
+    private final int localPort;
+
+    private volatile WebConnection connection;
+    private AbstractServletInputStream in;
+    private AbstractServletOutputStream out;
+    private volatile boolean closed = false;
+
+    private final Map<Integer,Stream> streams =
+            new ConcurrentHashMap<Integer,Stream>();
+
+    // Only used before init()
+    private byte[] leftover;
+    private Stream upgradeStream = null;
+    private StreamProcessor upgradeProcessor = null;
+    private Http2Exception upgradeError = null;
+
+    // Read state, only used by the thread reading the connection
+    private final HpackDecoder decoder;
+    private byte[] readBuffer =
+            new byte[Constants.FRAME_HEADER_LENGTH + Constants.DEFAULT_MAX_FRAME_SIZE];
+    private int readLength = 0;
+    private int prefaceOffset;
+    private boolean settingsReceived = false;
+    private boolean localSettingsAcked = false;
+    private volatile boolean goAwayReceived = false;
+    private int maxStreamId = 0;
+    private final int connectionRecvWindowSize;
+    private int connectionRecvWindow = Constants.DEFAULT_WINDOW_SIZE;
+    private int headersStreamId = 0;
+    private boolean headersEndOfStream = false;
+    private byte[] headerBlock = null;
+    private int headerBlockLength = 0;
+
+    // Write state, guarded by writeLock
+    private final Object writeLock = new Object();
+    private final HpackEncoder encoder = new HpackEncoder();
+    private final byte[] writeBuffer =
+            new byte[Constants.FRAME_HEADER_LENGTH + Constants.DEFAULT_MAX_FRAME_SIZE];
+    private final Queue<byte[]> controlFrames = new ArrayDeque<byte[]>();
+    private boolean closeWhenWritten = false;
+
+    // Send flow control, guarded by windowLock
+    private final Object windowLock = new Object();
+    private long connectionSendWindow = Constants.DEFAULT_WINDOW_SIZE;
+    private int peerInitialWindowSize = Constants.DEFAULT_WINDOW_SIZE;
+
+
+    Http2UpgradeHandler(Http2Protocol protocol, SocketWrapper<?> socketWrapper,
+            Adapter adapter, Executor executor, Request request,
+            boolean upgrade, byte[] leftover) {
+        this.protocol = protocol;
+        this.socketWrapper = socketWrapper;
+        this.adapter = adapter;
+        this.executor = executor;
+        this.leftover = leftover;
+
+        remoteAddr = request.remoteAddr().toString();
+        remotePort = request.getRemotePort();
+        localAddr = request.localAddr().toString();
+        localName = request.localName().isNull() ?
+                localAddr : request.localName().toString();
+        localPort = request.getLocalPort();
+
+        decoder = new HpackDecoder(Constants.DEFAULT_HEADER_TABLE_SIZE);
+        connectionRecvWindowSize = Math.max(Constants.DEFAULT_WINDOW_SIZE,
+                protocol.getInitialWindowSize());
+
+        if (upgrade) {
+            // The client sends the whole preface after the 101 response
+            prefaceOffset = 0;
+            try {
+                createUpgradeStream(request);
+            } catch (Http2Exception e) {
+                upgradeError = e;
+            }
+        } else {
+            // The HTTP/1.1 processor has already read the part of the preface
+            // that looks like a request
+            prefaceOffset = Constants.CLIENT_PREFACE.length -
+                    Constants.CLIENT_PREFACE_TAIL_LENGTH;
+        }
+    }
+
+
+    /*
+     * Copy the HTTP/1.1 request that asked for the upgrade into stream 1
+     * which is half-closed since the request had no body.
+     */
+    private void createUpgradeStream(Request request) throws Http2Exception {
+        MimeHeaders headers = request.getMimeHeaders();
+        String settings = headers.getHeader("http2-settings");
+        if (settings != null) {
+            // HTTP2-Settings uses the URL safe alphabet which the decoder
+            // does not accept
+            byte[] payload;
+            try {
+                payload = Base64.decodeBase64(
+                        settings.replace('-', '+').replace('_', '/'));
+            } catch (IllegalArgumentException e) {
+                throw new Http2Exception(sm.getString(
+                        "upgradeHandler.invalidSettingsHeader"), 0,
+                        Constants.PROTOCOL_ERROR);
+            }
+            applySettings(payload, 0, payload.length);
+        }
+
+        StreamProcessor processor = protocol.popProcessor(adapter);
+        Stream stream = new Stream(1, processor.getRequest(),
+                peerInitialWindowSize, protocol.getInitialWindowSize(),
+                protocol.getMaxHeaderSize());
+        stream.emitHeader(":method", request.method().toString());
+        stream.emitHeader(":scheme", "http");
+        String path = request.requestURI().toString();
+        if (!request.queryString().isNull()) {
+            path = path + "?" + request.queryString().toString();
+        }
+        stream.emitHeader(":path", path);
+        for (int i = 0; i < headers.size(); i++) {
+            MessageBytes value = headers.getValue(i);
+            String name = headers.getName(i).toString().toLowerCase(Locale.ENGLISH);
+            if (value.isNull() || Stream.CONNECTION_HEADERS.contains(name) ||
+                    "http2-settings".equals(name) || "te".equals(name)) {
+                continue;
+            }
+            stream.emitHeader(name, value.toString());
+        }
+        try {
+            stream.headersComplete();
+        } catch (Http2Exception e) {
+            protocol.recycleProcessor(processor);
+            throw new Http2Exception(e.getMessage(), 0, Constants.PROTOCOL_ERROR);
+        }
+        stream.setRemoteClosed();
+        maxStreamId = 1;
+        upgradeStream = stream;
+        upgradeProcessor = processor;
+    }
+
+
+    // ------------------------------------------------------ HttpUpgradeHandler
+
+    @Override
+    public void init(WebConnection connection) {
+        this.connection = connection;
+        try {
+            in = connection.getInputStream();
+            out = connection.getOutputStream();
+            in.setReadListener(this);
+            out.setWriteListener(this);
+
+            writeSettings();
+            if (connectionRecvWindowSize > Constants.DEFAULT_WINDOW_SIZE) {
+                connectionRecvWindow = connectionRecvWindowSize;
+                writeWindowUpdate(0, connectionRecvWindowSize -
+                        Constants.DEFAULT_WINDOW_SIZE);
+            }
+            if (upgradeError != null) {
+                throw upgradeError;
+            }
+            if (upgradeStream != null) {
+                startStream(upgradeStream, upgradeProcessor);
+                upgradeStream = null;
+                upgradeProcessor = null;
+            } else {
+                updateTimeout();
+            }
+            if (leftover.length > 0) {
+                if (leftover.length > readBuffer.length) {
+                    readBuffer = new byte[leftover.length];
+                }
+                System.arraycopy(leftover, 0, readBuffer, 0, leftover.length);
+                readLength = leftover.length;
+                processReadBuffer();
+            }
+            leftover = null;
+        } catch (Http2Exception e) {
+            connectionError(e);
+        } catch (IOException e) {
+            if (log.isDebugEnabled()) {
+                log.debug(sm.getString("upgradeHandler.ioerror"), e);
+            }
+            closeConnection();
+        }
+    }
+
+
+    @Override
+    public void destroy() {
+        closed = true;
+        resetStreams();
+    }
+
+
+    // ------------------------------------------------------------ ReadListener
+
+    @Override
+    public void onDataAvailable() throws IOException {
+        try {
+            while (!closed && in.isReady()) {
+                int read = in.read(readBuffer, readLength,
+                        readBuffer.length - readLength);
+                if (read <= 0) {
+                    break;
+                }
+                readLength += read;
+                processReadBuffer();
+            }
+        } catch (Http2Exception e) {
+            connectionError(e);
+        } catch (IOException e) {
+            if (log.isDebugEnabled()) {
+                log.debug(sm.getString("upgradeHandler.ioerror"), e);
+            }
+            closeConnection();
+        }
+    }
+
+
+    @Override
+    public void onAllDataRead() throws IOException {
+        // NO-OP. An upgraded connection never finishes.
+    }
+
+
+    @Override
+    public void onError(Throwable throwable) {
+        if (log.isDebugEnabled()) {
+            log.debug(sm.getString("upgradeHandler.ioerror"), throwable);
+        }
+        closeConnection();
+    }
+
+
+    // ----------------------------------------------------------- WriteListener
+
+    @Override
+    public void onWritePossible() throws IOException {
+        synchronized (writeLock) {
+            if (!closed) {
+                try {
+                    flushControlFrames();
+                    if (closeWhenWritten && controlFrames.isEmpty() && out.isReady()) {
+                        closeConnection();
+                    }
+                } catch (IOException e) {
+                    if (log.isDebugEnabled()) {
+                        log.debug(sm.getString("upgradeHandler.ioerror"), e);
+                    }
+                }
+            }
+            // Wake the streams waiting to write
+            writeLock.notifyAll();
+        }
+    }
+
+
+    // ----------------------------------------------------------- Frame reading
+
+    private void processReadBuffer() throws IOException {
+        int pos = 0;
+        while (prefaceOffset < Constants.CLIENT_PREFACE.length && pos < readLength) {
+            if (readBuffer[pos++] != Constants.CLIENT_PREFACE[prefaceOffset++]) {
+                throw new Http2Exception(sm.getString("upgradeHandler.invalidPreface"),
+                        0, Constants.PROTOCOL_ERROR);
+            }
+        }
+        while (!closed && readLength - pos >= Constants.FRAME_HEADER_LENGTH) {
+            int length = ((readBuffer[pos] & 0xFF) << 16) +
+                    ((readBuffer[pos + 1] & 0xFF) << 8) + (readBuffer[pos + 2] & 0xFF);
+            if (length > Constants.DEFAULT_MAX_FRAME_SIZE) {
+                throw new Http2Exception(sm.getString("upgradeHandler.frameTooLarge",
+                        Integer.valueOf(length)), 0, Constants.FRAME_SIZE_ERROR);
+            }
+            if (readLength - pos - Constants.FRAME_HEADER_LENGTH < length) {
+                break;
+            }
+            int type = readBuffer[pos + 3] & 0xFF;
+            int flags = readBuffer[pos + 4] & 0xFF;
+            int streamId = readInt31(readBuffer, pos + 5);
+            try {
+                processFrame(type, flags, streamId,
+                        pos + Constants.FRAME_HEADER_LENGTH, length);
+            } catch (Http2Exception e) {
+                if (e.isConnectionError()) {
+                    throw e;
+                }
+                streamError(e);
+            }
+            pos += Constants.FRAME_HEADER_LENGTH + length;
+        }
+        if (pos > 0) {
+            System.arraycopy(readBuffer, pos, readBuffer, 0, readLength - pos);
+            readLength -= pos;
+        }
+    }
+
+
+    private void processFrame(int type, int flags, int streamId, int off,
+            int length) throws IOException {
+        if (log.isDebugEnabled()) {
+            log.debug(sm.getString("upgradeHandler.frame", Integer.valueOf(type),
+                    Integer.valueOf(flags), Integer.valueOf(streamId),
+                    Integer.valueOf(length)));
+        }
+        if (headersStreamId != 0 && (type != Constants.FRAME_CONTINUATION ||
+                streamId != headersStreamId)) {
+            throw connectionError("upgradeHandler.continuationExpected");
+        }
+        if (!settingsReceived && type != Constants.FRAME_SETTINGS) {
+            throw connectionError("upgradeHandler.settingsExpected");
+        }
+        switch (type) {
+        case Constants.FRAME_DATA:
+            processData(flags, streamId, off, length);
+            break;
+        case Constants.FRAME_HEADERS:
+            processHeaders(flags, streamId, off, length);
+            break;
+        case Constants.FRAME_PRIORITY:
+            // Priorities are not used
+            if (streamId == 0) {
+                throw connectionError("upgradeHandler.streamIdRequired");
+            }
+            if (length != 5) {
+                throw new Http2Exception(sm.getString("upgradeHandler.frameSize"),
+                        streamId, Constants.FRAME_SIZE_ERROR);
+            }
+            break;
+        case Constants.FRAME_RST_STREAM:
+            processRstStream(streamId, length);
+            break;
+        case Constants.FRAME_SETTINGS:
+            processSettings(flags, streamId, off, length);
+            break;
+        case Constants.FRAME_PUSH_PROMISE:
+            throw connectionError("upgradeHandler.pushPromise");
+        case Constants.FRAME_PING:
+            if (streamId != 0) {
+                throw connectionError("upgradeHandler.streamIdZero");
+            }
+            if (length != 8) {
+                throw new Http2Exception(sm.getString("upgradeHandler.frameSize"),
+                        0, Constants.FRAME_SIZE_ERROR);
+            }
+            if ((flags & Constants.FLAG_ACK) == 0) {
+                writeControlFrame(Constants.FRAME_PING, Constants.FLAG_ACK, 0,
+                        readBuffer, off, length);
+            }
+            break;
+        case Constants.FRAME_GOAWAY:
+            if (streamId != 0) {
+                throw connectionError("upgradeHandler.streamIdZero");
+            }
+            goAwayReceived = true;
+            if (streams.isEmpty()) {
+                closeConnectionWhenWritten();
+            }
+            break;
+        case Constants.FRAME_WINDOW_UPDATE:
+            processWindowUpdate(streamId, off, length);
+            break;
+        case Constants.FRAME_CONTINUATION:
+            processContinuation(flags, streamId, off, length);
+            break;
+        default:
+            // Unknown frame types are ignored
+            break;
+        }
+    }
+
+
+    private void processData(int flags, int streamId, int off, int length)
+            throws IOException {
+        if (streamId == 0) {
+            throw connectionError("upgradeHandler.streamIdRequired");
+        }
+        int dataOff = off;
+        int dataLength = length;
+        if ((flags & Constants.FLAG_PADDED) != 0) {
+            int padding = length > 0 ? readBuffer[off] & 0xFF : length;
+            if (padding >= length) {
+                throw connectionError("upgradeHandler.padding");
+            }
+            dataOff++;
+            dataLength -= padding + 1;
+        }
+
+        // Data for any stream counts against the connection window
+        if (length > connectionRecvWindow) {
+            throw new Http2Exception(sm.getString("upgradeHandler.windowExceeded"),
+                    0, Constants.FLOW_CONTROL_ERROR);
+        }
+        connectionRecvWindow -= length;
+        if (connectionRecvWindow < connectionRecvWindowSize / 2) {
+            int increment = connectionRecvWindowSize - connectionRecvWindow;
+            connectionRecvWindow += increment;
+            writeWindowUpdate(0, increment);
+        }
+
+        Stream stream = streams.get(Integer.valueOf(streamId));
+        if (stream == null) {
+            if (streamId > maxStreamId) {
+                throw connectionError("upgradeHandler.idleStream");
+            }
+            // The stream has completed. Ignore any data still in flight.
+            return;
+        }
+        int increment = stream.receiveData(length, readBuffer, dataOff, dataLength,
+                (flags & Constants.FLAG_END_STREAM) != 0);
+        if (increment > 0) {
+            writeWindowUpdate(streamId, increment);
+        }
+    }
+
+
+    private void processHeaders(int flags, int streamId, int off, int length)
+            throws IOException {
+        if (streamId == 0) {
+            throw connectionError("upgradeHandler.streamIdRequired");
+        }
+        int blockOff = off;
+        int blockLength = length;
+        int padding = 0;
+        if ((flags & Constants.FLAG_PADDED) != 0) {
+            if (length < 1) {
+                throw connectionError("upgradeHandler.padding");
+            }
+            padding = readBuffer[off] & 0xFF;
+            blockOff++;
+            blockLength--;
+        }
+        if ((flags & Constants.FLAG_PRIORITY) != 0) {
+            if (blockLength < 5) {
+                throw new Http2Exception(sm.getString("upgradeHandler.frameSize"),
+                        0, Constants.FRAME_SIZE_ERROR);
+            }
+            blockOff += 5;
+            blockLength -= 5;
+        }
+        if (padding > blockLength) {
+            throw connectionError("upgradeHandler.padding");
+        }
+        blockLength -= padding;
+
+        boolean endOfStream = (flags & Constants.FLAG_END_STREAM) != 0;
+        if ((flags & Constants.FLAG_END_HEADERS) != 0) {
+            processHeaderBlock(streamId, readBuffer, blockOff, blockLength,
+                    endOfStream);
+        } else {
+            headersStreamId = streamId;
+            headersEndOfStream = endOfStream;
+            headerBlockLength = 0;
+            appendHeaderBlock(blockOff, blockLength);
+        }
+    }
+
+
+    private void processContinuation(int flags, int streamId, int off, int length)
+            throws IOException {
+        if (headersStreamId == 0) {
+            throw connectionError("upgradeHandler.unexpectedContinuation");
+        }
+        appendHeaderBlock(off, length);
+        if ((flags & Constants.FLAG_END_HEADERS) != 0) {
+            headersStreamId = 0;
+            processHeaderBlock(streamId, headerBlock, 0, headerBlockLength,
+                    headersEndOfStream);
+        }
+    }
+
+
+    private void appendHeaderBlock(int off, int length) throws Http2Exception {
+        int limit = Math.max(Constants.DEFAULT_MAX_FRAME_SIZE,
+                2 * protocol.getMaxHeaderSize());
+        int required = headerBlockLength + length;
+        if (required > limit) {
+            // The block can't be skipped without decoding it so the whole
+            // connection has to go
+            throw new Http2Exception(sm.getString("upgradeHandler.headerBlockTooLarge",
+                    Integer.valueOf(limit)), 0, Constants.ENHANCE_YOUR_CALM);
+        }
+        if (headerBlock == null || headerBlock.length < required) {
+            byte[] newBlock = new byte[Math.max(required, 2 * length)];
+            if (headerBlockLength > 0) {
+                System.arraycopy(headerBlock, 0, newBlock, 0, headerBlockLength);
+            }
+            headerBlock = newBlock;
+        }
+        System.arraycopy(readBuffer, off, headerBlock, headerBlockLength, length);
+        headerBlockLength = required;
+    }
+
+
+    private void processHeaderBlock(int streamId, byte[] block, int off,
+            int length, boolean endOfStream) throws IOException {
+        if (streamId <= maxStreamId) {
+            // Trailers, or the headers of a stream that has already completed.
+            // The block still has to be decoded to keep the dynamic table in
+            // step with the client.
+            decoder.decode(block, off, length, DISCARD);
+            Stream stream = streams.get(Integer.valueOf(streamId));
+            if (stream == null) {
+                return;
+            }
+            if (!endOfStream || stream.isRemoteClosed()) {
+                throw new Http2Exception(sm.getString("upgradeHandler.trailers",
+                        Integer.valueOf(streamId)), streamId, Constants.PROTOCOL_ERROR);
+            }
+            stream.setRemoteClosed();
+            return;
+        }
+        if ((streamId & 1) == 0) {
+            throw connectionError("upgradeHandler.evenStreamId");
+        }
+        maxStreamId = streamId;
+
+        if (streams.size() >= protocol.getMaxConcurrentStreams()) {
+            decoder.decode(block, off, length, DISCARD);
+            throw new Http2Exception(sm.getString("upgradeHandler.tooManyStreams",
+                    Integer.valueOf(streamId)), streamId, Constants.REFUSED_STREAM);
+        }
+
+        int recvWindowSize = protocol.getInitialWindowSize();
+        if (!localSettingsAcked) {
+            // The client may still be using the default window
+            recvWindowSize = Math.max(recvWindowSize, Constants.DEFAULT_WINDOW_SIZE);
+        }
+        long sendWindow;
+        synchronized (windowLock) {
+            sendWindow = peerInitialWindowSize;
+        }
+        StreamProcessor processor = protocol.popProcessor(adapter);
+        Stream stream = new Stream(streamId, processor.getRequest(), sendWindow,
+                recvWindowSize, protocol.getMaxHeaderSize());
+        try {
+            decoder.decode(block, off, length, stream);
+            stream.headersComplete();
+        } catch (Http2Exception e) {
+            protocol.recycleProcessor(processor);
+            throw e;
+        }
+        if (endOfStream) {
+            stream.setRemoteClosed();
+        }
+        startStream(stream, processor);
+    }
+
+
+    private void startStream(Stream stream, StreamProcessor processor)
+            throws Http2Exception {
+        Integer key = Integer.valueOf(stream.getId());
+        processor.setStream(this, stream);
+        processor.getRequest().setStartTime(System.currentTimeMillis());
+        synchronized (streams) {
+            streams.put(key, stream);
+            updateTimeout();
+        }
+        try {
+            executor.execute(processor);
+        } catch (RejectedExecutionException e) {
+            synchronized (streams) {
+                streams.remove(key);
+                updateTimeout();
+            }
+            protocol.recycleProcessor(processor);
+            throw new Http2Exception(sm.getString("upgradeHandler.rejected",
+                    key), stream.getId(), Constants.REFUSED_STREAM);
+        }
+    }
+
+
+    private void processRstStream(int streamId, int length) throws Http2Exception {
+        if (length != 4) {
+            throw new Http2Exception(sm.getString("upgradeHandler.frameSize"),
+                    0, Constants.FRAME_SIZE_ERROR);
+        }
+        if (streamId == 0 || streamId > maxStreamId) {
+            throw connectionError("upgradeHandler.idleStream");
+        }
+        Stream stream = streams.get(Integer.valueOf(streamId));
+        if (stream != null) {
+            stream.reset();
+            synchronized (windowLock) {
+                windowLock.notifyAll();
+            }
+        }
+    }
+
+
+    private void processSettings(int flags, int streamId, int off, int length)
+            throws IOException {
+        if (streamId != 0) {
+            throw connectionError("upgradeHandler.streamIdZero");
+        }
+        if ((flags & Constants.FLAG_ACK) != 0) {
+            if (length != 0) {
+                throw new Http2Exception(sm.getString("upgradeHandler.frameSize"),
+                        0, Constants.FRAME_SIZE_ERROR);
+            }
+            localSettingsAcked = true;
+            return;
+        }
+        applySettings(readBuffer, off, length);
+        settingsReceived = true;
+        writeControlFrame(Constants.FRAME_SETTINGS, Constants.FLAG_ACK, 0, EMPTY, 0, 0);
+    }
+
+
+    private void applySettings(byte[] buf, int off, int length)
+            throws Http2Exception {
+        if (length % 6 != 0) {
+            throw new Http2Exception(sm.getString("upgradeHandler.frameSize"),
+                    0, Constants.FRAME_SIZE_ERROR);
+        }
+        for (int pos = off; pos < off + length; pos += 6) {
+            int id = ((buf[pos] & 0xFF) << 8) + (buf[pos + 1] & 0xFF);
+            long value = readInt32(buf, pos + 2);
+            switch (id) {
+            case Constants.SETTINGS_HEADER_TABLE_SIZE:
+                synchronized (writeLock) {
+                    encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                }
+                break;
+            case Constants.SETTINGS_ENABLE_PUSH:
+                if (value > 1) {
+                    throw connectionError("upgradeHandler.settingValue");
+                }
+                break;
+            case Constants.SETTINGS_INITIAL_WINDOW_SIZE:
+                if (value > Constants.MAX_WINDOW_SIZE) {
+                    throw new Http2Exception(sm.getString("upgradeHandler.settingValue"),
+                            0, Constants.FLOW_CONTROL_ERROR);
+                }
+                setPeerInitialWindowSize((int) value);
+                break;
+            case Constants.SETTINGS_MAX_FRAME_SIZE:
+                // Frames are never sent larger than the default so the value
+                // only needs to be valid
+                if (value < Constants.DEFAULT_MAX_FRAME_SIZE ||
+                        value > Constants.MAX_FRAME_SIZE_LIMIT) {
+                    throw connectionError("upgradeHandler.settingValue");
+                }
+                break;
+            default:
+                // Server push is never used so the concurrent stream limit of
+                // the client does not apply. Others are advisory or unknown.
+                break;
+            }
+        }
+    }
+
+
+    private void setPeerInitialWindowSize(int size) throws Http2Exception {
+        synchronized (windowLock) {
+            int delta = size - peerInitialWindowSize;
+            peerInitialWindowSize = size;
+            for (Stream stream : streams.values()) {
+                stream.sendWindow += delta;
+                if (stream.sendWindow > Constants.MAX_WINDOW_SIZE) {
+                    throw new Http2Exception(sm.getString("upgradeHandler.windowOverflow"),
+                            0, Constants.FLOW_CONTROL_ERROR);
+                }
+            }
+            windowLock.notifyAll();
+        }
+    }
+
+
+    private void processWindowUpdate(int streamId, int off, int length)
+            throws Http2Exception {
+        if (length != 4) {
+            throw new Http2Exception(sm.getString("upgradeHandler.frameSize"),
+                    0, Constants.FRAME_SIZE_ERROR);
+        }
+        int increment = readInt31(readBuffer, off);
+        if (increment == 0) {
+            throw new Http2Exception(sm.getString("upgradeHandler.zeroIncrement"),
+                    streamId, Constants.PROTOCOL_ERROR);
+        }
+        if (streamId == 0) {
+            synchronized (windowLock) {
+                connectionSendWindow += increment;
+                if (connectionSendWindow > Constants.MAX_WINDOW_SIZE) {
+                    throw new Http2Exception(sm.getString("upgradeHandler.windowOverflow"),
+                            0, Constants.FLOW_CONTROL_ERROR);
+                }
+                windowLock.notifyAll();
+            }
+            return;
+        }
+        Stream stream = streams.get(Integer.valueOf(streamId));
+        if (stream == null) {
+            if (streamId > maxStreamId) {
+                throw connectionError("upgradeHandler.idleStream");
+            }
+            return;
+        }
+        synchronized (windowLock) {
+            stream.sendWindow += increment;
+            if (stream.sendWindow > Constants.MAX_WINDOW_SIZE) {
+                throw new Http2Exception(sm.getString("upgradeHandler.windowOverflow"),
+                        streamId, Constants.FLOW_CONTROL_ERROR);
+            }
+            windowLock.notifyAll();
+        }
+    }
+
+
+    // ----------------------------------------------------------- Frame writing
+
+    private void writeSettings() throws IOException {
+        byte[] payload = new byte[18];
+        int pos = putSetting(payload, 0, Constants.SETTINGS_MAX_CONCURRENT_STREAMS,
+                protocol.getMaxConcurrentStreams());
+        pos = putSetting(payload, pos, Constants.SETTINGS_MAX_HEADER_LIST_SIZE,
+                protocol.getMaxHeaderSize());
+        if (protocol.getInitialWindowSize() != Constants.DEFAULT_WINDOW_SIZE) {
+            pos = putSetting(payload, pos, Constants.SETTINGS_INITIAL_WINDOW_SIZE,
+                    protocol.getInitialWindowSize());
+        }
+        writeControlFrame(Constants.FRAME_SETTINGS, 0, 0, payload, 0, pos);
+    }
+
+
+    private static int putSetting(byte[] payload, int pos, int id, int value) {
+        payload[pos++] = (byte) (id >>> 8);
+        payload[pos++] = (byte) id;
+        payload[pos++] = (byte) (value >>> 24);
+        payload[pos++] = (byte) (value >>> 16);
+        payload[pos++] = (byte) (value >>> 8);
+        payload[pos++] = (byte) value;
+        return pos;
+    }
+
+
+    void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, increment);
+        writeControlFrame(Constants.FRAME_WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+    }
+
+
+    private void writeRstStream(int streamId, int errorCode) throws IOException {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, errorCode);
+        writeControlFrame(Constants.FRAME_RST_STREAM, 0, streamId, payload, 0, 4);
+    }
+
+
+    /**
+     * Send the response headers of a stream.
+     *
+     * @param stream        The stream
+     * @param status        The response status
+     * @param headers       The response headers, or <code>null</code> if there
+     *                      are none. Connection specific headers are skipped.
+     * @param endOfStream   Is there no response body?
+     *
+     * @throws IOException if the headers could not be written
+     */
+    void writeHeaders(Stream stream, int status, MimeHeaders headers,
+            boolean endOfStream) throws IOException {
+        synchronized (writeLock) {
+            awaitWritable(stream);
+            encoder.startBlock();
+            encoder.addHeader(":status", Integer.toString(status));
+            if (headers != null) {
+                for (int i = 0; i < headers.size(); i++) {
+                    MessageBytes value = headers.getValue(i);
+                    if (value.isNull()) {
+                        continue;
+                    }
+                    String name = headers.getName(i).toString().toLowerCase(Locale.ENGLISH);
+                    if (!Stream.CONNECTION_HEADERS.contains(name)) {
+                        encoder.addHeader(name, value.toString());
+                    }
+                }
+            }
+            byte[] block = encoder.getBuffer();
+            int remaining = encoder.getLength();
+            // The HEADERS frame and any CONTINUATION frames are written at
+            // once as no other frame may be sent between them
+            int frames = Math.max(1, (remaining + Constants.DEFAULT_MAX_FRAME_SIZE - 1) /
+                    Constants.DEFAULT_MAX_FRAME_SIZE);
+            int size = remaining + frames * Constants.FRAME_HEADER_LENGTH;
+            byte[] buf = size <= writeBuffer.length ? writeBuffer : new byte[size];
+            int pos = 0;
+            int off = 0;
+            int type = Constants.FRAME_HEADERS;
+            do {
+                int length = Math.min(remaining, Constants.DEFAULT_MAX_FRAME_SIZE);
+                int flags = 0;
+                if (length == remaining) {
+                    flags |= Constants.FLAG_END_HEADERS;
+                }
+                if (endOfStream && type == Constants.FRAME_HEADERS) {
+                    flags |= Constants.FLAG_END_STREAM;
+                }
+                putFrameHeader(buf, pos, length, type, flags, stream.getId());
+                pos += Constants.FRAME_HEADER_LENGTH;
+                System.arraycopy(block, off, buf, pos, length);
+                pos += length;
+                off += length;
+                remaining -= length;
+                type = Constants.FRAME_CONTINUATION;
+            } while (remaining > 0);
+            write(buf, 0, pos);
+            if (endOfStream) {
+                stream.setLocalClosed();
+            }
+        }
+    }
+
+
+    /**
+     * Send response body data for a stream, waiting for flow control window
+     * as necessary.
+     *
+     * @param stream        The stream
+     * @param b             The data
+     * @param off           The offset of the data
+     * @param len           The length of the data. If zero, a single empty
+     *                      frame is sent.
+     * @param endOfStream   Is this the end of the response body?
+     *
+     * @throws IOException if the data could not be written
+     */
+    void writeData(Stream stream, byte[] b, int off, int len,
+            boolean endOfStream) throws IOException {
+        do {
+            int length = 0;
+            if (len > 0) {
+                length = reserveWindow(stream,
+                        Math.min(len, Constants.DEFAULT_MAX_FRAME_SIZE));
+            }
+            boolean last = endOfStream && length == len;
+            synchronized (writeLock) {
+                awaitWritable(stream);
+                putFrameHeader(writeBuffer, 0, length, Constants.FRAME_DATA,
+                        last ? Constants.FLAG_END_STREAM : 0, stream.getId());
+                if (length > 0) {
+                    System.arraycopy(b, off, writeBuffer,
+                            Constants.FRAME_HEADER_LENGTH, length);
+                }
+                write(writeBuffer, 0, Constants.FRAME_HEADER_LENGTH + length);
+                if (last) {
+                    stream.setLocalClosed();
+                }
+            }
+            off += length;
+            len -= length;
+        } while (len > 0);
+    }
+
+
+    private int reserveWindow(Stream stream, int wanted) throws IOException {
+        long timeout = protocol.getStreamTimeout();
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (windowLock) {
+            while (true) {
+                if (closed || stream.isReset()) {
+                    throw new IOException(sm.getString("stream.reset",
+                            Integer.valueOf(stream.getId())));
+                }
+                long available = Math.min(connectionSendWindow, stream.sendWindow);
+                if (available > 0) {
+                    int reserved = (int) Math.min(available, wanted);
+                    connectionSendWindow -= reserved;
+                    stream.sendWindow -= reserved;
+                    return reserved;
+                }
+                try {
+                    if (timeout > 0) {
+                        long wait = deadline - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            throw new SocketTimeoutException(sm.getString(
+                                    "upgradeHandler.windowTimeout",
+                                    Integer.valueOf(stream.getId())));
+                        }
+                        windowLock.wait(wait);
+                    } else {
+                        windowLock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+
+    /*
+     * Control frames are never written by a thread that has to wait for the
+     * client to read. They are queued and written ahead of HEADERS and DATA as
+     * soon as the connection accepts them.
+     */
+    private void writeControlFrame(int type, int flags, int streamId,
+            byte[] payload, int off, int length) throws IOException {
+        synchronized (writeLock) {
+            if (closed) {
+                throw new IOException(sm.getString("upgradeHandler.closed"));
+            }
+            if (controlFrames.size() >= MAX_QUEUED_CONTROL_FRAMES) {
+                closeConnection();
+                throw new IOException(sm.getString("upgradeHandler.controlQueueFull",
+                        Integer.valueOf(MAX_QUEUED_CONTROL_FRAMES)));
+            }
+            byte[] frame = new byte[Constants.FRAME_HEADER_LENGTH + length];
+            putFrameHeader(frame, 0, length, type, flags, streamId);
+            if (length > 0) {
+                System.arraycopy(payload, off, frame, Constants.FRAME_HEADER_LENGTH, length);
+            }
+            controlFrames.add(frame);
+            flushControlFrames();
+        }
+    }
+
+
+    /*
+     * Must hold writeLock. Writes as many of the queued control frames as the
+     * connection accepts without blocking. If any remain, onWritePossible()
+     * is called once the connection accepts more data.
+     */
+    private void flushControlFrames() throws IOException {
+        while (!controlFrames.isEmpty() && out.isReady()) {
+            byte[] frame = controlFrames.poll();
+            write(frame, 0, frame.length);
+        }
+    }
+
+
+    /*
+     * Must hold writeLock, which is released while waiting. On return no
+     * control frames are queued and the connection accepts the next write
+     * without blocking.
+     */
+    private void awaitWritable(Stream stream) throws IOException {
+        long timeout = protocol.getStreamTimeout();
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            if (closed) {
+                throw new IOException(sm.getString("upgradeHandler.closed"));
+            }
+            if (stream.isReset()) {
+                throw new IOException(sm.getString("stream.reset",
+                        Integer.valueOf(stream.getId())));
+            }
+            flushControlFrames();
+            if (controlFrames.isEmpty() && out.isReady()) {
+                return;
+            }
+            try {
+                if (timeout > 0) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        throw new SocketTimeoutException(sm.getString(
+                                "upgradeHandler.writeTimeout",
+                                Integer.valueOf(stream.getId())));
+                    }
+                    writeLock.wait(wait);
+                } else {
+                    writeLock.wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+
+    /*
+     * Must hold writeLock and the connection must accept the write. The
+     * stream is non-blocking so it keeps whatever the socket does not accept
+     * and writes it once the socket is writable again.
+     */
+    private void write(byte[] b, int off, int len) throws IOException {
+        try {
+            out.write(b, off, len);
+        } catch (IOException e) {
+            closeConnection();
+            throw e;
+        }
+    }
+
+
+    // ------------------------------------------------------- Stream life cycle
+
+    /**
+     * Reset a stream because of an error while processing it.
+     */
+    void resetStream(Stream stream, int errorCode) {
+        if (stream.isReset()) {
+            return;
+        }
+        try {
+            writeRstStream(stream.getId(), errorCode);
+        } catch (IOException e) {
+            if (log.isDebugEnabled()) {
+                log.debug(sm.getString("upgradeHandler.ioerror"), e);
+            }
+        }
+        stream.reset();
+        synchronized (windowLock) {
+            windowLock.notifyAll();
+        }
+    }
+
+
+    /**
+     * Called by the processor of a stream once the response is complete. The
+     * processor is recycled.
+     */
+    void streamFinished(Stream stream, StreamProcessor processor) {
+        if (!stream.isReset() && !closed) {
+            try {
+                if (!stream.isLocalClosed()) {
+                    // The response could not be completed
+                    writeRstStream(stream.getId(), Constants.INTERNAL_ERROR);
+                } else if (!stream.isRemoteClosed()) {
+                    // The request body is no longer needed
+                    writeRstStream(stream.getId(), Constants.NO_ERROR);
+                }
+            } catch (IOException e) {
+                if (log.isDebugEnabled()) {
+                    log.debug(sm.getString("upgradeHandler.ioerror"), e);
+                }
+            }
+        }
+        // Discard any request body data that is still in flight
+        stream.reset();
+        boolean idle;
+        synchronized (streams) {
+            streams.remove(Integer.valueOf(stream.getId()));
+            idle = streams.isEmpty();
+            updateTimeout();
+        }
+        protocol.recycleProcessor(processor);
+        if (idle && goAwayReceived) {
+            closeConnectionWhenWritten();
+        }
+    }
+
+
+    /*
+     * Must hold the lock on streams. While streams are open the connection
+     * must not time out, even if nothing is read for a long time.
+     */
+    private void updateTimeout() {
+        socketWrapper.access();
+        if (streams.isEmpty()) {
+            socketWrapper.setTimeout(protocol.getKeepAliveTimeout());
+        } else {
+            socketWrapper.setTimeout(-1);
+        }
+    }
+
+
+    private void streamError(Http2Exception e) throws IOException {
+        if (log.isDebugEnabled()) {
+            log.debug(sm.getString("upgradeHandler.streamError",
+                    Integer.valueOf(e.getStreamId())), e);
+        }
+        Stream stream = streams.get(Integer.valueOf(e.getStreamId()));
+        if (stream != null) {
+            resetStream(stream, e.getErrorCode());
+        } else {
+            writeRstStream(e.getStreamId(), e.getErrorCode());
+        }
+    }
+
+
+    private void connectionError(Http2Exception e) {
+        if (log.isDebugEnabled()) {
+            log.debug(sm.getString("upgradeHandler.connectionError"), e);
+        }
+        if (!closed) {
+            byte[] payload = new byte[8];
+            putInt(payload, 0, maxStreamId);
+            putInt(payload, 4, e.getErrorCode());
+            try {
+                // Only sent if the connection accepts it before it is closed
+                writeControlFrame(Constants.FRAME_GOAWAY, 0, 0, payload, 0, 8);
+            } catch (IOException ioe) {
+                // Closing anyway
+            }
+        }
+        closeConnection();
+    }
+
+
+    /*
+     * The client has asked for the connection to be closed once the open
+     * streams are complete. What has already been written for them must still
+     * reach the client.
+     */
+    private void closeConnectionWhenWritten() {
+        synchronized (writeLock) {
+            if (controlFrames.isEmpty() && out.isReady()) {
+                closeConnection();
+            } else {
+                closeWhenWritten = true;
+            }
+        }
+    }
+
+
+    private void closeConnection() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        resetStreams();
+        try {
+            connection.close();
+        } catch (Exception e) {
+            if (log.isDebugEnabled()) {
+                log.debug(sm.getString("upgradeHandler.ioerror"), e);
+            }
+        }
+    }
+
+
+    private void resetStreams() {
+        for (Stream stream : streams.values()) {
+            stream.reset();
+        }
+        synchronized (windowLock) {
+            windowLock.notifyAll();
+        }
+        synchronized (writeLock) {
+            writeLock.notifyAll();
+        }
+    }
+
+
+    // ----------------------------------------------------------------- Getters
+
+    String getRemoteAddr() {
+        return remoteAddr;
+    }
+
+
+    int getRemotePort() {
+        return remotePort;
+    }
+
+
+    String getLocalAddr() {
+        return localAddr;
+    }
+
+
+    String getLocalName() {
+        return localName;
+    }
+
+
+    int getLocalPort() {
+        return localPort;
+    }
+
+
+    long getStreamTimeout() {
+        return protocol.getStreamTimeout();
+    }
+
+
+    // ----------------------------------------------------------------- Helpers
+
+    private static Http2Exception connectionError(String key) {
+        return new Http2Exception(sm.getString(key), 0, Constants.PROTOCOL_ERROR);
+    }
+
+
+    private static int readInt31(byte[] buf, int pos) {
+        return ((buf[pos] & 0x7F) << 24) + ((buf[pos + 1] & 0xFF) << 16) +
+                ((buf[pos + 2] & 0xFF) << 8) + (buf[pos + 3] & 0xFF);
+    }
+
+
+    private static long readInt32(byte[] buf, int pos) {
+        return ((long) (buf[pos] & 0xFF) << 24) + ((buf[pos + 1] & 0xFF) << 16) +
+                ((buf[pos + 2] & 0xFF) << 8) + (buf[pos + 3] & 0xFF);
+    }
+
+
+    private static void putFrameHeader(byte[] buf, int pos, int length, int type,
+            int flags, int streamId) {
+        buf[pos] = (byte) (length >>> 16);
+        buf[pos + 1] = (byte) (length >>> 8);
+        buf[pos + 2] = (byte) length;
+        buf[pos + 3] = (byte) type;
+        buf[pos + 4] = (byte) flags;
+        putInt(buf, pos + 5, streamId);
+    }
+
+
+    private static void putInt(byte[] buf, int pos, int value) {
+        buf[pos] = (byte) (value >>> 24);
+        buf[pos + 1] = (byte) (value >>> 16);
+        buf[pos + 2] = (byte) (value >>> 8);
+        buf[pos + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http2;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.coyote.Request;
+import org.apache.tomcat.util.buf.B2CConverter;
+import org.apache.tomcat.util.http.MimeHeaders;
+import org.apache.tomcat.util.res.StringManager;
+
+/**
+ * The state of one HTTP/2 stream: the request headers as they are decoded,
+ * the request body received from the client and not yet read by the
+ * application, and the flow control windows in both directions.
+ * <p>
+ * Headers are decoded and body data is received by the thread reading the
+ * connection. The body is read by the thread processing the stream. The send
+ * window is guarded by the window lock of the connection.
+ */
+class Stream implements HpackDecoder.HeaderEmitter {
+
+    private static final StringManager sm =
+            StringManager.getManager(Constants.Package);
+
+    /**
+     * Headers that only have meaning for an HTTP/1.1 connection and must not
+     * appear in HTTP/2.
+     */
+    static final Set<String> CONNECTION_HEADERS = new HashSet<String>();
+
+    static {
+        CONNECTION_HEADERS.add("connection");
+        CONNECTION_HEADERS.add("keep-alive");
+        CONNECTION_HEADERS.add("proxy-connection");
+        CONNECTION_HEADERS.add("transfer-encoding");
+        CONNECTION_HEADERS.add("upgrade");
+    }
+
+
+    private final int id;
+    private final Request request;
+    private final int maxHeaderSize;
+    private final int recvWindowSize;
+
+    // Guarded by the window lock of the connection
+    long sendWindow;
+
+    // Header decoding, only used by the reading thread
+    private boolean pseudoHeadersAllowed = true;
+    private int headerListSize = 0;
+    private String headerError = null;
+    private String authority = null;
+
+    // Request body, guarded by this
+    private byte[] inBuffer = null;
+    private int inStart = 0;
+    private int inCount = 0;
+    private int recvWindow;
+    private int unacknowledged = 0;
+    private boolean remoteClosed = false;
+
+    private volatile boolean reset = false;
+    private volatile boolean localClosed = false;
+
+
+    /**
+     * @param id                The stream identifier
+     * @param request           The request to populate from the headers
+     * @param sendWindow        The initial send window set by the client
+     * @param recvWindowSize    The initial receive window for this stream
+     * @param maxHeaderSize     The limit for the decoded request headers
+     */
+    Stream(int id, Request request, long sendWindow, int recvWindowSize,
+            int maxHeaderSize) {
+        this.id = id;
+        this.request = request;
+        this.sendWindow = sendWindow;
+        this.recvWindowSize = recvWindowSize;
+        this.recvWindow = recvWindowSize;
+        this.maxHeaderSize = maxHeaderSize;
+    }
+
+
+    int getId() {
+        return id;
+    }
+
+
+    Request getRequest() {
+        return request;
+    }
+
+
+    // -------------------------------------------------------- Request headers
+
+    @Override
+    public void emitHeader(String name, String value) {
+        // Keep counting after an error so a connection level problem with the
+        // header block is still detected by the decoder
+        headerListSize += name.length() + value.length() + Hpack.ENTRY_OVERHEAD;
+        if (headerError != null) {
+            return;
+        }
+        if (headerListSize > maxHeaderSize) {
+            headerError = sm.getString("stream.header.tooLarge",
+                    Integer.valueOf(id), Integer.valueOf(maxHeaderSize));
+            return;
+        }
+        if (name.length() == 0) {
+            headerError = sm.getString("stream.header.empty", Integer.valueOf(id));
+            return;
+        }
+        if (name.charAt(0) == ':') {
+            emitPseudoHeader(name, value);
+            return;
+        }
+        pseudoHeadersAllowed = false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                headerError = sm.getString("stream.header.upperCase",
+                        Integer.valueOf(id), name);
+                return;
+            }
+        }
+        if (CONNECTION_HEADERS.contains(name) ||
+                ("te".equals(name) && !"trailers".equals(value))) {
+            headerError = sm.getString("stream.header.connection",
+                    Integer.valueOf(id), name);
+            return;
+        }
+        if ("content-length".equals(name)) {
+            try {
+                request.setContentLength(Long.parseLong(value.trim()));
+            } catch (NumberFormatException e) {
+                headerError = sm.getString("stream.header.contentLength",
+                        Integer.valueOf(id), value);
+                return;
+            }
+        }
+        request.getMimeHeaders().addValue(name).setString(value);
+    }
+
+
+    private void emitPseudoHeader(String name, String value) {
+        if (!pseudoHeadersAllowed) {
+            headerError = sm.getString("stream.header.pseudoOrder",
+                    Integer.valueOf(id), name);
+            return;
+        }
+        if (":method".equals(name) && request.method().isNull()) {
+            request.method().setString(value);
+        } else if (":scheme".equals(name) && request.scheme().isNull()) {
+            request.scheme().setString(value);
+        } else if (":path".equals(name) && request.requestURI().isNull()) {
+            setPath(value);
+        } else if (":authority".equals(name) && authority == null) {
+            authority = value;
+        } else {
+            headerError = sm.getString("stream.header.pseudoInvalid",
+                    Integer.valueOf(id), name);
+        }
+    }
+
+
+    private void setPath(String path) {
+        // Use bytes, as an HTTP/1.1 request line does, so the URI is decoded
+        // and normalized by the adapter in the usual way
+        byte[] bytes = path.getBytes(B2CConverter.ISO_8859_1);
+        int query = path.indexOf('?');
+        if (query == -1) {
+            request.requestURI().setBytes(bytes, 0, bytes.length);
+        } else {
+            request.requestURI().setBytes(bytes, 0, query);
+            request.queryString().setBytes(bytes, query + 1,
+                    bytes.length - query - 1);
+        }
+        request.unparsedURI().setBytes(bytes, 0, bytes.length);
+    }
+
+
+    /**
+     * Complete the request once the whole header block has been decoded.
+     *
+     * @throws Http2Exception if the headers do not form a valid request
+     */
+    void headersComplete() throws Http2Exception {
+        if (headerError == null && (request.method().isNull() ||
+                request.scheme().isNull() || request.requestURI().isNull())) {
+            headerError = sm.getString("stream.header.required", Integer.valueOf(id));
+        }
+        if (headerError != null) {
+            throw new Http2Exception(headerError, id, Constants.PROTOCOL_ERROR);
+        }
+        request.protocol().setString("HTTP/2.0");
+        MimeHeaders headers = request.getMimeHeaders();
+        if (authority != null) {
+            if (headers.getValue("host") == null) {
+                headers.addValue("host").setString(authority);
+            }
+        } else if (headers.getValue("host") != null) {
+            authority = headers.getHeader("host");
+        }
+        if (authority != null) {
+            setServer(authority);
+        }
+    }
+
+
+    private void setServer(String host) {
+        int colon = host.lastIndexOf(':');
+        if (colon == -1 || host.indexOf(']', colon) != -1) {
+            // No port, or an IPv6 literal without a port
+            request.serverName().setString(host);
+            request.setServerPort(
+                    "https".equalsIgnoreCase(request.scheme().toString()) ? 443 : 80);
+            return;
+        }
+        request.serverName().setString(host.substring(0, colon));
+        try {
+            request.setServerPort(Integer.parseInt(host.substring(colon + 1)));
+        } catch (NumberFormatException e) {
+            request.setServerPort(-1);
+        }
+    }
+
+
+    // ------------------------------------------------------------ Request body
+
+    /**
+     * Add data received from the client.
+     *
+     * @param frameLength   The flow controlled length of the DATA frame,
+     *                      including any padding
+     * @param src           The buffer holding the frame
+     * @param off           The offset of the data in the frame
+     * @param len           The length of the data
+     * @param endOfStream   Is this the last frame of the request body?
+     *
+     * @return the window increment that should be sent to the client for the
+     *         padding of this frame, or zero
+     *
+     * @throws Http2Exception if the client has ended the stream or exceeded
+     *         the receive window
+     */
+    synchronized int receiveData(int frameLength, byte[] src, int off,
+            int len, boolean endOfStream) throws Http2Exception {
+        if (remoteClosed) {
+            throw new Http2Exception(sm.getString("stream.closed",
+                    Integer.valueOf(id)), id, Constants.STREAM_CLOSED);
+        }
+        if (frameLength > recvWindow) {
+            throw new Http2Exception(sm.getString("stream.windowExceeded",
+                    Integer.valueOf(id)), id, Constants.FLOW_CONTROL_ERROR);
+        }
+        recvWindow -= frameLength;
+        // Padding is consumed immediately
+        unacknowledged += frameLength - len;
+        if (reset) {
+            // Nobody will read the data
+            unacknowledged += len;
+        } else if (len > 0) {
+            if (inBuffer == null) {
+                inBuffer = new byte[recvWindowSize];
+            }
+            int end = (inStart + inCount) % inBuffer.length;
+            int first = Math.min(len, inBuffer.length - end);
+            System.arraycopy(src, off, inBuffer, end, first);
+            if (first < len) {
+                System.arraycopy(src, off + first, inBuffer, 0, len - first);
+            }
+            inCount += len;
+        }
+        if (endOfStream) {
+            remoteClosed = true;
+        }
+        notifyAll();
+        return acknowledge();
+    }
+
+
+    /**
+     * Read request body data. Blocks until data is available, the request
+     * body is complete or the timeout expires.
+     *
+     * @param dst       The buffer to read into
+     * @param len       The maximum number of bytes to read
+     * @param timeout   The time to wait in milliseconds. Zero or less means
+     *                  wait indefinitely.
+     * @param handler   The connection, used to send window updates
+     *
+     * @return the number of bytes read or -1 at the end of the request body
+     *
+     * @throws IOException if the stream has been reset or the wait times out
+     */
+    int read(byte[] dst, int len, long timeout, Http2UpgradeHandler handler)
+            throws IOException {
+        int n;
+        int windowIncrement;
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (inCount == 0 && !remoteClosed && !reset) {
+                try {
+                    if (timeout > 0) {
+                        long wait = deadline - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            throw new SocketTimeoutException(sm.getString(
+                                    "stream.readTimeout", Integer.valueOf(id)));
+                        }
+                        wait(wait);
+                    } else {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (reset) {
+                throw new IOException(sm.getString("stream.reset", Integer.valueOf(id)));
+            }
+            if (inCount == 0) {
+                return -1;
+            }
+            n = Math.min(len, Math.min(inCount, inBuffer.length - inStart));
+            System.arraycopy(inBuffer, inStart, dst, 0, n);
+            inStart = (inStart + n) % inBuffer.length;
+            inCount -= n;
+            unacknowledged += n;
+            windowIncrement = acknowledge();
+        }
+        if (windowIncrement > 0) {
+            handler.writeWindowUpdate(id, windowIncrement);
+        }
+        return n;
+    }
+
+
+    synchronized int available() {
+        return inCount;
+    }
+
+
+    synchronized boolean isRemoteClosed() {
+        return remoteClosed;
+    }
+
+
+    synchronized void setRemoteClosed() {
+        remoteClosed = true;
+        notifyAll();
+    }
+
+
+    /*
+     * Must hold the lock on this stream. Returns consumed bytes to the client
+     * once half the window is consumed so it can keep sending without waiting
+     * for every read.
+     */
+    private int acknowledge() {
+        if (remoteClosed || unacknowledged < recvWindowSize / 2) {
+            return 0;
+        }
+        int increment = unacknowledged;
+        recvWindow += increment;
+        unacknowledged = 0;
+        return increment;
+    }
+
+
+    // ------------------------------------------------------------------- State
+
+    boolean isReset() {
+        return reset;
+    }
+
+
+    /**
+     * Mark the stream as reset, either by the client or because of an error.
+     * Waiting readers are woken. Waiting writers must be woken by the caller
+     * via the window lock.
+     */
+    synchronized void reset() {
+        reset = true;
+        inBuffer = null;
+        inCount = 0;
+        notifyAll();
+    }
+
+
+    boolean isLocalClosed() {
+        return localClosed;
+    }
+
+
+    void setLocalClosed() {
+        localClosed = true;
+    }
+}
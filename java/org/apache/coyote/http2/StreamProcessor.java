@@ -0,0 +1,335 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http2;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.coyote.ActionCode;
+import org.apache.coyote.ActionHook;
+import org.apache.coyote.Adapter;
+import org.apache.coyote.ContainerThreadMarker;
+import org.apache.coyote.InputBuffer;
+import org.apache.coyote.OutputBuffer;
+import org.apache.coyote.Request;
+import org.apache.coyote.RequestInfo;
+import org.apache.coyote.Response;
+import org.apache.coyote.http11.InputFilter;
+import org.apache.coyote.http11.filters.SavedRequestInputFilter;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.ExceptionUtils;
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.http.FastHttpDateFormat;
+import org.apache.tomcat.util.http.MimeHeaders;
+import org.apache.tomcat.util.res.StringManager;
+
+/**
+ * Processes the request of one HTTP/2 stream on a container thread and sends
+ * the response as HEADERS and DATA frames. Instances are re-used for other
+ * streams once the response is complete.
+ * <p>
+ * Asynchronous processing, Comet and HTTP upgrade are not available on
+ * HTTP/2 streams.
+ */
+class StreamProcessor implements ActionHook, Runnable {
+
+    private static final Log log = LogFactory.getLog(StreamProcessor.class);
+    private static final StringManager sm =
+            StringManager.getManager(Constants.Package);
+
+    private final Adapter adapter;
+    private final Request request = new Request();
+    private final Response response = new Response();
+    private final byte[] readBuffer = new byte[8 * 1024];
+
+    private Http2UpgradeHandler handler;
+    private Stream stream;
+
+    private boolean headersSent = false;
+    private boolean noBody = false;
+    private boolean error = false;
+    private long bytesWritten = 0;
+    private InputFilter replayBody = null;
+
+
+    StreamProcessor(Adapter adapter) {
+        this.adapter = adapter;
+        request.setInputBuffer(new StreamInputBuffer());
+        response.setOutputBuffer(new StreamOutputBuffer());
+        response.setHook(this);
+        request.setResponse(response);
+        response.setRequest(request);
+    }
+
+
+    Request getRequest() {
+        return request;
+    }
+
+
+    void setStream(Http2UpgradeHandler handler, Stream stream) {
+        this.handler = handler;
+        this.stream = stream;
+    }
+
+
+    void recycle() {
+        request.recycle();
+        response.recycle();
+        handler = null;
+        stream = null;
+        headersSent = false;
+        noBody = false;
+        error = false;
+        bytesWritten = 0;
+        replayBody = null;
+    }
+
+
+    // ---------------------------------------------------------------- Runnable
+
+    @Override
+    public void run() {
+        ContainerThreadMarker.markAsContainerThread();
+        RequestInfo rp = request.getRequestProcessor();
+        Http2UpgradeHandler handler = this.handler;
+        Stream stream = this.stream;
+        try {
+            rp.setStage(org.apache.coyote.Constants.STAGE_SERVICE);
+            adapter.service(request, response);
+            // The adapter normally closes the response. Make sure the client
+            // sees the end of the stream even if it did not.
+            action(ActionCode.CLOSE, null);
+        } catch (Throwable t) {
+            ExceptionUtils.handleThrowable(t);
+            log.error(sm.getString("streamProcessor.service.error",
+                    Integer.valueOf(stream.getId())), t);
+            error = true;
+            if (!response.isCommitted()) {
+                response.setStatus(500);
+                action(ActionCode.CLOSE, null);
+            }
+        } finally {
+            rp.setStage(org.apache.coyote.Constants.STAGE_ENDED);
+            if (error) {
+                response.setStatus(500);
+            }
+            request.updateCounters();
+            handler.streamFinished(stream, this);
+        }
+    }
+
+
+    // -------------------------------------------------------------- ActionHook
+
+    @Override
+    public void action(ActionCode actionCode, Object param) {
+        switch (actionCode) {
+        case COMMIT: {
+            if (!response.isCommitted()) {
+                prepareResponse();
+            }
+            break;
+        }
+        case CLIENT_FLUSH: {
+            if (!response.isCommitted()) {
+                prepareResponse();
+                response.setCommitted(true);
+            }
+            try {
+                sendHeaders(false);
+            } catch (IOException e) {
+                error = true;
+                response.setErrorException(e);
+            }
+            break;
+        }
+        case CLOSE: {
+            if (!response.isCommitted()) {
+                prepareResponse();
+                response.setCommitted(true);
+            }
+            try {
+                if (!headersSent) {
+                    sendHeaders(true);
+                } else if (!stream.isLocalClosed()) {
+                    handler.writeData(stream, null, 0, 0, true);
+                }
+            } catch (IOException e) {
+                error = true;
+            }
+            break;
+        }
+        case ACK: {
+            String expect = request.getHeader("expect");
+            if (!response.isCommitted() && expect != null &&
+                    expect.toLowerCase().contains("100-continue")) {
+                try {
+                    handler.writeHeaders(stream, 100, null, false);
+                } catch (IOException e) {
+                    error = true;
+                }
+            }
+            break;
+        }
+        case CLOSE_NOW: {
+            error = true;
+            handler.resetStream(stream, Constants.INTERNAL_ERROR);
+            break;
+        }
+        case IS_ERROR: {
+            ((AtomicBoolean) param).set(error || stream.isReset());
+            break;
+        }
+        case AVAILABLE: {
+            if (replayBody != null) {
+                request.setAvailable(replayBody.available());
+            } else {
+                request.setAvailable(stream.available());
+            }
+            break;
+        }
+        case REQ_SET_BODY_REPLAY: {
+            replayBody = new SavedRequestInputFilter((ByteChunk) param);
+            break;
+        }
+        case REQ_HOST_ADDR_ATTRIBUTE: {
+            request.remoteAddr().setString(handler.getRemoteAddr());
+            break;
+        }
+        case REQ_HOST_ATTRIBUTE: {
+            // No lookups for HTTP/2 connections
+            request.remoteHost().setString(handler.getRemoteAddr());
+            break;
+        }
+        case REQ_REMOTEPORT_ATTRIBUTE: {
+            request.setRemotePort(handler.getRemotePort());
+            break;
+        }
+        case REQ_LOCAL_ADDR_ATTRIBUTE: {
+            request.localAddr().setString(handler.getLocalAddr());
+            break;
+        }
+        case REQ_LOCAL_NAME_ATTRIBUTE: {
+            request.localName().setString(handler.getLocalName());
+            break;
+        }
+        case REQ_LOCALPORT_ATTRIBUTE: {
+            request.setLocalPort(handler.getLocalPort());
+            break;
+        }
+        case ASYNC_START: {
+            throw new IllegalStateException(
+                    sm.getString("streamProcessor.asyncNotSupported"));
+        }
+        case ASYNC_IS_ASYNC:
+        case ASYNC_IS_STARTED:
+        case ASYNC_IS_COMPLETING:
+        case ASYNC_IS_DISPATCHING:
+        case ASYNC_IS_TIMINGOUT:
+        case ASYNC_IS_ERROR:
+        case ASYNC_TIMEOUT: {
+            ((AtomicBoolean) param).set(false);
+            break;
+        }
+        default: {
+            // No other actions apply to an HTTP/2 stream. This includes the
+            // SSL attributes since only cleartext connections are supported.
+            break;
+        }
+        }
+    }
+
+
+    private void prepareResponse() {
+        MimeHeaders headers = response.getMimeHeaders();
+        int status = response.getStatus();
+        noBody = status < 200 || status == 204 || status == 205 ||
+                status == 304 || request.method().equals("HEAD");
+        String contentType = response.getContentType();
+        if (contentType != null) {
+            headers.setValue("content-type").setString(contentType);
+        }
+        String contentLanguage = response.getContentLanguage();
+        if (contentLanguage != null) {
+            headers.setValue("content-language").setString(contentLanguage);
+        }
+        long contentLength = response.getContentLengthLong();
+        if (contentLength != -1 && status != 204 && status != 304) {
+            headers.setValue("content-length").setLong(contentLength);
+        }
+        if (headers.getValue("date") == null) {
+            headers.addValue("date").setString(FastHttpDateFormat.getCurrentDate());
+        }
+    }
+
+
+    private void sendHeaders(boolean endOfStream) throws IOException {
+        if (headersSent) {
+            return;
+        }
+        headersSent = true;
+        handler.writeHeaders(stream, response.getStatus(),
+                response.getMimeHeaders(), endOfStream);
+    }
+
+
+    // ----------------------------------------------------------- Inner classes
+
+    private class StreamInputBuffer implements InputBuffer {
+
+        @Override
+        public int doRead(ByteChunk chunk, Request req) throws IOException {
+            if (replayBody != null) {
+                return replayBody.doRead(chunk, req);
+            }
+            int n = stream.read(readBuffer, readBuffer.length,
+                    handler.getStreamTimeout(), handler);
+            if (n > 0) {
+                chunk.setBytes(readBuffer, 0, n);
+            }
+            return n;
+        }
+    }
+
+
+    private class StreamOutputBuffer implements OutputBuffer {
+
+        @Override
+        public int doWrite(ByteChunk chunk, Response res) throws IOException {
+            int len = chunk.getLength();
+            if (noBody || stream.isLocalClosed()) {
+                return len;
+            }
+            long contentLength = response.getContentLengthLong();
+            // End the stream with the last byte of a response of known length
+            // rather than with a separate empty frame
+            boolean last = contentLength != -1 &&
+                    bytesWritten + len >= contentLength;
+            sendHeaders(false);
+            handler.writeData(stream, chunk.getBuffer(), chunk.getStart(), len, last);
+            bytesWritten += len;
+            return len;
+        }
+
+        @Override
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+    }
+}
@@ -144,6 +144,39 @@ public class Utf8Decoder extends CharsetDecoder {
     }
 
 
+    /*
+     * Copies bytes to chars until a byte with the high bit set is found or len
+     * bytes have been copied. Eight bytes are checked at a time while the input
+     * is ASCII. Returns the number of bytes copied.
+     */
+    private static int copyAscii(byte[] bArr, int inIndex, char[] cArr,
+            int outIndex, int len) {
+        int i = 0;
+        while (i + 8 <= len) {
+            int j = inIndex + i;
+            if ((bArr[j] | bArr[j + 1] | bArr[j + 2] | bArr[j + 3] |
+                    bArr[j + 4] | bArr[j + 5] | bArr[j + 6] | bArr[j + 7]) < 0) {
+                break;
+            }
+            int k = outIndex + i;
+            cArr[k] = (char) bArr[j];
+            cArr[k + 1] = (char) bArr[j + 1];
+            cArr[k + 2] = (char) bArr[j + 2];
+            cArr[k + 3] = (char) bArr[j + 3];
+            cArr[k + 4] = (char) bArr[j + 4];
+            cArr[k + 5] = (char) bArr[j + 5];
+            cArr[k + 6] = (char) bArr[j + 6];
+            cArr[k + 7] = (char) bArr[j + 7];
+            i += 8;
+        }
+        while (i < len && bArr[inIndex + i] >= 0) {
+            cArr[outIndex + i] = (char) bArr[inIndex + i];
+            i++;
+        }
+        return i;
+    }
+
+
     private CoderResult decodeHasArray(ByteBuffer in, CharBuffer out) {
         int outRemaining = out.remaining();
         int pos = in.position();
@@ -157,7 +190,16 @@ public class Utf8Decoder extends CharsetDecoder {
         // he would face consequences
         for (; inIndex < inIndexLimit && outRemaining > 0; inIndex++) {
             int jchar = bArr[inIndex];
-            if (jchar < 0) {
+            if (jchar >= 0) {
+                // Copy the whole run of ASCII bytes in one go. inIndex is left
+                // on the last byte copied.
+                int run = copyAscii(bArr, inIndex, cArr, outIndex,
+                        Math.min(inIndexLimit - inIndex, outRemaining));
+                inIndex += run - 1;
+                outIndex += run;
+                outRemaining -= run;
+                continue;
+            } else {
                 jchar = jchar & 0x7F;
                 // If first byte is invalid, tail will be set to -1
                 int tail = remainingBytes[jchar];
@@ -59,8 +59,15 @@ public class Utf8Encoder extends CharsetEncoder {
                     out.position(outPos);
                     return CoderResult.OVERFLOW;
                 }
+                // Copy the whole run of ASCII characters in one go. x is left
+                // on the last character copied.
+                int runLimit = x + Math.min(pos + rem - x, outRemaining);
+                int runStart = outPos;
                 bArr[outPos++] = (byte) (jchar & 0xFF);
-                outRemaining--;
+                while (x + 1 < runLimit && cArr[x + 1] < 0x80) {
+                    bArr[outPos++] = (byte) cArr[++x];
+                }
+                outRemaining -= outPos - runStart;
             } else if (jchar <= 0x7FF) {
 
                 if (outRemaining < 2) {
@@ -28,12 +28,16 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Locale;
 import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
 
 class Jre7Compat extends JreCompat {
 
     private static final int RUNTIME_MAJOR_VERSION = 7;
 
+    // Deflater.SYNC_FLUSH
+    private static final Integer SYNC_FLUSH = Integer.valueOf(2);
+
     private static final Method forLanguageTagMethod;
     private static final Constructor<GZIPOutputStream> gzipOutputStreamConstructor;
     private static final Method callableStatementGetObjectIndex;
@@ -49,6 +53,7 @@ class Jre7Compat extends JreCompat {
     private static final Method resultSetGetObjectName;
     private static final Method statementCloseOnCompletion;
     private static final Method statementIsCloseOnCompletion;
+    private static final Method deflaterDeflateFlush;
 
     static {
         Method m1 = null;
@@ -65,6 +70,7 @@ class Jre7Compat extends JreCompat {
         Method m12 = null;
         Method m13 = null;
         Method m14 = null;
+        Method m15 = null;
         Constructor<GZIPOutputStream> c = null;
         try {
             m1 = Locale.class.getMethod("forLanguageTag", String.class);
@@ -102,6 +108,16 @@ class Jre7Compat extends JreCompat {
         resultSetGetObjectName = m12;
         statementCloseOnCompletion = m13;
         statementIsCloseOnCompletion = m14;
+
+        // Looked up separately so that a missing JDBC method does not hide it
+        try {
+            m15 = Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+        } catch (SecurityException e) {
+            // Should never happen
+        } catch (NoSuchMethodException e) {
+            // Expected on Java < 7
+        }
+        deflaterDeflateFlush = m15;
     }
 
 
@@ -142,6 +158,21 @@ class Jre7Compat extends JreCompat {
     }
 
 
+    @Override
+    public int deflateSyncFlush(Deflater deflater, byte[] b, int off, int len) {
+        try {
+            return ((Integer) deflaterDeflateFlush.invoke(deflater, b,
+                    Integer.valueOf(off), Integer.valueOf(len), SYNC_FLUSH)).intValue();
+        } catch (IllegalAccessException e) {
+            throw new UnsupportedOperationException(e);
+        } catch (IllegalArgumentException e) {
+            throw new UnsupportedOperationException(e);
+        } catch (InvocationTargetException e) {
+            throw new UnsupportedOperationException(e);
+        }
+    }
+
+
     @SuppressWarnings("unchecked")
     @Override
     public <T> T getObject(CallableStatement callableStatement, int parameterIndex, Class<T> type)
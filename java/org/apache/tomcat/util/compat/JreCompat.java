@@ -33,6 +33,7 @@ import java.util.Deque;
 import java.util.Locale;
 import java.util.concurrent.Executor;
 import java.util.jar.JarFile;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
 
 import javax.annotation.Resource;
@@ -146,6 +147,25 @@ public class JreCompat {
     }
 
 
+    /**
+     * Compress the pending input of the given deflater with
+     * <code>SYNC_FLUSH</code> so that all of it can be decompressed by the
+     * receiver.
+     *
+     * @param deflater  The deflater to flush
+     * @param b         The buffer for the compressed data
+     * @param off       The start offset in the buffer
+     * @param len       The maximum number of bytes to write to the buffer
+     *
+     * @return the number of bytes of compressed data written to the buffer
+     */
+    @SuppressWarnings("unused")
+    public int deflateSyncFlush(Deflater deflater, byte[] b, int off, int len) {
+        throw new UnsupportedOperationException(
+                sm.getString("jreCompat.noFlushableGzipOutputStream"));
+    }
+
+
     @SuppressWarnings("unused")
     public <T> T getObject(CallableStatement callableStatement, int parameterIndex, Class<T> type)
             throws SQLException {
@@ -51,6 +51,10 @@ public final class Cookies {
     private int limit = 200;
     boolean unprocessed=true;
 
+    // Values of the cookies found by the last call to findCookieValues()
+    private MessageBytes namedValues[] = new MessageBytes[1];
+    private int namedValueCount = 0;
+
     MimeHeaders headers;
 
     /**
@@ -87,6 +91,10 @@ public final class Cookies {
         }
         cookieCount=0;
         unprocessed=true;
+        for (int i = 0; i < namedValueCount; i++) {
+            namedValues[i].recycle();
+        }
+        namedValueCount = 0;
     }
 
     /**
@@ -121,6 +129,145 @@ public final class Cookies {
         return cookieCount;
     }
 
+    // -------------------- Lookup by name --------------------
+
+    /**
+     * Find the cookies with the given name without creating a
+     * {@link ServerCookie} for every cookie in the request. Cookie headers
+     * that do not contain the name are not tokenized at all and the full set
+     * of cookies is still only parsed on the first call to
+     * {@link #getCookieCount()}.
+     *
+     * @param name The cookie name
+     *
+     * @return the number of cookies with the given name. Their values, in the
+     *         order they appear in the request, are available via
+     *         {@link #getCookieValue(int)}.
+     *
+     * @throws IllegalArgumentException if the request contains more cookies
+     *         than the configured limit
+     */
+    public int findCookieValues(String name) {
+        for (int i = 0; i < namedValueCount; i++) {
+            namedValues[i].recycle();
+        }
+        namedValueCount = 0;
+
+        if (!unprocessed) {
+            for (int i = 0; i < cookieCount; i++) {
+                if (scookies[i].getName().equals(name)) {
+                    copy(scookies[i].getValue(), addNamedValue());
+                }
+            }
+            return namedValueCount;
+        }
+        if (headers == null || name == null || name.length() == 0) {
+            return 0;
+        }
+
+        // The count of separators is an upper bound for the number of
+        // cookies. Only when it exceeds the limit is a full parse required to
+        // find out whether the request has to be rejected.
+        int maxCount = 0;
+        int pos = headers.findHeader("Cookie", 0);
+        while (pos >= 0) {
+            MessageBytes cookieValue = headers.getValue(pos);
+            if (cookieValue != null && !cookieValue.isNull()) {
+                if (cookieValue.getType() != MessageBytes.T_BYTES) {
+                    // Let the full parse deal with (and report) this
+                    maxCount = Integer.MAX_VALUE;
+                    break;
+                }
+                ByteChunk bc = cookieValue.getByteChunk();
+                maxCount += countSeparators(bc.getBytes(), bc.getStart(),
+                        bc.getEnd()) + 1;
+            }
+            pos = headers.findHeader("Cookie", pos + 1);
+        }
+        if (limit > -1 && maxCount > limit || maxCount == Integer.MAX_VALUE) {
+            getCookieCount();
+            return findCookieValues(name);
+        }
+
+        pos = headers.findHeader("Cookie", 0);
+        while (pos >= 0) {
+            MessageBytes cookieValue = headers.getValue(pos);
+            if (cookieValue != null && !cookieValue.isNull()) {
+                ByteChunk bc = cookieValue.getByteChunk();
+                if (contains(name, bc.getBytes(), bc.getStart(), bc.getEnd())) {
+                    processCookieHeader(bc.getBytes(), bc.getStart(),
+                            bc.getLength(), name);
+                }
+            }
+            pos = headers.findHeader("Cookie", pos + 1);
+        }
+        return namedValueCount;
+    }
+
+
+    /**
+     * @param idx The index of the cookie
+     *
+     * @return the value of a cookie found by the last call to
+     *         {@link #findCookieValues(String)}
+     */
+    public MessageBytes getCookieValue(int idx) {
+        return namedValues[idx];
+    }
+
+
+    private MessageBytes addNamedValue() {
+        if (namedValueCount >= namedValues.length) {
+            MessageBytes namedValuesTmp[] =
+                    new MessageBytes[2 * namedValueCount];
+            System.arraycopy(namedValues, 0, namedValuesTmp, 0,
+                    namedValueCount);
+            namedValues = namedValuesTmp;
+        }
+        MessageBytes mb = namedValues[namedValueCount];
+        if (mb == null) {
+            mb = MessageBytes.newInstance();
+            namedValues[namedValueCount] = mb;
+        }
+        namedValueCount++;
+        return mb;
+    }
+
+
+    private static void copy(MessageBytes src, MessageBytes dest) {
+        if (src.getType() == MessageBytes.T_BYTES) {
+            ByteChunk bc = src.getByteChunk();
+            dest.setBytes(bc.getBytes(), bc.getStart(), bc.getLength());
+        } else {
+            dest.setString(src.toString());
+        }
+    }
+
+
+    private static int countSeparators(byte bytes[], int start, int end) {
+        int result = 0;
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == ';' || bytes[i] == ',') {
+                result++;
+            }
+        }
+        return result;
+    }
+
+
+    private static boolean contains(String s, byte b[], int start, int end) {
+        int slen = s.length();
+        byte first = (byte) s.charAt(0);
+        int last = end - slen;
+        for (int i = start; i <= last; i++) {
+            if (b[i] == first && equals(s, b, i, i + slen)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
     // -------------------- Adding cookies --------------------
 
     /** Register a new, initialized cookie. Cookies are recycled, and
@@ -278,6 +425,16 @@ public final class Cookies {
      * JVK
      */
     protected final void processCookieHeader(byte bytes[], int off, int len){
+        processCookieHeader(bytes, off, len, null);
+    }
+
+    /**
+     * Parses a cookie header. If a name is given, only the values of the
+     * cookies with that name are recorded and the header bytes are left
+     * unmodified.
+     */
+    private void processCookieHeader(byte bytes[], int off, int len,
+            String matchName) {
         if( len<=0 || bytes==null ) {
             return;
         }
@@ -289,6 +446,8 @@ public final class Cookies {
         int valueEnd=0;
         int version = 0;
         ServerCookie sc=null;
+        // Only used when matching a name as sc is never set then
+        boolean cookieSeen = false;
         boolean isSpecial;
         boolean isQuoted;
 
@@ -382,7 +541,8 @@ public final class Cookies {
                         // INVALID COOKIE, advance to next delimiter
                         // The starting character of the cookie value was
                         // not valid.
-                        UserDataHelper.Mode logMode = userDataLog.getNextMode();
+                        UserDataHelper.Mode logMode = matchName == null ?
+                                userDataLog.getNextMode() : null;
                         if (logMode != null) {
                             String message = sm.getString(
                                     "cookies.invalidCookieToken");
@@ -406,6 +566,7 @@ public final class Cookies {
                         // the previous cookie by setting the current cookie
                         // to null
                         sc = null;
+                        cookieSeen = false;
                         continue;
                     }
                 }
@@ -439,7 +600,7 @@ public final class Cookies {
                 // $Version must be the first avpair in the cookie header
                 // (sc must be null)
                 if (equals( "Version", bytes, nameStart, nameEnd) &&
-                    sc == null) {
+                    sc == null && !cookieSeen) {
                     // Set version
                     if( bytes[valueStart] =='1' && valueEnd == (valueStart+1)) {
                         version=1;
@@ -498,6 +659,29 @@ public final class Cookies {
                     continue;
                 }
 
+                if (matchName != null) {
+                    cookieSeen = true;
+                    if (equals(matchName, bytes, nameStart, nameEnd)) {
+                        MessageBytes value = addNamedValue();
+                        if (valueStart == -1) {
+                            value.setString("");
+                        } else if (isQuoted && ByteChunk.indexOf(bytes,
+                                valueStart, valueEnd, '"') != -1) {
+                            // Unescaping in place would corrupt the header
+                            // for the full parse so work on a copy
+                            byte[] copy = new byte[valueEnd - valueStart];
+                            System.arraycopy(bytes, valueStart, copy, 0,
+                                    copy.length);
+                            value.setBytes(copy, 0, copy.length);
+                            unescapeDoubleQuotes(value.getByteChunk());
+                        } else {
+                            value.setBytes(bytes, valueStart,
+                                    valueEnd - valueStart);
+                        }
+                    }
+                    continue;
+                }
+
                 sc = addCookie();
                 sc.setVersion( version );
                 sc.getName().setBytes( bytes, nameStart,
@@ -24,6 +24,8 @@ import java.util.Map;
 import java.util.TimeZone;
 import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.tomcat.util.buf.ByteChunk;
+
 /**
  * Utility class to generate HTTP dates.
  *
@@ -82,6 +84,12 @@ public final class FastHttpDateFormat {
     private static String currentDate = null;
 
 
+    /**
+     * Current formatted date, encoded for use as a header value.
+     */
+    private static byte[] currentDateBytes = null;
+
+
     /**
      * Formatter cache.
      */
@@ -104,13 +112,26 @@ public final class FastHttpDateFormat {
     public static final String getCurrentDate() {
         long now = System.currentTimeMillis();
         if ((now - currentDateGenerated) > 1000) {
-            currentDate = FORMAT_RFC5322.format(new Date(now));
+            String date = FORMAT_RFC5322.format(new Date(now));
+            currentDateBytes = ByteChunk.convertToBytes(date);
+            currentDate = date;
             currentDateGenerated = now;
         }
         return currentDate;
     }
 
 
+    /**
+     * Get the current date in HTTP format, encoded as the bytes of a header
+     * value. The array is shared and must not be modified.
+     * @return the HTTP date
+     */
+    public static final byte[] getCurrentDateBytes() {
+        getCurrentDate();
+        return currentDateBytes;
+    }
+
+
     /**
      * Get the HTTP format of the specified date.
      * @param value The date
@@ -0,0 +1,249 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.tomcat.util.http;
+
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.CharChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
+
+/**
+ * Perfect hash of the header names most requests and responses use. Each
+ * name is identified by its index in {@link #NAMES}. Looking up an id costs
+ * one hash of three characters plus a single comparison, whatever the number
+ * of known names, so {@link MimeHeaders} can compare ids instead of calling
+ * <code>equalsIgnoreCase</code> for every header.
+ */
+final class KnownHeaders {
+
+    /**
+     * The id of a header name that is not in the table.
+     */
+    static final int UNKNOWN = -1;
+
+    // Lower case. The hash below is collision free for this list and must
+    // be checked again if it changes.
+    private static final String[] NAMES = {
+        "accept", "accept-charset", "accept-encoding", "accept-language",
+        "accept-ranges", "age", "allow", "authorization", "cache-control",
+        "connection", "content-disposition", "content-encoding",
+        "content-language", "content-length", "content-location",
+        "content-range", "content-type", "cookie", "date", "etag", "expect",
+        "expires", "host", "if-match", "if-modified-since", "if-none-match",
+        "if-range", "if-unmodified-since", "keep-alive", "last-modified",
+        "location", "origin", "pragma", "proxy-authenticate",
+        "proxy-authorization", "range", "referer", "server", "set-cookie",
+        "te", "trailer", "transfer-encoding", "upgrade", "user-agent", "vary",
+        "via", "www-authenticate", "x-forwarded-for", "x-forwarded-proto" };
+
+    private static final char[][] NAME_CHARS = new char[NAMES.length][];
+    private static final int[] TABLE = new int[256];
+    private static final int MAX_LENGTH;
+
+    /*
+     * Lookups by String nearly always use a constant in lower case or in the
+     * usual mixed case. Those spellings are found through the String's cached
+     * hash code, usually with a reference comparison. Their encoded form is
+     * kept for writing response headers.
+     */
+    private static final String[] SPELLINGS = new String[256];
+    private static final int[] SPELLING_IDS = new int[256];
+    private static final byte[][] SPELLING_BYTES = new byte[256][];
+
+    static {
+        for (int i = 0; i < TABLE.length; i++) {
+            TABLE[i] = UNKNOWN;
+        }
+        int maxLength = 0;
+        for (int i = 0; i < NAMES.length; i++) {
+            char[] name = NAMES[i].toCharArray();
+            NAME_CHARS[i] = name;
+            int slot = hash(name.length, name[0], name[name.length >> 1],
+                    name[name.length - 1]);
+            if (TABLE[slot] != UNKNOWN) {
+                throw new IllegalStateException(NAMES[i]);
+            }
+            TABLE[slot] = i;
+            maxLength = Math.max(maxLength, name.length);
+
+            addSpelling(NAMES[i], i);
+            char[] mixed = NAMES[i].toCharArray();
+            for (int j = 0; j < mixed.length; j++) {
+                if (j == 0 || mixed[j - 1] == '-') {
+                    mixed[j] = Character.toUpperCase(mixed[j]);
+                }
+            }
+            addSpelling(new String(mixed).intern(), i);
+        }
+        MAX_LENGTH = maxLength;
+    }
+
+
+    private static void addSpelling(String spelling, int id) {
+        int slot = spelling.hashCode() & 0xFF;
+        while (SPELLINGS[slot] != null) {
+            slot = (slot + 1) & 0xFF;
+        }
+        SPELLINGS[slot] = spelling;
+        SPELLING_IDS[slot] = id;
+        SPELLING_BYTES[slot] = ByteChunk.convertToBytes(spelling);
+    }
+
+
+    /**
+     * @return the spelling index of the given name or -1 if this exact
+     *         spelling is not known
+     */
+    static int getSpelling(String name) {
+        int slot = name.hashCode() & 0xFF;
+        String spelling;
+        while ((spelling = SPELLINGS[slot]) != null) {
+            if (spelling == name || spelling.equals(name)) {
+                return slot;
+            }
+            slot = (slot + 1) & 0xFF;
+        }
+        return -1;
+    }
+
+
+    static int getSpellingId(int spelling) {
+        return SPELLING_IDS[spelling];
+    }
+
+
+    static byte[] getSpellingBytes(int spelling) {
+        return SPELLING_BYTES[spelling];
+    }
+
+
+    private KnownHeaders() {
+        // Utility class
+    }
+
+
+    /*
+     * Setting 0x20 lower cases letters and leaves digits and '-' unchanged.
+     * Other characters may collide with a known name but are then rejected
+     * by the comparison that follows.
+     */
+    private static int hash(int length, int first, int middle, int last) {
+        return (length + 2 * (first | 0x20) + 22 * (middle | 0x20) +
+                (last | 0x20)) & 0xFF;
+    }
+
+
+    static int getId(String name) {
+        int spelling = getSpelling(name);
+        if (spelling != -1) {
+            return SPELLING_IDS[spelling];
+        }
+
+        int length = name.length();
+        if (length == 0 || length > MAX_LENGTH) {
+            return UNKNOWN;
+        }
+        int id = TABLE[hash(length, name.charAt(0), name.charAt(length >> 1),
+                name.charAt(length - 1))];
+        if (id == UNKNOWN) {
+            return UNKNOWN;
+        }
+        char[] known = NAME_CHARS[id];
+        if (known.length != length) {
+            return UNKNOWN;
+        }
+        for (int i = 0; i < length; i++) {
+            int c = name.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != known[i]) {
+                return UNKNOWN;
+            }
+        }
+        return id;
+    }
+
+
+    static int getId(byte[] b, int start, int length) {
+        if (length == 0 || length > MAX_LENGTH) {
+            return UNKNOWN;
+        }
+        int id = TABLE[hash(length, b[start], b[start + (length >> 1)],
+                b[start + length - 1])];
+        if (id == UNKNOWN) {
+            return UNKNOWN;
+        }
+        char[] name = NAME_CHARS[id];
+        if (name.length != length) {
+            return UNKNOWN;
+        }
+        for (int i = 0; i < length; i++) {
+            int c = b[start + i];
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != name[i]) {
+                return UNKNOWN;
+            }
+        }
+        return id;
+    }
+
+
+    static int getId(char[] c, int start, int length) {
+        if (length == 0 || length > MAX_LENGTH) {
+            return UNKNOWN;
+        }
+        int id = TABLE[hash(length, c[start], c[start + (length >> 1)],
+                c[start + length - 1])];
+        if (id == UNKNOWN) {
+            return UNKNOWN;
+        }
+        char[] name = NAME_CHARS[id];
+        if (name.length != length) {
+            return UNKNOWN;
+        }
+        for (int i = 0; i < length; i++) {
+            int ch = c[start + i];
+            if (ch >= 'A' && ch <= 'Z') {
+                ch += 'a' - 'A';
+            }
+            if (ch != name[i]) {
+                return UNKNOWN;
+            }
+        }
+        return id;
+    }
+
+
+    static int getId(MessageBytes mb) {
+        switch (mb.getType()) {
+            case MessageBytes.T_BYTES: {
+                ByteChunk bc = mb.getByteChunk();
+                return getId(bc.getBytes(), bc.getStart(), bc.getLength());
+            }
+            case MessageBytes.T_CHARS: {
+                CharChunk cc = mb.getCharChunk();
+                return getId(cc.getChars(), cc.getStart(), cc.getLength());
+            }
+            case MessageBytes.T_STR:
+                return getId(mb.getString());
+            default:
+                return UNKNOWN;
+        }
+    }
+}
@@ -216,18 +216,26 @@ public class MimeHeaders {
         return n >= 0 && n < count ? headers[n].getValue() : null;
     }
 
+    /**
+     * Returns the Nth header name already encoded, or null if the name was
+     * not added with one of the usual spellings of a well-known header.
+     * The returned array is shared and must not be modified.
+     */
+    public byte[] getEncodedName(int n) {
+        if (n >= 0 && n < count && headers[n].spelling != -1) {
+            return KnownHeaders.getSpellingBytes(headers[n].spelling);
+        }
+        return null;
+    }
+
     /** Find the index of a header with the given name.
      */
     public int findHeader( String name, int starting ) {
-        // We can use a hash - but it's not clear how much
-        // benefit you can get - there is an  overhead
-        // and the number of headers is small (4-5 ?)
-        // Another problem is that we'll pay the overhead
-        // of constructing the hashtable
-
-        // A custom search tree may be better
+        // Well-known names are compared by their id which was computed when
+        // the header was added. Only the other names need a string compare.
+        int id = KnownHeaders.getId(name);
         for (int i = starting; i < count; i++) {
-            if (headers[i].getName().equalsIgnoreCase(name)) {
+            if (headers[i].matches(name, id)) {
                 return i;
             }
         }
@@ -286,6 +294,7 @@ public class MimeHeaders {
     public MessageBytes addValue( String name ) {
          MimeHeaderField mh = createHeader();
         mh.getName().setString(name);
+        mh.setId(name);
         return mh.getValue();
     }
 
@@ -297,6 +306,7 @@ public class MimeHeaders {
     {
         MimeHeaderField mhf=createHeader();
         mhf.getName().setBytes(b, startN, len);
+        mhf.id = KnownHeaders.getId(b, startN, len);
         return mhf.getValue();
     }
 
@@ -306,6 +316,7 @@ public class MimeHeaders {
     {
         MimeHeaderField mhf=createHeader();
         mhf.getName().setChars(c, startN, len);
+        mhf.id = KnownHeaders.getId(c, startN, len);
         return mhf.getValue();
     }
 
@@ -315,10 +326,13 @@ public class MimeHeaders {
         if this .
     */
     public MessageBytes setValue( String name ) {
+        int spelling = KnownHeaders.getSpelling(name);
+        int id = spelling == -1 ? KnownHeaders.getId(name) :
+                KnownHeaders.getSpellingId(spelling);
         for ( int i = 0; i < count; i++ ) {
-            if(headers[i].getName().equalsIgnoreCase(name)) {
+            if(headers[i].matches(name, id)) {
                 for ( int j=i+1; j < count; j++ ) {
-                    if(headers[j].getName().equalsIgnoreCase(name)) {
+                    if(headers[j].matches(name, id)) {
                         removeHeader(j--);
                     }
                 }
@@ -327,6 +341,8 @@ public class MimeHeaders {
         }
         MimeHeaderField mh = createHeader();
         mh.getName().setString(name);
+        mh.id = id;
+        mh.spelling = spelling;
         return mh.getValue();
     }
 
@@ -337,8 +353,9 @@ public class MimeHeaders {
      * in the header, an arbitrary one is returned.
      */
     public MessageBytes getValue(String name) {
+        int id = KnownHeaders.getId(name);
         for (int i = 0; i < count; i++) {
-            if (headers[i].getName().equalsIgnoreCase(name)) {
+            if (headers[i].matches(name, id)) {
                 return headers[i].getValue();
             }
         }
@@ -352,8 +369,9 @@ public class MimeHeaders {
      */
     public MessageBytes getUniqueValue(String name) {
         MessageBytes result = null;
+        int id = KnownHeaders.getId(name);
         for (int i = 0; i < count; i++) {
-            if (headers[i].getName().equalsIgnoreCase(name)) {
+            if (headers[i].matches(name, id)) {
                 if (result == null) {
                     result = headers[i].getValue();
                 } else {
@@ -381,8 +399,9 @@ public class MimeHeaders {
         // XXX
         // warning: rather sticky code; heavily tuned
 
+        int id = KnownHeaders.getId(name);
         for (int i = 0; i < count; i++) {
-            if (headers[i].getName().equalsIgnoreCase(name)) {
+            if (headers[i].matches(name, id)) {
                 removeHeader(i--);
             }
         }
@@ -477,12 +496,11 @@ class ValuesEnumerator implements Enumeration<String> {
 
     private void findNext() {
         next=null;
-        for(; pos< size; pos++ ) {
-            MessageBytes n1=headers.getName( pos );
-            if( n1.equalsIgnoreCase( name )) {
-                next=headers.getValue( pos );
-                break;
-            }
+        pos = headers.findHeader(name, pos);
+        if (pos == -1 || pos >= size) {
+            pos = size;
+        } else {
+            next = headers.getValue(pos);
         }
         pos++;
     }
@@ -510,6 +528,16 @@ class MimeHeaderField {
     protected final MessageBytes nameB = MessageBytes.newInstance();
     protected final MessageBytes valueB = MessageBytes.newInstance();
 
+    /**
+     * The {@link KnownHeaders} id of the name, set when the header is added.
+     */
+    int id = KnownHeaders.UNKNOWN;
+
+    /**
+     * The {@link KnownHeaders} spelling of the name or -1.
+     */
+    int spelling = -1;
+
     /**
      * Creates a new, uninitialized header field.
      */
@@ -520,9 +548,29 @@ class MimeHeaderField {
     public void recycle() {
         nameB.recycle();
         valueB.recycle();
+        id = KnownHeaders.UNKNOWN;
+        spelling = -1;
         next=null;
     }
 
+    void setId(String name) {
+        spelling = KnownHeaders.getSpelling(name);
+        id = spelling == -1 ? KnownHeaders.getId(name) :
+                KnownHeaders.getSpellingId(spelling);
+    }
+
+    /**
+     * @param name  The header name to look for
+     * @param id    The {@link KnownHeaders} id of that name
+     */
+    boolean matches(String name, int id) {
+        if (id != KnownHeaders.UNKNOWN) {
+            return this.id == id;
+        }
+        // A well-known name never matches a name outside the table
+        return this.id == KnownHeaders.UNKNOWN && nameB.equalsIgnoreCase(name);
+    }
+
     public MessageBytes getName() {
         return nameB;
     }
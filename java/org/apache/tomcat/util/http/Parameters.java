@@ -20,14 +20,14 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.apache.tomcat.util.buf.B2CConverter;
 import org.apache.tomcat.util.buf.ByteChunk;
-import org.apache.tomcat.util.buf.CharChunk;
 import org.apache.tomcat.util.buf.MessageBytes;
 import org.apache.tomcat.util.buf.UDecoder;
 import org.apache.tomcat.util.log.UserDataHelper;
@@ -49,8 +49,47 @@ public final class Parameters {
     static final StringManager sm =
         StringManager.getManager("org.apache.tomcat.util.http");
 
-    private final Map<String,ArrayList<String>> paramHashValues =
-            new LinkedHashMap<String,ArrayList<String>>();
+    /*
+     * Parameters are stored in the order they were added. A parameter parsed
+     * from bytes is kept as offsets into those bytes and its name and value
+     * are only URL and charset decoded when a lookup needs them. The decoded
+     * Strings are cached in names and values; a parameter added as Strings
+     * has no bytes. The arrays are reused across requests.
+     */
+    private static final int INITIAL_SIZE = 16;
+
+    private static final int DECODE_NAME = 1;
+    private static final int DECODE_VALUE = 2;
+    private static final int HAS_VALUE = 4;
+    // The name bytes can be compared with a String without decoding them:
+    // each byte is one char (LATIN1) or each byte below 0x80 is (ASCII)
+    private static final int RAW_NAME_LATIN1 = 8;
+    private static final int RAW_NAME_ASCII = 16;
+    // Added by addParameterValues() with no values: the name exists but
+    // contributes no value
+    private static final int NO_VALUES = 32;
+
+    private int count = 0;
+    private byte[][] paramBytes = new byte[INITIAL_SIZE][];
+    private int[] nameStart = new int[INITIAL_SIZE];
+    private int[] nameEnd = new int[INITIAL_SIZE];
+    private int[] valueStart = new int[INITIAL_SIZE];
+    private int[] valueEnd = new int[INITIAL_SIZE];
+    private int[] flags = new int[INITIAL_SIZE];
+    private Charset[] charsets = new Charset[INITIAL_SIZE];
+    private String[] names = new String[INITIAL_SIZE];
+    private String[] values = new String[INITIAL_SIZE];
+
+    private static final int SCAN_MAX_COUNT = 8;
+    private static final int SCAN_MAX_LOOKUPS = 4;
+
+    // Open addressing index of entry + 1 for the first entry of each name,
+    // with the later entries of the same name chained through nextSame
+    private int[] index = new int[INITIAL_SIZE * 2];
+    private int[] nextSame = new int[INITIAL_SIZE];
+    private int[] lastSame = new int[INITIAL_SIZE];
+    private int indexed = 0;
+    private int scans = 0;
 
     private boolean didQueryParameters=false;
 
@@ -121,7 +160,17 @@ public final class Parameters {
 
     public void recycle() {
         parameterCount = 0;
-        paramHashValues.clear();
+        // Release the references so large request bodies can be collected
+        Arrays.fill(paramBytes, 0, count, null);
+        Arrays.fill(charsets, 0, count, null);
+        Arrays.fill(names, 0, count, null);
+        Arrays.fill(values, 0, count, null);
+        count = 0;
+        if (indexed > 0) {
+            Arrays.fill(index, 0);
+            indexed = 0;
+        }
+        scans = 0;
         didQueryParameters=false;
         encoding=null;
         decodedQuery.recycle();
@@ -138,45 +187,263 @@ public final class Parameters {
         if (key == null) {
             return;
         }
-        ArrayList<String> values = paramHashValues.get(key);
-        if (values == null) {
-            values = new ArrayList<String>(newValues.length);
-            paramHashValues.put(key, values);
-        } else {
-            values.ensureCapacity(values.size() + newValues.length);
+        if (newValues.length == 0) {
+            int i = addEntry(null, NO_VALUES, null);
+            names[i] = key;
+            return;
         }
         for (String newValue : newValues) {
-            values.add(newValue);
+            int i = addEntry(null, HAS_VALUE, null);
+            names[i] = key;
+            values[i] = newValue;
         }
     }
 
     public String[] getParameterValues(String name) {
         handleQueryParameters();
         // no "facade"
-        ArrayList<String> values = paramHashValues.get(name);
-        if (values == null) {
+        int first = findFirst(name);
+        if (first == -1) {
             return null;
         }
-        return values.toArray(new String[values.size()]);
+        int found = 0;
+        for (int i = first; i != -1; i = findNext(i, name)) {
+            if ((flags[i] & NO_VALUES) == 0) {
+                found++;
+            }
+        }
+        String[] result = new String[found];
+        int n = 0;
+        for (int i = first; n < found; i = findNext(i, name)) {
+            if ((flags[i] & NO_VALUES) == 0) {
+                result[n++] = getValue(i);
+            }
+        }
+        return result;
     }
 
     public Enumeration<String> getParameterNames() {
         handleQueryParameters();
-        return Collections.enumeration(paramHashValues.keySet());
+        // All the names are needed anyway so index them
+        updateIndex();
+        ArrayList<String> result = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            if (isFirst(i)) {
+                result.add(names[i]);
+            }
+        }
+        return Collections.enumeration(result);
     }
 
     public String getParameter(String name ) {
         handleQueryParameters();
-        ArrayList<String> values = paramHashValues.get(name);
-        if (values != null) {
-            if(values.size() == 0) {
-                return "";
-            }
-            return values.get(0);
-        } else {
+        int i = findFirst(name);
+        if (i == -1) {
             return null;
         }
+        for (; i != -1; i = findNext(i, name)) {
+            if ((flags[i] & NO_VALUES) == 0) {
+                return getValue(i);
+            }
+        }
+        return "";
+    }
+
+
+    private int addEntry(byte[] bytes, int entryFlags, Charset charset) {
+        if (count == paramBytes.length) {
+            int size = count * 2;
+            paramBytes = Arrays.copyOf(paramBytes, size);
+            nameStart = Arrays.copyOf(nameStart, size);
+            nameEnd = Arrays.copyOf(nameEnd, size);
+            valueStart = Arrays.copyOf(valueStart, size);
+            valueEnd = Arrays.copyOf(valueEnd, size);
+            flags = Arrays.copyOf(flags, size);
+            charsets = Arrays.copyOf(charsets, size);
+            names = Arrays.copyOf(names, size);
+            values = Arrays.copyOf(values, size);
+            nextSame = Arrays.copyOf(nextSame, size);
+            lastSame = Arrays.copyOf(lastSame, size);
+        }
+        paramBytes[count] = bytes;
+        flags[count] = entryFlags;
+        charsets[count] = charset;
+        return count++;
+    }
+
+
+    /*
+     * A few lookups are cheaper as a scan that compares undecoded names. Once
+     * there are more, every name is decoded and a hash index is used.
+     */
+    private int findFirst(String name) {
+        if (indexed == 0 && (count <= SCAN_MAX_COUNT || scans++ < SCAN_MAX_LOOKUPS)) {
+            for (int i = 0; i < count; i++) {
+                if (nameEquals(i, name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        updateIndex();
+        int mask = index.length - 1;
+        int slot = hash(name) & mask;
+        int i;
+        while ((i = index[slot] - 1) != -1) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+
+    private int findNext(int i, String name) {
+        if (i < indexed) {
+            int next = nextSame[i];
+            return next < count ? next : -1;
+        }
+        for (int j = i + 1; j < count; j++) {
+            if (nameEquals(j, name)) {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+
+    private boolean isFirst(int i) {
+        int mask = index.length - 1;
+        int slot = hash(names[i]) & mask;
+        int j;
+        while ((j = index[slot] - 1) != -1) {
+            if (j == i) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+
+    private void updateIndex() {
+        if (indexed == count) {
+            return;
+        }
+        if (index.length < count * 2) {
+            // Keep the load factor below one half
+            int size = index.length;
+            while (size < count * 2) {
+                size *= 2;
+            }
+            index = new int[size];
+            indexed = 0;
+        }
+        int mask = index.length - 1;
+        for (int i = indexed; i < count; i++) {
+            String name = getName(i);
+            nextSame[i] = -1;
+            int slot = hash(name) & mask;
+            while (true) {
+                int j = index[slot] - 1;
+                if (j == -1) {
+                    index[slot] = i + 1;
+                    lastSame[i] = i;
+                    break;
+                }
+                if (names[j].equals(name)) {
+                    nextSame[lastSame[j]] = i;
+                    lastSame[j] = i;
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+        indexed = count;
+    }
+
+
+    private static int hash(String name) {
+        int h = name.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+
+    private boolean nameEquals(int i, String name) {
+        String decoded = names[i];
+        if (decoded != null) {
+            return decoded.equals(name);
+        }
+        int f = flags[i];
+        if ((f & (RAW_NAME_LATIN1 | RAW_NAME_ASCII)) != 0) {
+            byte[] bytes = paramBytes[i];
+            int start = nameStart[i];
+            int len = nameEnd[i] - start;
+            if ((f & RAW_NAME_LATIN1) == 0) {
+                for (int j = 0; j < len; j++) {
+                    if (bytes[start + j] < 0) {
+                        // Multi-byte sequence, needs decoding
+                        return getName(i).equals(name);
+                    }
+                }
+            }
+            if (len != name.length()) {
+                return false;
+            }
+            for (int j = 0; j < len; j++) {
+                if (name.charAt(j) != (bytes[start + j] & 0xFF)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return getName(i).equals(name);
+    }
+
+
+    private String getName(int i) {
+        String result = names[i];
+        if (result == null) {
+            result = decode(i, nameStart[i], nameEnd[i], (flags[i] & DECODE_NAME) != 0);
+            names[i] = result;
+        }
+        return result;
+    }
+
+
+    private String getValue(int i) {
+        String result = values[i];
+        if (result == null) {
+            if ((flags[i] & HAS_VALUE) == 0) {
+                result = "";
+            } else {
+                result = decode(i, valueStart[i], valueEnd[i],
+                        (flags[i] & DECODE_VALUE) != 0);
+            }
+            values[i] = result;
+        }
+        return result;
     }
+
+
+    private String decode(int i, int start, int end, boolean urlDecode) {
+        tmpName.setBytes(paramBytes[i], start, end - start);
+        if (urlDecode) {
+            try {
+                urlDecode(tmpName);
+            } catch (IOException e) {
+                // Can't happen, the encoding was checked when parsing
+                throw new IllegalStateException(e);
+            }
+        }
+        tmpName.setCharset(charsets[i]);
+        String result = tmpName.toString();
+        tmpName.recycle();
+        return result;
+    }
+
+
     // -------------------- Processing --------------------
     /** Process the query string into parameters
      */
@@ -214,6 +481,14 @@ public final class Parameters {
             return;
         }
 
+        checkLimit();
+
+        int i = addEntry(null, HAS_VALUE, null);
+        names[i] = key;
+        values[i] = value;
+    }
+
+    private void checkLimit() throws IllegalStateException {
         parameterCount ++;
         if (limit > -1 && parameterCount > limit) {
             // Processing this parameter will push us over the limit. ISE is
@@ -222,13 +497,6 @@ public final class Parameters {
             throw new IllegalStateException(sm.getString(
                     "parameters.maxCountFail", Integer.valueOf(limit)));
         }
-
-        ArrayList<String> values = paramHashValues.get(key);
-        if (values == null) {
-            values = new ArrayList<String>(1);
-            paramHashValues.put(key, values);
-        }
-        values.add(value);
     }
 
     public void setURLDecoder( UDecoder u ) {
@@ -239,15 +507,17 @@ public final class Parameters {
     // we are called from a single thread - we can do it the hard way
     // if needed
     ByteChunk tmpName=new ByteChunk();
-    ByteChunk tmpValue=new ByteChunk();
-    private final ByteChunk origName=new ByteChunk();
-    private final ByteChunk origValue=new ByteChunk();
-    CharChunk tmpNameC=new CharChunk(1024);
     public static final String DEFAULT_ENCODING = "ISO-8859-1";
     private static final Charset DEFAULT_CHARSET =
         Charset.forName(DEFAULT_ENCODING);
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
 
 
+    /**
+     * Parse parameters from the given bytes. The bytes are not copied: they
+     * must not be modified until {@link #recycle()} is called since names and
+     * values are only decoded when they are looked up.
+     */
     public void processParameters( byte bytes[], int start, int len ) {
         processParameters(bytes, start, len, getCharset(encoding));
     }
@@ -369,85 +639,32 @@ public final class Parameters {
                 // invalid chunk - it's better to ignore
             }
 
-            tmpName.setBytes(bytes, nameStart, nameEnd - nameStart);
-            if (valueStart >= 0) {
-                tmpValue.setBytes(bytes, valueStart, valueEnd - valueStart);
-            } else {
-                tmpValue.setBytes(bytes, 0, 0);
-            }
-
-            // Take copies as if anything goes wrong originals will be
-            // corrupted. This means original values can be logged.
-            // For performance - only done for debug
-            if (log.isDebugEnabled()) {
-                try {
-                    origName.append(bytes, nameStart, nameEnd - nameStart);
-                    if (valueStart >= 0) {
-                        origValue.append(bytes, valueStart, valueEnd - valueStart);
-                    } else {
-                        origValue.append(bytes, 0, 0);
-                    }
-                } catch (IOException ioe) {
-                    // Should never happen...
-                    log.error(sm.getString("parameters.copyFail"), ioe);
-                }
-            }
-
-            try {
-                String name;
-                String value;
-
-                if (decodeName) {
-                    urlDecode(tmpName);
-                }
-                tmpName.setCharset(charset);
-                name = tmpName.toString();
-
-                if (valueStart >= 0) {
-                    if (decodeValue) {
-                        urlDecode(tmpValue);
-                    }
-                    tmpValue.setCharset(charset);
-                    value = tmpValue.toString();
-                } else {
-                    value = "";
-                }
-
-                try {
-                    addParameter(name, value);
-                } catch (IllegalStateException ise) {
-                    // Hitting limit stops processing further params but does
-                    // not cause request to fail.
-                    UserDataHelper.Mode logMode = maxParamCountLog.getNextMode();
-                    if (logMode != null) {
-                        String message = ise.getMessage();
-                        switch (logMode) {
-                            case INFO_THEN_DEBUG:
-                                message += sm.getString(
-                                        "parameters.maxCountFail.fallToDebug");
-                                //$FALL-THROUGH$
-                            case INFO:
-                                log.info(message);
-                                break;
-                            case DEBUG:
-                                log.debug(message);
-                        }
-                    }
-                    break;
-                }
-            } catch (IOException e) {
+            // Only check the %xx encoding here so that failures are reported
+            // as before. Decoding waits until the parameter is looked up.
+            if ((decodeName && !isValidEncoding(bytes, nameStart, nameEnd)) ||
+                    (decodeValue && !isValidEncoding(bytes, valueStart, valueEnd))) {
                 setParseFailedReason(FailReason.URL_DECODING);
                 decodeFailCount++;
                 if (decodeFailCount == 1 || log.isDebugEnabled()) {
+                    String name = new String(bytes, nameStart, nameEnd - nameStart,
+                            DEFAULT_CHARSET);
+                    String value = valueStart >= 0 ? new String(bytes, valueStart,
+                            valueEnd - valueStart, DEFAULT_CHARSET) : "";
                     if (log.isDebugEnabled()) {
+                        IOException cause = null;
+                        if (decodeName) {
+                            cause = getDecodeFailure(bytes, nameStart, nameEnd);
+                        }
+                        if (cause == null) {
+                            cause = getDecodeFailure(bytes, valueStart, valueEnd);
+                        }
                         log.debug(sm.getString("parameters.decodeFail.debug",
-                                origName.toString(), origValue.toString()), e);
+                                name, value), cause);
                     } else if (log.isInfoEnabled()) {
                         UserDataHelper.Mode logMode = userDataLog.getNextMode();
                         if (logMode != null) {
                             String message = sm.getString(
-                                    "parameters.decodeFail.info",
-                                    tmpName.toString(), tmpValue.toString());
+                                    "parameters.decodeFail.info", name, value);
                             switch (logMode) {
                                 case INFO_THEN_DEBUG:
                                     message += sm.getString("parameters.fallToDebug");
@@ -461,15 +678,51 @@ public final class Parameters {
                         }
                     }
                 }
+                continue;
+            }
+
+            try {
+                checkLimit();
+            } catch (IllegalStateException ise) {
+                // Hitting limit stops processing further params but does
+                // not cause request to fail.
+                UserDataHelper.Mode logMode = maxParamCountLog.getNextMode();
+                if (logMode != null) {
+                    String message = ise.getMessage();
+                    switch (logMode) {
+                        case INFO_THEN_DEBUG:
+                            message += sm.getString(
+                                    "parameters.maxCountFail.fallToDebug");
+                            //$FALL-THROUGH$
+                        case INFO:
+                            log.info(message);
+                            break;
+                        case DEBUG:
+                            log.debug(message);
+                    }
+                }
+                break;
             }
 
-            tmpName.recycle();
-            tmpValue.recycle();
-            // Only recycle copies if we used them
-            if (log.isDebugEnabled()) {
-                origName.recycle();
-                origValue.recycle();
+            int entryFlags = 0;
+            if (decodeName) {
+                entryFlags |= DECODE_NAME;
+            } else if (DEFAULT_CHARSET.equals(charset)) {
+                entryFlags |= RAW_NAME_LATIN1;
+            } else if (B2CConverter.UTF_8.equals(charset) || US_ASCII.equals(charset)) {
+                entryFlags |= RAW_NAME_ASCII;
             }
+            if (valueStart >= 0) {
+                entryFlags |= HAS_VALUE;
+                if (decodeValue) {
+                    entryFlags |= DECODE_VALUE;
+                }
+            }
+            int i = addEntry(bytes, entryFlags, charset);
+            this.nameStart[i] = nameStart;
+            this.nameEnd[i] = nameEnd;
+            this.valueStart[i] = valueStart;
+            this.valueEnd[i] = valueEnd;
         }
 
         if (decodeFailCount > 1 && !log.isDebugEnabled()) {
@@ -500,6 +753,21 @@ public final class Parameters {
         urlDec.convert(bc, true);
     }
 
+    /*
+     * Decodes a copy of a name or value that failed validation to obtain the
+     * reason for the failure. Only used for debug logging.
+     */
+    private IOException getDecodeFailure(byte[] bytes, int start, int end) {
+        ByteChunk bc = new ByteChunk();
+        bc.setBytes(Arrays.copyOfRange(bytes, start, end), 0, end - start);
+        try {
+            urlDecode(bc);
+        } catch (IOException e) {
+            return e;
+        }
+        return null;
+    }
+
     public void processParameters( MessageBytes data, String encoding ) {
         if( data==null || data.isNull() || data.getLength() <= 0 ) {
             return;
@@ -529,10 +797,11 @@ public final class Parameters {
      */
     public String paramsAsString() {
         StringBuilder sb = new StringBuilder();
-        for (Map.Entry<String, ArrayList<String>> e : paramHashValues.entrySet()) {
-            sb.append(e.getKey()).append('=');
-            ArrayList<String> values = e.getValue();
-            for (String value : values) {
+        Enumeration<String> names = getParameterNames();
+        while (names.hasMoreElements()) {
+            String name = names.nextElement();
+            sb.append(name).append('=');
+            for (String value : getParameterValues(name)) {
                 sb.append(value).append(',');
             }
             sb.append('\n');
@@ -541,6 +810,26 @@ public final class Parameters {
     }
 
 
+    private static boolean isValidEncoding(byte[] bytes, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == '%') {
+                if (i + 2 >= end || !isHexDigit(bytes[i + 1]) ||
+                        !isHexDigit(bytes[i + 2])) {
+                    return false;
+                }
+                i += 2;
+            }
+        }
+        return true;
+    }
+
+
+    private static boolean isHexDigit(byte c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') ||
+                (c >= 'A' && c <= 'F');
+    }
+
+
     public enum FailReason {
         CLIENT_DISCONNECT,
         MULTIPART_CONFIG_INVALID,
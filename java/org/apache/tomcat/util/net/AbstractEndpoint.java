@@ -28,6 +28,7 @@ import java.util.HashMap;
 import java.util.StringTokenizer;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLEngine;
@@ -37,11 +38,14 @@ import org.apache.tomcat.util.IntrospectionUtils;
 import org.apache.tomcat.util.compat.JreCompat;
 import org.apache.tomcat.util.net.AbstractEndpoint.Acceptor.AcceptorState;
 import org.apache.tomcat.util.res.StringManager;
+import org.apache.tomcat.util.threads.AdaptiveLimiter;
+import org.apache.tomcat.util.threads.CoDelController;
 import org.apache.tomcat.util.threads.LimitLatch;
 import org.apache.tomcat.util.threads.ResizableExecutor;
 import org.apache.tomcat.util.threads.TaskQueue;
 import org.apache.tomcat.util.threads.TaskThreadFactory;
 import org.apache.tomcat.util.threads.ThreadPoolExecutor;
+import org.apache.tomcat.util.threads.VirtualThreadExecutor;
 
 /**
  *
@@ -226,6 +230,188 @@ public abstract class AbstractEndpoint<S> {
         return -1;
     }
 
+
+    /**
+     * Limit the number of requests processed concurrently to a value derived
+     * from the observed request latency. Requests above the limit are
+     * rejected at once with a 503 response. maxConnections still limits the
+     * number of connections.
+     */
+    private boolean adaptiveLimit = false;
+    public void setAdaptiveLimit(boolean adaptiveLimit) {
+        this.adaptiveLimit = adaptiveLimit;
+    }
+    public boolean getAdaptiveLimit() { return adaptiveLimit; }
+
+    /**
+     * The smallest number of concurrent requests the adaptive limit may
+     * allow.
+     */
+    private int adaptiveLimitMin = 10;
+    public void setAdaptiveLimitMin(int adaptiveLimitMin) {
+        this.adaptiveLimitMin = adaptiveLimitMin;
+    }
+    public int getAdaptiveLimitMin() { return adaptiveLimitMin; }
+
+    /**
+     * The largest number of concurrent requests the adaptive limit may allow.
+     * -1 means maxConnections, or 10000 if connections are not limited.
+     */
+    private int adaptiveLimitMax = -1;
+    public void setAdaptiveLimitMax(int adaptiveLimitMax) {
+        this.adaptiveLimitMax = adaptiveLimitMax;
+    }
+    public int getAdaptiveLimitMax() { return adaptiveLimitMax; }
+
+    private volatile AdaptiveLimiter adaptiveLimiter = null;
+
+    /**
+     * @return the limiter requests must obtain a permit from before they are
+     *         processed, or <code>null</code> if requests are not limited
+     */
+    public AdaptiveLimiter getAdaptiveLimiter() { return adaptiveLimiter; }
+
+    /**
+     * @return the current adaptive request limit, or -1 if requests are not
+     *         limited. Visible on the "ThreadPool" MBean.
+     */
+    public int getAdaptiveLimitCurrent() {
+        AdaptiveLimiter limiter = adaptiveLimiter;
+        return (limiter != null) ? limiter.getLimit() : -1;
+    }
+
+    /**
+     * @return the number of requests holding an adaptive limit permit, or -1
+     *         if requests are not limited
+     */
+    public int getAdaptiveLimitInFlight() {
+        AdaptiveLimiter limiter = adaptiveLimiter;
+        return (limiter != null) ? limiter.getInFlight() : -1;
+    }
+
+    /**
+     * @return the number of requests rejected by the adaptive limit, or -1 if
+     *         requests are not limited
+     */
+    public long getAdaptiveLimitRejectedCount() {
+        AdaptiveLimiter limiter = adaptiveLimiter;
+        return (limiter != null) ? limiter.getRejectedCount() : -1;
+    }
+
+    /**
+     * The queue wait, in milliseconds, that is acceptable for a request. If
+     * requests wait longer than this for a whole queueDelayInterval, new
+     * requests that waited more than twice as long are rejected at once with
+     * a 503 response. -1 disables shedding.
+     */
+    private int queueDelayTarget = -1;
+    public void setQueueDelayTarget(int queueDelayTarget) {
+        this.queueDelayTarget = queueDelayTarget;
+    }
+    public int getQueueDelayTarget() { return queueDelayTarget; }
+
+    /**
+     * The period, in milliseconds, over which the shortest queue wait is
+     * compared with queueDelayTarget.
+     */
+    private int queueDelayInterval = 100;
+    public void setQueueDelayInterval(int queueDelayInterval) {
+        this.queueDelayInterval = queueDelayInterval;
+    }
+    public int getQueueDelayInterval() { return queueDelayInterval; }
+
+    private volatile CoDelController queueDelayController = null;
+
+    private final AtomicLong queueDelayCount = new AtomicLong(0);
+    private final AtomicLong queueDelayTime = new AtomicLong(0);
+    private final AtomicLong queueDelayMaxTime = new AtomicLong(0);
+    private final AtomicLong queueShedCount = new AtomicLong(0);
+
+    /**
+     * @return the number of tasks that have waited in the executor queue
+     */
+    public long getQueueDelayCount() { return queueDelayCount.get(); }
+
+    /**
+     * @return the total time, in milliseconds, tasks have waited in the
+     *         executor queue
+     */
+    public long getQueueDelayTime() {
+        return TimeUnit.NANOSECONDS.toMillis(queueDelayTime.get());
+    }
+
+    /**
+     * @return the longest time, in milliseconds, a task has waited in the
+     *         executor queue
+     */
+    public long getQueueDelayMaxTime() {
+        return TimeUnit.NANOSECONDS.toMillis(queueDelayMaxTime.get());
+    }
+
+    /**
+     * @return the number of requests rejected because they waited too long
+     *         in the executor queue
+     */
+    public long getQueueShedCount() { return queueShedCount.get(); }
+
+    /**
+     * @return <code>true</code> if requests that waited too long in the
+     *         executor queue are currently being rejected
+     */
+    public boolean isQueueOverloaded() {
+        CoDelController controller = queueDelayController;
+        return controller != null && controller.isOverloaded();
+    }
+
+    public void resetQueueDelayStats() {
+        queueDelayCount.set(0);
+        queueDelayTime.set(0);
+        queueDelayMaxTime.set(0);
+        queueShedCount.set(0);
+    }
+
+    /**
+     * Record the time a socket processor spent in the executor queue before
+     * it started to run and mark the socket as overdue if the request about
+     * to be read should be rejected with a 503 response. Only reads of new
+     * requests that are not high priority are rejected.
+     *
+     * @param enqueueTime   The value of {@link System#nanoTime()} when the
+     *                      processor was passed to the executor
+     * @param socket        The socket the processor is about to process
+     * @param status        The status the processor will process the socket
+     *                      with
+     */
+    protected void recordQueueDelay(long enqueueTime, SocketWrapper<S> socket,
+            SocketStatus status) {
+        long now = System.nanoTime();
+        long delay = now - enqueueTime;
+        queueDelayCount.incrementAndGet();
+        queueDelayTime.addAndGet(delay);
+        long max = queueDelayMaxTime.get();
+        while (delay > max && !queueDelayMaxTime.compareAndSet(max, delay)) {
+            max = queueDelayMaxTime.get();
+        }
+        CoDelController controller = queueDelayController;
+        if (controller == null || socket == null) {
+            return;
+        }
+        if (controller.onDequeue(delay, now) &&
+                (status == null || status == SocketStatus.OPEN_READ) &&
+                !socket.isHighPriority()) {
+            // Cleared by the processor once the request has been rejected
+            socket.setOverdue(true);
+        }
+    }
+
+    /**
+     * Count a request that was rejected because it waited too long in the
+     * executor queue.
+     */
+    public void incrementQueueShedCount() {
+        queueShedCount.incrementAndGet();
+    }
+
     /**
      * External Executor based thread pool.
      * // 如果没有给Connector配置executor，那么将使用默认的线程池， 创建逻辑在JioEndpoint的startInternal方法中
@@ -238,6 +424,18 @@ public abstract class AbstractEndpoint<S> {
     public Executor getExecutor() { return executor; }
 
 
+    /**
+     * Should the internal executor run each request on a new virtual thread
+     * rather than on a pooled platform thread? Ignored, with a warning, if
+     * the JRE does not support virtual threads.
+     */
+    private boolean useVirtualThreads = false;
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+    }
+    public boolean getUseVirtualThreads() { return useVirtualThreads; }
+
+
     /**
      * Server socket port.
      */
@@ -528,6 +726,8 @@ public abstract class AbstractEndpoint<S> {
                 return ((ThreadPoolExecutor) executor).getPoolSize();
             } else if (executor instanceof ResizableExecutor) {
                 return ((ResizableExecutor) executor).getPoolSize();
+            } else if (executor instanceof VirtualThreadExecutor) {
+                return ((VirtualThreadExecutor) executor).getActiveCount();
             } else {
                 return -1;
             }
@@ -548,6 +748,8 @@ public abstract class AbstractEndpoint<S> {
                 return ((ThreadPoolExecutor) executor).getActiveCount();
             } else if (executor instanceof ResizableExecutor) {
                 return ((ResizableExecutor) executor).getActiveCount();
+            } else if (executor instanceof VirtualThreadExecutor) {
+                return ((VirtualThreadExecutor) executor).getActiveCount();
             } else {
                 return -1;
             }
@@ -556,6 +758,34 @@ public abstract class AbstractEndpoint<S> {
         }
     }
 
+    private static final long THREADS_BUSY_SAMPLE_INTERVAL =
+            TimeUnit.MILLISECONDS.toNanos(100);
+    private volatile long threadsBusySampleTime =
+            System.nanoTime() - THREADS_BUSY_SAMPLE_INTERVAL - 1;
+    private volatile int threadsBusyPercent = -1;
+
+    /**
+     * Return the share of worker threads that are in use. Counting the busy
+     * threads of a ThreadPoolExecutor takes its main lock so the value is
+     * sampled at most every 100ms.
+     *
+     * @return the percentage of busy threads or -1 if it is not known
+     */
+    public int getThreadsBusyPercent() {
+        long now = System.nanoTime();
+        if (now - threadsBusySampleTime > THREADS_BUSY_SAMPLE_INTERVAL) {
+            threadsBusySampleTime = now;
+            int busy = getCurrentThreadsBusy();
+            int max = getMaxThreads();
+            if (busy < 0 || max <= 0) {
+                threadsBusyPercent = -1;
+            } else {
+                threadsBusyPercent = (int) (busy * 100L / max);
+            }
+        }
+        return threadsBusyPercent;
+    }
+
     public boolean isRunning() {
         return running;
     }
@@ -568,6 +798,13 @@ public abstract class AbstractEndpoint<S> {
     public void createExecutor() {
         // 是否使用的是内部默认的线程池
         internalExecutor = true;
+        if (getUseVirtualThreads()) {
+            if (VirtualThreadExecutor.isSupported()) {
+                executor = new VirtualThreadExecutor(getName() + "-virt-");
+                return;
+            }
+            getLog().warn(sm.getString("endpoint.warn.noVirtualThreads", getName()));
+        }
         TaskQueue taskqueue = new TaskQueue();
         TaskThreadFactory tf = new TaskThreadFactory(getName() + "-exec-", daemon, getThreadPriority());
         // 默认的线程数量为10, max200
@@ -596,6 +833,20 @@ public abstract class AbstractEndpoint<S> {
                 }
                 TaskQueue queue = (TaskQueue) tpe.getQueue();
                 queue.setParent(null);
+            } else if (executor instanceof VirtualThreadExecutor) {
+                VirtualThreadExecutor vte = (VirtualThreadExecutor) executor;
+                vte.shutdown();
+                long timeout = getExecutorTerminationTimeoutMillis();
+                if (timeout > 0) {
+                    try {
+                        vte.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        // Ignore
+                    }
+                    if (!vte.isTerminated()) {
+                        getLog().warn(sm.getString("endpoint.warn.executorShutdown", getName()));
+                    }
+                }
             }
         }
     }
@@ -772,6 +1023,20 @@ public abstract class AbstractEndpoint<S> {
             bind();
             bindState = BindState.BOUND_ON_START;
         }
+        if (getAdaptiveLimit()) {
+            int max = getAdaptiveLimitMax();
+            if (max == -1) {
+                max = (getMaxConnections() > 0) ? getMaxConnections() : 10000;
+            }
+            int min = Math.min(getAdaptiveLimitMin(), max);
+            adaptiveLimiter = new AdaptiveLimiter(getMaxThreads(), min, max);
+        }
+        if (getQueueDelayTarget() > 0) {
+            queueDelayController = new CoDelController(
+                    TimeUnit.MILLISECONDS.toNanos(getQueueDelayTarget()),
+                    TimeUnit.MILLISECONDS.toNanos(
+                            Math.max(1, getQueueDelayInterval())));
+        }
         startInternal();
     }
 
@@ -823,6 +1088,8 @@ public abstract class AbstractEndpoint<S> {
 
     public final void stop() throws Exception {
         stopInternal();
+        adaptiveLimiter = null;
+        queueDelayController = null;
         if (bindState == BindState.BOUND_ON_START) {
             unbind();
             bindState = BindState.UNBOUND;
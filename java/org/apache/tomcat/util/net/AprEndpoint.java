@@ -30,6 +30,7 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
@@ -50,6 +51,7 @@ import org.apache.tomcat.util.ExceptionUtils;
 import org.apache.tomcat.util.net.AbstractEndpoint.Acceptor.AcceptorState;
 import org.apache.tomcat.util.net.AbstractEndpoint.Handler.SocketState;
 import org.apache.tomcat.util.security.PrivilegedSetTccl;
+import org.apache.tomcat.util.threads.PriorityTask;
 
 
 /**
@@ -983,7 +985,9 @@ public class AprEndpoint extends AbstractEndpoint<Long> {
     public void processSocketAsync(SocketWrapper<Long> socket,
             SocketStatus status) {
         try {
-            synchronized (socket) {
+            Lock lock = socket.getLock();
+            lock.lock();
+            try {
                 if (waitingRequests.remove(socket)) {
                     SocketProcessor proc = new SocketProcessor(socket, status);
                     ClassLoader loader = Thread.currentThread().getContextClassLoader();
@@ -1014,6 +1018,8 @@ public class AprEndpoint extends AbstractEndpoint<Long> {
                         }
                     }
                 }
+            } finally {
+                lock.unlock();
             }
         } catch (RejectedExecutionException x) {
             log.warn("Socket processing request was rejected for: "+socket, x);
@@ -2500,7 +2506,9 @@ public class AprEndpoint extends AbstractEndpoint<Long> {
         @Override
         public void run() {
 
-            synchronized (socket) {
+            Lock lock = socket.getLock();
+            lock.lock();
+            try {
                 if (!deferAccept) {
                     if (setSocketOptions(socket.getSocket().longValue())) {
                         getPoller().add(socket.getSocket().longValue(),
@@ -2532,6 +2540,8 @@ public class AprEndpoint extends AbstractEndpoint<Long> {
                         }
                     }
                 }
+            } finally {
+                lock.unlock();
             }
         }
     }
@@ -2544,10 +2554,11 @@ public class AprEndpoint extends AbstractEndpoint<Long> {
      * This class is the equivalent of the Worker, but will simply use in an
      * external Executor thread pool.
      */
-    protected class SocketProcessor implements Runnable {
+    protected class SocketProcessor implements PriorityTask {
 
         private final SocketWrapper<Long> socket;
         private final SocketStatus status;
+        private final long enqueueTime = System.nanoTime();
 
         public SocketProcessor(SocketWrapper<Long> socket,
                 SocketStatus status) {
@@ -2559,19 +2570,34 @@ public class AprEndpoint extends AbstractEndpoint<Long> {
             this.status = status;
         }
 
+        @Override
+        public boolean isHighPriority() {
+            return socket.isHighPriority();
+        }
+
         @Override
         public void run() {
 
+            recordQueueDelay(enqueueTime, socket, status);
+
             // Upgraded connections need to allow multiple threads to access the
             // connection at the same time to enable blocking IO to be used when
             // Servlet 3.1 NIO has been configured
             if (socket.isUpgraded() && SocketStatus.OPEN_WRITE == status) {
-                synchronized (socket.getWriteThreadLock()) {
+                Lock lock = socket.getWriteThreadLock();
+                lock.lock();
+                try {
                     doRun();
+                } finally {
+                    lock.unlock();
                 }
             } else {
-                synchronized (socket) {
+                Lock lock = socket.getLock();
+                lock.lock();
+                try {
                     doRun();
+                } finally {
+                    lock.unlock();
                 }
             }
         }
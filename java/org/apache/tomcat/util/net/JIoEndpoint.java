@@ -24,12 +24,14 @@ import java.security.PrivilegedAction;
 import java.util.Iterator;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
 
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 import org.apache.tomcat.util.ExceptionUtils;
 import org.apache.tomcat.util.net.AbstractEndpoint.Handler.SocketState;
 import org.apache.tomcat.util.security.PrivilegedSetTccl;
+import org.apache.tomcat.util.threads.PriorityTask;
 
 
 /**
@@ -301,10 +303,11 @@ public class JIoEndpoint extends AbstractEndpoint<Socket> {
      *
      *
      */
-    protected class SocketProcessor implements Runnable {
+    protected class SocketProcessor implements PriorityTask {
 
         protected SocketWrapper<Socket> socket = null;
         protected SocketStatus status = null;
+        protected final long enqueueTime = System.nanoTime();
 
         public SocketProcessor(SocketWrapper<Socket> socket) {
             if (socket==null) throw new NullPointerException();
@@ -316,10 +319,18 @@ public class JIoEndpoint extends AbstractEndpoint<Socket> {
             this.status = status;
         }
 
+        @Override
+        public boolean isHighPriority() {
+            return socket.isHighPriority();
+        }
+
         @Override
         public void run() {
             boolean launch = false;
-            synchronized (socket) {
+            recordQueueDelay(enqueueTime, socket, status);
+            Lock lock = socket.getLock();
+            lock.lock();
+            try {
                 // 开始处理socket
                 // Socket默认状态为OPEN
                 try {
@@ -396,6 +407,8 @@ public class JIoEndpoint extends AbstractEndpoint<Socket> {
                         }
                     }
                 }
+            } finally {
+                lock.unlock();
             }
             socket = null;
             // Finish up this request
@@ -630,7 +643,9 @@ public class JIoEndpoint extends AbstractEndpoint<Socket> {
     public void processSocketAsync(SocketWrapper<Socket> socket,
             SocketStatus status) {
         try {
-            synchronized (socket) {
+            Lock lock = socket.getLock();
+            lock.lock();
+            try {
                 if (waitingRequests.remove(socket)) {
                     SocketProcessor proc = new SocketProcessor(socket,status);
                     ClassLoader loader = Thread.currentThread().getContextClassLoader();
@@ -659,6 +674,8 @@ public class JIoEndpoint extends AbstractEndpoint<Socket> {
                         }
                     }
                 }
+            } finally {
+                lock.unlock();
             }
         } catch (Throwable t) {
             ExceptionUtils.handleThrowable(t);
@@ -0,0 +1,223 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.tomcat.util.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Base class for a SocketChannel wrapper used by the NIO.2 endpoint.
+ * <p>
+ * The channel owns a read buffer and a write buffer. The read buffer is used
+ * by the endpoint to wait for data without tying up a thread: the endpoint
+ * starts an asynchronous read into it and the socket is only dispatched to a
+ * worker thread once the read completes. Any data read in this way is handed
+ * to the first reads performed by the processor. Reads and writes performed
+ * while a request is being processed wait on the returned {@link Future},
+ * using the read and write timeouts configured for the channel.
+ */
+public class Nio2Channel {
+
+    protected AsynchronousSocketChannel sc = null;
+
+    /**
+     * Always kept in "read" mode, i.e. the data available to the processor is
+     * between position and limit.
+     */
+    protected final ByteBuffer readBuffer;
+    protected final ByteBuffer writeBuffer;
+
+    protected volatile long readTimeout = -1;
+    protected volatile long writeTimeout = -1;
+
+    public Nio2Channel(AsynchronousSocketChannel channel, int readBufSize,
+            int writeBufSize, boolean direct) {
+        this.sc = channel;
+        if (direct) {
+            readBuffer = ByteBuffer.allocateDirect(readBufSize);
+            writeBuffer = ByteBuffer.allocateDirect(writeBufSize);
+        } else {
+            readBuffer = ByteBuffer.allocate(readBufSize);
+            writeBuffer = ByteBuffer.allocate(writeBufSize);
+        }
+        reset();
+    }
+
+    /**
+     * Reset the channel so it can be reused for a new connection.
+     */
+    public void reset() {
+        readBuffer.clear();
+        readBuffer.flip();
+        writeBuffer.clear();
+        readTimeout = -1;
+        writeTimeout = -1;
+    }
+
+    public void setIOChannel(AsynchronousSocketChannel sc) {
+        this.sc = sc;
+    }
+
+    public AsynchronousSocketChannel getIOChannel() {
+        return sc;
+    }
+
+    public ByteBuffer getReadBuffer() {
+        return readBuffer;
+    }
+
+    public ByteBuffer getWriteBuffer() {
+        return writeBuffer;
+    }
+
+    public int getBufferSize() {
+        return readBuffer.capacity() + writeBuffer.capacity();
+    }
+
+    public long getReadTimeout() { return readTimeout; }
+    public void setReadTimeout(long readTimeout) { this.readTimeout = readTimeout; }
+    public long getWriteTimeout() { return writeTimeout; }
+    public void setWriteTimeout(long writeTimeout) { this.writeTimeout = writeTimeout; }
+
+    /**
+     * Is there data in the read buffer that has not yet been consumed?
+     */
+    public boolean hasBufferedData() {
+        return readBuffer.hasRemaining();
+    }
+
+
+    /**
+     * Closes this channel.
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    public void close() throws IOException {
+        sc.close();
+    }
+
+    public boolean isOpen() {
+        return sc.isOpen();
+    }
+
+
+    /**
+     * Reads bytes into the given array, using data already buffered by the
+     * channel first. If no data is buffered, a read is performed and this
+     * method waits for it to complete.
+     *
+     * @param block If <code>false</code>, only buffered data will be returned
+     * @return The number of bytes read, possibly zero, or -1 if the channel
+     *         has reached end-of-stream
+     * @throws IOException If an I/O error occurs, including a read timeout
+     */
+    public int read(byte[] b, int off, int len, boolean block)
+            throws IOException {
+        if (!readBuffer.hasRemaining()) {
+            if (!block) {
+                return 0;
+            }
+            readBuffer.clear();
+            int nRead;
+            try {
+                nRead = get(sc.read(readBuffer), readTimeout);
+            } finally {
+                readBuffer.flip();
+            }
+            if (nRead < 0) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, readBuffer.remaining());
+        readBuffer.get(b, off, n);
+        return n;
+    }
+
+
+    /**
+     * Writes all the bytes in the given buffer, waiting for each underlying
+     * write to complete.
+     *
+     * @param src The buffer from which bytes are to be retrieved
+     * @return The number of bytes written
+     * @throws IOException If an I/O error occurs, including a write timeout
+     */
+    public int write(ByteBuffer src) throws IOException {
+        int written = 0;
+        while (src.hasRemaining()) {
+            int n = get(sc.write(src), writeTimeout);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            written += n;
+        }
+        return written;
+    }
+
+
+    /**
+     * Write the content of the write buffer to the socket and clear it.
+     */
+    public void flush() throws IOException {
+        if (writeBuffer.position() > 0) {
+            writeBuffer.flip();
+            try {
+                write(writeBuffer);
+            } finally {
+                writeBuffer.clear();
+            }
+        }
+    }
+
+
+    private int get(Future<Integer> future, long timeout) throws IOException {
+        try {
+            if (timeout > 0) {
+                return future.get(timeout, TimeUnit.MILLISECONDS).intValue();
+            } else {
+                return future.get().intValue();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else {
+                throw new IOException(e);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (TimeoutException e) {
+            // The channel is in an undefined state after a cancelled read or
+            // write so it has to be closed
+            future.cancel(true);
+            throw new SocketTimeoutException();
+        }
+    }
+
+
+    @Override
+    public String toString() {
+        return super.toString()+":"+this.sc.toString();
+    }
+}
@@ -0,0 +1,746 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.tomcat.util.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.ExceptionUtils;
+import org.apache.tomcat.util.collections.SynchronizedStack;
+import org.apache.tomcat.util.net.AbstractEndpoint.Handler.SocketState;
+import org.apache.tomcat.util.security.PrivilegedSetTccl;
+import org.apache.tomcat.util.threads.PriorityTask;
+import org.apache.tomcat.util.threads.TaskThreadFactory;
+
+
+/**
+ * NIO.2 endpoint, based on {@link AsynchronousSocketChannel}.
+ *
+ * Connections are accepted by the acceptor thread(s). Between requests no
+ * thread is tied up by a connection: an asynchronous read is started into the
+ * read buffer of the {@link Nio2Channel} and the socket is only handed to the
+ * executor once the read has completed. The completion handlers run on the
+ * threads of the channel group, which do nothing but dispatch to the executor.
+ * While a request is being processed, reads and writes wait for the completion
+ * of the I/O operation.
+ */
+public class Nio2Endpoint extends AbstractEndpoint<Nio2Channel> {
+
+
+    // -------------------------------------------------------------- Constants
+
+    private static final Log log = LogFactory.getLog(Nio2Endpoint.class);
+
+    // ----------------------------------------------------------------- Fields
+
+    /**
+     * Server socket "pointer".
+     */
+    private volatile AsynchronousServerSocketChannel serverSock = null;
+
+    /**
+     * Channel group used to run the completion handlers.
+     */
+    private AsynchronousChannelGroup threadGroup = null;
+
+    /**
+     * Bytebuffer cache, each channel holds a read and a write buffer
+     */
+    protected SynchronizedStack<Nio2Channel> nioChannels;
+
+    /**
+     * Completion handler for the reads that wait for the next request (or
+     * the next chunk of data for an upgraded connection).
+     */
+    private final CompletionHandler<Integer, SocketWrapper<Nio2Channel>> awaitBytesHandler =
+            new CompletionHandler<Integer, SocketWrapper<Nio2Channel>>() {
+
+        @Override
+        public void completed(Integer nBytes, SocketWrapper<Nio2Channel> socket) {
+            Nio2Channel channel = socket.getSocket();
+            if (channel == null) {
+                return;
+            }
+            channel.getReadBuffer().flip();
+            if (nBytes.intValue() < 0 || !processSocket(socket, SocketStatus.OPEN_READ)) {
+                closeSocket(socket);
+            }
+        }
+
+        @Override
+        public void failed(Throwable exc, SocketWrapper<Nio2Channel> socket) {
+            if (log.isDebugEnabled() && !(exc instanceof InterruptedByTimeoutException) &&
+                    !(exc instanceof AsynchronousCloseException)) {
+                log.debug(sm.getString("endpoint.debug.socketCloseFail"), exc);
+            }
+            closeSocket(socket);
+        }
+    };
+
+
+    // ------------------------------------------------------------ Constructor
+
+    public Nio2Endpoint() {
+        // Reduce the executor timeout as threads that are waiting for a read
+        // to complete will not terminate when the executor interrupts them.
+        setExecutorTerminationTimeoutMillis(0);
+    }
+
+
+    // ------------------------------------------------------------- Properties
+
+    /**
+     * Handling of accepted sockets.
+     */
+    protected Handler handler = null;
+    public void setHandler(Handler handler ) { this.handler = handler; }
+    public Handler getHandler() { return handler; }
+
+
+    /**
+     * Number of threads used by the channel group to run the completion
+     * handlers. These threads only dispatch sockets to the executor.
+     */
+    protected int pollerThreadCount = Math.min(2,Runtime.getRuntime().availableProcessors());
+    public void setPollerThreadCount(int pollerThreadCount) { this.pollerThreadCount = pollerThreadCount; }
+    public int getPollerThreadCount() { return pollerThreadCount; }
+
+
+    /**
+     * Port in use.
+     */
+    @Override
+    public int getLocalPort() {
+        AsynchronousServerSocketChannel ssc = serverSock;
+        if (ssc == null) {
+            return -1;
+        } else {
+            try {
+                SocketAddress sa = ssc.getLocalAddress();
+                if (sa instanceof InetSocketAddress) {
+                    return ((InetSocketAddress) sa).getPort();
+                } else {
+                    return -1;
+                }
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+    }
+
+
+    /*
+     * Optional feature support.
+     */
+    @Override
+    public boolean getUseSendfile() { return false; } // Not supported
+    @Override
+    public boolean getUseComet() { return false; } // Not supported
+    @Override
+    public boolean getUseCometTimeout() { return false; } // Not supported
+    @Override
+    public boolean getDeferAccept() { return false; } // Not supported
+    @Override
+    public boolean getUsePolling() { return true; } // Always supported
+
+
+    // ------------------------------------------------ Handler Inner Interface
+
+
+    /**
+     * Bare bones interface used for socket processing. Per thread data is to be
+     * stored in the ThreadWithAttributes extra folders, or alternately in
+     * thread local fields.
+     */
+    public interface Handler extends AbstractEndpoint.Handler {
+        public SocketState process(SocketWrapper<Nio2Channel> socket,
+                SocketStatus status);
+        public void release(SocketWrapper<Nio2Channel> socket);
+        public boolean isAvailable(SocketWrapper<Nio2Channel> socket);
+    }
+
+
+    /**
+     * Async timeout thread
+     */
+    protected class AsyncTimeout implements Runnable {
+        /**
+         * The background thread that checks async requests and fires the
+         * timeout if there has been no activity.
+         */
+        @Override
+        public void run() {
+
+            // Loop until we receive a shutdown command
+            while (running) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+                long now = System.currentTimeMillis();
+                Iterator<SocketWrapper<Nio2Channel>> sockets =
+                    waitingRequests.iterator();
+                while (sockets.hasNext()) {
+                    SocketWrapper<Nio2Channel> socket = sockets.next();
+                    long access = socket.getLastAccess();
+                    if (socket.getTimeout() > 0 && (now-access)>socket.getTimeout() ||
+                            !handler.isAvailable(socket)) {
+                        // Prevent multiple timeouts
+                        socket.setTimeout(-1);
+                        processSocketAsync(socket,SocketStatus.TIMEOUT);
+                    }
+                }
+
+                // Loop if endpoint is paused
+                while (paused && running) {
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException e) {
+                        // Ignore
+                    }
+                }
+
+            }
+        }
+    }
+
+
+    // --------------------------------------------------- Acceptor Inner Class
+
+    /**
+     * The background thread that listens for incoming TCP/IP connections and
+     * hands them off to an appropriate processor.
+     */
+    protected class Acceptor extends AbstractEndpoint.Acceptor {
+
+        @Override
+        public void run() {
+
+            int errorDelay = 0;
+
+            // Loop until we receive a shutdown command
+            while (running) {
+
+                // Loop if endpoint is paused
+                while (paused && running) {
+                    state = AcceptorState.PAUSED;
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        // Ignore
+                    }
+                }
+
+                if (!running) {
+                    break;
+                }
+                state = AcceptorState.RUNNING;
+
+                try {
+                    //if we have reached max connections, wait
+                    countUpOrAwaitConnection();
+
+                    AsynchronousSocketChannel socket = null;
+                    try {
+                        // Accept the next incoming connection from the server
+                        // socket
+                        socket = serverSock.accept().get();
+                    } catch (ExecutionException e) {
+                        countDownConnection();
+                        // Introduce delay if necessary
+                        errorDelay = handleExceptionWithDelay(errorDelay);
+                        // re-throw
+                        if (e.getCause() instanceof IOException) {
+                            throw (IOException) e.getCause();
+                        } else {
+                            throw new IOException(e.getCause());
+                        }
+                    }
+                    // Successful accept, reset the error delay
+                    errorDelay = 0;
+
+                    // Configure the socket
+                    if (running && !paused) {
+                        // setSocketOptions() will start waiting for data on
+                        // the socket if successful
+                        if (!setSocketOptions(socket)) {
+                            countDownConnection();
+                            closeSocket(socket);
+                        }
+                    } else {
+                        countDownConnection();
+                        closeSocket(socket);
+                    }
+                } catch (IOException x) {
+                    if (running) {
+                        log.error(sm.getString("endpoint.accept.fail"), x);
+                    }
+                } catch (NullPointerException npe) {
+                    if (running) {
+                        log.error(sm.getString("endpoint.accept.fail"), npe);
+                    }
+                } catch (Throwable t) {
+                    ExceptionUtils.handleThrowable(t);
+                    log.error(sm.getString("endpoint.accept.fail"), t);
+                }
+            }
+            state = AcceptorState.ENDED;
+        }
+    }
+
+
+    private void closeSocket(AsynchronousSocketChannel socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+
+    /**
+     * Close a socket that has been accepted by the endpoint: release the
+     * processor associated with it, close the channel and return the channel
+     * (and its buffers) to the cache.
+     */
+    protected void closeSocket(SocketWrapper<Nio2Channel> socket) {
+        Lock lock = socket.getLock();
+        lock.lock();
+        try {
+            Nio2Channel channel = socket.getSocket();
+            if (channel == null) {
+                // Already closed
+                return;
+            }
+            if (log.isTraceEnabled()) {
+                log.trace("Closing socket:"+socket);
+            }
+            try {
+                handler.release(socket);
+            } catch (Throwable t) {
+                ExceptionUtils.handleThrowable(t);
+                if (log.isDebugEnabled()) {
+                    log.debug(sm.getString("endpoint.debug.socketCloseFail"), t);
+                }
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                if (log.isDebugEnabled()) {
+                    log.debug(sm.getString("endpoint.debug.channelCloseFail"), e);
+                }
+            }
+            // Stale references to the wrapper will see a closed socket
+            socket.reset(null, -1);
+            countDownConnection();
+            if (running && !paused && nioChannels != null) {
+                nioChannels.push(channel);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    // ------------------------------------------- SocketProcessor Inner Class
+
+
+    /**
+     * This class is the equivalent of the Worker, but will simply use in an
+     * external Executor thread pool.
+     */
+    protected class SocketProcessor implements PriorityTask {
+
+        protected SocketWrapper<Nio2Channel> socket = null;
+        protected SocketStatus status = null;
+        protected final long enqueueTime = System.nanoTime();
+
+        public SocketProcessor(SocketWrapper<Nio2Channel> socket, SocketStatus status) {
+            if (socket==null) throw new NullPointerException();
+            this.socket = socket;
+            this.status = status;
+        }
+
+        @Override
+        public boolean isHighPriority() {
+            return socket.isHighPriority();
+        }
+
+        @Override
+        public void run() {
+            recordQueueDelay(enqueueTime, socket, status);
+            Lock lock = socket.getLock();
+            lock.lock();
+            try {
+                SocketState state = handler.process(socket, status);
+                if (state == SocketState.CLOSED) {
+                    closeSocket(socket);
+                } else if (state == SocketState.LONG && socket.isAsync()) {
+                    socket.access();
+                    waitingRequests.add(socket);
+                }
+                // For the other states the handler has already started
+                // waiting for the next data on the socket
+            } finally {
+                lock.unlock();
+            }
+            socket = null;
+        }
+    }
+
+
+    // -------------------- Public methods --------------------
+
+    @Override
+    public void bind() throws Exception {
+
+        if (isSSLEnabled()) {
+            throw new IllegalArgumentException(sm.getString("endpoint.nio2.noSsl"));
+        }
+
+        // Initialize thread count defaults for acceptor, poller
+        if (acceptorThreadCount == 0) {
+            acceptorThreadCount = 1;
+        }
+        if (pollerThreadCount <= 0) {
+            //minimum one poller thread
+            pollerThreadCount = 1;
+        }
+
+        threadGroup = AsynchronousChannelGroup.withFixedThreadPool(
+                pollerThreadCount, new TaskThreadFactory(getName() + "-poller-",
+                        true, getThreadPriority()));
+
+        serverSock = AsynchronousServerSocketChannel.open(threadGroup);
+        setSocketProperties(serverSock);
+        InetSocketAddress addr = (getAddress()!=null?new InetSocketAddress(getAddress(),getPort()):new InetSocketAddress(getPort()));
+        serverSock.bind(addr,getBacklog());
+    }
+
+
+    @Override
+    public void startInternal() throws Exception {
+
+        if (!running) {
+            running = true;
+            paused = false;
+
+            nioChannels = new SynchronizedStack<Nio2Channel>(SynchronizedStack.DEFAULT_SIZE,
+                    socketProperties.getBufferPool());
+
+            // Create worker collection
+            if (getExecutor() == null) {
+                createExecutor();
+            }
+
+            initializeConnectionLatch();
+
+            startAcceptorThreads();
+
+            // Start async timeout thread
+            Thread timeoutThread = new Thread(new AsyncTimeout(),
+                    getName() + "-AsyncTimeout");
+            timeoutThread.setPriority(threadPriority);
+            timeoutThread.setDaemon(true);
+            timeoutThread.start();
+        }
+    }
+
+
+    @Override
+    public void stopInternal() {
+        releaseConnectionLatch();
+        if (!paused) {
+            pause();
+        }
+        if (running) {
+            running = false;
+            unlockAccept();
+        }
+        shutdownExecutor();
+        if (nioChannels != null) {
+            nioChannels.clear();
+        }
+    }
+
+
+    /**
+     * Close the server socket and shut down the channel group, which also
+     * closes any connection that is still open.
+     */
+    @Override
+    public void unbind() throws Exception {
+        if (running) {
+            stop();
+        }
+        if (serverSock != null) {
+            try {
+                serverSock.close();
+            } catch (Exception e) {
+                log.error(sm.getString("endpoint.err.close"), e);
+            }
+            serverSock = null;
+        }
+        if (threadGroup != null) {
+            try {
+                threadGroup.shutdownNow();
+                threadGroup.awaitTermination(1000, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                log.warn(sm.getString("endpoint.nio2.groupCloseFail"), e);
+            }
+            threadGroup = null;
+        }
+        handler.recycle();
+    }
+
+
+    @Override
+    protected AbstractEndpoint.Acceptor createAcceptor() {
+        return new Acceptor();
+    }
+
+
+    /**
+     * Process the specified connection: wrap it and start waiting for the
+     * first request.
+     *
+     * @return <code>true</code> if the socket was configured, otherwise the
+     *         socket needs to be closed by the caller
+     */
+    protected boolean setSocketOptions(AsynchronousSocketChannel socket) {
+        try {
+            setSocketProperties(socket);
+
+            Nio2Channel channel = nioChannels.pop();
+            if (channel == null) {
+                channel = new Nio2Channel(socket,
+                        socketProperties.getAppReadBufSize(),
+                        socketProperties.getAppWriteBufSize(),
+                        socketProperties.getDirectBuffer());
+            } else {
+                channel.setIOChannel(socket);
+                channel.reset();
+            }
+            channel.setReadTimeout(getSoTimeout());
+            channel.setWriteTimeout(getSoTimeout());
+
+            SocketWrapper<Nio2Channel> wrapper = new SocketWrapper<Nio2Channel>(channel);
+            wrapper.setTimeout(getSoTimeout());
+            wrapper.setKeepAliveLeft(getMaxKeepAliveRequests());
+            wrapper.setSecure(false);
+            awaitBytes(wrapper);
+        } catch (Throwable t) {
+            ExceptionUtils.handleThrowable(t);
+            try {
+                log.error(sm.getString("endpoint.err.unexpected"), t);
+            } catch (Throwable tt) {
+                ExceptionUtils.handleThrowable(tt);
+            }
+            // Tell to close the socket
+            return false;
+        }
+        return true;
+    }
+
+
+    /*
+     * The NIO.2 channels are configured through socket options. This lives here
+     * rather than in SocketProperties as it needs Java 7 to compile.
+     */
+    private void setSocketProperties(AsynchronousSocketChannel socket)
+            throws IOException {
+        SocketProperties sp = socketProperties;
+        if (sp.rxBufSize != null)
+            socket.setOption(StandardSocketOptions.SO_RCVBUF, sp.rxBufSize);
+        if (sp.txBufSize != null)
+            socket.setOption(StandardSocketOptions.SO_SNDBUF, sp.txBufSize);
+        if (sp.soKeepAlive != null)
+            socket.setOption(StandardSocketOptions.SO_KEEPALIVE, sp.soKeepAlive);
+        if (sp.soReuseAddress != null)
+            socket.setOption(StandardSocketOptions.SO_REUSEADDR, sp.soReuseAddress);
+        if (sp.soLingerOn != null && sp.soLingerOn.booleanValue() && sp.soLingerTime != null)
+            socket.setOption(StandardSocketOptions.SO_LINGER, sp.soLingerTime);
+        if (sp.tcpNoDelay != null)
+            socket.setOption(StandardSocketOptions.TCP_NODELAY, sp.tcpNoDelay);
+    }
+
+
+    private void setSocketProperties(AsynchronousServerSocketChannel socket)
+            throws IOException {
+        SocketProperties sp = socketProperties;
+        if (sp.rxBufSize != null)
+            socket.setOption(StandardSocketOptions.SO_RCVBUF, sp.rxBufSize);
+        if (sp.soReuseAddress != null)
+            socket.setOption(StandardSocketOptions.SO_REUSEADDR, sp.soReuseAddress);
+    }
+
+
+    /**
+     * Wait for data to be available on the socket and then process it. If the
+     * channel already holds data that has not been consumed (e.g. a pipelined
+     * request) the socket is processed immediately. The wait uses the timeout
+     * of the socket wrapper, after which the socket is closed.
+     *
+     * @param socket    The socket to wait for
+     */
+    public void awaitBytes(SocketWrapper<Nio2Channel> socket) {
+        Nio2Channel channel = socket.getSocket();
+        if (channel == null) {
+            return;
+        }
+        if (channel.hasBufferedData()) {
+            if (!processSocket(socket, SocketStatus.OPEN_READ)) {
+                closeSocket(socket);
+            }
+            return;
+        }
+        ByteBuffer readBuffer = channel.getReadBuffer();
+        readBuffer.clear();
+        try {
+            channel.getIOChannel().read(readBuffer, socket.getTimeout(),
+                    TimeUnit.MILLISECONDS, socket, awaitBytesHandler);
+        } catch (Throwable t) {
+            // Channel closed or group shut down
+            ExceptionUtils.handleThrowable(t);
+            readBuffer.flip();
+            closeSocket(socket);
+        }
+    }
+
+
+    /**
+     * Hand a socket off to the executor for processing.
+     *
+     * @param socket    The socket associated with the client.
+     * @param status    The status of the socket
+     *
+     * @return          <code>true</code> if the socket is passed to the
+     *                  executor, <code>false</code> if something went wrong or
+     *                  if the endpoint is shutting down. Returning
+     *                  <code>false</code> is an indication to close the socket
+     *                  immediately.
+     */
+    protected boolean processSocket(SocketWrapper<Nio2Channel> socket,
+            SocketStatus status) {
+        try {
+            // During shutdown, executor may be null - avoid NPE
+            if (!running) {
+                return false;
+            }
+            getExecutor().execute(new SocketProcessor(socket, status));
+        } catch (RejectedExecutionException x) {
+            log.warn("Socket processing request was rejected for:"+socket,x);
+            return false;
+        } catch (Throwable t) {
+            ExceptionUtils.handleThrowable(t);
+            // This means we got an OOM or similar creating a thread, or that
+            // the pool and its queue are full
+            log.error(sm.getString("endpoint.process.fail"), t);
+            return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Process an existing async connection. If processing is required, passes
+     * the wrapped socket to an executor for processing.
+     *
+     * @param socket    The socket associated with the client.
+     * @param status    Only OPEN and TIMEOUT are used. The others are used for
+     *                  Comet requests that are not supported by the NIO.2
+     *                  Connector.
+     */
+    @Override
+    public void processSocketAsync(SocketWrapper<Nio2Channel> socket,
+            SocketStatus status) {
+        try {
+            Lock lock = socket.getLock();
+            lock.lock();
+            try {
+                if (waitingRequests.remove(socket)) {
+                    SocketProcessor proc = new SocketProcessor(socket,status);
+                    ClassLoader loader = Thread.currentThread().getContextClassLoader();
+                    try {
+                        //threads should not be created by the webapp classloader
+                        if (Constants.IS_SECURITY_ENABLED) {
+                            PrivilegedAction<Void> pa = new PrivilegedSetTccl(
+                                    getClass().getClassLoader());
+                            AccessController.doPrivileged(pa);
+                        } else {
+                            Thread.currentThread().setContextClassLoader(
+                                    getClass().getClassLoader());
+                        }
+                        // During shutdown, executor may be null - avoid NPE
+                        if (!running) {
+                            return;
+                        }
+                        getExecutor().execute(proc);
+                    } finally {
+                        if (Constants.IS_SECURITY_ENABLED) {
+                            PrivilegedAction<Void> pa = new PrivilegedSetTccl(loader);
+                            AccessController.doPrivileged(pa);
+                        } else {
+                            Thread.currentThread().setContextClassLoader(loader);
+                        }
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        } catch (Throwable t) {
+            ExceptionUtils.handleThrowable(t);
+            // This means we got an OOM or similar creating a thread, or that
+            // the pool and its queue are full
+            log.error(sm.getString("endpoint.process.fail"), t);
+        }
+    }
+
+    protected ConcurrentLinkedQueue<SocketWrapper<Nio2Channel>> waitingRequests =
+        new ConcurrentLinkedQueue<SocketWrapper<Nio2Channel>>();
+    @Override
+    public void removeWaitingRequest(SocketWrapper<Nio2Channel> socketWrapper) {
+        waitingRequests.remove(socketWrapper);
+    }
+
+
+    @Override
+    protected Log getLog() {
+        return log;
+    }
+}
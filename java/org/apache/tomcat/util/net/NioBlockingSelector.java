@@ -84,6 +84,28 @@ public class NioBlockingSelector {
      */
     public int write(ByteBuffer buf, NioChannel socket, long writeTimeout)
             throws IOException {
+        return (int) write(buf, null, socket, writeTimeout);
+    }
+
+    /**
+     * Performs a blocking gathering write of the given buffers, so that the
+     * content of several buffers can be passed to the network with a single
+     * system call.
+     * @param bufs ByteBuffer[] - the buffers containing the data, we will write as long as any of them has remaining data
+     * @param socket SocketChannel - the socket to write data to
+     * @param writeTimeout long - the timeout for this write operation in milliseconds, -1 means no timeout
+     * @return long - returns the number of bytes written
+     * @throws EOFException if write returns -1
+     * @throws SocketTimeoutException if the write times out
+     * @throws IOException if an IO Exception occurs in the underlying socket logic
+     */
+    public long write(ByteBuffer[] bufs, NioChannel socket, long writeTimeout)
+            throws IOException {
+        return write(null, bufs, socket, writeTimeout);
+    }
+
+    private long write(ByteBuffer buf, ByteBuffer[] bufs, NioChannel socket,
+            long writeTimeout) throws IOException {
         SelectionKey key = socket.getIOChannel().keyFor(socket.getPoller().getSelector());
         if ( key == null ) throw new IOException("Key no longer registered");
         KeyReference reference = keyReferenceQueue.poll();
@@ -91,15 +113,15 @@ public class NioBlockingSelector {
             reference = new KeyReference();
         }
         KeyAttachment att = (KeyAttachment) key.attachment();
-        int written = 0;
+        long written = 0;
         boolean timedout = false;
         int keycount = 1; //assume we can write
         long time = System.currentTimeMillis(); //start the timeout timer
         try {
-            while ( (!timedout) && buf.hasRemaining()) {
+            while ( (!timedout) && hasRemaining(buf, bufs)) {
                 if (keycount > 0) { //only write if we were registered for a write
                     // 先尝试去write一下，没有写入任何数据就返回0
-                    int cnt = socket.write(buf); //write the data
+                    long cnt = buf != null ? socket.write(buf) : socket.write(bufs); //write the data
                     if (cnt == -1)
                         throw new EOFException();
                     // 统计写入了多少数据了
@@ -146,6 +168,18 @@ public class NioBlockingSelector {
         return written;
     }
 
+    static boolean hasRemaining(ByteBuffer buf, ByteBuffer[] bufs) {
+        if (buf != null) {
+            return buf.hasRemaining();
+        }
+        for (int i = 0; i < bufs.length; i++) {
+            if (bufs[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Performs a blocking read using the bytebuffer for data to be read
      * If the <code>selector</code> parameter is null, then it will perform a busy read that could
@@ -21,10 +21,12 @@ package org.apache.tomcat.util.net;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 
+import org.apache.tomcat.util.net.NioEndpoint.NioBufferHandler;
 import org.apache.tomcat.util.net.NioEndpoint.Poller;
 import org.apache.tomcat.util.net.SecureNioChannel.ApplicationBufferHandler;
 import org.apache.tomcat.util.res.StringManager;
@@ -40,7 +42,7 @@ import org.apache.tomcat.util.res.StringManager;
  *
  *
  */
-public class NioChannel implements ByteChannel{
+public class NioChannel implements ByteChannel, GatheringByteChannel {
 
     protected static final StringManager sm =
             StringManager.getManager("org.apache.tomcat.util.net.res");
@@ -53,14 +55,52 @@ public class NioChannel implements ByteChannel{
 
     protected Poller poller;
 
+    /**
+     * <code>true</code> if the read buffer holds data that was read by the
+     * Poller to classify the next request and that has not yet been consumed.
+     */
+    protected boolean peeked = false;
+
     public NioChannel(SocketChannel channel, ApplicationBufferHandler bufHandler) throws IOException {
         this.sc = channel;
         this.bufHandler = bufHandler;
     }
 
     public void reset() throws IOException {
-        bufHandler.getReadBuffer().clear();
-        bufHandler.getWriteBuffer().clear();
+        peeked = false;
+        if (bufHandler instanceof NioBufferHandler) {
+            ((NioBufferHandler) bufHandler).reset();
+        } else {
+            bufHandler.getReadBuffer().clear();
+            bufHandler.getWriteBuffer().clear();
+        }
+    }
+
+    /**
+     * Return the buffers used by this channel to the buffer pool of the
+     * endpoint, if one is configured. The buffers will be obtained again when
+     * next required. Must only be called when the channel has no pending data,
+     * for example while waiting for the next request on a keep-alive
+     * connection.
+     */
+    public void releaseBuffers() {
+        peeked = false;
+        if (bufHandler instanceof NioBufferHandler) {
+            ((NioBufferHandler) bufHandler).releaseBuffers();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the read buffer, flipped ready to be read
+     *         from, holds data that was read by the Poller and has not yet
+     *         been consumed
+     */
+    public boolean isPeeked() {
+        return peeked;
+    }
+
+    public void setPeeked(boolean peeked) {
+        this.peeked = peeked;
     }
 
     public int getBufferSize() {
@@ -124,6 +164,18 @@ public class NioChannel implements ByteChannel{
         return sc.write(src);
     }
 
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length)
+            throws IOException {
+        checkInterruptStatus();
+        return sc.write(srcs, offset, length);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
     /**
      * Reads a sequence of bytes from this channel into the given buffer.
      *
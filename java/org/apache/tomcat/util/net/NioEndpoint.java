@@ -32,20 +32,25 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.X509KeyManager;
 
@@ -53,9 +58,12 @@ import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 import org.apache.tomcat.util.ExceptionUtils;
 import org.apache.tomcat.util.IntrospectionUtils;
+import org.apache.tomcat.util.collections.SynchronizedStack;
 import org.apache.tomcat.util.net.AbstractEndpoint.Handler.SocketState;
 import org.apache.tomcat.util.net.SecureNioChannel.ApplicationBufferHandler;
 import org.apache.tomcat.util.net.jsse.NioX509KeyManager;
+import org.apache.tomcat.util.threads.PriorityTask;
+import org.apache.tomcat.util.threads.TaskThreadFactory;
 
 /**
  * NIO tailored thread pool, providing the following services:
@@ -137,166 +145,34 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
     /**
      * Cache for SocketProcessor objects
      */
-    protected ConcurrentLinkedQueue<SocketProcessor> processorCache = new ConcurrentLinkedQueue<SocketProcessor>() {
-        private static final long serialVersionUID = 1L;
-        protected AtomicInteger size = new AtomicInteger(0);
-        @Override
-        public boolean offer(SocketProcessor sc) {
-            sc.reset(null,null);
-            boolean offer = socketProperties.getProcessorCache()==-1?true:size.get()<socketProperties.getProcessorCache();
-            //avoid over growing our cache or add after we have stopped
-            if ( running && (!paused) && (offer) ) {
-                boolean result = super.offer(sc);
-                if ( result ) {
-                    size.incrementAndGet();
-                }
-                return result;
-            }
-            else return false;
-        }
-
-        @Override
-        public SocketProcessor poll() {
-            SocketProcessor result = super.poll();
-            if ( result != null ) {
-                size.decrementAndGet();
-            }
-            return result;
-        }
-
-        @Override
-        public void clear() {
-            super.clear();
-            size.set(0);
-        }
-    };
+    protected SynchronizedStack<SocketProcessor> processorCache;
 
 
     /**
      * Cache for key attachment objects
      */
-    protected ConcurrentLinkedQueue<KeyAttachment> keyCache = new ConcurrentLinkedQueue<KeyAttachment>() {
-        private static final long serialVersionUID = 1L;
-        protected AtomicInteger size = new AtomicInteger(0);
-        @Override
-        public boolean offer(KeyAttachment ka) {
-            ka.reset();
-            boolean offer = socketProperties.getKeyCache()==-1?true:size.get()<socketProperties.getKeyCache();
-            //avoid over growing our cache or add after we have stopped
-            if ( running && (!paused) && (offer) ) {
-                boolean result = super.offer(ka);
-                if ( result ) {
-                    size.incrementAndGet();
-                }
-                return result;
-            }
-            else return false;
-        }
-
-        @Override
-        public KeyAttachment poll() {
-            KeyAttachment result = super.poll();
-            if ( result != null ) {
-                size.decrementAndGet();
-            }
-            return result;
-        }
-
-        @Override
-        public void clear() {
-            super.clear();
-            size.set(0);
-        }
-    };
+    protected SynchronizedStack<KeyAttachment> keyCache;
 
 
     /**
      * Cache for poller events
      */
-    protected ConcurrentLinkedQueue<PollerEvent> eventCache = new ConcurrentLinkedQueue<PollerEvent>() {
-        private static final long serialVersionUID = 1L;
-        protected AtomicInteger size = new AtomicInteger(0);
-        @Override
-        public boolean offer(PollerEvent pe) {
-            pe.reset();
-            boolean offer = socketProperties.getEventCache()==-1?true:size.get()<socketProperties.getEventCache();
-            //avoid over growing our cache or add after we have stopped
-            if ( running && (!paused) && (offer) ) {
-                boolean result = super.offer(pe);
-                if ( result ) {
-                    size.incrementAndGet();
-                }
-                return result;
-            }
-            else return false;
-        }
-
-        @Override
-        public PollerEvent poll() {
-            PollerEvent result = super.poll();
-            if ( result != null ) {
-                size.decrementAndGet();
-            }
-            return result;
-        }
-
-        @Override
-        public void clear() {
-            super.clear();
-            size.set(0);
-        }
-    };
+    protected SynchronizedStack<PollerEvent> eventCache;
 
 
     /**
      * Bytebuffer cache, each channel holds a set of buffers (two, except for SSL holds four)
      *
-     * 无界线程安全队列，基于链表，先进先出
+     * 以数组实现的有界栈，出入栈均不产生新的对象，容量由bufferPool和bufferPoolSize共同决定
      */
-    protected ConcurrentLinkedQueue<NioChannel> nioChannels = new ConcurrentLinkedQueue<NioChannel>() {
-        private static final long serialVersionUID = 1L;
-        protected AtomicInteger size = new AtomicInteger(0);
-        protected AtomicInteger bytes = new AtomicInteger(0);
+    protected SynchronizedStack<NioChannel> nioChannels;
 
-        // 将指定元素插入此队列的尾部。
-        @Override
-        public boolean offer(NioChannel socket) {
-            // 默认不能超过500个NioChannel
-            boolean offer = socketProperties.getBufferPool()==-1?true:size.get()<socketProperties.getBufferPool();
-            // 已存在的缓冲区加上当前socket的缓冲区 小于 最大限制（默认为100M）则可以入队，否则不能
-            offer = offer && (socketProperties.getBufferPoolSize()==-1?true:(bytes.get()+socket.getBufferSize())<socketProperties.getBufferPoolSize());
-
-
-            //avoid over growing our cache or add after we have stopped
-            if ( running && (!paused) && (offer) ) {
-                boolean result = super.offer(socket);
-                if ( result ) {
-                    size.incrementAndGet();
-                    bytes.addAndGet(socket.getBufferSize()); // 读写缓冲区之和
-                }
-                return result;
-            }
-            else return false;
-        }
-
-        // 获取并移除此队列的头，如果此队列为空，则返回 null，不会阻塞
-        @Override
-        public NioChannel poll() {
-            NioChannel result = super.poll();
-            if ( result != null ) {
-                size.decrementAndGet();
-                bytes.addAndGet(-result.getBufferSize());
-            }
-            return result;
-        }
-
-        @Override
-        public void clear() {
-            super.clear();
-            size.set(0);
-            bytes.set(0);
-        }
-    };
+    /**
+     * Pool of socket buffers shared by the channels when
+     * socketProperties.releaseIdleBuffers is enabled.
+     */
+    protected SocketBufferPool bufferPool = null;
+    public SocketBufferPool getBufferPool() { return bufferPool; }
 
 
     // ------------------------------------------------------------- Properties
@@ -357,6 +233,173 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
     public void setPollerThreadCount(int pollerThreadCount) { this.pollerThreadCount = pollerThreadCount; }
     public int getPollerThreadCount() { return pollerThreadCount; }
 
+    /**
+     * Number of threads used to run the delegated tasks (key exchange,
+     * certificate validation) of SSL handshakes. If zero, the tasks are run
+     * by the worker thread performing the handshake.
+     */
+    protected int sslHandshakeThreads = 0;
+    public void setSslHandshakeThreads(int sslHandshakeThreads) { this.sslHandshakeThreads = sslHandshakeThreads; }
+    public int getSslHandshakeThreads() { return sslHandshakeThreads; }
+
+    /**
+     * Executor for the delegated tasks of SSL handshakes.
+     */
+    protected ThreadPoolExecutor handshakeExecutor = null;
+
+    /**
+     * SSL handshake statistics.
+     */
+    protected final AtomicLong sslHandshakeCount = new AtomicLong(0);
+    protected final AtomicLong sslHandshakeTime = new AtomicLong(0);
+    protected final AtomicLong sslHandshakeMaxTime = new AtomicLong(0);
+
+    /**
+     * @return the number of SSL handshakes completed
+     */
+    public long getSslHandshakeCount() { return sslHandshakeCount.get(); }
+
+    /**
+     * @return the total time, in milliseconds, taken by completed SSL
+     *         handshakes
+     */
+    public long getSslHandshakeTime() {
+        return TimeUnit.NANOSECONDS.toMillis(sslHandshakeTime.get());
+    }
+
+    /**
+     * @return the time, in milliseconds, taken by the longest SSL handshake
+     */
+    public long getSslHandshakeMaxTime() {
+        return TimeUnit.NANOSECONDS.toMillis(sslHandshakeMaxTime.get());
+    }
+
+    /**
+     * @return the number of delegated handshake tasks waiting for a handshake
+     *         thread
+     */
+    public int getSslHandshakeQueueSize() {
+        ThreadPoolExecutor executor = handshakeExecutor;
+        if (executor == null) {
+            return 0;
+        }
+        return executor.getQueue().size();
+    }
+
+    public void resetSslHandshakeStats() {
+        sslHandshakeCount.set(0);
+        sslHandshakeTime.set(0);
+        sslHandshakeMaxTime.set(0);
+    }
+
+    protected void handshakeComplete(SecureNioChannel channel) {
+        long time = System.nanoTime() - channel.getHandshakeStart();
+        sslHandshakeCount.incrementAndGet();
+        sslHandshakeTime.addAndGet(time);
+        long max = sslHandshakeMaxTime.get();
+        while (time > max && !sslHandshakeMaxTime.compareAndSet(max, time)) {
+            max = sslHandshakeMaxTime.get();
+        }
+    }
+
+    /**
+     * Largest response tail, in bytes, that a worker thread may hand to the
+     * Poller to finish writing when the client does not read it fast enough.
+     * Zero (the default) disables write-behind.
+     */
+    protected int maxWriteBehindSize = 0;
+    public void setMaxWriteBehindSize(int maxWriteBehindSize) { this.maxWriteBehindSize = maxWriteBehindSize; }
+    public int getMaxWriteBehindSize() { return maxWriteBehindSize; }
+
+    /**
+     * Limit on the number of response bytes, across all connections, that
+     * may be waiting for the Poller to write them. Once reached, worker
+     * threads write their responses themselves.
+     */
+    protected long maxWriteBehindTotal = 64 * 1024 * 1024;
+    public void setMaxWriteBehindTotal(long maxWriteBehindTotal) { this.maxWriteBehindTotal = maxWriteBehindTotal; }
+    public long getMaxWriteBehindTotal() { return maxWriteBehindTotal; }
+
+    /**
+     * Write-behind statistics.
+     */
+    protected final AtomicLong writeBehindBytes = new AtomicLong(0);
+    protected final AtomicInteger writeBehindConnections = new AtomicInteger(0);
+    protected final AtomicLong writeBehindRejectedCount = new AtomicLong(0);
+
+    /**
+     * @return the number of response bytes waiting for the Poller to write
+     *         them
+     */
+    public long getWriteBehindBytes() { return writeBehindBytes.get(); }
+
+    /**
+     * @return the number of connections with a response waiting for the
+     *         Poller to write it
+     */
+    public int getWriteBehindConnectionCount() { return writeBehindConnections.get(); }
+
+    /**
+     * @return the number of responses that were written by the worker thread
+     *         because the write-behind budget was exhausted
+     */
+    public long getWriteBehindRejectedCount() { return writeBehindRejectedCount.get(); }
+
+    /**
+     * Reserve part of the write-behind budget for response data as it is
+     * buffered.
+     *
+     * @param bytes The number of bytes to buffer
+     * @return <code>true</code> if the bytes fit in the budget, in which case
+     *         the caller must release the reservation with
+     *         {@link #releaseWriteBehind(int)} or hand it to the Poller with
+     *         {@link #startWriteBehind(KeyAttachment, WriteBehindData)}
+     */
+    public boolean reserveWriteBehind(int bytes) {
+        long total;
+        do {
+            total = writeBehindBytes.get();
+            if (total + bytes > maxWriteBehindTotal) {
+                writeBehindRejectedCount.incrementAndGet();
+                return false;
+            }
+        } while (!writeBehindBytes.compareAndSet(total, total + bytes));
+        return true;
+    }
+
+    /**
+     * Release part of the write-behind budget that is no longer needed.
+     */
+    public void releaseWriteBehind(int bytes) {
+        writeBehindBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * Hand the end of a response, for which the budget has been reserved, to
+     * the Poller. The reservation is released as the bytes are written or
+     * when the connection is closed.
+     */
+    public void startWriteBehind(KeyAttachment ka, WriteBehindData data) {
+        writeBehindConnections.incrementAndGet();
+        ka.setWriteBehindData(data);
+    }
+
+    /**
+     * Release whatever is left of the write-behind reservation of a
+     * connection.
+     */
+    protected void releaseWriteBehind(KeyAttachment ka) {
+        WriteBehindData data;
+        synchronized (ka) {
+            data = ka.getWriteBehindData();
+            ka.setWriteBehindData(null);
+        }
+        if (data != null) {
+            writeBehindBytes.addAndGet(-data.remaining());
+            writeBehindConnections.decrementAndGet();
+        }
+    }
+
     protected long selectorTimeout = 1000;
     public void setSelectorTimeout(long timeout){ this.selectorTimeout = timeout;}
     public long getSelectorTimeout(){ return this.selectorTimeout; }
@@ -373,6 +416,24 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
         return pollers[idx];
     }
 
+    /**
+     * Should each acceptor thread hand its sockets to a fixed subset of the
+     * pollers rather than to all of them in turn? With multiple acceptors
+     * this removes the contention on the shared poller rotater and keeps the
+     * sockets accepted by one acceptor on the same pollers.
+     */
+    protected boolean acceptorPollerAffinity = false;
+    public void setAcceptorPollerAffinity(boolean acceptorPollerAffinity) {
+        this.acceptorPollerAffinity = acceptorPollerAffinity;
+    }
+    public boolean getAcceptorPollerAffinity() { return acceptorPollerAffinity; }
+
+    /**
+     * Index of the next acceptor to be created. Only used by the thread
+     * starting the endpoint.
+     */
+    private int nextAcceptorIndex = 0;
+
 
     public void setSelectorPool(NioSelectorPool selectorPool) {
         this.selectorPool = selectorPool;
@@ -454,13 +515,58 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
     }
 
     protected void releaseCaches() {
-        this.keyCache.clear();
-        this.nioChannels.clear();
-        this.processorCache.clear();
+        clearCaches();
         if ( handler != null ) handler.recycle();
 
     }
 
+    /**
+     * Empty the endpoint's object caches. Unlike {@link #releaseCaches()}
+     * this leaves the handler alone.
+     */
+    private void clearCaches() {
+        if (keyCache != null) keyCache.clear();
+        if (nioChannels != null) nioChannels.clear();
+        if (bufferPool != null) bufferPool.clear();
+        if (processorCache != null) processorCache.clear();
+    }
+
+    /**
+     * The maximum number of channels to cache. Each cached channel pins its
+     * buffers so, as well as the bufferPool count, the limit must respect the
+     * bufferPoolSize byte budget. All the channels of an endpoint are created
+     * with the same buffer sizes so the byte budget can be converted into a
+     * count once, when the endpoint starts.
+     */
+    private int getNioChannelCacheLimit() {
+        int limit = socketProperties.getBufferPool();
+        int poolSize = socketProperties.getBufferPoolSize();
+        if (poolSize == -1 || bufferPool != null) {
+            // Cached channels do not hold any buffers when they are pooled
+            return limit;
+        }
+        int readBufSize = socketProperties.getAppReadBufSize();
+        int writeBufSize = socketProperties.getAppWriteBufSize();
+        int channelSize;
+        if (sslContext != null) {
+            SSLSession session = createSSLEngine().getSession();
+            int appBufSize = session.getApplicationBufferSize();
+            channelSize = Math.max(appBufSize, readBufSize) +
+                    Math.max(appBufSize, writeBufSize) +
+                    2 * session.getPacketBufferSize();
+        } else {
+            channelSize = readBufSize + writeBufSize;
+        }
+        if (channelSize <= 0) {
+            return limit;
+        }
+        int sizeLimit = poolSize / channelSize;
+        if (limit == -1 || sizeLimit < limit) {
+            return sizeLimit;
+        }
+        return limit;
+    }
+
     // --------------------------------------------------------- Public Methods
     /**
      * Number of keepalive sockets.
@@ -562,6 +668,27 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                 createExecutor();
             }
 
+            processorCache = new SynchronizedStack<SocketProcessor>(SynchronizedStack.DEFAULT_SIZE,
+                    socketProperties.getProcessorCache());
+            keyCache = new SynchronizedStack<KeyAttachment>(SynchronizedStack.DEFAULT_SIZE,
+                    socketProperties.getKeyCache());
+            eventCache = new SynchronizedStack<PollerEvent>(SynchronizedStack.DEFAULT_SIZE,
+                    socketProperties.getEventCache());
+            if (socketProperties.getReleaseIdleBuffers()) {
+                bufferPool = new SocketBufferPool(socketProperties.getBufferPoolSize());
+            } else {
+                bufferPool = null;
+            }
+            nioChannels = new SynchronizedStack<NioChannel>(SynchronizedStack.DEFAULT_SIZE,
+                    getNioChannelCacheLimit());
+            if (sslContext != null && sslHandshakeThreads > 0) {
+                TaskThreadFactory tf = new TaskThreadFactory(
+                        getName() + "-ssl-", getDaemon(), getThreadPriority());
+                handshakeExecutor = new ThreadPoolExecutor(sslHandshakeThreads,
+                        sslHandshakeThreads, 60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), tf);
+            }
+
             // 初始化limitlatch，NioEndpoint默认最大连接数为10000
             initializeConnectionLatch();
 
@@ -583,6 +710,7 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                 pollerThread.start();
             }
 
+            nextAcceptorIndex = 0;
             startAcceptorThreads();
         }
     }
@@ -613,10 +741,12 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                 log.warn(sm.getString("endpoint.nio.stopLatchAwaitInterrupted"), e);
             }
         }
-        eventCache.clear();
-        keyCache.clear();
-        nioChannels.clear();
-        processorCache.clear();
+        if (eventCache != null) eventCache.clear();
+        clearCaches();
+        if (handshakeExecutor != null) {
+            handshakeExecutor.shutdownNow();
+            handshakeExecutor = null;
+        }
         shutdownExecutor();
     }
 
@@ -676,7 +806,7 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
 
     @Override
     protected AbstractEndpoint.Acceptor createAcceptor() {
-        return new Acceptor();
+        return new Acceptor(nextAcceptorIndex++);
     }
 
 
@@ -684,6 +814,15 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
      * Process the specified connection.
      */
     protected boolean setSocketOptions(SocketChannel socket) {
+        return setSocketOptions(socket, null);
+    }
+
+
+    /**
+     * Process the specified connection, registering it with the given poller
+     * or, if none is specified, with the next poller in round robin order.
+     */
+    protected boolean setSocketOptions(SocketChannel socket, Poller poller) {
         // Process the connection
         try {
             //disable blocking, APR style, we are gonna be polling it
@@ -693,7 +832,7 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
             socketProperties.setProperties(sock);
 
             // 每接收到一个socket连接就获取一个NioChannel来封装这个socket，NioChannel是可重用的对象
-            NioChannel channel = nioChannels.poll(); // 拿出对头的NioChannel
+            NioChannel channel = nioChannels.pop(); // 拿出对头的NioChannel
             if ( channel == null ) {
                 // SSL setup
                 // 在封装非阻塞通道对象时使用一项优化值得我们深入学习，如图6.25所示，NioChannel属于频繁生成与消除对象，因为每个客户端连接都需要一个通道与之相
@@ -705,13 +844,16 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                     int appbufsize = engine.getSession().getApplicationBufferSize();
                     NioBufferHandler bufhandler = new NioBufferHandler(Math.max(appbufsize,socketProperties.getAppReadBufSize()),
                                                                        Math.max(appbufsize,socketProperties.getAppWriteBufSize()),
-                                                                       socketProperties.getDirectBuffer());
-                    channel = new SecureNioChannel(socket, engine, bufhandler, selectorPool);
+                                                                       socketProperties.getDirectBuffer(),
+                                                                       bufferPool);
+                    channel = new SecureNioChannel(socket, engine, bufhandler, selectorPool, bufferPool);
+                    ((SecureNioChannel) channel).setHandshakeExecutor(handshakeExecutor);
                 } else {
                     // normal tcp setup
                     NioBufferHandler bufhandler = new NioBufferHandler(socketProperties.getAppReadBufSize(),
                                                                        socketProperties.getAppWriteBufSize(),
-                                                                       socketProperties.getDirectBuffer());
+                                                                       socketProperties.getDirectBuffer(),
+                                                                       bufferPool);
                     channel = new NioChannel(socket, bufhandler);
                 }
             } else {
@@ -719,12 +861,16 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                 if ( channel instanceof SecureNioChannel ) {
                     SSLEngine engine = createSSLEngine();
                     ((SecureNioChannel)channel).reset(engine);
+                    ((SecureNioChannel)channel).setHandshakeExecutor(handshakeExecutor);
                 } else {
                     channel.reset();
                 }
             }
             // 每接收到一个新socket连接，就会生成一个
-            getPoller0().register(channel);
+            if (poller == null) {
+                poller = getPoller0();
+            }
+            poller.register(channel);
         } catch (Throwable t) {
             ExceptionUtils.handleThrowable(t);
             try {
@@ -793,7 +939,7 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
             attachment.setCometNotify(false); //will get reset upon next reg
 
             // 获取一个SocketProcessor对象
-            SocketProcessor sc = processorCache.poll();
+            SocketProcessor sc = processorCache.pop();
             if ( sc == null ) sc = new SocketProcessor(socket,status);
             else sc.reset(socket,status);
 
@@ -853,6 +999,58 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
      */
     protected class Acceptor extends AbstractEndpoint.Acceptor {
 
+        private final int index;
+
+        /**
+         * The pollers this acceptor feeds when acceptorPollerAffinity is
+         * enabled. Only accessed by the acceptor thread.
+         */
+        private Poller[] shard = null;
+        private int shardRotater = 0;
+
+        public Acceptor() {
+            this(0);
+        }
+
+        public Acceptor(int index) {
+            this.index = index;
+        }
+
+        /**
+         * Select the poller for a newly accepted socket. Acceptor i of n is
+         * assigned the pollers p where p % n == i. If there are fewer pollers
+         * than acceptors, acceptor i uses poller i % pollers.length.
+         */
+        protected Poller nextPoller() {
+            if (!acceptorPollerAffinity) {
+                return getPoller0();
+            }
+            if (shard == null) {
+                shard = createShard();
+            }
+            if (shardRotater >= shard.length) {
+                shardRotater = 0;
+            }
+            return shard[shardRotater++];
+        }
+
+        private Poller[] createShard() {
+            Poller[] all = pollers;
+            int acceptorCount = Math.max(1, getAcceptorThreadCount());
+            if (all.length <= acceptorCount) {
+                return new Poller[] { all[index % all.length] };
+            }
+            int count = 0;
+            for (int i = index; i < all.length; i += acceptorCount) {
+                count++;
+            }
+            Poller[] result = new Poller[count];
+            for (int i = index, j = 0; i < all.length; i += acceptorCount, j++) {
+                result[j] = all[i];
+            }
+            return result;
+        }
+
         @Override
         public void run() {
 
@@ -898,7 +1096,7 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                     // setSocketOptions() will add channel to the poller
                     // if successful
                     if (running && !paused) {
-                        if (!setSocketOptions(socket)) {
+                        if (!setSocketOptions(socket, nextPoller())) {
                             countDownConnection();
                             closeSocket(socket);
                         }
@@ -996,6 +1194,7 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                 // 真正将读事件注册到当前poller中的selector对象上
                 try {
                     socket.getIOChannel().register(socket.getPoller().getSelector(), SelectionKey.OP_READ, key);
+                    socket.getPoller().scheduleTimeout(key);
                 } catch (Exception x) {
                     log.error("", x);
                 }
@@ -1026,6 +1225,7 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                             int ops = key.interestOps() | interestOps;
                             att.interestOps(ops);
                             key.interestOps(ops);
+                            socket.getPoller().scheduleTimeout(att);
                         } else {
                             socket.getPoller().cancelledKey(key, SocketStatus.ERROR, false);
                         }
@@ -1081,6 +1281,30 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
 
         protected volatile int keyCount = 0;
 
+        /*
+         * Timeout index. Rather than scanning every registered key to find the
+         * expired ones, each tracked KeyAttachment is placed in the bucket of
+         * the timing wheel that corresponds to the time at which it next needs
+         * to be checked. Deadlines further away than one revolution of the
+         * wheel stay in their bucket until the right round comes around.
+         * Deadlines are only ever moved earlier eagerly: when a key is accessed
+         * and its deadline moves later, the key is re-checked at the old
+         * deadline and put back in the wheel. The wheel is only accessed by the
+         * Poller thread. Other threads use timeoutChanges to ask for a key to be
+         * re-indexed.
+         */
+        private static final int TIMEOUT_WHEEL_SIZE = 1024;
+        private static final int TIMEOUT_WHEEL_MASK = TIMEOUT_WHEEL_SIZE - 1;
+        private static final long TIMEOUT_WHEEL_TICK = 100;
+        @SuppressWarnings({"unchecked", "rawtypes"}) // Generic arrays can not be created
+        private ArrayList<KeyAttachment>[] timeoutWheel =
+                new ArrayList[TIMEOUT_WHEEL_SIZE];
+        private ArrayList<KeyAttachment> timeoutSpare =
+                new ArrayList<KeyAttachment>();
+        private long timeoutTick;
+        protected ConcurrentLinkedQueue<KeyAttachment> timeoutChanges =
+                new ConcurrentLinkedQueue<KeyAttachment>();
+
         public Poller() throws IOException {
             synchronized (Selector.class) {
                 // Selector.open() isn't thread safe
@@ -1088,6 +1312,10 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                 // Affects 1.6.0_29, fixed in 1.7.0_01
                 this.selector = Selector.open();
             }
+            for (int i = 0; i < TIMEOUT_WHEEL_SIZE; i++) {
+                timeoutWheel[i] = new ArrayList<KeyAttachment>();
+            }
+            timeoutTick = System.currentTimeMillis() / TIMEOUT_WHEEL_TICK;
         }
 
         public int getKeyCount() { return keyCount; }
@@ -1146,7 +1374,7 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
         }
 
         public void add(final NioChannel socket, final int interestOps) {
-            PollerEvent r = eventCache.poll();
+            PollerEvent r = eventCache.pop();
             if ( r==null) r = new PollerEvent(socket,null,interestOps);
             else r.reset(socket,null,interestOps);
             addEvent(r);
@@ -1173,7 +1401,9 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                     r.run();
                     if ( r instanceof PollerEvent ) {
                         ((PollerEvent)r).reset();
-                        eventCache.offer((PollerEvent)r);
+                        if (running && !paused) {
+                            eventCache.push((PollerEvent)r);
+                        }
                     }
                 } catch ( Throwable x ) {
                     log.error("",x);
@@ -1187,14 +1417,14 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
             socket.setPoller(this);
 
             // 获取一个KeyAttachment对象，将当前socket的相关信息设置进去
-            KeyAttachment key = keyCache.poll();
+            KeyAttachment key = keyCache.pop();
             final KeyAttachment ka = key!=null?key:new KeyAttachment(socket);
             ka.reset(this,socket,getSocketProperties().getSoTimeout());
             ka.setKeepAliveLeft(NioEndpoint.this.getMaxKeepAliveRequests());
             ka.setSecure(isSSLEnabled());
 
             // 获取一个PollerEvent对象，本事件为一个注册事件，对读事件感兴趣（这里暂时还没有真正的向select去注册事件）
-            PollerEvent r = eventCache.poll();
+            PollerEvent r = eventCache.pop();
             ka.interestOps(SelectionKey.OP_READ);//this is what OP_REGISTER turns into.
             if ( r==null) r = new PollerEvent(socket,ka,OP_REGISTER);
             else r.reset(socket,ka,OP_REGISTER);
@@ -1260,6 +1490,7 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                 } catch (Exception ignore) {
                 }
                 if (ka!=null) {
+                    releaseWriteBehind(ka);
                     ka.reset();
                     countDownConnection();
                 }
@@ -1390,6 +1621,38 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
             stopLatch.countDown();
         }
 
+        /**
+         * Read the start of the next request so that work for a high priority
+         * request, such as a load balancer health check on a new connection,
+         * is queued ahead of other work rather than classified once a worker
+         * thread has already been found for it. The data is left in the read
+         * buffer of the channel for the processor. TLS connections are not
+         * classified as their data must be unwrapped first.
+         */
+        protected void classify(NioChannel channel, KeyAttachment attachment) {
+            if (!handler.isClassifying() || channel instanceof SecureNioChannel ||
+                    channel.isPeeked() || attachment.isAsync() ||
+                    attachment.isComet() || attachment.isUpgraded()) {
+                return;
+            }
+            ByteBuffer readBuffer = channel.getBufHandler().getReadBuffer();
+            readBuffer.clear();
+            int nRead;
+            try {
+                nRead = channel.read(readBuffer);
+            } catch (IOException ioe) {
+                // The processor will see the same error when it reads
+                nRead = -1;
+            }
+            readBuffer.flip();
+            if (nRead > 0) {
+                channel.setPeeked(true);
+                if (handler.isHighPriority(readBuffer.duplicate())) {
+                    attachment.setHighPriority(true);
+                }
+            }
+        }
+
         protected boolean processKey(SelectionKey sk, KeyAttachment attachment) {
             boolean result = true;
             try {
@@ -1405,12 +1668,15 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                     if (sk.isReadable() || sk.isWritable() ) {
                         if ( attachment.getSendfileData() != null ) {
                             processSendfile(sk,attachment, false);
+                        } else if (attachment.getWriteBehindData() != null) {
+                            processWriteBehind(sk, attachment, false);
                         } else {
                             if ( isWorkerAvailable() ) {
                                 unreg(sk, attachment, sk.readyOps()); //
                                 boolean closeSocket = false;
                                 // Read goes before write
                                 if (sk.isReadable()) {
+                                    classify(channel, attachment);
                                     // 从channel中读取数据
                                     if (!processSocket(channel, SocketStatus.OPEN_READ, true)) {
                                         closeSocket = true;
@@ -1554,6 +1820,81 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
             }
         }
 
+        /**
+         * Write as much of a response handed over by a worker thread as the
+         * socket accepts without blocking. Once all of it has been written
+         * the connection continues in the same way as after sendfile.
+         */
+        public SendfileState processWriteBehind(SelectionKey sk, KeyAttachment attachment,
+                boolean calledByProcessor) {
+            try {
+                unreg(sk, attachment, sk.readyOps());
+                WriteBehindData data = attachment.getWriteBehindData();
+                NioChannel sc = attachment.getChannel();
+
+                long written;
+                do {
+                    written = sc.write(data.buffers);
+                    if (written > 0) {
+                        writeBehindBytes.addAndGet(-written);
+                        attachment.access();
+                    }
+                } while (written > 0 && data.remaining() > 0);
+
+                if (data.remaining() == 0) {
+                    releaseWriteBehind(attachment);
+                    // For calls from outside the Poller, the caller is
+                    // responsible for registering the socket for the
+                    // appropriate event(s) if the write completes.
+                    if (!calledByProcessor) {
+                        switch (data.keepAliveState) {
+                        case NONE: {
+                            cancelledKey(sk, SocketStatus.STOP, false);
+                            break;
+                        }
+                        case PIPELINED: {
+                            if (!processSocket(sc, SocketStatus.OPEN_READ, true)) {
+                                cancelledKey(sk, SocketStatus.DISCONNECT, false);
+                            }
+                            break;
+                        }
+                        case OPEN: {
+                            // Nothing is pending so the buffers are not
+                            // needed until the next request arrives
+                            sc.releaseBuffers();
+                            reg(sk, attachment, SelectionKey.OP_READ);
+                            break;
+                        }
+                        }
+                    }
+                    return SendfileState.DONE;
+                } else {
+                    if (calledByProcessor) {
+                        add(attachment.getChannel(), SelectionKey.OP_WRITE);
+                    } else {
+                        reg(sk, attachment, SelectionKey.OP_WRITE);
+                    }
+                    return SendfileState.PENDING;
+                }
+            } catch (IOException x) {
+                if (log.isDebugEnabled()) log.debug("Unable to complete write-behind:", x);
+                if (calledByProcessor) {
+                    releaseWriteBehind(attachment);
+                } else {
+                    cancelledKey(sk, SocketStatus.ERROR, false);
+                }
+                return SendfileState.ERROR;
+            } catch (Throwable t) {
+                log.error("", t);
+                if (calledByProcessor) {
+                    releaseWriteBehind(attachment);
+                } else {
+                    cancelledKey(sk, SocketStatus.ERROR, false);
+                }
+                return SendfileState.ERROR;
+            }
+        }
+
         protected void unreg(SelectionKey sk, KeyAttachment attachment, int readyOps) {
             //this is a must, so that we don't have multiple threads messing with the socket
             reg(sk,attachment,sk.interestOps()& (~readyOps));
@@ -1563,81 +1904,49 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
             sk.interestOps(intops);
             attachment.interestOps(intops);
             attachment.setCometOps(intops);
+            scheduleTimeout(attachment);
         }
 
         protected void timeout(int keyCount, boolean hasEvents) {
-            long now = System.currentTimeMillis();
+            timeout(keyCount, hasEvents, System.currentTimeMillis());
+        }
+
+        /*
+         * Separated from timeout(int, boolean) so that the timeout handling
+         * can be tested without waiting for the time to pass.
+         */
+        void timeout(int keyCount, boolean hasEvents, long now) {
+            // Pick up any keys whose timeout was changed outside of the Poller
+            KeyAttachment changed;
+            while ((changed = timeoutChanges.poll()) != null) {
+                if (changed.getPoller() == this) {
+                    scheduleTimeout(changed);
+                }
+            }
+            // When the server socket is being closed every key has to be
+            // visited, not just those that are due
+            if (close) {
+                closeKeys(now);
+                return;
+            }
             // This method is called on every loop of the Poller. Don't process
             // timeouts on every loop of the Poller since that would create too
             // much load and timeouts can afford to wait a few seconds.
             // However, do process timeouts if any of the following are true:
             // - the selector simply timed out (suggests there isn't much load)
             // - the nextExpiration time has passed
-            // - the server socket is being closed
-            if ((keyCount > 0 || hasEvents) && (now < nextExpiration) && !close) {
+            if ((keyCount > 0 || hasEvents) && (now < nextExpiration)) {
                 return;
             }
-            //timeout
-            Set<SelectionKey> keys = selector.keys();
+            long nowTick = now / TIMEOUT_WHEEL_TICK;
+            // After a long pause, visiting each bucket once is enough
+            long firstTick = Math.max(timeoutTick + 1, nowTick - TIMEOUT_WHEEL_MASK);
+            // Keys rescheduled while the buckets are being processed must go
+            // after the ticks being processed
+            timeoutTick = Math.max(timeoutTick, nowTick);
             int keycount = 0;
-            try {
-                for (Iterator<SelectionKey> iter = keys.iterator(); iter.hasNext();) {
-                    SelectionKey key = iter.next();
-                    keycount++;
-                    try {
-                        KeyAttachment ka = (KeyAttachment) key.attachment();
-                        if ( ka == null ) {
-                            cancelledKey(key, SocketStatus.ERROR,false); //we don't support any keys without attachments
-                        } else if ( ka.getError() ) {
-                            cancelledKey(key, SocketStatus.ERROR,true);//TODO this is not yet being used
-                        } else if (ka.isComet() && ka.getCometNotify() ) {
-                            ka.setCometNotify(false);
-                            reg(key,ka,0);//avoid multiple calls, this gets reregistered after invocation
-                            //if (!processSocket(ka.getChannel(), SocketStatus.OPEN_CALLBACK)) processSocket(ka.getChannel(), SocketStatus.DISCONNECT);
-                            if (!processSocket(ka.getChannel(), SocketStatus.OPEN_READ, true)) processSocket(ka.getChannel(), SocketStatus.DISCONNECT, true);
-                        } else if ((ka.interestOps()&SelectionKey.OP_READ) == SelectionKey.OP_READ ||
-                                  (ka.interestOps()&SelectionKey.OP_WRITE) == SelectionKey.OP_WRITE) {
-                            //only timeout sockets that we are waiting for a read from
-                            long delta = now - ka.getLastAccess();
-                            long timeout = ka.getTimeout();
-                            boolean isTimedout = timeout > 0 && delta > timeout;
-                            if ( close ) {
-                                key.interestOps(0);
-                                ka.interestOps(0); //avoid duplicate stop calls
-                                processKey(key,ka);
-                            } else if (isTimedout) {
-                                key.interestOps(0);
-                                ka.interestOps(0); //avoid duplicate timeout calls
-                                cancelledKey(key, SocketStatus.TIMEOUT,true);
-                            }
-                        } else if (ka.isAsync() || ka.isComet()) {
-                            if (close) {
-                                key.interestOps(0);
-                                ka.interestOps(0); //avoid duplicate stop calls
-                                processKey(key,ka);
-                            } else if (!ka.isAsync() || ka.getTimeout() > 0) {
-                                // Async requests with a timeout of 0 or less never timeout
-                                long delta = now - ka.getLastAccess();
-                                long timeout = (ka.getTimeout()==-1)?((long) socketProperties.getSoTimeout()):(ka.getTimeout());
-                                boolean isTimedout = delta > timeout;
-                                if (isTimedout) {
-                                    // Prevent subsequent timeouts if the timeout event takes a while to process
-                                    ka.access(Long.MAX_VALUE);
-                                    processSocket(ka.getChannel(), SocketStatus.TIMEOUT, true);
-                                }
-                            } else if (ka.isAsync() && !handler.isAvailable(ka)) {
-                                // Prevent subsequent timeouts if the timeout event takes a while to process
-                                ka.access(Long.MAX_VALUE);
-                                processSocket(ka.getChannel(), SocketStatus.TIMEOUT, true);
-                            }
-                        }//end if
-                    }catch ( CancelledKeyException ckx ) {
-                        cancelledKey(key, SocketStatus.ERROR,false);
-                    }
-                }//for
-            } catch (ConcurrentModificationException cme) {
-                // See https://bz.apache.org/bugzilla/show_bug.cgi?id=57943
-                log.warn(sm.getString("endpoint.nio.timeoutCme"), cme);
+            for (long tick = firstTick; tick <= nowTick; tick++) {
+                keycount += expire((int) (tick & TIMEOUT_WHEEL_MASK), nowTick, now);
             }
             long prevExp = nextExpiration; //for logging purposes only
             nextExpiration = System.currentTimeMillis() +
@@ -1650,6 +1959,194 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
             }
 
         }
+
+        /**
+         * Processes one bucket of the timeout wheel.
+         *
+         * @return the number of keys that were due and have been checked
+         */
+        private int expire(int index, long nowTick, long now) {
+            ArrayList<KeyAttachment> bucket = timeoutWheel[index];
+            if (bucket.isEmpty()) {
+                return 0;
+            }
+            timeoutWheel[index] = timeoutSpare;
+            int keycount = 0;
+            for (int i = 0, size = bucket.size(); i < size; i++) {
+                KeyAttachment ka = bucket.get(i);
+                long tick = ka.timeoutTick;
+                if (tick < 0 || (tick & TIMEOUT_WHEEL_MASK) != index ||
+                        ka.getPoller() != this) {
+                    // Stale entry: the key was closed or rescheduled
+                    continue;
+                }
+                if (tick > nowTick) {
+                    // Due in a later round
+                    timeoutWheel[index].add(ka);
+                    continue;
+                }
+                ka.timeoutTick = -1;
+                NioChannel channel = ka.getChannel();
+                SelectionKey key =
+                        channel == null ? null : channel.getIOChannel().keyFor(selector);
+                if (key == null || key.attachment() != ka) {
+                    continue;
+                }
+                keycount++;
+                long deadline = timeout(key, ka, now);
+                if (deadline >= 0) {
+                    scheduleTimeout(ka, deadline);
+                }
+            }
+            bucket.clear();
+            timeoutSpare = bucket;
+            return keycount;
+        }
+
+        /**
+         * Processes all the keys registered with the selector. Used when the
+         * Poller is closing.
+         */
+        private void closeKeys(long now) {
+            Set<SelectionKey> keys = selector.keys();
+            try {
+                for (Iterator<SelectionKey> iter = keys.iterator(); iter.hasNext();) {
+                    SelectionKey key = iter.next();
+                    timeout(key, (KeyAttachment) key.attachment(), now);
+                }//for
+            } catch (ConcurrentModificationException cme) {
+                // See https://bz.apache.org/bugzilla/show_bug.cgi?id=57943
+                log.warn(sm.getString("endpoint.nio.timeoutCme"), cme);
+            }
+        }
+
+        /**
+         * Checks a single key for expiry and processes it if it has expired.
+         *
+         * @return the time at which the key needs to be checked again or -1 if
+         *         the key no longer needs to be tracked
+         */
+        private long timeout(SelectionKey key, KeyAttachment ka, long now) {
+            try {
+                if ( ka == null ) {
+                    cancelledKey(key, SocketStatus.ERROR,false); //we don't support any keys without attachments
+                    return -1;
+                } else if ( ka.getError() ) {
+                    cancelledKey(key, SocketStatus.ERROR,true);//TODO this is not yet being used
+                    return -1;
+                } else if (ka.isComet() && ka.getCometNotify() ) {
+                    ka.setCometNotify(false);
+                    reg(key,ka,0);//avoid multiple calls, this gets reregistered after invocation
+                    //if (!processSocket(ka.getChannel(), SocketStatus.OPEN_CALLBACK)) processSocket(ka.getChannel(), SocketStatus.DISCONNECT);
+                    if (!processSocket(ka.getChannel(), SocketStatus.OPEN_READ, true)) processSocket(ka.getChannel(), SocketStatus.DISCONNECT, true);
+                } else if ((ka.interestOps()&SelectionKey.OP_READ) == SelectionKey.OP_READ ||
+                          (ka.interestOps()&SelectionKey.OP_WRITE) == SelectionKey.OP_WRITE) {
+                    //only timeout sockets that we are waiting for a read from
+                    long delta = now - ka.getLastAccess();
+                    long timeout = ka.getTimeout();
+                    boolean isTimedout = timeout > 0 && delta > timeout;
+                    if ( close ) {
+                        key.interestOps(0);
+                        ka.interestOps(0); //avoid duplicate stop calls
+                        processKey(key,ka);
+                        return -1;
+                    } else if (isTimedout) {
+                        key.interestOps(0);
+                        ka.interestOps(0); //avoid duplicate timeout calls
+                        if (ka.isAsync()) {
+                            // Non-blocking IO of an async request. Let the
+                            // application handle the timeout.
+                            ka.access(Long.MAX_VALUE);
+                            processSocket(ka.getChannel(), SocketStatus.TIMEOUT, true);
+                        } else {
+                            cancelledKey(key, SocketStatus.TIMEOUT,true);
+                        }
+                        return -1;
+                    }
+                } else if (ka.isAsync() || ka.isComet()) {
+                    if (close) {
+                        key.interestOps(0);
+                        ka.interestOps(0); //avoid duplicate stop calls
+                        processKey(key,ka);
+                        return -1;
+                    } else if (!ka.isAsync() || ka.getTimeout() > 0) {
+                        // Async requests with a timeout of 0 or less never timeout
+                        long delta = now - ka.getLastAccess();
+                        long timeout = (ka.getTimeout()==-1)?((long) socketProperties.getSoTimeout()):(ka.getTimeout());
+                        boolean isTimedout = delta > timeout;
+                        if (isTimedout) {
+                            // Prevent subsequent timeouts if the timeout event takes a while to process
+                            ka.access(Long.MAX_VALUE);
+                            processSocket(ka.getChannel(), SocketStatus.TIMEOUT, true);
+                            return -1;
+                        }
+                    } else if (ka.isAsync() && !handler.isAvailable(ka)) {
+                        // Prevent subsequent timeouts if the timeout event takes a while to process
+                        ka.access(Long.MAX_VALUE);
+                        processSocket(ka.getChannel(), SocketStatus.TIMEOUT, true);
+                        return -1;
+                    }
+                }//end if
+            }catch ( CancelledKeyException ckx ) {
+                cancelledKey(key, SocketStatus.ERROR,false);
+                return -1;
+            }
+            return getTimeoutDeadline(ka, now);
+        }
+
+        /**
+         * Returns the time at which the given key next needs to be checked for
+         * a timeout, based on its current state, or -1 if no check is required.
+         */
+        private long getTimeoutDeadline(KeyAttachment ka, long now) {
+            long lastAccess = ka.getLastAccess();
+            if (lastAccess == Long.MAX_VALUE) {
+                // A timeout is already being processed
+                return -1;
+            }
+            if (ka.isComet() && ka.getCometNotify()) {
+                return now;
+            } else if ((ka.interestOps() &
+                    (SelectionKey.OP_READ | SelectionKey.OP_WRITE)) != 0) {
+                long timeout = ka.getTimeout();
+                return timeout > 0 ? lastAccess + timeout : -1;
+            } else if (ka.isAsync() || ka.isComet()) {
+                if (!ka.isAsync() || ka.getTimeout() > 0) {
+                    long timeout = (ka.getTimeout()==-1)?((long) socketProperties.getSoTimeout()):(ka.getTimeout());
+                    return lastAccess + timeout;
+                }
+                // Async requests without a timeout have to be checked on
+                // every tick in case the async context has gone away
+                return now;
+            }
+            // Being processed, the key will be rescheduled once it is handed
+            // back to the Poller
+            return -1;
+        }
+
+        /**
+         * (Re)indexes the timeout of the given key after a change of its
+         * interest set or of its async state. Must only be called by the
+         * Poller thread.
+         */
+        protected void scheduleTimeout(KeyAttachment ka) {
+            long deadline = getTimeoutDeadline(ka, System.currentTimeMillis());
+            if (deadline >= 0) {
+                scheduleTimeout(ka, deadline);
+            }
+        }
+
+        private void scheduleTimeout(KeyAttachment ka, long deadline) {
+            // The first tick that starts strictly after the deadline
+            long tick = Math.max(deadline / TIMEOUT_WHEEL_TICK + 1, timeoutTick + 1);
+            long current = ka.timeoutTick;
+            if (current > timeoutTick && current <= tick) {
+                // The key will be checked no later than required
+                return;
+            }
+            ka.timeoutTick = tick;
+            timeoutWheel[(int) (tick & TIMEOUT_WHEEL_MASK)].add(ka);
+        }
     }
 
 // ----------------------------------------------------- Key Attachment Class
@@ -1668,6 +2165,7 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
             this.poller = poller;
             lastRegistered = 0;
             sendfileData = null;
+            writeBehindData = null;
             if (readLatch != null) {
                 try {
                     for (int i = 0; i < (int) readLatch.getCount(); i++) {
@@ -1688,12 +2186,38 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
             }
             writeLatch = null;
             setWriteTimeout(soTimeout);
+            timeoutTick = -1;
         }
 
         public void reset() {
             reset(null,null,-1);
         }
 
+        @Override
+        public void setAsync(boolean async) {
+            boolean changed = async && !isAsync();
+            super.setAsync(async);
+            if (changed) {
+                // Async sockets are not handed back to the Poller so it has
+                // to be told that there is now a timeout to track
+                requestTimeoutCheck();
+            }
+        }
+        @Override
+        public void setTimeout(long timeout) {
+            long previous = getTimeout();
+            super.setTimeout(timeout);
+            if (getTimeout() > 0 && (previous <= 0 || getTimeout() < previous)) {
+                // Later deadlines are picked up when the old one is checked
+                requestTimeoutCheck();
+            }
+        }
+        private void requestTimeoutCheck() {
+            Poller poller = this.poller;
+            if (poller != null && (interestOps != 0 || isAsync() || isComet())) {
+                poller.timeoutChanges.offer(this);
+            }
+        }
         public Poller getPoller() { return poller;}
         public void setPoller(Poller poller){this.poller = poller;}
         public void setCometNotify(boolean notify) { this.cometNotify = notify; }
@@ -1754,6 +2278,9 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
         public void setSendfileData(SendfileData sf) { this.sendfileData = sf;}
         public SendfileData getSendfileData() { return this.sendfileData;}
 
+        public void setWriteBehindData(WriteBehindData wbd) { this.writeBehindData = wbd;}
+        public WriteBehindData getWriteBehindData() { return this.writeBehindData;}
+
         public void setWriteTimeout(long writeTimeout) {
             this.writeTimeout = writeTimeout;
         }
@@ -1765,7 +2292,14 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
         protected CountDownLatch readLatch = null;
         protected CountDownLatch writeLatch = null;
         protected volatile SendfileData sendfileData = null;
+        protected volatile WriteBehindData writeBehindData = null;
         private long writeTimeout = -1;
+        /**
+         * The tick of the Poller's timeout wheel at which this key is next
+         * checked, or -1 if it is not in the wheel. Only used by the Poller
+         * thread.
+         */
+        protected long timeoutTick = -1;
     }
 
     // ------------------------------------------------ Application Buffer Handler
@@ -1773,7 +2307,29 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
         protected ByteBuffer readbuf = null;
         protected ByteBuffer writebuf = null;
 
+        private final SocketBufferPool pool;
+        private final int readsize;
+        private final int writesize;
+        private final boolean direct;
+
         public NioBufferHandler(int readsize, int writesize, boolean direct) {
+            this(readsize, writesize, direct, null);
+        }
+
+        /**
+         * @param pool  If not <code>null</code>, the buffers are obtained
+         *              from the pool when first used and are returned to it
+         *              by {@link #releaseBuffers()}
+         */
+        public NioBufferHandler(int readsize, int writesize, boolean direct,
+                SocketBufferPool pool) {
+            this.pool = pool;
+            this.readsize = readsize;
+            this.writesize = writesize;
+            this.direct = direct;
+            if (pool != null) {
+                return;
+            }
             if ( direct ) {
                 readbuf = ByteBuffer.allocateDirect(readsize);
                 writebuf = ByteBuffer.allocateDirect(writesize);
@@ -1786,10 +2342,48 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
         @Override
         public ByteBuffer expand(ByteBuffer buffer, int remaining) {return buffer;}
         @Override
-        public ByteBuffer getReadBuffer() {return readbuf;}
+        public ByteBuffer getReadBuffer() {
+            if (readbuf == null) {
+                readbuf = pool.acquire(readsize, direct);
+            }
+            return readbuf;
+        }
         @Override
-        public ByteBuffer getWriteBuffer() {return writebuf;}
+        public ByteBuffer getWriteBuffer() {
+            if (writebuf == null) {
+                writebuf = pool.acquire(writesize, direct);
+            }
+            return writebuf;
+        }
+
+        /**
+         * Clear the buffers. Pooled buffers are returned to the pool instead.
+         */
+        public void reset() {
+            if (pool == null) {
+                readbuf.clear();
+                writebuf.clear();
+            } else {
+                releaseBuffers();
+            }
+        }
 
+        /**
+         * Return the buffers to the pool, if any. The buffers must not contain
+         * any pending data. They will be obtained again from the pool when next
+         * required.
+         */
+        public void releaseBuffers() {
+            if (pool == null) {
+                return;
+            }
+            ByteBuffer buffer = readbuf;
+            readbuf = null;
+            pool.release(buffer);
+            buffer = writebuf;
+            writebuf = null;
+            pool.release(buffer);
+        }
     }
 
     // ------------------------------------------------ Handler Inner Interface
@@ -1807,6 +2401,19 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
         public void release(SocketChannel socket);
         public SSLImplementation getSslImplementation();
         public boolean isAvailable(SocketWrapper<NioChannel> socket);
+        /**
+         * @return <code>true</code> if the Poller should read the start of
+         *         each request so that it can be classified by
+         *         {@link #isHighPriority(ByteBuffer)} before the socket is
+         *         passed to a worker thread
+         */
+        public boolean isClassifying();
+        /**
+         * @param requestStart The data read so far for the request. It must
+         *                     not be modified.
+         * @return <code>true</code> if the request is high priority
+         */
+        public boolean isHighPriority(ByteBuffer requestStart);
     }
 
 
@@ -1818,10 +2425,11 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
      *
      *
      */
-    protected class SocketProcessor implements Runnable {
+    protected class SocketProcessor implements PriorityTask {
 
         protected NioChannel socket = null;
         protected SocketStatus status = null;
+        protected long enqueueTime;
 
         public SocketProcessor(NioChannel socket, SocketStatus status) {
             reset(socket,status);
@@ -1830,6 +2438,18 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
         public void reset(NioChannel socket, SocketStatus status) {
             this.socket = socket;
             this.status = status;
+            this.enqueueTime = System.nanoTime();
+        }
+
+        @Override
+        public boolean isHighPriority() {
+            NioChannel socket = this.socket;
+            if (socket == null) {
+                return false;
+            }
+            Object att = socket.getAttachment();
+            return att instanceof KeyAttachment &&
+                    ((KeyAttachment) att).isHighPriority();
         }
 
         @Override
@@ -1845,21 +2465,36 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
             if (key != null) {
                 ka = (KeyAttachment)key.attachment();
             }
+            recordQueueDelay(enqueueTime, ka, status);
 
             // Upgraded connections need to allow multiple threads to access the
             // connection at the same time to enable blocking IO to be used when
             // NIO has been configured
             if (ka != null && ka.isUpgraded() &&
                     SocketStatus.OPEN_WRITE == status) {
-                synchronized (ka.getWriteThreadLock()) {
+                Lock lock = ka.getWriteThreadLock();
+                lock.lock();
+                try {
                     doRun(key, ka);
+                } finally {
+                    lock.unlock();
                 }
-            } else {
+            } else if (ka != null) {
                 // 在nio中，每产生一个就绪的io事件，就会通过一个线程来处理该事件，需要进行同步
                 // 意思是，多个线程只能并发处理不同socket,不能处理同一个socket
-                synchronized (socket) {
+                Lock lock = ka.getLock();
+                lock.lock();
+                try {
                     // 真正处理事件的逻辑
                     doRun(key, ka);
+                } finally {
+                    lock.unlock();
+                }
+            } else {
+                // The key has been cancelled so there is nothing to process,
+                // only the socket to close, which does not block
+                synchronized (socket) {
+                    doRun(key, ka);
                 }
             }
         }
@@ -1867,6 +2502,7 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
         private void doRun(SelectionKey key, KeyAttachment ka) {
             try {
                 int handshake = -1;
+                boolean handshaking = false;
 
                 try {
                     if (key != null) {
@@ -1876,6 +2512,7 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                                 status == SocketStatus.STOP) {
                             handshake = 0;
                         } else {
+                            handshaking = true;
                             handshake = socket.handshake(
                                     key.isReadable(), key.isWritable());
                             // The handshake process reads/writes from/to the
@@ -1895,6 +2532,9 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                     handshake = -1;
                 }
                 if ( handshake == 0 ) {
+                    if (handshaking) {
+                        handshakeComplete((SecureNioChannel) socket);
+                    }
                     SocketState state = SocketState.OPEN;
                     // Process the request from this socket
                     if (status == null) {
@@ -1908,6 +2548,9 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                     }
                 } else if (handshake == -1 ) {
                     close(ka, socket, key, SocketStatus.DISCONNECT);
+                } else if (handshake == SecureNioChannel.HANDSHAKE_TASKS_PENDING) {
+                    // The channel is added back to the poller once the
+                    // delegated tasks have been run by the handshake executor
                 } else {
                     ka.getPoller().add(socket, handshake);
                 }
@@ -1941,7 +2584,8 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                 status = null;
                 //return to cache
                 if (running && !paused) {
-                    processorCache.offer(this);
+                    reset(null, null);
+                    processorCache.push(this);
                 }
             }
         }
@@ -1960,10 +2604,12 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                     // their respective caches. We do NOT want to do
                     // this more than once - see BZ 57340 / 57943.
                     if (running && !paused) {
-                        nioChannels.offer(socket);
+                        socket.releaseBuffers();
+                        nioChannels.push(socket);
                     }
                     if (running && !paused && ka != null) {
-                        keyCache.offer(ka);
+                        ka.reset();
+                        keyCache.push(ka);
                     }
                 }
             } catch ( Exception x ) {
@@ -1985,4 +2631,27 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
         // KeepAlive flag
         public SendfileKeepAliveState keepAliveState = SendfileKeepAliveState.NONE;
     }
+
+    // ------------------------------------------- WriteBehindData Inner Class
+    /**
+     * The end of a response that the Poller writes on behalf of a worker
+     * thread.
+     */
+    public static class WriteBehindData {
+        public final ByteBuffer[] buffers;
+        // KeepAlive flag
+        public SendfileKeepAliveState keepAliveState = SendfileKeepAliveState.NONE;
+
+        public WriteBehindData(ByteBuffer... buffers) {
+            this.buffers = buffers;
+        }
+
+        public long remaining() {
+            long remaining = 0;
+            for (ByteBuffer buffer : buffers) {
+                remaining += buffer.remaining();
+            }
+            return remaining;
+        }
+    }
 }
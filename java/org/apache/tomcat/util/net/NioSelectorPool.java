@@ -173,18 +173,44 @@ public class NioSelectorPool {
         if ( SHARED && block ) {
             return blockingSelector.write(buf,socket,writeTimeout);
         }
+        return (int) write(buf, null, socket, selector, writeTimeout, block);
+    }
+
+    /**
+     * Performs a blocking gathering write of the given buffers, so that the
+     * content of several buffers can be passed to the network with a single
+     * system call.
+     * @param bufs ByteBuffer[] - the buffers containing the data, we will write as long as any of them has remaining data
+     * @param socket SocketChannel - the socket to write data to
+     * @param selector Selector - the selector to use for blocking, if null then a busy write will be initiated
+     * @param writeTimeout long - the timeout for this write operation in milliseconds, -1 means no timeout
+     * @return long - returns the number of bytes written
+     * @throws EOFException if write returns -1
+     * @throws SocketTimeoutException if the write times out
+     * @throws IOException if an IO Exception occurs in the underlying socket logic
+     */
+    public long write(ByteBuffer[] bufs, NioChannel socket, Selector selector,
+                      long writeTimeout) throws IOException {
+        if ( SHARED ) {
+            return blockingSelector.write(bufs,socket,writeTimeout);
+        }
+        return write(null, bufs, socket, selector, writeTimeout, true);
+    }
+
+    private long write(ByteBuffer buf, ByteBuffer[] bufs, NioChannel socket,
+            Selector selector, long writeTimeout, boolean block) throws IOException {
         SelectionKey key = null;
-        int written = 0;
+        long written = 0;
         boolean timedout = false;
         int keycount = 1; //assume we can write 假设现在就可以写
         long time = System.currentTimeMillis(); //start the timeout timer
         try {
             // 没有超时并且buf中有数据
-            while ( (!timedout) && buf.hasRemaining() ) {
-                int cnt = 0;
+            while ( (!timedout) && NioBlockingSelector.hasRemaining(buf, bufs) ) {
+                long cnt = 0;
                 if ( keycount > 0 ) { //only write if we were registered for a write
                     // 写数据，返回的数字是多少，表示写了多少，可能返回0，表示没有写入数据
-                    cnt = socket.write(buf); //write the data
+                    cnt = buf != null ? socket.write(buf) : socket.write(bufs); //write the data
                     if (cnt == -1) throw new EOFException();
 
                     written += cnt;
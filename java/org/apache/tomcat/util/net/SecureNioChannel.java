@@ -23,6 +23,8 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
@@ -32,6 +34,7 @@ import javax.net.ssl.SSLException;
 
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.net.NioEndpoint.Poller;
 
 /**
  * Implementation of a secure socket channel
@@ -60,15 +63,61 @@ public class SecureNioChannel extends NioChannel  {
 
     protected NioSelectorPool pool;
 
+    /**
+     * Returned by {@link #handshake(boolean, boolean)} when the delegated
+     * tasks of the handshake have been passed to the handshake executor. The
+     * channel adds itself back to its poller once the tasks have completed so
+     * the caller must not register it.
+     */
+    public static final int HANDSHAKE_TASKS_PENDING = Integer.MIN_VALUE;
+
+    /*
+     * If set, the delegated tasks of the handshake are run by this executor
+     * rather than by the thread performing the handshake.
+     */
+    private volatile Executor handshakeExecutor = null;
+    private final Runnable handshakeTasks = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                handshakeStatus = tasks();
+            } finally {
+                Poller poller = getPoller();
+                if (poller != null) {
+                    // The handshake always continues with a write or with a
+                    // read that may already be buffered
+                    poller.add(SecureNioChannel.this, SelectionKey.OP_WRITE);
+                }
+            }
+        }
+    };
+
+    private boolean blockingHandshake = false;
+
+    private long handshakeStart;
+
+    /*
+     * When set, the network buffers are obtained from this pool and returned
+     * to it by releaseBuffers().
+     */
+    private final SocketBufferPool bufferPool;
+    private final int netBufSize;
+
     public SecureNioChannel(SocketChannel channel, SSLEngine engine,
                             ApplicationBufferHandler bufHandler, NioSelectorPool pool) throws IOException {
+        this(channel, engine, bufHandler, pool, null);
+    }
+
+    public SecureNioChannel(SocketChannel channel, SSLEngine engine,
+                            ApplicationBufferHandler bufHandler, NioSelectorPool pool,
+                            SocketBufferPool bufferPool) throws IOException {
         super(channel,bufHandler);
         this.sslEngine = engine;
+        this.bufferPool = bufferPool;
         int appBufSize = sslEngine.getSession().getApplicationBufferSize();
-        int netBufSize = sslEngine.getSession().getPacketBufferSize();
+        netBufSize = sslEngine.getSession().getPacketBufferSize();
         //allocate network buffers - TODO, add in optional direct non-direct buffers
-        if ( netInBuffer == null ) netInBuffer = ByteBuffer.allocateDirect(netBufSize);
-        if ( netOutBuffer == null ) netOutBuffer = ByteBuffer.allocateDirect(netBufSize);
+        acquireBuffers();
 
         //selector pool for blocking operations
         this.pool = pool;
@@ -87,6 +136,7 @@ public class SecureNioChannel extends NioChannel  {
     @Override
     public void reset() throws IOException {
         super.reset();
+        acquireBuffers();
         netOutBuffer.position(0);
         netOutBuffer.limit(0);
         netInBuffer.position(0);
@@ -94,11 +144,53 @@ public class SecureNioChannel extends NioChannel  {
         handshakeComplete = false;
         closed = false;
         closing = false;
+        handshakeStart = System.nanoTime();
         //initiate handshake
         sslEngine.beginHandshake();
         handshakeStatus = sslEngine.getHandshakeStatus();
     }
 
+    /**
+     * Obtain the network buffers if they have been released.
+     */
+    private void acquireBuffers() {
+        if (netInBuffer == null) {
+            netInBuffer = bufferPool == null ?
+                    ByteBuffer.allocateDirect(netBufSize) :
+                    bufferPool.acquire(netBufSize, true);
+        }
+        if (netOutBuffer == null) {
+            netOutBuffer = bufferPool == null ?
+                    ByteBuffer.allocateDirect(netBufSize) :
+                    bufferPool.acquire(netBufSize, true);
+            // Nothing to write
+            netOutBuffer.limit(0);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The network buffers are only released once the initial handshake has
+     * completed and if they do not hold any data, such as a TLS record that
+     * has been read but not yet decrypted.
+     */
+    @Override
+    public void releaseBuffers() {
+        super.releaseBuffers();
+        if (bufferPool == null || !handshakeComplete) {
+            return;
+        }
+        if (netInBuffer != null && netInBuffer.position() == 0) {
+            bufferPool.release(netInBuffer);
+            netInBuffer = null;
+        }
+        if (netOutBuffer != null && !netOutBuffer.hasRemaining()) {
+            bufferPool.release(netOutBuffer);
+            netOutBuffer = null;
+        }
+    }
+
     @Override
     public int getBufferSize() {
         int size = super.getBufferSize();
@@ -125,6 +217,7 @@ public class SecureNioChannel extends NioChannel  {
      */
     @Override
     public boolean flush(boolean block, Selector s, long timeout) throws IOException {
+        acquireBuffers();
         if (!block) {
             flush(netOutBuffer);
         } else {
@@ -153,14 +246,18 @@ public class SecureNioChannel extends NioChannel  {
      * thread. Hence, you should never call this method using your Acceptor
      * thread, as you would slow down your system significantly. If the return
      * value from this method is positive, the selection key should be
-     * registered interestOps given by the return value.
+     * registered interestOps given by the return value. If a handshake
+     * executor has been configured, NEED_TASK is passed to that executor
+     * instead and {@link #HANDSHAKE_TASKS_PENDING} is returned.
      *
      * @param read boolean - true if the underlying channel is readable
      * @param write boolean - true if the underlying channel is writable
      *
      * @return 0 if hand shake is complete, -1 if an error (other than an
-     *         IOException) occurred, otherwise it returns a SelectionKey
-     *         interestOps value
+     *         IOException) occurred, {@link #HANDSHAKE_TASKS_PENDING} if
+     *         the channel will be added back to the poller once the
+     *         delegated tasks have completed, otherwise it returns a
+     *         SelectionKey interestOps value
      *
      * @throws IOException If an I/O error occurs during the handshake or if the
      *                     handshake fails during wrapping or unwrapping
@@ -168,6 +265,7 @@ public class SecureNioChannel extends NioChannel  {
     @Override
     public int handshake(boolean read, boolean write) throws IOException {
         if ( handshakeComplete ) return 0; //we have done our initial handshake
+        acquireBuffers();
 
         if (!flush(netOutBuffer)) return SelectionKey.OP_WRITE; //we still have data to write
 
@@ -196,8 +294,10 @@ public class SecureNioChannel extends NioChannel  {
                         handshake = handshakeWrap(write);
                     }
                     if (handshake.getStatus() == Status.OK) {
-                        if (handshakeStatus == HandshakeStatus.NEED_TASK)
+                        if (handshakeStatus == HandshakeStatus.NEED_TASK) {
+                            if (offloadTasks()) return HANDSHAKE_TASKS_PENDING;
                             handshakeStatus = tasks();
+                        }
                     } else if (handshake.getStatus() == Status.CLOSED) {
                         flush(netOutBuffer);
                         return -1;
@@ -217,8 +317,10 @@ public class SecureNioChannel extends NioChannel  {
                     //perform the unwrap function
                     handshake = handshakeUnwrap(read);
                     if ( handshake.getStatus() == Status.OK ) {
-                        if (handshakeStatus == HandshakeStatus.NEED_TASK)
+                        if (handshakeStatus == HandshakeStatus.NEED_TASK) {
+                            if (offloadTasks()) return HANDSHAKE_TASKS_PENDING;
                             handshakeStatus = tasks();
+                        }
                     } else if ( handshake.getStatus() == Status.BUFFER_UNDERFLOW ){
                         //read more data, reregister for OP_READ
                         return SelectionKey.OP_READ;
@@ -228,6 +330,7 @@ public class SecureNioChannel extends NioChannel  {
                     break;
                 }
                 case NEED_TASK: {
+                    if (offloadTasks()) return HANDSHAKE_TASKS_PENDING;
                     handshakeStatus = tasks();
                     break;
                 }
@@ -247,6 +350,7 @@ public class SecureNioChannel extends NioChannel  {
      * @throws SocketTimeoutException - if a socket operation timed out
      */
     public void rehandshake(long timeout) throws IOException {
+        acquireBuffers();
         //validate the network buffers are empty
         if (netInBuffer.position() > 0 && netInBuffer.position()<netInBuffer.limit()) throw new IOException("Network input buffer still contains data. Handshake will fail.");
         if (netOutBuffer.position() > 0 && netOutBuffer.position()<netOutBuffer.limit()) throw new IOException("Network output buffer still contains data. Handshake will fail.");
@@ -258,6 +362,9 @@ public class SecureNioChannel extends NioChannel  {
         boolean handshaking = true;
         Selector selector = null;
         SelectionKey key = null;
+        // The calling thread waits for the handshake to complete so there is
+        // nothing to gain from running the delegated tasks elsewhere
+        blockingHandshake = true;
         try {
             while (handshaking) {
                 int hsStatus = this.handshake(isReadable, isWriteable);
@@ -292,6 +399,7 @@ public class SecureNioChannel extends NioChannel  {
             IOException x = new IOException(cx);
             throw x;
         } finally {
+            blockingHandshake = false;
             if (key != null) {
                 try {
                     key.cancel();
@@ -309,6 +417,30 @@ public class SecureNioChannel extends NioChannel  {
 
 
 
+    /**
+     * Pass the delegated tasks of the handshake to the handshake executor, if
+     * one has been configured.
+     *
+     * @return <code>true</code> if the tasks will be run by the handshake
+     *         executor, <code>false</code> if they have to be run by the
+     *         current thread
+     */
+    private boolean offloadTasks() {
+        if (!canOffloadTasks()) {
+            return false;
+        }
+        try {
+            handshakeExecutor.execute(handshakeTasks);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private boolean canOffloadTasks() {
+        return handshakeExecutor != null && !blockingHandshake;
+    }
+
     /**
      * Executes all the tasks needed on the same thread.
      * @return the status
@@ -376,7 +508,8 @@ public class SecureNioChannel extends NioChannel  {
             //read in the status
             handshakeStatus = result.getHandshakeStatus();
             if ( result.getStatus() == SSLEngineResult.Status.OK &&
-                 result.getHandshakeStatus() == HandshakeStatus.NEED_TASK ) {
+                 result.getHandshakeStatus() == HandshakeStatus.NEED_TASK &&
+                 !canOffloadTasks()) {
                 //execute tasks if we need to
                 handshakeStatus = tasks();
             }
@@ -405,6 +538,7 @@ public class SecureNioChannel extends NioChannel  {
             return;
         }
         closing = true;
+        acquireBuffers();
         sslEngine.closeOutbound();
 
         if (!flush(netOutBuffer)) {
@@ -461,6 +595,7 @@ public class SecureNioChannel extends NioChannel  {
         if (!handshakeComplete) {
             throw new IllegalStateException("Handshake incomplete, you must complete handshake before reading data.");
         }
+        acquireBuffers();
 
         //read from the network
         int netread = sc.read(netInBuffer);
@@ -516,6 +651,7 @@ public class SecureNioChannel extends NioChannel  {
     @Override
     public int write(ByteBuffer src) throws IOException {
         checkInterruptStatus();
+        acquireBuffers();
         if (src == this.netOutBuffer) {
             //we can get here through a recursive call
             //by using the NioBlockingSelector
@@ -553,13 +689,34 @@ public class SecureNioChannel extends NioChannel  {
         }
     }
 
+    /**
+     * Each buffer has to be encrypted separately so this writes the buffers
+     * one after the other, stopping at the first one that could not be
+     * written completely.
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length)
+            throws IOException {
+        long written = 0;
+        for (int i = offset; i < offset + length; i++) {
+            if (srcs[i].hasRemaining()) {
+                written += write(srcs[i]);
+                if (srcs[i].hasRemaining()) {
+                    break;
+                }
+            }
+        }
+        return written;
+    }
+
     @Override
     public int getOutboundRemaining() {
-        return netOutBuffer.remaining();
+        return netOutBuffer == null ? 0 : netOutBuffer.remaining();
     }
 
     @Override
     public boolean flushOutbound() throws IOException {
+        acquireBuffers();
         int remaining = netOutBuffer.remaining();
         flush(netOutBuffer);
         int remaining2= netOutBuffer.remaining();
@@ -604,6 +761,22 @@ public class SecureNioChannel extends NioChannel  {
         return sslEngine;
     }
 
+    public Executor getHandshakeExecutor() {
+        return handshakeExecutor;
+    }
+
+    public void setHandshakeExecutor(Executor handshakeExecutor) {
+        this.handshakeExecutor = handshakeExecutor;
+    }
+
+    /**
+     * @return the value of {@link System#nanoTime()} when the handshake of
+     *         the current connection started
+     */
+    public long getHandshakeStart() {
+        return handshakeStart;
+    }
+
     public ByteBuffer getEmptyBuf() {
         return emptyBuf;
     }
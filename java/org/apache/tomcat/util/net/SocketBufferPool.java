@@ -0,0 +1,191 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.tomcat.util.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.tomcat.util.collections.SynchronizedStack;
+
+/**
+ * Pool of socket buffers shared by all the channels of an endpoint. Buffers
+ * are grouped in size classes, one per requested capacity (an endpoint only
+ * ever asks for a handful of distinct sizes). Direct buffers are carved out
+ * of larger slabs so that the cost of a direct allocation is paid once per
+ * slab rather than once per connection.
+ * <p>
+ * Channels return their buffers to the pool when they have no pending data,
+ * for example while waiting for the next request on a keep-alive connection,
+ * and acquire them again on the next read or write. The memory used by a
+ * large number of idle connections is therefore limited to the buffers
+ * actually in use at any one time.
+ */
+public class SocketBufferPool {
+
+    /**
+     * Number of buffers carved out of each direct slab.
+     */
+    private static final int BUFFERS_PER_SLAB = 16;
+
+    private final ConcurrentMap<Integer,SizeClass> heapClasses =
+            new ConcurrentHashMap<Integer,SizeClass>();
+    private final ConcurrentMap<Integer,SizeClass> directClasses =
+            new ConcurrentHashMap<Integer,SizeClass>();
+
+    /**
+     * The maximum number of bytes held by free buffers. -1 means unlimited.
+     */
+    private final long maxFreeBytes;
+    private final AtomicLong freeBytes = new AtomicLong(0);
+    private final AtomicLong allocatedBytes = new AtomicLong(0);
+
+
+    /**
+     * @param maxFreeBytes  The maximum number of bytes the pool keeps in
+     *                      free buffers. Buffers released once that limit
+     *                      has been reached are left to the garbage
+     *                      collector. -1 means unlimited.
+     */
+    public SocketBufferPool(long maxFreeBytes) {
+        this.maxFreeBytes = maxFreeBytes;
+    }
+
+
+    /**
+     * Obtain a cleared buffer of the given capacity.
+     *
+     * @param capacity  The required capacity
+     * @param direct    Should the buffer be a direct buffer?
+     * @return a buffer with exactly the requested capacity
+     */
+    public ByteBuffer acquire(int capacity, boolean direct) {
+        SizeClass sizeClass = getSizeClass(capacity, direct);
+        ByteBuffer result = sizeClass.free.pop();
+        if (result != null) {
+            freeBytes.addAndGet(-capacity);
+            result.clear();
+            return result;
+        }
+        return sizeClass.allocate();
+    }
+
+
+    /**
+     * Return a buffer to the pool. The caller must not use the buffer once
+     * this method has been called.
+     *
+     * @param buffer The buffer to return, may be <code>null</code>
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        if (maxFreeBytes > -1 && freeBytes.get() + capacity > maxFreeBytes) {
+            return;
+        }
+        SizeClass sizeClass = getSizeClass(capacity, buffer.isDirect());
+        if (sizeClass.free.push(buffer)) {
+            freeBytes.addAndGet(capacity);
+        }
+    }
+
+
+    /**
+     * @return the number of bytes allocated by this pool since it was created
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+
+    /**
+     * @return the number of bytes currently held in free buffers
+     */
+    public long getFreeBytes() {
+        return freeBytes.get();
+    }
+
+
+    /**
+     * Discard all the free buffers.
+     */
+    public void clear() {
+        clear(heapClasses);
+        clear(directClasses);
+    }
+
+
+    private void clear(ConcurrentMap<Integer,SizeClass> classes) {
+        for (SizeClass sizeClass : classes.values()) {
+            ByteBuffer buffer;
+            while ((buffer = sizeClass.free.pop()) != null) {
+                freeBytes.addAndGet(-buffer.capacity());
+            }
+        }
+    }
+
+
+    private SizeClass getSizeClass(int capacity, boolean direct) {
+        ConcurrentMap<Integer,SizeClass> classes =
+                direct ? directClasses : heapClasses;
+        Integer key = Integer.valueOf(capacity);
+        SizeClass result = classes.get(key);
+        if (result == null) {
+            result = new SizeClass(capacity, direct);
+            SizeClass existing = classes.putIfAbsent(key, result);
+            if (existing != null) {
+                result = existing;
+            }
+        }
+        return result;
+    }
+
+
+    private class SizeClass {
+
+        private final int capacity;
+        private final boolean direct;
+        private final SynchronizedStack<ByteBuffer> free =
+                new SynchronizedStack<ByteBuffer>();
+
+        private ByteBuffer slab = null;
+
+        SizeClass(int capacity, boolean direct) {
+            this.capacity = capacity;
+            this.direct = direct;
+        }
+
+        synchronized ByteBuffer allocate() {
+            if (!direct) {
+                allocatedBytes.addAndGet(capacity);
+                return ByteBuffer.allocate(capacity);
+            }
+            if (slab == null || slab.remaining() < capacity) {
+                slab = ByteBuffer.allocateDirect(capacity * BUFFERS_PER_SLAB);
+                allocatedBytes.addAndGet(slab.capacity());
+            }
+            slab.limit(slab.position() + capacity);
+            ByteBuffer result = slab.slice();
+            slab.position(slab.limit());
+            slab.limit(slab.capacity());
+            return result;
+        }
+    }
+}
@@ -60,6 +60,16 @@ public class SocketProperties {
      */
     protected boolean directBuffer = false;
 
+    /**
+     * Enable/disable releasing the buffers of idle connections. When
+     * enabled, the buffers of a channel are obtained from a pool shared by all
+     * the channels of the endpoint and are returned to it while the connection
+     * waits for the next request in keep-alive. The bufferPoolSize limit is
+     * then applied to the free buffers held by that pool.
+     * Default value is disabled
+     */
+    protected boolean releaseIdleBuffers = false;
+
     /**
      * Socket receive buffer size in bytes (SO_RCVBUF).
      * JVM default used if not set.
@@ -225,6 +235,10 @@ public class SocketProperties {
         return directBuffer;
     }
 
+    public boolean getReleaseIdleBuffers() {
+        return releaseIdleBuffers;
+    }
+
     public boolean getOoBInline() {
         return ooBInline.booleanValue();
     }
@@ -358,6 +372,10 @@ public class SocketProperties {
         this.directBuffer = directBuffer;
     }
 
+    public void setReleaseIdleBuffers(boolean releaseIdleBuffers) {
+        this.releaseIdleBuffers = releaseIdleBuffers;
+    }
+
     public void setSoLingerOn(boolean soLingerOn) {
         this.soLingerOn = Boolean.valueOf(soLingerOn);
     }
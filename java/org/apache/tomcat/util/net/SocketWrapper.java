@@ -17,6 +17,7 @@
 package org.apache.tomcat.util.net;
 
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 
@@ -37,6 +38,17 @@ public class SocketWrapper<E> {
     protected boolean keptAlive = false;
     private boolean upgraded = false;
     private boolean secure = false;
+    /*
+     * Set by the request classifiers so that work for this connection is
+     * dispatched ahead of other work when the executor is busy.
+     */
+    private volatile boolean highPriority = false;
+
+    /*
+     * Set by the endpoint when the request about to be read has waited so long
+     * in the executor queue that it should be rejected without processing.
+     */
+    private volatile boolean overdue = false;
 
     /*
      * Used if block/non-blocking is set at the socket level. The client is
@@ -48,13 +60,15 @@ public class SocketWrapper<E> {
 
     /*
      * In normal servlet processing only one thread is allowed to access the
-     * socket at a time. That is controlled by a lock on the socket for both
-     * read and writes). When HTTP upgrade is used, one read thread and one
-     * write thread are allowed to access the socket concurrently. In this case
-     * the lock on the socket is used for reads and the lock below is used for
-     * writes.
+     * socket at a time. That is controlled by the lock below for both reads
+     * and writes. When HTTP upgrade is used, one read thread and one write
+     * thread are allowed to access the socket concurrently. In this case the
+     * lock below is used for reads and the write thread lock is used for
+     * writes. These are not monitors because a virtual thread that blocks
+     * while it holds a monitor also blocks its carrier thread.
      */
-    private final Object writeThreadLock = new Object();
+    private final Lock lock = new ReentrantLock();
+    private final Lock writeThreadLock = new ReentrantLock();
 
     public SocketWrapper(E socket) {
         this.socket = socket;
@@ -74,6 +88,10 @@ public class SocketWrapper<E> {
     public boolean isUpgraded() { return upgraded; }
     public void setUpgraded(boolean upgraded) { this.upgraded = upgraded; }
     public boolean isSecure() { return secure; }
+    public boolean isHighPriority() { return highPriority; }
+    public void setHighPriority(boolean highPriority) { this.highPriority = highPriority; }
+    public boolean isOverdue() { return overdue; }
+    public void setOverdue(boolean overdue) { this.overdue = overdue; }
     public void setSecure(boolean secure) { this.secure = secure; }
     public long getLastAccess() { return lastAccess; }
     public void access() {
@@ -108,13 +126,16 @@ public class SocketWrapper<E> {
     public WriteLock getBlockingStatusWriteLock() {
         return blockingStatusWriteLock;
     }
-    public Object getWriteThreadLock() { return writeThreadLock; }
+    public Lock getLock() { return lock; }
+    public Lock getWriteThreadLock() { return writeThreadLock; }
 
     public void reset(E socket, long timeout) {
         async = false;
         blockingStatus = true;
         comet = false;
         error = false;
+        highPriority = false;
+        overdue = false;
         keepAliveLeft = 100;
         lastAccess = System.currentTimeMillis();
         this.socket = socket;
@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tomcat.util.threads;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of requests processed concurrently, adjusting the limit
+ * from the observed request latency. Unlike {@link LimitLatch} a caller that
+ * cannot acquire a permit is not queued: {@link #tryAcquire()} fails at once
+ * so that the request can be rejected cheaply.
+ * <p>
+ * The limit follows a gradient algorithm. A long term average of the latency
+ * is compared with each new sample. While the sample stays within
+ * {@link #getTolerance()} times the long term average, the limit grows by a
+ * small headroom. When the latency rises, because requests have started to
+ * queue somewhere, the limit shrinks in proportion. Changes are smoothed and
+ * the limit always stays between the configured minimum and maximum.
+ */
+public class AdaptiveLimiter {
+
+    /**
+     * Number of samples the long term latency average is computed over.
+     */
+    private static final int LONG_WINDOW = 600;
+
+    private final int minLimit;
+    private final int maxLimit;
+
+    private double tolerance = 1.5;
+    private double smoothing = 0.2;
+
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final AtomicLong rejectedCount = new AtomicLong(0);
+
+    private volatile double limit;
+    private double longLatency = 0;
+
+
+    /**
+     * @param initialLimit  The limit used until latency samples are available
+     * @param minLimit      The smallest value the limit may take
+     * @param maxLimit      The largest value the limit may take
+     */
+    public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException();
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+
+    /**
+     * Acquire a permit if the current limit allows it.
+     *
+     * @return <code>true</code> if a permit was acquired, in which case
+     *         {@link #release(long)} or {@link #release()} must be called
+     *         exactly once
+     */
+    public boolean tryAcquire() {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= (int) limit) {
+                rejectedCount.incrementAndGet();
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        return true;
+    }
+
+
+    /**
+     * Return a permit and use the latency of the request that held it to
+     * adjust the limit.
+     *
+     * @param latency The time, in nanoseconds, the permit was held
+     */
+    public void release(long latency) {
+        int current = inFlight.getAndDecrement();
+        if (latency > 0) {
+            update(latency, current);
+        }
+    }
+
+
+    /**
+     * Return a permit without providing a latency sample, for example because
+     * the request failed or was turned into a long lived connection.
+     */
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+
+    private synchronized void update(long latency, int inFlight) {
+        if (longLatency == 0) {
+            longLatency = latency;
+        } else {
+            longLatency += (latency - longLatency) / LONG_WINDOW;
+        }
+        // After a period of overload the long term average is too high to
+        // detect a new one. Let it decay towards the current latency.
+        if (longLatency > 2 * latency) {
+            longLatency *= 0.95;
+        }
+
+        double current = limit;
+        // The limit is not being reached so the samples say nothing about it
+        if (inFlight < current / 2) {
+            return;
+        }
+
+        double gradient = Math.max(0.5,
+                Math.min(1.0, tolerance * longLatency / latency));
+        double headroom = Math.sqrt(current);
+        double newLimit = current * gradient + headroom;
+        newLimit = current * (1 - smoothing) + newLimit * smoothing;
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+    }
+
+
+    /**
+     * @return the current limit
+     */
+    public int getLimit() {
+        return (int) limit;
+    }
+
+
+    /**
+     * @return the number of permits currently held
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+
+    /**
+     * @return the number of calls to {@link #tryAcquire()} that failed
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+
+    /**
+     * @return the ratio between a latency sample and the long term average
+     *         latency below which the limit is allowed to grow
+     */
+    public double getTolerance() {
+        return tolerance;
+    }
+
+
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+
+    /**
+     * @return the weight, between 0 and 1, given to each new limit estimate
+     */
+    public double getSmoothing() {
+        return smoothing;
+    }
+
+
+    public void setSmoothing(double smoothing) {
+        this.smoothing = smoothing;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tomcat.util.threads;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a task that has waited in an executor queue is still worth
+ * running, following the Controlled Delay (CoDel) algorithm.
+ * <p>
+ * A short queue wait is expected during a burst. A queue is only considered
+ * overloaded when the shortest wait seen during a whole interval is above
+ * the target, i.e. the queue never drained during that interval. While the
+ * queue is overloaded, tasks that waited more than twice the target are
+ * shed. Once a task waits less than the target again, the queue is no
+ * longer overloaded at the end of the current interval.
+ */
+public class CoDelController {
+
+    private final long target;
+    private final long interval;
+
+    private final AtomicLong minDelay = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicBoolean resetting = new AtomicBoolean(false);
+    private volatile long intervalEnd;
+    private volatile boolean overloaded = false;
+
+
+    /**
+     * @param target    The acceptable queue wait in nanoseconds
+     * @param interval  The period in nanoseconds over which the shortest
+     *                  queue wait is compared with the target
+     */
+    public CoDelController(long target, long interval) {
+        if (target <= 0 || interval <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.target = target;
+        this.interval = interval;
+        this.intervalEnd = System.nanoTime() + interval;
+    }
+
+
+    /**
+     * Record the time a task spent in the queue.
+     *
+     * @param delay The queue wait of the task, in nanoseconds
+     * @param now   The current value of {@link System#nanoTime()}
+     *
+     * @return <code>true</code> if the task should be shed
+     */
+    public boolean onDequeue(long delay, long now) {
+        long min = minDelay.get();
+        while (delay < min && !minDelay.compareAndSet(min, delay)) {
+            min = minDelay.get();
+        }
+        if (now - intervalEnd > 0 && resetting.compareAndSet(false, true)) {
+            overloaded = minDelay.get() > target;
+            minDelay.set(delay);
+            intervalEnd = now + interval;
+            resetting.set(false);
+        }
+        return overloaded && delay > 2 * target;
+    }
+
+
+    /**
+     * @return <code>true</code> if the queue wait stayed above the target for
+     *         the whole of the last interval
+     */
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+
+
+    public long getTarget() {
+        return target;
+    }
+
+
+    public long getInterval() {
+        return interval;
+    }
+}
@@ -17,15 +17,21 @@
 package org.apache.tomcat.util.threads;
 
 import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * As task queue specifically designed to run with a thread pool executor.
  * The task queue is optimised to properly utilize threads within
  * a thread pool executor. If you use a normal queue, the executor will spawn threads
  * when there are idle threads and you wont be able to force items unto the queue itself
+ * <p>
+ * {@link PriorityTask}s that report themselves as high priority are held in a
+ * separate lane that is always drained first. They are accepted even if the
+ * queue has reached its capacity.
  * @author fhanik
  *
  */
@@ -39,6 +45,21 @@ public class TaskQueue extends LinkedBlockingQueue<Runnable> {
     // a single thread (the one that did stop a context and fired listeners)
     private Integer forcedRemainingCapacity = null;
 
+    /*
+     * Queued into the main lane when a high priority task is added so that a
+     * thread waiting on an empty queue wakes up and takes it.
+     */
+    private static final Runnable WAKE_UP = new Runnable() {
+        @Override
+        public void run() {
+            // NO-OP
+        }
+    };
+
+    private final ConcurrentLinkedQueue<Runnable> priorityQueue =
+            new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicInteger wakeUpCount = new AtomicInteger(0);
+
     public TaskQueue() {
         super();
     }
@@ -57,33 +78,100 @@ public class TaskQueue extends LinkedBlockingQueue<Runnable> {
 
     public boolean force(Runnable o) {
         if ( parent.isShutdown() ) throw new RejectedExecutionException("Executor not running, can't force a command into the queue");
-        return super.offer(o); //forces the item onto the queue, to be used if the task is rejected
+        return queue(o); //forces the item onto the queue, to be used if the task is rejected
     }
 
     public boolean force(Runnable o, long timeout, TimeUnit unit) throws InterruptedException {
         if ( parent.isShutdown() ) throw new RejectedExecutionException("Executor not running, can't force a command into the queue");
+        if (isHighPriority(o)) {
+            return queue(o);
+        }
         return super.offer(o,timeout,unit); //forces the item onto the queue, to be used if the task is rejected
     }
 
     @Override
     public boolean offer(Runnable o) {
       //we can't do any checks
-        if (parent==null) return super.offer(o);
+        if (parent==null) return queue(o);
         //we are maxed out on threads, simply queue the object
-        if (parent.getPoolSize() == parent.getMaximumPoolSize()) return super.offer(o);
+        if (parent.getPoolSize() == parent.getMaximumPoolSize()) return queue(o);
         //we have idle threads, just add it to the queue
-        if (parent.getSubmittedCount()<=(parent.getPoolSize())) return super.offer(o);
+        if (parent.getSubmittedCount()<=(parent.getPoolSize())) return queue(o);
         //if we have less threads than maximum force creation of a new thread
         if (parent.getPoolSize()<parent.getMaximumPoolSize()) return false;
         //if we reached here, we need to add it to the queue
-        return super.offer(o);
+        return queue(o);
+    }
+
+
+    private boolean queue(Runnable o) {
+        if (!isHighPriority(o)) {
+            return super.offer(o);
+        }
+        priorityQueue.offer(o);
+        // If the main lane is full every thread is busy and the task will be
+        // picked up as soon as one of them looks for more work
+        if (super.offer(WAKE_UP)) {
+            wakeUpCount.incrementAndGet();
+        }
+        return true;
+    }
+
+
+    private static boolean isHighPriority(Runnable o) {
+        return o instanceof PriorityTask && ((PriorityTask) o).isHighPriority();
+    }
+
+
+    /*
+     * Map a task taken from the main lane to the task to run. Returns null if
+     * a wake up marker was taken but the high priority task it was queued for
+     * has already been taken by another thread.
+     */
+    private Runnable next(Runnable runnable) {
+        if (runnable == WAKE_UP) {
+            wakeUpCount.decrementAndGet();
+            return priorityQueue.poll();
+        }
+        return runnable;
+    }
+
+
+    @Override
+    public Runnable poll() {
+        Runnable runnable = priorityQueue.poll();
+        while (runnable == null) {
+            runnable = super.poll();
+            if (runnable == null) {
+                return null;
+            }
+            runnable = next(runnable);
+        }
+        return runnable;
     }
 
 
     @Override
     public Runnable poll(long timeout, TimeUnit unit)
             throws InterruptedException {
-        Runnable runnable = super.poll(timeout, unit);
+        // Take a waiting task even if there is no time left to wait
+        Runnable runnable = poll();
+        if (runnable != null) {
+            return runnable;
+        }
+        long remaining = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + remaining;
+        while (remaining > 0) {
+            runnable = super.poll(remaining, TimeUnit.NANOSECONDS);
+            if (runnable == null) {
+                break;
+            }
+            runnable = next(runnable);
+            if (runnable != null) {
+                break;
+            }
+            remaining = deadline - System.nanoTime();
+        }
         if (runnable == null && parent != null) {
             // the poll timed out, it gives an opportunity to stop the current
             // thread if needed to avoid memory leaks.
@@ -101,7 +189,50 @@ public class TaskQueue extends LinkedBlockingQueue<Runnable> {
             // does not occur with take()
             // but the ThreadPoolExecutor implementation allows this
         }
-        return super.take();
+        Runnable runnable = priorityQueue.poll();
+        while (runnable == null) {
+            runnable = next(super.take());
+        }
+        return runnable;
+    }
+
+
+    @Override
+    public int size() {
+        return super.size() - wakeUpCount.get() + priorityQueue.size();
+    }
+
+
+    @Override
+    public boolean isEmpty() {
+        return priorityQueue.isEmpty() && super.size() == wakeUpCount.get();
+    }
+
+
+    @Override
+    public boolean remove(Object o) {
+        if (priorityQueue.remove(o)) {
+            return true;
+        }
+        return super.remove(o);
+    }
+
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        int count = 0;
+        Runnable runnable;
+        while (count < maxElements && (runnable = poll()) != null) {
+            c.add(runnable);
+            count++;
+        }
+        return count;
     }
 
     @Override
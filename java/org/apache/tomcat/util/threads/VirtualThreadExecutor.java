@@ -0,0 +1,245 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tomcat.util.threads;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.tomcat.util.ExceptionUtils;
+import org.apache.tomcat.util.res.StringManager;
+
+/**
+ * An executor that runs each task on a new virtual thread. Virtual threads are
+ * only available on Java 21 onwards so the JRE support is looked up
+ * reflectively and {@link #isSupported()} must be checked before creating an
+ * instance.
+ * <p>
+ * There is no pool and no queue: a task blocked on I/O parks its virtual
+ * thread and releases the carrier thread for other tasks. Running tasks are
+ * not interrupted by {@link #shutdownNow()}.
+ */
+public class VirtualThreadExecutor extends AbstractExecutorService {
+
+    protected static final StringManager sm = StringManager
+            .getManager("org.apache.tomcat.util.threads.res");
+
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_FACTORY;
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderFactory = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builderName = builderClass.getMethod("name", String.class, long.class);
+            builderFactory = builderClass.getMethod("factory");
+            // Fails if virtual threads are a preview feature that has not
+            // been enabled
+            ofVirtual.invoke(null);
+        } catch (Throwable t) {
+            ExceptionUtils.handleThrowable(t);
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_FACTORY = builderFactory;
+    }
+
+
+    /**
+     * @return <code>true</code> if the JRE supports virtual threads
+     */
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+
+    private final ThreadFactory threadFactory;
+
+    private final AtomicInteger activeCount = new AtomicInteger(0);
+    private final AtomicInteger largestActiveCount = new AtomicInteger(0);
+    private final AtomicLong submittedTaskCount = new AtomicLong(0);
+    private final AtomicLong completedTaskCount = new AtomicLong(0);
+
+    private volatile boolean shutdown = false;
+    private final Object terminationLock = new Object();
+
+
+    /**
+     * @param namePrefix The prefix of the names of the virtual threads. A
+     *                   sequence number starting at 1 is appended to it.
+     *
+     * @throws UnsupportedOperationException if the JRE does not support
+     *         virtual threads
+     */
+    public VirtualThreadExecutor(String namePrefix) {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException(
+                    sm.getString("virtualThreadExecutor.unsupported"));
+        }
+        try {
+            Object builder = OF_VIRTUAL.invoke(null);
+            builder = BUILDER_NAME.invoke(builder, namePrefix, Long.valueOf(1));
+            threadFactory = (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+        } catch (Exception e) {
+            throw new UnsupportedOperationException(
+                    sm.getString("virtualThreadExecutor.unsupported"), e);
+        }
+    }
+
+
+    @Override
+    public void execute(Runnable command) {
+        if (shutdown) {
+            throw new RejectedExecutionException(
+                    sm.getString("virtualThreadExecutor.shutdown"));
+        }
+        int active = activeCount.incrementAndGet();
+        int largest = largestActiveCount.get();
+        while (active > largest &&
+                !largestActiveCount.compareAndSet(largest, active)) {
+            largest = largestActiveCount.get();
+        }
+        submittedTaskCount.incrementAndGet();
+        try {
+            threadFactory.newThread(new Task(command)).start();
+        } catch (RuntimeException e) {
+            taskDone();
+            throw e;
+        } catch (Error e) {
+            taskDone();
+            throw e;
+        }
+    }
+
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        synchronized (terminationLock) {
+            terminationLock.notifyAll();
+        }
+    }
+
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown();
+        return Collections.emptyList();
+    }
+
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown && activeCount.get() == 0;
+    }
+
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (terminationLock) {
+            while (!isTerminated()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(terminationLock, remaining);
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * @return the number of tasks currently running
+     */
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+
+    /**
+     * @return the largest number of tasks that have been running at the same
+     *         time
+     */
+    public int getLargestActiveCount() {
+        return largestActiveCount.get();
+    }
+
+
+    /**
+     * @return the number of tasks passed to this executor
+     */
+    public long getSubmittedTaskCount() {
+        return submittedTaskCount.get();
+    }
+
+
+    /**
+     * @return the number of tasks that have completed
+     */
+    public long getCompletedTaskCount() {
+        return completedTaskCount.get();
+    }
+
+
+    private void taskDone() {
+        if (activeCount.decrementAndGet() == 0 && shutdown) {
+            synchronized (terminationLock) {
+                terminationLock.notifyAll();
+            }
+        }
+    }
+
+
+    private class Task implements Runnable {
+
+        private final Runnable command;
+
+        Task(Runnable command) {
+            this.command = command;
+        }
+
+        @Override
+        public void run() {
+            try {
+                command.run();
+            } finally {
+                completedTaskCount.incrementAndGet();
+                taskDone();
+            }
+        }
+    }
+}
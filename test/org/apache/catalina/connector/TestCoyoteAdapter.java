@@ -37,6 +37,7 @@ import org.apache.catalina.startup.Tomcat;
 import org.apache.catalina.startup.TomcatBaseTest;
 import org.apache.tomcat.util.buf.B2CConverter;
 import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
 
 public class TestCoyoteAdapter extends TomcatBaseTest {
 
@@ -164,6 +165,70 @@ public class TestCoyoteAdapter extends TomcatBaseTest {
         }
     }
 
+    @Test
+    public void testIsNormalizedAscii() throws Exception {
+        String[] normalized = new String[] { "/", "/foo", "/foo/", "/foo/bar.txt",
+                "/.well-known/x", "/foo/.bar", "/foo/..bar", "/foo/bar.",
+                "/foo/bar..", "/a-b_c~d!$&'()*+,=:@" };
+        String[] notNormalized = new String[] { "", "foo", "//foo", "/foo//bar",
+                "/foo//", "/.", "/..", "/foo/.", "/foo/..", "/foo/./bar",
+                "/foo/../bar", "/foo%20bar", "/foo;jsessionid=1", "/foo\\bar",
+                "/foo\u0000bar", "/caf\u00e9" };
+        for (String uri : normalized) {
+            byte[] b = uri.getBytes(B2CConverter.ISO_8859_1);
+            ByteChunk bc = new ByteChunk();
+            bc.setBytes(b, 0, b.length);
+            Assert.assertTrue(uri, CoyoteAdapter.isNormalizedAscii(bc));
+            // Normalization must not change these
+            MessageBytes mb = MessageBytes.newInstance();
+            byte[] copy = new byte[b.length + 1];
+            System.arraycopy(b, 0, copy, 0, b.length);
+            mb.setBytes(copy, 0, b.length);
+            Assert.assertTrue(uri, CoyoteAdapter.normalize(mb));
+            Assert.assertEquals(uri, mb.toString());
+        }
+        for (String uri : notNormalized) {
+            byte[] b = uri.getBytes(B2CConverter.ISO_8859_1);
+            ByteChunk bc = new ByteChunk();
+            bc.setBytes(b, 0, b.length);
+            Assert.assertFalse(uri, CoyoteAdapter.isNormalizedAscii(bc));
+        }
+    }
+
+
+    @Test
+    public void testNormalizedAndDecodedUris() throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+
+        // No file system docBase required
+        Context ctx = tomcat.addContext("", null);
+
+        Tomcat.addServlet(ctx, "servlet", new PathInfoEchoServlet());
+        ctx.addServletMapping("/a/*", "servlet");
+
+        tomcat.start();
+
+        // Alternate between URIs that do and do not need decoding or
+        // normalization
+        testPath("/a/b", "/b");
+        testPath("/a/./b", "/b");
+        testPath("/a/b", "/b");
+        testPath("/a//b%41", "/bA");
+        testPath("/a/x/../b;x=y", "/b");
+        testPath("/a/b", "/b");
+    }
+
+    private static class PathInfoEchoServlet extends HttpServlet {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            resp.setContentType("text/plain");
+            resp.getWriter().write(req.getPathInfo());
+        }
+    }
+
     @Test
     public void testPathParamExtRootNoParam() throws Exception {
         pathParamExtensionTest("/testapp/blah.txt", "none");
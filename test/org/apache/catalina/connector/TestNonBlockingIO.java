@@ -0,0 +1,452 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.catalina.connector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.catalina.startup.TomcatBaseTest;
+import org.apache.coyote.http11.Http11NioProtocol;
+import org.apache.coyote.http11.upgrade.servlet31.ReadListener;
+import org.apache.coyote.http11.upgrade.servlet31.WriteListener;
+import org.apache.tomcat.util.buf.ByteChunk;
+
+public class TestNonBlockingIO extends TomcatBaseTest {
+
+    private static final int WRITE_SIZE = 8 * 1024 * 1024;
+    private static final int WRITE_CHUNK = 64 * 1024;
+
+
+    @Test
+    public void testNonBlockingRead() throws Exception {
+        Assume.assumeTrue(
+                "This test is skipped, because this connector does not support non-blocking IO.",
+                isNonBlockingSupported());
+
+        Tomcat tomcat = getTomcatInstance();
+        Context root = tomcat.addContext("", null);
+        Wrapper w = Tomcat.addServlet(root, "echo", new NBReadServlet());
+        w.setAsyncSupported(true);
+        root.addServletMapping("/echo", "echo");
+        tomcat.start();
+
+        byte[] body = new byte[512 * 1024];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+
+        ByteChunk out = new ByteChunk();
+        int rc = postUrl(body, "http://localhost:" + getPort() + "/echo", out,
+                null);
+
+        Assert.assertEquals(HttpServletResponse.SC_OK, rc);
+        Assert.assertEquals(body.length, out.getLength());
+        Assert.assertTrue(Arrays.equals(body, Arrays.copyOfRange(
+                out.getBuffer(), out.getStart(), out.getEnd())));
+    }
+
+
+    @Test
+    public void testNonBlockingWrite() throws Exception {
+        Assume.assumeTrue(
+                "This test is skipped, because this connector does not support non-blocking IO.",
+                isNonBlockingSupported());
+
+        Tomcat tomcat = getTomcatInstance();
+        Context root = tomcat.addContext("", null);
+        NBWriteServlet servlet = new NBWriteServlet();
+        Wrapper w = Tomcat.addServlet(root, "write", servlet);
+        w.setAsyncSupported(true);
+        root.addServletMapping("/write", "write");
+        tomcat.start();
+
+        Socket socket = new Socket("localhost", getPort());
+        try {
+            OutputStream os = socket.getOutputStream();
+            os.write(("GET /write HTTP/1.1\r\n" +
+                    "Host: localhost\r\n" +
+                    "Connection: close\r\n" +
+                    "\r\n").getBytes("ISO-8859-1"));
+            os.flush();
+
+            // Give the server the chance to fill the network buffers
+            Thread.sleep(1000);
+
+            InputStream is = socket.getInputStream();
+            byte[] buf = new byte[8192];
+            long total = 0;
+            int headerEnd = -1;
+            ByteArrayOutputStream head = new ByteArrayOutputStream();
+            int read;
+            while ((read = is.read(buf)) > 0) {
+                if (headerEnd < 0) {
+                    head.write(buf, 0, read);
+                    String s = head.toString("ISO-8859-1");
+                    headerEnd = s.indexOf("\r\n\r\n");
+                    if (headerEnd > -1) {
+                        Assert.assertTrue(s.startsWith("HTTP/1.1 200"));
+                        total = head.size() - headerEnd - 4;
+                    }
+                } else {
+                    total += read;
+                }
+            }
+            Assert.assertEquals(WRITE_SIZE, total);
+        } finally {
+            socket.close();
+        }
+
+        Assert.assertTrue(servlet.wasNotReady);
+        Assert.assertNull(servlet.error);
+    }
+
+
+    @Test
+    public void testNonBlockingWriteWhileNotReady() throws Exception {
+        Assume.assumeTrue(
+                "This test is skipped, because this connector does not support non-blocking IO.",
+                isNonBlockingSupported());
+
+        Tomcat tomcat = getTomcatInstance();
+        Context root = tomcat.addContext("", null);
+        NBIgnoreReadyServlet servlet = new NBIgnoreReadyServlet();
+        Wrapper w = Tomcat.addServlet(root, "write", servlet);
+        w.setAsyncSupported(true);
+        root.addServletMapping("/write", "write");
+        tomcat.start();
+
+        // The client never reads so the writes soon stop making progress
+        Socket socket = new Socket("localhost", getPort());
+        try {
+            OutputStream os = socket.getOutputStream();
+            os.write(("GET /write HTTP/1.1\r\n" +
+                    "Host: localhost\r\n" +
+                    "\r\n").getBytes("ISO-8859-1"));
+            os.flush();
+
+            Assert.assertTrue(servlet.done.await(10, TimeUnit.SECONDS));
+        } finally {
+            socket.close();
+        }
+
+        // The writes were rejected rather than buffered
+        Assert.assertTrue(servlet.rejected);
+        Assert.assertTrue(servlet.written < NBIgnoreReadyServlet.LIMIT);
+    }
+
+
+    @Test
+    public void testNonBlockingWriteClientStalls() throws Exception {
+        Assume.assumeTrue(
+                "This test is skipped, because this connector does not support non-blocking IO.",
+                isNonBlockingSupported());
+
+        Tomcat tomcat = getTomcatInstance();
+        // Small buffers so that the Poller can only write part of the
+        // pending data each time the socket becomes writable
+        tomcat.getConnector().setProperty("socket.txBufSize", "8192");
+        Context root = tomcat.addContext("", null);
+        NBStallServlet servlet = new NBStallServlet();
+        Wrapper w = Tomcat.addServlet(root, "write", servlet);
+        w.setAsyncSupported(true);
+        root.addServletMapping("/write", "write");
+        tomcat.start();
+
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(8192);
+        socket.connect(new InetSocketAddress("localhost", getPort()));
+        try {
+            OutputStream os = socket.getOutputStream();
+            os.write(("GET /write HTTP/1.1\r\n" +
+                    "Host: localhost\r\n" +
+                    "\r\n").getBytes("ISO-8859-1"));
+            os.flush();
+
+            // Read part of the response slowly so the Poller keeps finding
+            // data it could only partly write, then stop reading altogether
+            InputStream is = socket.getInputStream();
+            byte[] buf = new byte[8192];
+            for (int i = 0; i < 50; i++) {
+                if (is.read(buf) < 0) {
+                    break;
+                }
+                Thread.sleep(20);
+            }
+
+            Assert.assertTrue(servlet.timedOut.await(20, TimeUnit.SECONDS));
+        } finally {
+            socket.close();
+        }
+    }
+
+
+    @Test
+    public void testListenerRequiresAsync() throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+        Context root = tomcat.addContext("", null);
+        Tomcat.addServlet(root, "sync", new NotAsyncServlet());
+        root.addServletMapping("/sync", "sync");
+        tomcat.start();
+
+        ByteChunk out = getUrl("http://localhost:" + getPort() + "/sync");
+        Assert.assertEquals("OK", out.toString());
+    }
+
+
+    private boolean isNonBlockingSupported() {
+        String protocol =
+            getTomcatInstance().getConnector().getProtocolHandlerClassName();
+        return Http11NioProtocol.class.getName().equals(protocol);
+    }
+
+
+    private static class NBReadServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            final AsyncContext ctx = req.startAsync();
+            final CoyoteInputStream is = (CoyoteInputStream) req.getInputStream();
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+            is.setReadListener(new ReadListener() {
+
+                private final byte[] buf = new byte[8192];
+
+                @Override
+                public void onDataAvailable() throws IOException {
+                    while (is.isReady()) {
+                        int read = is.read(buf);
+                        if (read > 0) {
+                            body.write(buf, 0, read);
+                        }
+                    }
+                }
+
+                @Override
+                public void onAllDataRead() throws IOException {
+                    ctx.getResponse().setContentLength(body.size());
+                    ctx.getResponse().getOutputStream().write(body.toByteArray());
+                    ctx.complete();
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    ctx.complete();
+                }
+            });
+        }
+    }
+
+
+    private static class NBWriteServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        private volatile boolean wasNotReady = false;
+        private volatile Throwable error = null;
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            final AsyncContext ctx = req.startAsync();
+            ctx.setTimeout(30000);
+            resp.setContentLength(WRITE_SIZE);
+            final CoyoteOutputStream os = (CoyoteOutputStream) resp.getOutputStream();
+            final byte[] chunk = new byte[WRITE_CHUNK];
+            Arrays.fill(chunk, (byte) 'x');
+
+            os.setWriteListener(new WriteListener() {
+
+                private int written = 0;
+
+                @Override
+                public void onWritePossible() throws IOException {
+                    while (written < WRITE_SIZE) {
+                        if (!os.isReady()) {
+                            wasNotReady = true;
+                            return;
+                        }
+                        os.write(chunk);
+                        written += chunk.length;
+                    }
+                    ctx.complete();
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    error = throwable;
+                }
+            });
+        }
+    }
+
+
+    private static class NBIgnoreReadyServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final long LIMIT = 64 * 1024 * 1024;
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile long written = 0;
+        private volatile boolean rejected = false;
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            final AsyncContext ctx = req.startAsync();
+            ctx.setTimeout(30000);
+            final CoyoteOutputStream os = (CoyoteOutputStream) resp.getOutputStream();
+            final byte[] chunk = new byte[WRITE_CHUNK];
+            Arrays.fill(chunk, (byte) 'x');
+
+            os.setWriteListener(new WriteListener() {
+
+                @Override
+                public void onWritePossible() throws IOException {
+                    if (done.getCount() == 0) {
+                        return;
+                    }
+                    // Never checks isReady()
+                    try {
+                        while (written < LIMIT) {
+                            os.write(chunk);
+                            written += chunk.length;
+                        }
+                    } catch (IllegalStateException expected) {
+                        rejected = true;
+                    }
+                    done.countDown();
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    // The client closes the connection once done is set
+                }
+            });
+        }
+    }
+
+
+    private static class NBStallServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final int STALL_CHUNK = 1024 * 1024;
+
+        private final CountDownLatch timedOut = new CountDownLatch(1);
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            final AsyncContext ctx = req.startAsync();
+            ctx.setTimeout(3000);
+            ctx.addListener(new AsyncListener() {
+
+                @Override
+                public void onTimeout(AsyncEvent event) throws IOException {
+                    timedOut.countDown();
+                    ctx.complete();
+                }
+
+                @Override
+                public void onStartAsync(AsyncEvent event) throws IOException {
+                }
+
+                @Override
+                public void onError(AsyncEvent event) throws IOException {
+                }
+
+                @Override
+                public void onComplete(AsyncEvent event) throws IOException {
+                }
+            });
+            final CoyoteOutputStream os = (CoyoteOutputStream) resp.getOutputStream();
+            final byte[] chunk = new byte[STALL_CHUNK];
+            Arrays.fill(chunk, (byte) 'x');
+
+            os.setWriteListener(new WriteListener() {
+
+                @Override
+                public void onWritePossible() throws IOException {
+                    // The client stops reading so this never completes
+                    while (os.isReady()) {
+                        os.write(chunk);
+                    }
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    // Ignore
+                }
+            });
+        }
+    }
+
+
+    private static class NotAsyncServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            CoyoteInputStream is = (CoyoteInputStream) req.getInputStream();
+            try {
+                is.setReadListener(new ReadListener() {
+                    @Override
+                    public void onDataAvailable() {
+                    }
+                    @Override
+                    public void onAllDataRead() {
+                    }
+                    @Override
+                    public void onError(Throwable throwable) {
+                    }
+                });
+                resp.getWriter().print("FAIL");
+            } catch (IllegalStateException expected) {
+                resp.getWriter().print("OK");
+            }
+        }
+    }
+}
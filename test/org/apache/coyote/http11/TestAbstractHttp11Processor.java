@@ -17,6 +17,7 @@
 package org.apache.coyote.http11;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -30,11 +31,19 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.AsyncContext;
 import javax.servlet.DispatcherType;
 import javax.servlet.ServletException;
@@ -44,6 +53,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 
 import org.apache.catalina.Context;
@@ -56,6 +66,8 @@ import org.apache.catalina.startup.Tomcat;
 import org.apache.catalina.startup.TomcatBaseTest;
 import org.apache.tomcat.util.buf.B2CConverter;
 import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.http.FastHttpDateFormat;
+import org.apache.tomcat.util.modeler.Registry;
 
 public class TestAbstractHttp11Processor extends TomcatBaseTest {
 
@@ -408,6 +420,102 @@ public class TestAbstractHttp11Processor extends TomcatBaseTest {
     }
 
 
+    @Test
+    public void testPipeliningCoalesced() throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+
+        // No file system docBase required
+        Context ctxt = tomcat.addContext("", null);
+
+        Tomcat.addServlet(ctxt, "TesterServlet", new TesterServlet());
+        ctxt.addServletMapping("/foo", "TesterServlet");
+
+        tomcat.start();
+
+        String request =
+            "GET /foo HTTP/1.1" + SimpleHttpClient.CRLF +
+            "Host: any" + SimpleHttpClient.CRLF +
+            SimpleHttpClient.CRLF;
+
+        // All requests arrive together so all but the last response are
+        // held back until the last one is written
+        Client client = new Client(tomcat.getConnector().getLocalPort());
+        client.setRequest(new String[] {request + request + request});
+        client.setUseContentLength(true);
+        client.connect();
+        client.sendRequest();
+
+        for (int i = 0; i < 3; i++) {
+            client.readResponse(true);
+            Assert.assertTrue(client.isResponse200());
+            Assert.assertEquals("OK", client.getResponseBody());
+        }
+    }
+
+
+    @Test
+    public void testCloseNotDeferredWithoutPipelining() throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+
+        // No file system docBase required
+        Context ctxt = tomcat.addContext("", null);
+
+        Tomcat.addServlet(ctxt, "CloseThenSleep", new CloseThenSleepServlet());
+        ctxt.addServletMapping("/foo", "CloseThenSleep");
+
+        tomcat.start();
+
+        Socket socket = new Socket("localhost", getPort());
+        try {
+            // The whole response must arrive while the servlet is still
+            // sleeping after closing its output
+            socket.setSoTimeout(CloseThenSleepServlet.SLEEP / 2);
+
+            Writer writer = new OutputStreamWriter(
+                    socket.getOutputStream(), B2CConverter.ISO_8859_1);
+            writer.write("GET /foo HTTP/1.1" + SimpleHttpClient.CRLF +
+                    "Host: any" + SimpleHttpClient.CRLF +
+                    SimpleHttpClient.CRLF);
+            writer.flush();
+
+            InputStream is = socket.getInputStream();
+            StringBuilder response = new StringBuilder();
+            byte[] buf = new byte[1024];
+            // The body fits in the buffer so the response has a
+            // content-length and ends with the body
+            while (!response.toString().endsWith("\r\n\r\nOK")) {
+                int read = is.read(buf);
+                Assert.assertTrue(read > 0);
+                response.append(new String(buf, 0, read, B2CConverter.ISO_8859_1));
+            }
+            Assert.assertTrue(response.toString().startsWith("HTTP/1.1 200"));
+        } finally {
+            socket.close();
+        }
+    }
+
+
+    private static final class CloseThenSleepServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final int SLEEP = 4000;
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            resp.setContentType("text/plain");
+            resp.getWriter().print("OK");
+            resp.getWriter().close();
+            try {
+                Thread.sleep(SLEEP);
+            } catch (InterruptedException e) {
+                // Ignore
+            }
+        }
+    }
+
+
     @Test
     public void testChunking11NoContentLength() throws Exception {
         Tomcat tomcat = getTomcatInstance();
@@ -1068,6 +1176,327 @@ public class TestAbstractHttp11Processor extends TomcatBaseTest {
         Assert.assertTrue(responseBody.getLength() == 0);
     }
 
+    @Test
+    public void testEncodedStatusLineAndHeaders() throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+        tomcat.getConnector().setAttribute("server", "TestServer/1.0");
+
+        // No file system docBase required
+        Context ctx = tomcat.addContext("", null);
+
+        Tomcat.addServlet(ctx, "Test", new Bug61086Servlet());
+        ctx.addServletMapping("/test", "Test");
+
+        tomcat.start();
+
+        // The second response reuses the encoded status line
+        for (int i = 0; i < 2; i++) {
+            ByteChunk responseBody = new ByteChunk();
+            Map<String,List<String>> responseHeaders = new HashMap<String, List<String>>();
+            int rc = getUrl("http://localhost:" + getPort() + "/test", responseBody, responseHeaders);
+
+            Assert.assertEquals(HttpServletResponse.SC_RESET_CONTENT, rc);
+            Assert.assertEquals("HTTP/1.1 205 Reset Content",
+                    responseHeaders.get(null).get(0));
+            Assert.assertEquals("TestServer/1.0",
+                    responseHeaders.get("Server").get(0));
+            Assert.assertTrue(FastHttpDateFormat.parseDate(
+                    responseHeaders.get("Date").get(0)) > 0);
+        }
+    }
+
+    @Test
+    public void testAdaptiveCompression() throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+        tomcat.getConnector().setAttribute("compression", "on");
+        // A single busy thread is enough to reach the threshold
+        tomcat.getConnector().setAttribute("maxThreads", "2");
+        tomcat.getConnector().setAttribute("adaptiveCompressionThreshold", "10");
+        tomcat.getConnector().setAttribute("adaptiveCompressionMinSize", "20000");
+
+        // No file system docBase required
+        Context ctx = tomcat.addContext("", null);
+
+        Tomcat.addServlet(ctx, "Test", new CompressibleServlet());
+        ctx.addServletMapping("/test", "Test");
+
+        tomcat.start();
+
+        // Mid-size response is not compressed under load
+        Map<String,List<String>> responseHeaders = getCompressible(10000);
+        Assert.assertNull(responseHeaders.get("Content-Encoding"));
+        Assert.assertEquals("10000", responseHeaders.get("Content-Length").get(0));
+        Assert.assertNotNull(responseHeaders.get("vary"));
+
+        // Large response is still compressed
+        responseHeaders = getCompressible(100000);
+        Assert.assertEquals("gzip", responseHeaders.get("Content-Encoding").get(0));
+    }
+
+    @Test
+    public void testQueueOverloadRejected() throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+        // One thread so that every other request has to queue
+        tomcat.getConnector().setAttribute("maxThreads", "1");
+        tomcat.getConnector().setAttribute("minSpareThreads", "1");
+        tomcat.getConnector().setAttribute("maxConnections", "20");
+        tomcat.getConnector().setAttribute("queueDelayTarget", "10");
+        tomcat.getConnector().setAttribute("queueDelayInterval", "10");
+
+        // No file system docBase required
+        Context ctx = tomcat.addContext("", null);
+
+        Tomcat.addServlet(ctx, "Slow", new SlowServlet());
+        ctx.addServletMapping("/slow", "Slow");
+
+        tomcat.start();
+
+        final int count = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final String[] statusLines = new String[count];
+        Thread[] threads = new Thread[count];
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Socket socket = new Socket("localhost", getPort());
+                        try {
+                            start.await();
+                            OutputStream os = socket.getOutputStream();
+                            os.write(("GET /slow HTTP/1.1" + SimpleHttpClient.CRLF +
+                                    "Host: localhost" + SimpleHttpClient.CRLF +
+                                    "Connection: close" + SimpleHttpClient.CRLF +
+                                    SimpleHttpClient.CRLF).getBytes(B2CConverter.ISO_8859_1));
+                            os.flush();
+                            BufferedReader reader = new BufferedReader(
+                                    new InputStreamReader(socket.getInputStream(),
+                                            B2CConverter.ISO_8859_1));
+                            statusLines[index] = reader.readLine();
+                        } finally {
+                            socket.close();
+                        }
+                    } catch (Exception e) {
+                        statusLines[index] = e.toString();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(30000);
+        }
+
+        int ok = 0;
+        int rejected = 0;
+        for (String statusLine : statusLines) {
+            if ("HTTP/1.1 200 OK".equals(statusLine)) {
+                ok++;
+            } else if ("HTTP/1.1 503 Service Unavailable".equals(statusLine)) {
+                rejected++;
+            } else {
+                Assert.fail("Unexpected status line [" + statusLine + "]");
+            }
+        }
+        Assert.assertTrue(ok > 0);
+        Assert.assertTrue(rejected > 0);
+
+        // Only the requests that were actually rejected are counted
+        MBeanServer mbeanServer = Registry.getRegistry(null, null).getMBeanServer();
+        Set<ObjectName> onames =
+                mbeanServer.queryNames(new ObjectName("Tomcat:type=ThreadPool,*"), null);
+        Assert.assertEquals(1, onames.size());
+        Assert.assertEquals(Long.valueOf(rejected), mbeanServer.getAttribute(
+                onames.iterator().next(), "queueShedCount"));
+    }
+
+    private static final class SlowServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                throw new ServletException(e);
+            }
+            resp.setContentType("text/plain");
+            resp.getWriter().print("OK");
+        }
+    }
+
+    @Test
+    public void testPriorityRequestClassifiedBeforeDispatch() throws Exception {
+        // Only the NIO connector reads the request line before dispatch
+        Assume.assumeTrue(Http11NioProtocol.class.getName().equals(getProtocol()));
+
+        Tomcat tomcat = getTomcatInstance();
+        // One thread so that every other request has to queue
+        tomcat.getConnector().setAttribute("maxThreads", "1");
+        tomcat.getConnector().setAttribute("minSpareThreads", "1");
+        tomcat.getConnector().setAttribute("priorityUris", "/health");
+
+        // No file system docBase required
+        Context ctx = tomcat.addContext("", null);
+
+        OrderServlet servlet = new OrderServlet();
+        Tomcat.addServlet(ctx, "Order", servlet);
+        ctx.addServletMapping("/", "Order");
+
+        tomcat.start();
+
+        // A keep-alive connection that has had a high priority request
+        Socket keepAlive = new Socket("localhost", getPort());
+        BufferedReader keepAliveReader = new BufferedReader(new InputStreamReader(
+                keepAlive.getInputStream(), B2CConverter.ISO_8859_1));
+        try {
+            writeOrderRequest(keepAlive, "/health?id=warmup", false);
+            Assert.assertEquals("OK", readOrderResponse(keepAliveReader));
+
+            List<Thread> threads = new ArrayList<Thread>();
+            // Occupies the only thread
+            threads.add(sendOrderRequest("/slow?id=first"));
+            Assert.assertTrue(servlet.started.await(10, TimeUnit.SECONDS));
+            threads.add(sendOrderRequest("/slow?id=queued1"));
+            Thread.sleep(50);
+            threads.add(sendOrderRequest("/slow?id=queued2"));
+            Thread.sleep(50);
+            // Must queue behind the others as it is not high priority
+            writeOrderRequest(keepAlive, "/slow?id=keepalive", false);
+            Thread.sleep(50);
+            // Must overtake the others despite arriving on a new connection
+            threads.add(sendOrderRequest("/health?id=probe"));
+
+            Assert.assertEquals("OK", readOrderResponse(keepAliveReader));
+            for (Thread thread : threads) {
+                thread.join(10000);
+            }
+        } finally {
+            keepAlive.close();
+        }
+
+        Assert.assertEquals(Arrays.asList("warmup", "first", "probe", "queued1",
+                "queued2", "keepalive"), servlet.ids);
+    }
+
+    private Thread sendOrderRequest(final String uri) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = new Socket("localhost", getPort());
+                    try {
+                        writeOrderRequest(socket, uri, true);
+                        readOrderResponse(new BufferedReader(new InputStreamReader(
+                                socket.getInputStream(), B2CConverter.ISO_8859_1)));
+                    } finally {
+                        socket.close();
+                    }
+                } catch (IOException ioe) {
+                    // The test fails when the id is missing
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    private static void writeOrderRequest(Socket socket, String uri,
+            boolean close) throws IOException {
+        OutputStream os = socket.getOutputStream();
+        os.write(("GET " + uri + " HTTP/1.1" + SimpleHttpClient.CRLF +
+                "Host: localhost" + SimpleHttpClient.CRLF +
+                (close ? "Connection: close" + SimpleHttpClient.CRLF : "") +
+                SimpleHttpClient.CRLF).getBytes(B2CConverter.ISO_8859_1));
+        os.flush();
+    }
+
+    private static String readOrderResponse(BufferedReader reader)
+            throws IOException {
+        String line;
+        do {
+            line = reader.readLine();
+        } while (line != null && line.length() > 0);
+        char[] body = new char[2];
+        int read = 0;
+        while (read < body.length) {
+            int n = reader.read(body, read, body.length - read);
+            if (n < 0) {
+                break;
+            }
+            read += n;
+        }
+        return new String(body, 0, read);
+    }
+
+    private static final class OrderServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> ids =
+                Collections.synchronizedList(new ArrayList<String>());
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            ids.add(req.getParameter("id"));
+            if (req.getRequestURI().startsWith("/slow")) {
+                started.countDown();
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    throw new ServletException(e);
+                }
+            }
+            resp.setContentType("text/plain");
+            resp.setContentLength(2);
+            resp.getWriter().print("OK");
+        }
+    }
+
+    private Map<String,List<String>> getCompressible(int size) throws Exception {
+        ByteChunk responseBody = new ByteChunk();
+        Map<String,List<String>> requestHeaders = new HashMap<String, List<String>>();
+        requestHeaders.put("Accept-Encoding", Arrays.asList("gzip"));
+        Map<String,List<String>> responseHeaders = new HashMap<String, List<String>>();
+        int rc = getUrl("http://localhost:" + getPort() + "/test?size=" + size,
+                responseBody, requestHeaders, responseHeaders);
+        Assert.assertEquals(HttpServletResponse.SC_OK, rc);
+        if (responseHeaders.get("Content-Encoding") != null) {
+            GZIPInputStream gis = new GZIPInputStream(
+                    new ByteArrayInputStream(responseBody.getBytes(),
+                            responseBody.getStart(), responseBody.getLength()));
+            int count = 0;
+            while (gis.read() != -1) {
+                count++;
+            }
+            Assert.assertEquals(size, count);
+        }
+        return responseHeaders;
+    }
+
+    private static final class CompressibleServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            int size = Integer.parseInt(req.getParameter("size"));
+            resp.setContentType("text/plain");
+            resp.setContentLength(size);
+            OutputStream os = resp.getOutputStream();
+            for (int i = 0; i < size; i++) {
+                os.write('a' + i % 26);
+            }
+        }
+    }
+
     private static final class Bug61086Servlet extends HttpServlet {
 
         private static final long serialVersionUID = 1L;
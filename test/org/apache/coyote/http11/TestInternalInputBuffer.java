@@ -18,6 +18,7 @@
 package org.apache.coyote.http11;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.util.Enumeration;
 
@@ -27,6 +28,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 
 import org.apache.catalina.Context;
@@ -570,4 +572,88 @@ public class TestInternalInputBuffer extends TomcatBaseTest {
             return true;
         }
     }
+
+
+    @Test
+    public void testPreReadBody() {
+        Assume.assumeTrue(
+                "This test is skipped, because only NIO pre-reads request bodies.",
+                Http11NioProtocol.class.getName().equals(
+                        getTomcatInstance().getConnector().getProtocolHandlerClassName()));
+
+        PreReadBodyClient client = new PreReadBodyClient();
+
+        client.doRequest();
+        Assert.assertTrue(client.getResponseLine(), client.isResponse200());
+        Assert.assertTrue(client.getResponseBody(), client.isResponseBodyOK());
+    }
+
+
+    /**
+     * Sends the request body in two parts, after the headers, with a pause
+     * between each part. The servlet should still see the whole body on its
+     * first read.
+     */
+    private class PreReadBodyClient extends SimpleHttpClient {
+
+        private Exception doRequest() {
+
+            Tomcat tomcat = getTomcatInstance();
+            tomcat.getConnector().setAttribute("maxPreReadBodySize", "1024");
+
+            Context root = tomcat.addContext("", TEMP_DIR);
+            Tomcat.addServlet(root, "PreRead", new SingleReadServlet());
+            root.addServletMapping("/test", "PreRead");
+
+            try {
+                tomcat.start();
+                setPort(tomcat.getConnector().getLocalPort());
+                setRequestPause(200);
+
+                // Open connection
+                connect();
+
+                String[] request = new String[3];
+                request[0] = "POST /test HTTP/1.1" + CRLF +
+                        "Host: localhost:8080" + CRLF +
+                        "Content-Length: 20" + CRLF +
+                        "Connection: close" + CRLF +
+                        CRLF;
+                request[1] = "0123456789";
+                request[2] = "abcdefghij";
+
+                setRequest(request);
+                processRequest(); // blocks until response has been read
+
+                // Close the connection
+                disconnect();
+            } catch (Exception e) {
+                return e;
+            }
+            return null;
+        }
+
+        @Override
+        public boolean isResponseBodyOK() {
+            return "0123456789abcdefghij".equals(getResponseBody());
+        }
+    }
+
+
+    private static class SingleReadServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            InputStream is = req.getInputStream();
+            byte[] buf = new byte[64];
+            int read = is.read(buf);
+
+            resp.setContentType("text/plain");
+            resp.setCharacterEncoding("ISO-8859-1");
+            resp.getWriter().print(new String(buf, 0, Math.max(read, 0), "ISO-8859-1"));
+        }
+    }
 }
@@ -0,0 +1,268 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http11;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.startup.TesterServlet;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.catalina.startup.TomcatBaseTest;
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.net.NioEndpoint;
+
+public class TestInternalNioOutputBuffer extends TomcatBaseTest {
+
+    private static final int RESPONSE_SIZE = 8 * 1024 * 1024;
+
+    @Test
+    public void testWriteBehindReleasesWorker() throws Exception {
+        Assume.assumeTrue(
+                "This test is skipped, because write-behind is only supported by NIO.",
+                isNio());
+
+        Tomcat tomcat = getTomcatInstance();
+        tomcat.getConnector().setAttribute("maxThreads", "1");
+        tomcat.getConnector().setAttribute("maxWriteBehindSize",
+                Integer.toString(2 * RESPONSE_SIZE));
+        Context root = tomcat.addContext("", null);
+        Tomcat.addServlet(root, "large", new LargeResponseServlet());
+        root.addServletMapping("/large", "large");
+        Tomcat.addServlet(root, "small", new TesterServlet());
+        root.addServletMapping("/small", "small");
+        tomcat.start();
+
+        NioEndpoint endpoint = getEndpoint(tomcat);
+
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(8192);
+        socket.connect(new InetSocketAddress("localhost", getPort()));
+        try {
+            sendRequest(socket, "/large");
+
+            // Wait for the response to be handed to the Poller
+            int count = 0;
+            while (endpoint.getWriteBehindConnectionCount() == 0 && count < 100) {
+                Thread.sleep(50);
+                count++;
+            }
+            Assert.assertEquals(1, endpoint.getWriteBehindConnectionCount());
+            Assert.assertTrue(endpoint.getWriteBehindBytes() > 0);
+
+            // The only worker thread is free to serve another request
+            ByteChunk out = new ByteChunk();
+            int rc = getUrl("http://localhost:" + getPort() + "/small", out,
+                    10000, null, null);
+            Assert.assertEquals(HttpServletResponse.SC_OK, rc);
+            Assert.assertEquals("OK", out.toString());
+
+            Assert.assertEquals(RESPONSE_SIZE, readBody(socket));
+        } finally {
+            socket.close();
+        }
+
+        int count = 0;
+        while (endpoint.getWriteBehindConnectionCount() > 0 && count < 100) {
+            Thread.sleep(50);
+            count++;
+        }
+        Assert.assertEquals(0, endpoint.getWriteBehindConnectionCount());
+        Assert.assertEquals(0, endpoint.getWriteBehindBytes());
+    }
+
+
+    @Test
+    public void testWriteBehindBudgetExhausted() throws Exception {
+        Assume.assumeTrue(
+                "This test is skipped, because write-behind is only supported by NIO.",
+                isNio());
+
+        Tomcat tomcat = getTomcatInstance();
+        tomcat.getConnector().setAttribute("maxWriteBehindSize",
+                Integer.toString(2 * RESPONSE_SIZE));
+        tomcat.getConnector().setAttribute("maxWriteBehindTotal", "1024");
+        Context root = tomcat.addContext("", null);
+        Tomcat.addServlet(root, "large", new LargeResponseServlet());
+        root.addServletMapping("/large", "large");
+        tomcat.start();
+
+        NioEndpoint endpoint = getEndpoint(tomcat);
+
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(8192);
+        socket.connect(new InetSocketAddress("localhost", getPort()));
+        try {
+            sendRequest(socket, "/large");
+            // Let the worker thread fill the network buffers
+            Thread.sleep(500);
+            // The response is written by the worker thread
+            Assert.assertEquals(RESPONSE_SIZE, readBody(socket));
+        } finally {
+            socket.close();
+        }
+
+        Assert.assertTrue(endpoint.getWriteBehindRejectedCount() > 0);
+        Assert.assertEquals(0, endpoint.getWriteBehindBytes());
+    }
+
+
+    @Test
+    public void testWriteBehindKeepAliveReleasesBuffers() throws Exception {
+        Assume.assumeTrue(
+                "This test is skipped, because write-behind is only supported by NIO.",
+                isNio());
+
+        Tomcat tomcat = getTomcatInstance();
+        tomcat.getConnector().setAttribute("maxWriteBehindSize",
+                Integer.toString(2 * RESPONSE_SIZE));
+        tomcat.getConnector().setProperty("socket.releaseIdleBuffers", "true");
+        Context root = tomcat.addContext("", null);
+        Tomcat.addServlet(root, "large", new LargeResponseServlet());
+        root.addServletMapping("/large", "large");
+        tomcat.start();
+
+        NioEndpoint endpoint = getEndpoint(tomcat);
+
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(8192);
+        socket.connect(new InetSocketAddress("localhost", getPort()));
+        try {
+            sendRequest(socket, "/large", true);
+
+            int count = 0;
+            while (endpoint.getWriteBehindConnectionCount() == 0 && count < 100) {
+                Thread.sleep(50);
+                count++;
+            }
+            Assert.assertEquals(1, endpoint.getWriteBehindConnectionCount());
+
+            Assert.assertEquals(RESPONSE_SIZE, readBody(socket, RESPONSE_SIZE));
+
+            // Once the Poller has finished the response, the idle connection
+            // gives its buffers back to the pool
+            count = 0;
+            while ((endpoint.getWriteBehindConnectionCount() > 0 ||
+                    endpoint.getBufferPool().getFreeBytes() == 0) && count < 100) {
+                Thread.sleep(50);
+                count++;
+            }
+            Assert.assertEquals(0, endpoint.getWriteBehindConnectionCount());
+            Assert.assertEquals(0, endpoint.getWriteBehindBytes());
+            Assert.assertTrue(endpoint.getBufferPool().getFreeBytes() > 0);
+
+            // The connection can still be used
+            sendRequest(socket, "/large", false);
+            Assert.assertEquals(RESPONSE_SIZE, readBody(socket));
+        } finally {
+            socket.close();
+        }
+    }
+
+
+    private boolean isNio() {
+        String protocol =
+            getTomcatInstance().getConnector().getProtocolHandlerClassName();
+        return Http11NioProtocol.class.getName().equals(protocol);
+    }
+
+
+    private static NioEndpoint getEndpoint(Tomcat tomcat) {
+        return ((Http11NioProtocol) tomcat.getConnector().getProtocolHandler()).getEndpoint();
+    }
+
+
+    private static void sendRequest(Socket socket, String path) throws IOException {
+        sendRequest(socket, path, false);
+    }
+
+
+    private static void sendRequest(Socket socket, String path,
+            boolean keepAlive) throws IOException {
+        OutputStream os = socket.getOutputStream();
+        os.write(("GET " + path + " HTTP/1.1\r\n" +
+                "Host: localhost\r\n" +
+                (keepAlive ? "" : "Connection: close\r\n") +
+                "\r\n").getBytes("ISO-8859-1"));
+        os.flush();
+    }
+
+
+    private static long readBody(Socket socket) throws IOException {
+        return readBody(socket, -1);
+    }
+
+
+    /*
+     * Reads the response until the given number of body bytes has been read
+     * or, if that is -1, until the server closes the connection. Returns the
+     * number of body bytes read.
+     */
+    private static long readBody(Socket socket, long length) throws IOException {
+        InputStream is = socket.getInputStream();
+        byte[] buf = new byte[8192];
+        StringBuilder head = new StringBuilder();
+        long body = -1;
+        int read;
+        while ((length < 0 || body < length) && (read = is.read(buf)) > 0) {
+            if (body < 0) {
+                head.append(new String(buf, 0, read, "ISO-8859-1"));
+                int end = head.indexOf("\r\n\r\n");
+                if (end > -1) {
+                    Assert.assertTrue(head.toString(),
+                            head.toString().startsWith("HTTP/1.1 200"));
+                    body = head.length() - end - 4;
+                }
+            } else {
+                body += read;
+            }
+        }
+        return body;
+    }
+
+
+    private static class LargeResponseServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            resp.setContentType("application/octet-stream");
+            resp.setContentLength(RESPONSE_SIZE);
+            byte[] chunk = new byte[64 * 1024];
+            Arrays.fill(chunk, (byte) 'x');
+            OutputStream os = resp.getOutputStream();
+            for (int i = 0; i < RESPONSE_SIZE / chunk.length; i++) {
+                os.write(chunk);
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http11.filters;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestDeflaterGzipOutputStream {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        DeflaterPool pool = new DeflaterPool(1);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DeflaterGzipOutputStream gzip = new DeflaterGzipOutputStream(bos);
+
+        // The same stream and Deflater are used for several responses
+        Deflater first = null;
+        for (int i = 0; i < 3; i++) {
+            byte[] data = createData(100000 + i);
+            bos.reset();
+            gzip.start(pool.borrow(i == 1 ? Deflater.BEST_SPEED : Deflater.DEFAULT_COMPRESSION));
+            gzip.write(data, 0, 5000);
+            gzip.write(data[5000]);
+            gzip.write(data, 5001, data.length - 5001);
+            gzip.close();
+            Deflater deflater = gzip.detach();
+            if (first == null) {
+                first = deflater;
+            } else {
+                Assert.assertSame(first, deflater);
+            }
+            pool.release(deflater);
+
+            Assert.assertArrayEquals(data, gunzip(bos.toByteArray(), -1));
+        }
+    }
+
+
+    @Test
+    public void testFlush() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DeflaterGzipOutputStream gzip = new DeflaterGzipOutputStream(bos);
+        gzip.start(new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+        byte[] data = createData(2000);
+        gzip.write(data, 0, data.length);
+        gzip.flush();
+
+        // Everything written so far can be decompressed before the end
+        Assert.assertArrayEquals(data, gunzip(bos.toByteArray(), data.length));
+
+        gzip.close();
+        Assert.assertArrayEquals(data, gunzip(bos.toByteArray(), -1));
+        gzip.detach().end();
+    }
+
+
+    @Test(expected=IOException.class)
+    public void testWriteAfterFinish() throws Exception {
+        DeflaterGzipOutputStream gzip =
+                new DeflaterGzipOutputStream(new ByteArrayOutputStream());
+        gzip.start(new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+        try {
+            gzip.finish();
+            gzip.write(1);
+        } finally {
+            gzip.detach().end();
+        }
+    }
+
+
+    @Test
+    public void testPoolLimit() {
+        DeflaterPool pool = new DeflaterPool(1);
+        Deflater d1 = pool.borrow(Deflater.BEST_SPEED);
+        Deflater d2 = pool.borrow(Deflater.BEST_SPEED);
+        Assert.assertNotSame(d1, d2);
+        pool.release(d1);
+        pool.release(d2);
+        // Only one is kept
+        Assert.assertSame(d1, pool.borrow(Deflater.BEST_SPEED));
+        Deflater d3 = pool.borrow(Deflater.BEST_SPEED);
+        Assert.assertNotSame(d1, d3);
+        Assert.assertNotSame(d2, d3);
+    }
+
+
+    private static byte[] createData(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ("0123456789abcdef".charAt((i * 7) % 16) + (i / 1000) % 3);
+        }
+        return data;
+    }
+
+
+    /*
+     * Decompress the given GZIP data. If expected is not -1, only that many
+     * bytes are read since the trailer may not have been written yet.
+     */
+    private static byte[] gunzip(byte[] compressed, int expected)
+            throws IOException {
+        InputStream is = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((expected == -1 || result.size() < expected) &&
+                (n = is.read(buf, 0, expected == -1 ? buf.length :
+                        Math.min(buf.length, expected - result.size()))) != -1) {
+            result.write(buf, 0, n);
+        }
+        return Arrays.copyOf(result.toByteArray(), result.size());
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http11.filters;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.catalina.startup.TomcatBaseTest;
+import org.apache.tomcat.util.buf.B2CConverter;
+import org.apache.tomcat.util.buf.ByteChunk;
+
+public class TestGzipInputFilter extends TomcatBaseTest {
+
+    private static final int SIZE = 100000;
+
+    @Test
+    public void testGzip() throws Exception {
+        doTest(true, "gzip", gzip(getBody(SIZE)), "OK " + SIZE + " -1 null");
+    }
+
+    @Test
+    public void testXGzip() throws Exception {
+        doTest(true, "x-gzip", gzip(getBody(SIZE)), "OK " + SIZE + " -1 null");
+    }
+
+    @Test
+    public void testDeflate() throws Exception {
+        doTest(true, "deflate", deflate(getBody(SIZE)), "OK " + SIZE + " -1 null");
+    }
+
+    @Test
+    public void testMultipleMembers() throws Exception {
+        byte[] body = getBody(SIZE);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        baos.write(gzip(Arrays.copyOfRange(body, 0, 1000)));
+        baos.write(gzip(Arrays.copyOfRange(body, 1000, SIZE)));
+        doTest(true, "gzip", baos.toByteArray(), "OK " + SIZE + " -1 null");
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        byte[] compressed = gzip(getBody(SIZE));
+        doTest(false, "gzip", compressed,
+                "RAW " + compressed.length + " " + compressed.length + " gzip");
+    }
+
+    @Test
+    public void testUnsupportedEncoding() throws Exception {
+        byte[] body = getBody(1000);
+        doTest(true, "br", body, "OK 1000 1000 br");
+    }
+
+    @Test
+    public void testMaxInflatedSize() throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+        tomcat.getConnector().setProperty("maxInflatedRequestBodySize", "50000");
+        doTest(true, "gzip", gzip(getBody(SIZE)), "ERROR");
+    }
+
+    @Test
+    public void testCorrupted() throws Exception {
+        byte[] compressed = gzip(getBody(SIZE));
+        // Break the CRC in the trailer
+        compressed[compressed.length - 5] ^= 0x01;
+        doTest(true, "gzip", compressed, "ERROR");
+    }
+
+    @Test
+    public void testFormParameters() throws Exception {
+        doTestFormParameters(-1, "a=1 b=two");
+    }
+
+    @Test
+    public void testFormParametersMaxPostSize() throws Exception {
+        // The inflated body is larger than maxPostSize
+        doTestFormParameters(5, "a=null b=null");
+    }
+
+    @Test
+    public void testChunkedPipelined() throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+        tomcat.getConnector().setProperty("decompressRequestBody", "true");
+        Context ctx = tomcat.addContext("", null);
+        Tomcat.addServlet(ctx, "servlet", new InflateServlet());
+        ctx.addServletMapping("/", "servlet");
+        tomcat.start();
+
+        byte[] compressed = gzip(getBody(SIZE));
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        request.write(("POST / HTTP/1.1\r\n" +
+                "Host: localhost\r\n" +
+                "Transfer-Encoding: chunked\r\n" +
+                "Content-Encoding: gzip\r\n" +
+                "\r\n").getBytes(B2CConverter.ISO_8859_1));
+        int half = compressed.length / 2;
+        writeChunk(request, compressed, 0, half);
+        writeChunk(request, compressed, half, compressed.length - half);
+        request.write("0\r\n\r\n".getBytes(B2CConverter.ISO_8859_1));
+        request.write(("POST / HTTP/1.1\r\n" +
+                "Host: localhost\r\n" +
+                "Content-Length: 3\r\n" +
+                "Connection: close\r\n" +
+                "\r\nabc").getBytes(B2CConverter.ISO_8859_1));
+
+        Socket socket = new Socket("localhost", getPort());
+        try {
+            OutputStream os = socket.getOutputStream();
+            os.write(request.toByteArray());
+            os.flush();
+            InputStream is = socket.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024];
+            int n;
+            while ((n = is.read(buf)) > 0) {
+                response.write(buf, 0, n);
+            }
+            String result = new String(response.toByteArray(), B2CConverter.ISO_8859_1);
+            Assert.assertTrue(result, result.contains("OK " + SIZE + " -1 null"));
+            Assert.assertTrue(result, result.contains("OK 3 3 null"));
+        } finally {
+            socket.close();
+        }
+    }
+
+
+    private void doTest(boolean enabled, String encoding, byte[] body,
+            String expected) throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+        tomcat.getConnector().setProperty("decompressRequestBody",
+                Boolean.toString(enabled));
+        Context ctx = tomcat.addContext("", null);
+        Tomcat.addServlet(ctx, "servlet", new InflateServlet());
+        ctx.addServletMapping("/", "servlet");
+        tomcat.start();
+
+        Map<String,List<String>> reqHead = new HashMap<String,List<String>>();
+        reqHead.put("Content-Encoding", Arrays.asList(encoding));
+        ByteChunk out = new ByteChunk();
+        int rc = postUrl(body, "http://localhost:" + getPort() + "/", out,
+                reqHead, null);
+        Assert.assertEquals(HttpServletResponse.SC_OK, rc);
+        Assert.assertEquals(expected, out.toString());
+    }
+
+
+    private void doTestFormParameters(int maxPostSize, String expected)
+            throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+        tomcat.getConnector().setProperty("decompressRequestBody", "true");
+        tomcat.getConnector().setMaxPostSize(maxPostSize);
+        Context ctx = tomcat.addContext("", null);
+        Tomcat.addServlet(ctx, "servlet", new FormServlet());
+        ctx.addServletMapping("/", "servlet");
+        tomcat.start();
+
+        Map<String,List<String>> reqHead = new HashMap<String,List<String>>();
+        reqHead.put("Content-Encoding", Arrays.asList("gzip"));
+        reqHead.put("Content-Type",
+                Arrays.asList("application/x-www-form-urlencoded"));
+        ByteChunk out = new ByteChunk();
+        int rc = postUrl(gzip("a=1&b=two".getBytes(B2CConverter.ISO_8859_1)),
+                "http://localhost:" + getPort() + "/", out, reqHead, null);
+        Assert.assertEquals(HttpServletResponse.SC_OK, rc);
+        Assert.assertEquals(expected, out.toString());
+    }
+
+
+    private static void writeChunk(ByteArrayOutputStream out, byte[] b,
+            int off, int len) throws IOException {
+        out.write((Integer.toHexString(len) + "\r\n").getBytes(B2CConverter.ISO_8859_1));
+        out.write(b, off, len);
+        out.write("\r\n".getBytes(B2CConverter.ISO_8859_1));
+    }
+
+
+    private static byte[] getBody(int size) {
+        byte[] body = new byte[size];
+        for (int i = 0; i < size; i++) {
+            body[i] = (byte) ('a' + (i % 26));
+        }
+        return body;
+    }
+
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        GZIPOutputStream gzos = new GZIPOutputStream(baos);
+        gzos.write(data);
+        gzos.close();
+        return baos.toByteArray();
+    }
+
+
+    private static byte[] deflate(byte[] data) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DeflaterOutputStream dos = new DeflaterOutputStream(baos);
+        dos.write(data);
+        dos.close();
+        return baos.toByteArray();
+    }
+
+
+    private static class InflateServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            resp.setContentType("text/plain");
+            InputStream is = req.getInputStream();
+            int count = 0;
+            boolean inflated = true;
+            try {
+                int b;
+                while ((b = is.read()) != -1) {
+                    if (b != 'a' + (count % 26)) {
+                        inflated = false;
+                    }
+                    count++;
+                }
+            } catch (IOException ioe) {
+                resp.getWriter().print("ERROR");
+                return;
+            }
+            resp.getWriter().print((inflated ? "OK " : "RAW ") + count + " " +
+                    req.getContentLength() + " " + req.getHeader("Content-Encoding"));
+        }
+    }
+
+
+    private static class FormServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            resp.setContentType("text/plain");
+            resp.getWriter().print("a=" + req.getParameter("a") + " b=" +
+                    req.getParameter("b"));
+        }
+    }
+}
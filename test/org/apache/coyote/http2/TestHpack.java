@@ -0,0 +1,115 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestHpack {
+
+    @Test
+    public void testDecodeRequestWithoutHuffman() throws Exception {
+        // RFC 7541, C.3.1
+        List<String> headers = decode(new HpackDecoder(4096),
+                "828684410f7777772e6578616d706c652e636f6d");
+        Assert.assertEquals("[:method=GET, :scheme=http, :path=/, " +
+                ":authority=www.example.com]", headers.toString());
+    }
+
+
+    @Test
+    public void testDecodeRequestWithHuffman() throws Exception {
+        // RFC 7541, C.4.1 and C.4.2
+        HpackDecoder decoder = new HpackDecoder(4096);
+        List<String> headers = decode(decoder,
+                "828684418cf1e3c2e5f23a6ba0ab90f4ff");
+        Assert.assertEquals("[:method=GET, :scheme=http, :path=/, " +
+                ":authority=www.example.com]", headers.toString());
+        Assert.assertEquals(57, decoder.getDynamicTableSize());
+
+        headers = decode(decoder, "828684be5886a8eb10649cbf");
+        Assert.assertEquals("[:method=GET, :scheme=http, :path=/, " +
+                ":authority=www.example.com, cache-control=no-cache]",
+                headers.toString());
+        Assert.assertEquals(110, decoder.getDynamicTableSize());
+    }
+
+
+    @Test(expected=Http2Exception.class)
+    public void testDecodeInvalidIndex() throws Exception {
+        decode(new HpackDecoder(4096), "be");
+    }
+
+
+    @Test(expected=Http2Exception.class)
+    public void testDecodeSizeUpdateTooLarge() throws Exception {
+        // Size update to 8192 when only 4096 was advertised
+        decode(new HpackDecoder(4096), "3fe13f");
+    }
+
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        HpackEncoder encoder = new HpackEncoder();
+        HpackDecoder decoder = new HpackDecoder(4096);
+
+        for (int i = 0; i < 3; i++) {
+            encoder.startBlock();
+            encoder.addHeader(":status", "200");
+            encoder.addHeader("content-type", "text/html;charset=UTF-8");
+            encoder.addHeader("content-length", Integer.toString(i));
+            encoder.addHeader("x-custom", "value-" + i);
+            List<String> headers = new ArrayList<String>();
+            decoder.decode(encoder.getBuffer(), 0, encoder.getLength(),
+                    new ListEmitter(headers));
+            Assert.assertEquals("[:status=200, " +
+                    "content-type=text/html;charset=UTF-8, " +
+                    "content-length=" + i + ", x-custom=value-" + i + "]",
+                    headers.toString());
+        }
+    }
+
+
+    private static List<String> decode(HpackDecoder decoder, String hex)
+            throws Http2Exception {
+        byte[] block = new byte[hex.length() / 2];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        List<String> headers = new ArrayList<String>();
+        decoder.decode(block, 0, block.length, new ListEmitter(headers));
+        return headers;
+    }
+
+
+    private static class ListEmitter implements HpackDecoder.HeaderEmitter {
+
+        private final List<String> headers;
+
+        public ListEmitter(List<String> headers) {
+            this.headers = headers;
+        }
+
+        @Override
+        public void emitHeader(String name, String value) {
+            headers.add(name + "=" + value);
+        }
+    }
+}
@@ -0,0 +1,715 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.catalina.startup.TomcatBaseTest;
+
+public class TestHttp2UpgradeHandler extends TomcatBaseTest {
+
+    private Socket socket;
+    private InputStream is;
+    private OutputStream os;
+    private final HpackEncoder encoder = new HpackEncoder();
+    private final HpackDecoder decoder = new HpackDecoder(
+            Constants.DEFAULT_HEADER_TABLE_SIZE);
+    private final Map<Integer,List<String>> responseHeaders =
+            new HashMap<Integer,List<String>>();
+    private final Map<Integer,ByteArrayOutputStream> responseBodies =
+            new HashMap<Integer,ByteArrayOutputStream>();
+    private int pingAcks = 0;
+
+    // Requests to /wait count down waitArrived and then wait for waitRelease
+    private CountDownLatch waitArrived = new CountDownLatch(1);
+    private CountDownLatch waitRelease = new CountDownLatch(0);
+    // Counted down when a write of a response to /large fails
+    private final CountDownLatch largeWriteFailed = new CountDownLatch(1);
+
+
+    @Override
+    protected String getProtocol() {
+        return "org.apache.coyote.http11.Http11NioProtocol";
+    }
+
+
+    @Test
+    public void testPriorKnowledge() throws Exception {
+        connect();
+        os.write(Constants.CLIENT_PREFACE);
+        writeFrame(Constants.FRAME_SETTINGS, 0, 0, new byte[0]);
+
+        sendGet(1, "/test?a=b");
+        Assert.assertEquals("[:status=200, content-type=text/plain;" +
+                "charset=ISO-8859-1, content-length=18]", readResponse(1));
+        Assert.assertEquals("HTTP/2.0 /test a=b", lastBody);
+
+        // Requests on the same connection
+        sendGet(3, "/other");
+        readResponse(3);
+        Assert.assertEquals("HTTP/2.0 /other null", lastBody);
+        sendGet(5, "/test");
+        readResponse(5);
+        Assert.assertEquals("HTTP/2.0 /test null", lastBody);
+    }
+
+
+    @Test
+    public void testUpgrade() throws Exception {
+        connect();
+        os.write(("GET /test?a=b HTTP/1.1\r\n" +
+                "Host: localhost\r\n" +
+                "Connection: Upgrade, HTTP2-Settings\r\n" +
+                "Upgrade: h2c\r\n" +
+                "HTTP2-Settings: AAMAAABkAAQAAP__\r\n" +
+                "\r\n").getBytes("ISO-8859-1"));
+        String statusLine = readLine();
+        Assert.assertEquals("HTTP/1.1 101 Switching Protocols", statusLine);
+        while (readLine().length() > 0) {
+            // Skip the remaining headers of the 101 response
+        }
+
+        os.write(Constants.CLIENT_PREFACE);
+        writeFrame(Constants.FRAME_SETTINGS, 0, 0, new byte[0]);
+
+        // The upgraded request is answered on stream 1
+        readResponse(1);
+        Assert.assertEquals("HTTP/2.0 /test a=b", lastBody);
+
+        sendGet(3, "/test");
+        readResponse(3);
+        Assert.assertEquals("HTTP/2.0 /test null", lastBody);
+    }
+
+
+    @Test
+    public void testControlFramesWhileOutputBlocked() throws Exception {
+        connect();
+        os.write(Constants.CLIENT_PREFACE);
+        // Allow a response that is larger than the socket buffers to be sent
+        // in one go
+        writeSettings(Constants.SETTINGS_INITIAL_WINDOW_SIZE, 1 << 30);
+        writeWindowUpdate(0, 1 << 30);
+
+        int size = 16 * 1024 * 1024;
+        sendGet(1, "/large?size=" + size);
+        // Give the response time to fill the socket buffers. Without reading
+        // anything, the connection must still process the frames of the
+        // client, including frames that have to be answered.
+        Thread.sleep(1000);
+        for (int i = 0; i < 10; i++) {
+            writeFrame(Constants.FRAME_PING, 0, 0, new byte[8]);
+        }
+        sendGet(3, "/wait");
+        Assert.assertTrue(waitArrived.await(10, TimeUnit.SECONDS));
+
+        readResponses(1, 3);
+        Assert.assertEquals(size, responseBodies.get(Integer.valueOf(1)).size());
+        Assert.assertEquals("OK", responseBodies.get(Integer.valueOf(3)).toString("ISO-8859-1"));
+        while (pingAcks < 10) {
+            readFrame();
+        }
+    }
+
+
+    @Test
+    public void testInterleavedStreams() throws Exception {
+        // Each request waits until all three have arrived
+        waitArrived = new CountDownLatch(3);
+        waitRelease = waitArrived;
+        connect();
+        os.write(Constants.CLIENT_PREFACE);
+        writeFrame(Constants.FRAME_SETTINGS, 0, 0, new byte[0]);
+
+        sendGet(1, "/wait");
+        sendGet(3, "/wait");
+        sendGet(5, "/wait");
+        readResponses(1, 3, 5);
+        for (int streamId = 1; streamId <= 5; streamId += 2) {
+            Assert.assertEquals("OK", responseBodies.get(
+                    Integer.valueOf(streamId)).toString("ISO-8859-1"));
+        }
+    }
+
+
+    @Test
+    public void testRequestBody() throws Exception {
+        connect();
+        os.write(Constants.CLIENT_PREFACE);
+        writeFrame(Constants.FRAME_SETTINGS, 0, 0, new byte[0]);
+
+        sendHeaders(1, "POST", "/body", false);
+        writeFrame(Constants.FRAME_DATA, 0, 1, "Hello ".getBytes("ISO-8859-1"));
+        // Padded with three bytes
+        byte[] padded = new byte[1 + 5 + 3];
+        padded[0] = 3;
+        System.arraycopy("World".getBytes("ISO-8859-1"), 0, padded, 1, 5);
+        writeFrame(Constants.FRAME_DATA,
+                Constants.FLAG_PADDED | Constants.FLAG_END_STREAM, 1, padded);
+
+        readResponse(1);
+        Assert.assertEquals("Hello World", lastBody);
+    }
+
+
+    @Test
+    public void testFlowControl() throws Exception {
+        connect();
+        os.write(Constants.CLIENT_PREFACE);
+        writeSettings(Constants.SETTINGS_INITIAL_WINDOW_SIZE, 1000);
+
+        sendGet(1, "/large?size=3000");
+        Assert.assertEquals(1000, readData(1, 1000));
+
+        // The stream waits for the window to be opened
+        socket.setSoTimeout(500);
+        try {
+            readFrame();
+            Assert.fail("More data than the window allows was sent");
+        } catch (SocketTimeoutException e) {
+            // Expected
+        }
+        socket.setSoTimeout(10000);
+
+        writeWindowUpdate(1, 2000);
+        readResponse(1);
+        Assert.assertEquals(2000, lastBody.length());
+    }
+
+
+    @Test
+    public void testResetBlockedStream() throws Exception {
+        connect();
+        os.write(Constants.CLIENT_PREFACE);
+        writeSettings(Constants.SETTINGS_INITIAL_WINDOW_SIZE, 1000);
+
+        sendGet(1, "/large?size=3000");
+        Assert.assertEquals(1000, readData(1, 1000));
+
+        // Releases the write that waits for the window
+        byte[] payload = new byte[4];
+        putInt(payload, 0, Constants.CANCEL);
+        writeFrame(Constants.FRAME_RST_STREAM, 0, 1, payload);
+        Assert.assertTrue(largeWriteFailed.await(10, TimeUnit.SECONDS));
+
+        // The connection is still usable
+        sendGet(3, "/test");
+        readResponse(3);
+        Assert.assertEquals("HTTP/2.0 /test null", lastBody);
+    }
+
+
+    @Test
+    public void testGoAway() throws Exception {
+        connect();
+        os.write(Constants.CLIENT_PREFACE);
+        writeFrame(Constants.FRAME_SETTINGS, 0, 0, new byte[0]);
+
+        sendGet(1, "/wait");
+        writeFrame(Constants.FRAME_GOAWAY, 0, 0, new byte[8]);
+
+        // The open stream completes before the connection is closed
+        readResponse(1);
+        Assert.assertEquals("OK", lastBody);
+        try {
+            while (true) {
+                Frame frame = readFrame();
+                Assert.assertNotEquals(1, frame.streamId);
+            }
+        } catch (EOFException e) {
+            // Expected
+        }
+    }
+
+
+    @Test
+    public void testContinuation() throws Exception {
+        connect();
+        os.write(Constants.CLIENT_PREFACE);
+        writeFrame(Constants.FRAME_SETTINGS, 0, 0, new byte[0]);
+
+        byte[] block = encodeHeaders("GET", "/test?a=b");
+        int split = block.length / 2;
+        byte[] first = new byte[split];
+        byte[] second = new byte[block.length - split];
+        System.arraycopy(block, 0, first, 0, first.length);
+        System.arraycopy(block, split, second, 0, second.length);
+        writeFrame(Constants.FRAME_HEADERS, Constants.FLAG_END_STREAM, 1, first);
+        writeFrame(Constants.FRAME_CONTINUATION, Constants.FLAG_END_HEADERS, 1,
+                second);
+
+        readResponse(1);
+        Assert.assertEquals("HTTP/2.0 /test a=b", lastBody);
+    }
+
+
+    @Test
+    public void testContinuationExpected() throws Exception {
+        connect();
+        os.write(Constants.CLIENT_PREFACE);
+        writeFrame(Constants.FRAME_SETTINGS, 0, 0, new byte[0]);
+
+        byte[] block = encodeHeaders("GET", "/test");
+        writeFrame(Constants.FRAME_HEADERS, Constants.FLAG_END_STREAM, 1, block);
+        // Nothing but a CONTINUATION may follow
+        writeFrame(Constants.FRAME_PING, 0, 0, new byte[8]);
+
+        Frame frame = readFrame();
+        while (frame.type != Constants.FRAME_GOAWAY) {
+            frame = readFrame();
+        }
+        Assert.assertEquals(Constants.PROTOCOL_ERROR, readInt(frame.payload, 4));
+        try {
+            readFrame();
+            Assert.fail("The connection was not closed");
+        } catch (EOFException e) {
+            // Expected
+        }
+    }
+
+
+    @Test
+    public void testMaxConcurrentStreams() throws Exception {
+        waitRelease = new CountDownLatch(1);
+        getTomcatInstance().getConnector().setAttribute(
+                "http2MaxConcurrentStreams", "1");
+        connect();
+        os.write(Constants.CLIENT_PREFACE);
+        writeFrame(Constants.FRAME_SETTINGS, 0, 0, new byte[0]);
+
+        sendGet(1, "/wait");
+        Assert.assertTrue(waitArrived.await(10, TimeUnit.SECONDS));
+        sendGet(3, "/test");
+
+        Frame frame = readFrame();
+        while (frame.streamId != 3) {
+            frame = readFrame();
+        }
+        Assert.assertEquals(Constants.FRAME_RST_STREAM, frame.type);
+        Assert.assertEquals(Constants.REFUSED_STREAM, readInt(frame.payload, 0));
+
+        waitRelease.countDown();
+        readResponse(1);
+        Assert.assertEquals("OK", lastBody);
+
+        // Once the first stream is complete, another may be opened
+        sendGet(5, "/test");
+        readResponse(5);
+        Assert.assertEquals("HTTP/2.0 /test null", lastBody);
+    }
+
+
+    @Test
+    public void testUpgradeNotEnabled() throws Exception {
+        connect(false);
+        os.write(("GET /test HTTP/1.1\r\n" +
+                "Host: localhost\r\n" +
+                "Connection: Upgrade, HTTP2-Settings, close\r\n" +
+                "Upgrade: h2c\r\n" +
+                "HTTP2-Settings: AAMAAABkAAQAAP__\r\n" +
+                "\r\n").getBytes("ISO-8859-1"));
+        Assert.assertEquals("HTTP/1.1 200 OK", readLine());
+    }
+
+
+    private String lastBody;
+
+
+    private void connect() throws Exception {
+        connect(true);
+    }
+
+
+    private void connect(boolean http2Enabled) throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+        tomcat.getConnector().setAttribute("http2Enabled",
+                Boolean.toString(http2Enabled));
+        Context ctx = tomcat.addContext("", null);
+        Tomcat.addServlet(ctx, "echo", new EchoServlet());
+        ctx.addServletMapping("/", "echo");
+        Tomcat.addServlet(ctx, "large", new LargeServlet(largeWriteFailed));
+        ctx.addServletMapping("/large", "large");
+        Tomcat.addServlet(ctx, "wait", new WaitServlet(waitArrived, waitRelease));
+        ctx.addServletMapping("/wait", "wait");
+        Tomcat.addServlet(ctx, "body", new BodyServlet());
+        ctx.addServletMapping("/body", "body");
+        tomcat.start();
+
+        socket = new Socket("localhost", getPort());
+        socket.setSoTimeout(10000);
+        is = socket.getInputStream();
+        os = socket.getOutputStream();
+    }
+
+
+    private void sendGet(int streamId, String path) throws IOException {
+        sendHeaders(streamId, "GET", path, true);
+    }
+
+
+    private void sendHeaders(int streamId, String method, String path,
+            boolean endOfStream) throws IOException {
+        int flags = Constants.FLAG_END_HEADERS;
+        if (endOfStream) {
+            flags |= Constants.FLAG_END_STREAM;
+        }
+        writeFrame(Constants.FRAME_HEADERS, flags, streamId,
+                encodeHeaders(method, path));
+    }
+
+
+    private byte[] encodeHeaders(String method, String path) {
+        encoder.startBlock();
+        encoder.addHeader(":method", method);
+        encoder.addHeader(":scheme", "http");
+        encoder.addHeader(":path", path);
+        encoder.addHeader(":authority", "localhost:" + getPort());
+        byte[] block = new byte[encoder.getLength()];
+        System.arraycopy(encoder.getBuffer(), 0, block, 0, block.length);
+        return block;
+    }
+
+
+    /*
+     * Reads frames until the response on the given stream is complete and
+     * returns the response headers. The body is stored in lastBody.
+     */
+    private String readResponse(int streamId) throws Exception {
+        readResponses(streamId);
+        Integer key = Integer.valueOf(streamId);
+        lastBody = responseBodies.get(key).toString("ISO-8859-1");
+        return responseHeaders.get(key).toString();
+    }
+
+
+    /*
+     * Reads frames until the responses on all the given streams are complete.
+     * The responses may be interleaved.
+     */
+    private void readResponses(int... streamIds) throws Exception {
+        Set<Integer> open = new HashSet<Integer>();
+        for (int streamId : streamIds) {
+            Integer key = Integer.valueOf(streamId);
+            open.add(key);
+            responseHeaders.put(key, new ArrayList<String>());
+            responseBodies.put(key, new ByteArrayOutputStream());
+        }
+        while (!open.isEmpty()) {
+            Frame frame = readFrame();
+            Integer key = Integer.valueOf(frame.streamId);
+            if (!open.contains(key)) {
+                Assert.assertNotEquals(Constants.FRAME_GOAWAY, frame.type);
+                continue;
+            }
+            Assert.assertNotEquals(Constants.FRAME_RST_STREAM, frame.type);
+            if (frame.type == Constants.FRAME_HEADERS) {
+                final List<String> target = responseHeaders.get(key);
+                decoder.decode(frame.payload, 0, frame.payload.length,
+                        new HpackDecoder.HeaderEmitter() {
+                    @Override
+                    public void emitHeader(String name, String value) {
+                        if (!"date".equals(name)) {
+                            target.add(name + "=" + value);
+                        }
+                    }
+                });
+            } else if (frame.type == Constants.FRAME_DATA) {
+                responseBodies.get(key).write(frame.payload);
+            } else {
+                continue;
+            }
+            if ((frame.flags & Constants.FLAG_END_STREAM) != 0) {
+                open.remove(key);
+            }
+        }
+    }
+
+
+    /*
+     * Reads the next frame. SETTINGS are acknowledged and acknowledgements of
+     * PING are counted rather than returned.
+     */
+    private Frame readFrame() throws IOException {
+        byte[] frameHeader = new byte[Constants.FRAME_HEADER_LENGTH];
+        while (true) {
+            readFully(frameHeader);
+            int length = ((frameHeader[0] & 0xFF) << 16) +
+                    ((frameHeader[1] & 0xFF) << 8) + (frameHeader[2] & 0xFF);
+            int type = frameHeader[3] & 0xFF;
+            int flags = frameHeader[4] & 0xFF;
+            int id = ((frameHeader[5] & 0x7F) << 24) +
+                    ((frameHeader[6] & 0xFF) << 16) +
+                    ((frameHeader[7] & 0xFF) << 8) + (frameHeader[8] & 0xFF);
+            byte[] payload = new byte[length];
+            readFully(payload);
+
+            if (type == Constants.FRAME_SETTINGS &&
+                    (flags & Constants.FLAG_ACK) == 0) {
+                writeFrame(Constants.FRAME_SETTINGS, Constants.FLAG_ACK, 0,
+                        new byte[0]);
+                continue;
+            }
+            if (type == Constants.FRAME_PING &&
+                    (flags & Constants.FLAG_ACK) != 0) {
+                pingAcks++;
+                continue;
+            }
+            return new Frame(type, flags, id, payload);
+        }
+    }
+
+
+    /*
+     * Reads frames until at least the given amount of response body data has
+     * been received on the stream and returns the amount received.
+     */
+    private int readData(int streamId, int length) throws IOException {
+        int received = 0;
+        while (received < length) {
+            Frame frame = readFrame();
+            if (frame.streamId != streamId) {
+                continue;
+            }
+            Assert.assertNotEquals(Constants.FRAME_RST_STREAM, frame.type);
+            if (frame.type == Constants.FRAME_HEADERS) {
+                decoder.decode(frame.payload, 0, frame.payload.length,
+                        new HpackDecoder.HeaderEmitter() {
+                    @Override
+                    public void emitHeader(String name, String value) {
+                        // NO-OP
+                    }
+                });
+            } else if (frame.type == Constants.FRAME_DATA) {
+                received += frame.payload.length;
+            }
+        }
+        return received;
+    }
+
+
+    private void writeSettings(int id, int value) throws IOException {
+        byte[] payload = new byte[6];
+        payload[0] = (byte) (id >> 8);
+        payload[1] = (byte) id;
+        putInt(payload, 2, value);
+        writeFrame(Constants.FRAME_SETTINGS, 0, 0, payload);
+    }
+
+
+    private void writeWindowUpdate(int streamId, int increment)
+            throws IOException {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, increment);
+        writeFrame(Constants.FRAME_WINDOW_UPDATE, 0, streamId, payload);
+    }
+
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload)
+            throws IOException {
+        byte[] frame = new byte[Constants.FRAME_HEADER_LENGTH + payload.length];
+        frame[0] = (byte) (payload.length >> 16);
+        frame[1] = (byte) (payload.length >> 8);
+        frame[2] = (byte) payload.length;
+        frame[3] = (byte) type;
+        frame[4] = (byte) flags;
+        putInt(frame, 5, streamId);
+        System.arraycopy(payload, 0, frame, Constants.FRAME_HEADER_LENGTH,
+                payload.length);
+        os.write(frame);
+        os.flush();
+    }
+
+
+    private static void putInt(byte[] buf, int pos, int value) {
+        buf[pos] = (byte) (value >> 24);
+        buf[pos + 1] = (byte) (value >> 16);
+        buf[pos + 2] = (byte) (value >> 8);
+        buf[pos + 3] = (byte) value;
+    }
+
+
+    private static int readInt(byte[] buf, int pos) {
+        return ((buf[pos] & 0xFF) << 24) + ((buf[pos + 1] & 0xFF) << 16) +
+                ((buf[pos + 2] & 0xFF) << 8) + (buf[pos + 3] & 0xFF);
+    }
+
+
+    private void readFully(byte[] b) throws IOException {
+        int read = 0;
+        while (read < b.length) {
+            int n = is.read(b, read, b.length - read);
+            if (n == -1) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+    }
+
+
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = is.read()) != '\n') {
+            if (b == -1) {
+                throw new EOFException();
+            }
+            if (b != '\r') {
+                sb.append((char) b);
+            }
+        }
+        return sb.toString();
+    }
+
+
+    private static class EchoServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            resp.setContentType("text/plain");
+            String body = req.getProtocol() + " " + req.getRequestURI() + " " +
+                    req.getQueryString();
+            resp.setContentLength(body.length());
+            PrintWriter pw = resp.getWriter();
+            pw.print(body);
+        }
+    }
+
+
+    private static class Frame {
+
+        private final int type;
+        private final int flags;
+        private final int streamId;
+        private final byte[] payload;
+
+        Frame(int type, int flags, int streamId, byte[] payload) {
+            this.type = type;
+            this.flags = flags;
+            this.streamId = streamId;
+            this.payload = payload;
+        }
+    }
+
+
+    private static class LargeServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient CountDownLatch writeFailed;
+
+        LargeServlet(CountDownLatch writeFailed) {
+            this.writeFailed = writeFailed;
+        }
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            int size = Integer.parseInt(req.getParameter("size"));
+            resp.setContentType("application/octet-stream");
+            byte[] chunk = new byte[8192];
+            OutputStream out = resp.getOutputStream();
+            try {
+                while (size > 0) {
+                    int len = Math.min(size, chunk.length);
+                    out.write(chunk, 0, len);
+                    size -= len;
+                }
+                out.flush();
+            } catch (IOException e) {
+                writeFailed.countDown();
+                throw e;
+            }
+        }
+    }
+
+
+    private static class WaitServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient CountDownLatch arrived;
+        private final transient CountDownLatch release;
+
+        WaitServlet(CountDownLatch arrived, CountDownLatch release) {
+            this.arrived = arrived;
+            this.release = release;
+        }
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            arrived.countDown();
+            try {
+                if (!release.await(10, TimeUnit.SECONDS)) {
+                    resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    return;
+                }
+            } catch (InterruptedException e) {
+                throw new ServletException(e);
+            }
+            resp.setContentType("text/plain");
+            resp.getWriter().print("OK");
+        }
+    }
+
+
+    private static class BodyServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            resp.setContentType("text/plain");
+            InputStream in = req.getInputStream();
+            OutputStream out = resp.getOutputStream();
+            byte[] buf = new byte[1024];
+            int read;
+            while ((read = in.read(buf)) > 0) {
+                out.write(buf, 0, read);
+            }
+        }
+    }
+}
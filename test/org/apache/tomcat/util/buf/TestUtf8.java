@@ -16,10 +16,12 @@
  */
 package org.apache.tomcat.util.buf;
 
+import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CoderResult;
 import java.nio.charset.CodingErrorAction;
 import java.util.ArrayList;
@@ -560,6 +562,69 @@ public class TestUtf8 {
     }
 
 
+    @Test
+    public void testHarmonyDecoderAsciiRuns() throws Exception {
+        String[] inputs = new String[] {
+                "Hello World", "name=value&other=caf\u00e9+\u00fcber",
+                "\u20ac100 and \u20ac200 and some more ASCII text",
+                "ab\ud83d\ude00cd\ud83d\ude00efghijklmnop",
+                "\u4f60\u597d abcdefghijklmnop \u4e16\u754c" };
+        CharsetDecoder decoder = new Utf8Decoder();
+        for (String input : inputs) {
+            String s = input + "0123456789" + input;
+            byte[] bytes = s.getBytes("UTF-8");
+            // Small output buffers exercise the overflow handling part way
+            // through runs of ASCII characters
+            for (int bufSize = 2; bufSize < 20; bufSize++) {
+                decoder.reset();
+                ByteBuffer bb = ByteBuffer.wrap(bytes);
+                CharBuffer cb = CharBuffer.allocate(bufSize);
+                StringBuilder result = new StringBuilder();
+                CoderResult cr;
+                do {
+                    cr = decoder.decode(bb, cb, true);
+                    Assert.assertFalse(cr.isError());
+                    cb.flip();
+                    result.append(cb);
+                    cb.clear();
+                } while (cr.isOverflow());
+                Assert.assertEquals(s + " " + bufSize, s, result.toString());
+            }
+        }
+    }
+
+
+    @Test
+    public void testHarmonyEncoder() throws Exception {
+        String[] inputs = new String[] {
+                "Hello World", "<p>caf\u00e9 \u00fcber</p>", "\u20ac100 and \u20ac200",
+                "ab\ud83d\ude00cd\ud83d\ude00", "\u4f60\u597d abc \u4e16\u754c" };
+        CharsetEncoder encoder = new Utf8Encoder();
+        for (String input : inputs) {
+            String s = input + "0123456789" + input;
+            byte[] expected = s.getBytes("UTF-8");
+            // Small output buffers exercise the overflow handling part way
+            // through runs of ASCII characters
+            for (int bufSize = 4; bufSize < 16; bufSize++) {
+                encoder.reset();
+                CharBuffer cb = CharBuffer.wrap(s.toCharArray());
+                ByteBuffer bb = ByteBuffer.allocate(bufSize);
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                CoderResult cr;
+                do {
+                    cr = encoder.encode(cb, bb, true);
+                    Assert.assertFalse(cr.isError());
+                    bb.flip();
+                    baos.write(bb.array(), 0, bb.limit());
+                    bb.clear();
+                } while (cr.isOverflow());
+                Assert.assertArrayEquals(s + " " + bufSize, expected,
+                        baos.toByteArray());
+            }
+        }
+    }
+
+
     private void doTest(CharsetDecoder decoder, Utf8TestCase testCase,
             int flags) {
 
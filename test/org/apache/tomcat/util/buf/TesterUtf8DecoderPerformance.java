@@ -0,0 +1,90 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.tomcat.util.buf;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+
+import org.junit.Test;
+
+/**
+ * Compares {@link Utf8Decoder} with the JVM's UTF-8 decoder for typical,
+ * mostly ASCII, request bodies.
+ */
+public class TesterUtf8DecoderPerformance {
+
+    private static final int ITERATIONS = 100000;
+
+
+    @Test
+    public void testAscii() throws Exception {
+        doTest(buildContent(false));
+    }
+
+
+    @Test
+    public void testMixed() throws Exception {
+        doTest(buildContent(true));
+    }
+
+
+    private static byte[] buildContent(boolean nonAscii) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 8192) {
+            sb.append("{\"id\": 12345, \"name\": \"example\", \"tags\": [\"a\"]}");
+            sb.append("&text=hello+world\n");
+            if (nonAscii) {
+                sb.append("caf\u00e9 \u20ac\n");
+            }
+        }
+        return sb.toString().getBytes("UTF-8");
+    }
+
+
+    private void doTest(byte[] content) {
+        CharsetDecoder harmony = new Utf8Decoder();
+        CharsetDecoder jvm = Charset.forName("UTF-8").newDecoder();
+
+        // Warm up
+        decode(harmony, content, ITERATIONS);
+        decode(jvm, content, ITERATIONS);
+
+        long harmonyTime = decode(harmony, content, ITERATIONS);
+        long jvmTime = decode(jvm, content, ITERATIONS);
+
+        System.out.println(content.length + " bytes: Utf8Decoder " +
+                harmonyTime / ITERATIONS + "ns, JVM " + jvmTime / ITERATIONS +
+                "ns per decode");
+    }
+
+
+    private static long decode(CharsetDecoder decoder, byte[] content,
+            int iterations) {
+        ByteBuffer bb = ByteBuffer.wrap(content);
+        CharBuffer cb = CharBuffer.allocate(content.length);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            decoder.reset();
+            bb.rewind();
+            cb.clear();
+            decoder.decode(bb, cb, true);
+        }
+        return System.nanoTime() - start;
+    }
+}
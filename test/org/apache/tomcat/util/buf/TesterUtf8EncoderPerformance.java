@@ -0,0 +1,90 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.tomcat.util.buf;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+
+import org.junit.Test;
+
+/**
+ * Compares {@link Utf8Encoder} with the JVM's UTF-8 encoder for typical,
+ * mostly ASCII, text.
+ */
+public class TesterUtf8EncoderPerformance {
+
+    private static final int ITERATIONS = 100000;
+
+
+    @Test
+    public void testAscii() {
+        doTest(buildContent(false));
+    }
+
+
+    @Test
+    public void testMixed() {
+        doTest(buildContent(true));
+    }
+
+
+    private static char[] buildContent(boolean nonAscii) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 8192) {
+            sb.append("<tr><td class=\"name\">Example</td><td>{\"id\": 12345}");
+            sb.append("</td></tr>\n");
+            if (nonAscii) {
+                sb.append("<p>caf\u00e9 \u20ac</p>\n");
+            }
+        }
+        return sb.toString().toCharArray();
+    }
+
+
+    private void doTest(char[] content) {
+        CharsetEncoder harmony = new Utf8Encoder();
+        CharsetEncoder jvm = Charset.forName("UTF-8").newEncoder();
+
+        // Warm up
+        encode(harmony, content, ITERATIONS);
+        encode(jvm, content, ITERATIONS);
+
+        long harmonyTime = encode(harmony, content, ITERATIONS);
+        long jvmTime = encode(jvm, content, ITERATIONS);
+
+        System.out.println(content.length + " chars: Utf8Encoder " +
+                harmonyTime / ITERATIONS + "ns, JVM " + jvmTime / ITERATIONS +
+                "ns per encode");
+    }
+
+
+    private static long encode(CharsetEncoder encoder, char[] content,
+            int iterations) {
+        CharBuffer cb = CharBuffer.wrap(content);
+        ByteBuffer bb = ByteBuffer.allocate(content.length * 3);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            encoder.reset();
+            cb.rewind();
+            bb.clear();
+            encoder.encode(cb, bb, true);
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tomcat.util.collections;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Compares the object caches used by the NIO connector. The original caches
+ * were ConcurrentLinkedQueue sub-classes with an AtomicInteger size counter.
+ * Each thread simulates an acceptor / poller that checks out a batch of
+ * objects (one per connection) and then returns them to the cache.
+ */
+public class TesterPerformanceSynchronizedStack {
+
+    private static final int THREAD_COUNT = 4;
+    private static final int CONNECTIONS = 10000;
+    private static final int ITERATIONS = 200;
+
+    @Test
+    public void testSynchronizedStack() throws Exception {
+        final SynchronizedStack<Object> stack = new SynchronizedStack<Object>(
+                SynchronizedStack.DEFAULT_SIZE, THREAD_COUNT * CONNECTIONS);
+        doTest("SynchronizedStack", new Cache() {
+            @Override
+            public Object get() {
+                return stack.pop();
+            }
+            @Override
+            public void put(Object o) {
+                stack.push(o);
+            }
+        });
+    }
+
+    @Test
+    public void testConcurrentLinkedQueue() throws Exception {
+        final AtomicInteger size = new AtomicInteger(0);
+        final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<Object>();
+        doTest("ConcurrentLinkedQueue", new Cache() {
+            @Override
+            public Object get() {
+                Object result = queue.poll();
+                if (result != null) {
+                    size.decrementAndGet();
+                }
+                return result;
+            }
+            @Override
+            public void put(Object o) {
+                if (size.get() < THREAD_COUNT * CONNECTIONS && queue.offer(o)) {
+                    size.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    private void doTest(String name, Cache cache) throws Exception {
+        // Warm up
+        runThreads(cache);
+
+        long[] results = runThreads(cache);
+        System.out.println(name + ": " + results[0] + "ms, " +
+                (results[1] / (1024 * 1024)) + "MB allocated");
+    }
+
+    private long[] runThreads(Cache cache) throws Exception {
+        CacheThread[] threads = new CacheThread[THREAD_COUNT];
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            threads[i] = new CacheThread(cache);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            threads[i].start();
+        }
+        long allocated = 0;
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            threads[i].join();
+            allocated += threads[i].allocated;
+        }
+        long end = System.nanoTime();
+
+        return new long[] { (end - start) / 1000000, allocated };
+    }
+
+
+    private interface Cache {
+        Object get();
+        void put(Object o);
+    }
+
+
+    private static class CacheThread extends Thread {
+
+        private final Cache cache;
+        private volatile long allocated = -1;
+
+        public CacheThread(Cache cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public void run() {
+            long before = allocatedBytes();
+            Object[] connections = new Object[CONNECTIONS];
+            for (int i = 0; i < ITERATIONS; i++) {
+                for (int j = 0; j < CONNECTIONS; j++) {
+                    Object o = cache.get();
+                    if (o == null) {
+                        o = new Object();
+                    }
+                    connections[j] = o;
+                }
+                for (int j = 0; j < CONNECTIONS; j++) {
+                    cache.put(connections[j]);
+                    connections[j] = null;
+                }
+            }
+            allocated = allocatedBytes() - before;
+        }
+
+        private static long allocatedBytes() {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+                        Thread.currentThread().getId());
+            }
+            return 0;
+        }
+    }
+}
@@ -17,10 +17,100 @@
 
 package org.apache.tomcat.util.http;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
 import org.junit.Test;
 
 public class TestCookies {
 
+    @Test
+    public void testFindCookieValues() throws Exception {
+        String[] headers = new String[] {
+                "foo=bar; JSESSIONID=abc; a=b",
+                "JSESSIONID=abc;JSESSIONID=def",
+                "$Version=1;JSESSIONID=\"abc\";$Path=/;a=b",
+                "$Version=1;JSESSIONID=\"a\\\"bc\";a=\"b\\\"c\"",
+                "x=\"JSESSIONID=abc\"; JSESSIONID=def",
+                "JSESSIONIDX=abc; XJSESSIONID=def",
+                "JSESSIONID; a=b",
+                "JSESSIONID=; a=b",
+                "a=()<>@:\\\"/[]?={}\t; JSESSIONID=abc",
+                "foo=bar",
+                "" };
+        for (String header : headers) {
+            MimeHeaders mh = new MimeHeaders();
+            byte[] b = header.getBytes("ISO-8859-1");
+            mh.addValue("Cookie").setBytes(b, 0, b.length);
+            Cookies cs = new Cookies(mh);
+
+            // Scan first then compare with the result of the full parse
+            List<String> found = new ArrayList<String>();
+            int count = cs.findCookieValues("JSESSIONID");
+            for (int i = 0; i < count; i++) {
+                found.add(cs.getCookieValue(i).toString());
+            }
+
+            List<String> expected = new ArrayList<String>();
+            for (int i = 0; i < cs.getCookieCount(); i++) {
+                if (cs.getCookie(i).getName().equals("JSESSIONID")) {
+                    expected.add(cs.getCookie(i).getValue().toString());
+                }
+            }
+            Assert.assertEquals(header, expected, found);
+
+            // Once parsed, the parsed cookies are used
+            found.clear();
+            count = cs.findCookieValues("JSESSIONID");
+            for (int i = 0; i < count; i++) {
+                found.add(cs.getCookieValue(i).toString());
+            }
+            Assert.assertEquals(header, expected, found);
+        }
+    }
+
+
+    @Test
+    public void testFindCookieValuesMultipleHeaders() {
+        MimeHeaders mh = new MimeHeaders();
+        mh.addValue("Cookie").setString("a=b; JSESSIONID=one");
+        mh.addValue("Other").setString("JSESSIONID=none");
+        mh.addValue("Cookie").setString("JSESSIONID=two");
+        for (int i = 0; i < mh.size(); i++) {
+            mh.getValue(i).toBytes();
+        }
+        Cookies cs = new Cookies(mh);
+        Assert.assertEquals(2, cs.findCookieValues("JSESSIONID"));
+        Assert.assertEquals("one", cs.getCookieValue(0).toString());
+        Assert.assertEquals("two", cs.getCookieValue(1).toString());
+        Assert.assertEquals(3, cs.getCookieCount());
+    }
+
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testFindCookieValuesLimit() {
+        MimeHeaders mh = new MimeHeaders();
+        mh.addValue("Cookie").setString("a=1; b=2; c=3; JSESSIONID=abc");
+        mh.getValue(0).toBytes();
+        Cookies cs = new Cookies(mh);
+        cs.setLimit(3);
+        cs.findCookieValues("JSESSIONID");
+    }
+
+
+    @Test
+    public void testFindCookieValuesBelowLimit() {
+        MimeHeaders mh = new MimeHeaders();
+        // Quoted separators count towards the upper bound but not the limit
+        mh.addValue("Cookie").setString("$Version=1; a=\"1;2;3\"; JSESSIONID=abc");
+        mh.getValue(0).toBytes();
+        Cookies cs = new Cookies(mh);
+        cs.setLimit(2);
+        Assert.assertEquals(1, cs.findCookieValues("JSESSIONID"));
+        Assert.assertEquals("abc", cs.getCookieValue(0).toString());
+    }
+
     @Test
     public void testCookies() throws Exception {
         test("foo=bar; a=b", "foo", "bar", "a", "b");
@@ -19,6 +19,7 @@ package org.apache.tomcat.util.http;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.net.SocketException;
+import java.util.Enumeration;
 
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
@@ -150,6 +151,70 @@ public class TestMimeHeaders extends TomcatBaseTest {
         runHeadersTest(true, tomcat, 300, -1);
     }
 
+    @Test
+    public void testLookupByName() throws Exception {
+        MimeHeaders headers = new MimeHeaders();
+        byte[] raw = "content-typex-customHOST".getBytes("ISO-8859-1");
+        headers.addValue(raw, 0, 12).setString("text/plain");
+        headers.addValue(raw, 12, 8).setString("a");
+        headers.addValue(raw, 20, 4).setString("localhost");
+        headers.addValue("X-Custom").setString("b");
+        headers.addValue("Contenu-Type").setString("c");
+
+        Assert.assertEquals("text/plain", headers.getHeader("Content-Type"));
+        Assert.assertEquals("localhost", headers.getHeader("host"));
+        Assert.assertEquals("a", headers.getHeader("X-CUSTOM"));
+        Assert.assertEquals("c", headers.getHeader("contenu-type"));
+        Assert.assertNull(headers.getHeader("content-length"));
+        Assert.assertNull(headers.getHeader("x-other"));
+        Assert.assertEquals(1, headers.findHeader("x-custom", 0));
+        Assert.assertEquals(3, headers.findHeader("x-custom", 2));
+
+        Enumeration<String> values = headers.values("x-custom");
+        Assert.assertEquals("a", values.nextElement());
+        Assert.assertEquals("b", values.nextElement());
+        Assert.assertFalse(values.hasMoreElements());
+    }
+
+    @Test
+    public void testSetAndRemove() throws Exception {
+        MimeHeaders headers = new MimeHeaders();
+        headers.addValue("Vary").setString("a");
+        headers.addValue("x-custom").setString("b");
+        headers.addValue("vary").setString("c");
+
+        headers.setValue("VARY").setString("d");
+        Assert.assertEquals(2, headers.size());
+        Assert.assertEquals("d", headers.getUniqueValue("vary").toString());
+
+        headers.removeHeader("X-Custom");
+        Assert.assertEquals(1, headers.size());
+        Assert.assertNull(headers.getHeader("x-custom"));
+
+        headers.recycle();
+        headers.addValue("x-custom").setString("e");
+        Assert.assertNull(headers.getHeader("vary"));
+        Assert.assertEquals("e", headers.getHeader("x-custom"));
+    }
+
+    @Test
+    public void testEncodedName() throws Exception {
+        MimeHeaders headers = new MimeHeaders();
+        headers.addValue("Content-Type").setString("text/plain");
+        headers.setValue("content-length").setString("2");
+        headers.addValue("CONTENT-LANGUAGE").setString("en");
+        headers.addValue("X-Custom").setString("a");
+
+        Assert.assertArrayEquals("Content-Type".getBytes("ISO-8859-1"),
+                headers.getEncodedName(0));
+        Assert.assertArrayEquals("content-length".getBytes("ISO-8859-1"),
+                headers.getEncodedName(1));
+        // Unusual spellings and unknown names are encoded when written
+        Assert.assertNull(headers.getEncodedName(2));
+        Assert.assertNull(headers.getEncodedName(3));
+        Assert.assertNull(headers.getEncodedName(4));
+    }
+
     private static final class HeaderCountLogValve extends TesterAccessLogValve {
         public volatile int arraySize = -1;
 
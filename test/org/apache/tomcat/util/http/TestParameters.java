@@ -239,6 +239,62 @@ public class TestParameters {
 
     }
 
+    @Test
+    public void testLookupBeforeAndAfterIndexing() throws Exception {
+        StringBuilder form = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            form.append("p").append(i).append("=v").append(i).append('&');
+        }
+        form.append("dup=1&caf%C3%A9=latte&dup=2&a+b=c%26d&dup=3");
+        byte[] bytes = form.toString().getBytes("ISO-8859-1");
+
+        // The first lookups scan the undecoded names, later ones use the
+        // index. Both must give the same answers.
+        Parameters p = new Parameters();
+        p.setEncoding("UTF-8");
+        p.processParameters(bytes, 0, bytes.length);
+        for (int pass = 0; pass < 3; pass++) {
+            Assert.assertEquals("v7", p.getParameter("p7"));
+            Assert.assertEquals("latte", p.getParameter("caf\u00e9"));
+            Assert.assertEquals("c&d", p.getParameter("a b"));
+            Assert.assertArrayEquals(new String[] {"1", "2", "3"},
+                    p.getParameterValues("dup"));
+            Assert.assertNull(p.getParameter("p20"));
+        }
+
+        p.addParameter("dup", "4");
+        Assert.assertArrayEquals(new String[] {"1", "2", "3", "4"},
+                p.getParameterValues("dup"));
+
+        Enumeration<String> names = p.getParameterNames();
+        int count = 0;
+        while (names.hasMoreElements()) {
+            names.nextElement();
+            count++;
+        }
+        Assert.assertEquals(23, count);
+
+        // Bytes are decoded in place so use a fresh copy after recycling
+        p.recycle();
+        bytes = form.toString().getBytes("ISO-8859-1");
+        p.processParameters(bytes, 0, bytes.length);
+        Assert.assertEquals("3", p.getParameterValues("dup")[2]);
+        Assert.assertEquals("v0", p.getParameter("p0"));
+    }
+
+    @Test
+    public void testInvalidEncoding() throws Exception {
+        byte[] bytes = "a=1&b=%4&c=%zz&d=4".getBytes("ISO-8859-1");
+        Parameters p = new Parameters();
+        p.processParameters(bytes, 0, bytes.length);
+        Assert.assertEquals("1", p.getParameter("a"));
+        Assert.assertNull(p.getParameter("b"));
+        Assert.assertNull(p.getParameter("c"));
+        Assert.assertEquals("4", p.getParameter("d"));
+        Assert.assertEquals(Parameters.FailReason.URL_DECODING,
+                p.getParseFailedReason());
+    }
+
     private void validateParameters(Parameter[] parameters, Parameters p) {
         Enumeration<String> names = p.getParameterNames();
 
@@ -0,0 +1,94 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.tomcat.util.http;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.tomcat.util.buf.MessageBytes;
+
+/*
+ * Compares looking up headers by name using the index of well-known header
+ * names with the linear scan with equalsIgnoreCase that it replaced.
+ */
+public class TesterMimeHeadersPerformance {
+
+    private static final int ITERATIONS = 1000000;
+
+    @Test
+    public void testHeaderLookupPerformance() throws Exception {
+        // Header names as the HTTP/1.1 parser stores them
+        byte[] raw = ("host" + "user-agent" + "accept" + "accept-language" +
+                "accept-encoding" + "referer" + "cookie" + "connection" +
+                "x-forwarded-for" + "cache-control").getBytes("ISO-8859-1");
+        int[] lengths = { 4, 10, 6, 15, 15, 7, 6, 10, 15, 13 };
+        // Names the connector and the application look for, some of which
+        // are not present
+        String[] lookups = { "Content-Length", "Transfer-Encoding", "Expect",
+                "Connection", "Cookie", "Accept-Encoding", "If-None-Match",
+                "Authorization" };
+        MimeHeaders headers = new MimeHeaders();
+        int offset = 0;
+        for (int length : lengths) {
+            headers.addValue(raw, offset, length).setString("value");
+            offset += length;
+        }
+
+        // Warm up
+        lookups(headers, lookups, true);
+        lookups(headers, lookups, false);
+
+        long start = System.currentTimeMillis();
+        int indexedFound = lookups(headers, lookups, true);
+        long indexed = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        int linearFound = lookups(headers, lookups, false);
+        long linear = System.currentTimeMillis() - start;
+
+        System.out.println("Indexed lookup: " + indexed +
+                "ms, linear scan: " + linear + "ms");
+        Assert.assertEquals(linearFound, indexedFound);
+        Assert.assertTrue(indexed < linear);
+    }
+
+
+    private int lookups(MimeHeaders headers, String[] lookups,
+            boolean indexed) {
+        int found = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (String lookup : lookups) {
+                MessageBytes value = indexed ? headers.getValue(lookup) :
+                        linearScan(headers, lookup);
+                if (value != null) {
+                    found++;
+                }
+            }
+        }
+        return found;
+    }
+
+
+    private static MessageBytes linearScan(MimeHeaders headers, String name) {
+        for (int i = 0; i < headers.size(); i++) {
+            if (headers.getName(i).equalsIgnoreCase(name)) {
+                return headers.getValue(i);
+            }
+        }
+        return null;
+    }
+}
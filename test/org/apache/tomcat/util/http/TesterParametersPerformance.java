@@ -17,7 +17,10 @@
 package org.apache.tomcat.util.http;
 
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.nio.charset.Charset;
+import java.util.Enumeration;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
 
@@ -72,6 +75,92 @@ public class TesterParametersPerformance {
         return result;
     }
 
+    /*
+     * A 100 parameter form of which the application reads two parameters
+     * compared with one where every parameter is read. Parameters are only
+     * decoded when they are looked up so the first case allocates far less.
+     */
+    @Test
+    public void testLazyDecoding() {
+        byte[] form = createForm(100);
+        int loops = 200000;
+
+        // Warm up
+        doTestLazyDecoding(form, loops, false);
+        doTestLazyDecoding(form, loops, true);
+
+        long[] lookup = doTestLazyDecoding(form, loops, false);
+        long[] all = doTestLazyDecoding(form, loops, true);
+
+        System.out.println("Two lookups:     " + lookup[0] / 1000000 + "ms, " +
+                (lookup[1] < 0 ? "n/a" : Long.toString(lookup[1] / loops)) +
+                " bytes allocated per form");
+        System.out.println("All parameters:  " + all[0] / 1000000 + "ms, " +
+                (all[1] < 0 ? "n/a" : Long.toString(all[1] / loops)) +
+                " bytes allocated per form");
+    }
+
+    private long[] doTestLazyDecoding(byte[] form, int loops, boolean readAll) {
+        Parameters p = new Parameters();
+        byte[] bytes = new byte[form.length];
+        int found = 0;
+
+        long allocated = getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < loops; i++) {
+            // Decoding is done in place so each pass needs the original bytes
+            System.arraycopy(form, 0, bytes, 0, form.length);
+            p.setEncoding("UTF-8");
+            p.processParameters(bytes, 0, bytes.length);
+            if (readAll) {
+                Enumeration<String> names = p.getParameterNames();
+                while (names.hasMoreElements()) {
+                    found += p.getParameterValues(names.nextElement()).length;
+                }
+            } else {
+                if (p.getParameter("name10") != null) {
+                    found++;
+                }
+                if (p.getParameter("name90") != null) {
+                    found++;
+                }
+            }
+            p.recycle();
+        }
+        long time = System.nanoTime() - start;
+        long end = getAllocatedBytes();
+
+        Assert.assertEquals(readAll ? 100 * loops : 2 * loops, found);
+        return new long[] { time, allocated < 0 ? -1 : end - allocated };
+    }
+
+    private byte[] createForm(int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append('&');
+            }
+            sb.append("name").append(i).append('=');
+            // Mix plain values with values that need URL decoding
+            if (i % 2 == 0) {
+                sb.append("value").append(i);
+            } else {
+                sb.append("a+value+%C3%A9").append(i);
+            }
+        }
+        return sb.toString().getBytes(B2CConverter.ISO_8859_1);
+    }
+
+    private static long getAllocatedBytes() {
+        // Only available on JVMs that provide the com.sun.management API
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
     @Test
     public void testCreateString() throws UnsupportedEncodingException {
         B2CConverter.getCharset("ISO-8859-1");
@@ -0,0 +1,282 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tomcat.util.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.apache.tomcat.util.net.AbstractEndpoint.Handler.SocketState;
+import org.apache.tomcat.util.net.NioEndpoint.KeyAttachment;
+import org.apache.tomcat.util.net.NioEndpoint.NioBufferHandler;
+import org.apache.tomcat.util.net.NioEndpoint.Poller;
+
+/**
+ * Tests for the NIO endpoint internals. The timeout handling of the Poller is
+ * driven with explicit times so the tests do not have to wait for the
+ * timeouts to expire.
+ */
+public class TestNioEndpoint {
+
+    private NioEndpoint endpoint;
+    private Poller poller;
+    private ServerSocketChannel server;
+    private final List<SocketChannel> clients = new ArrayList<SocketChannel>();
+    private long base;
+
+
+    @Before
+    public void setUp() throws IOException {
+        endpoint = new NioEndpoint();
+        endpoint.setHandler(new NoOpHandler());
+        poller = endpoint.new Poller();
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("localhost", 0));
+        base = System.currentTimeMillis();
+    }
+
+
+    @After
+    public void tearDown() throws IOException {
+        for (SocketChannel client : clients) {
+            client.close();
+        }
+        server.close();
+        poller.getSelector().close();
+    }
+
+
+    @Test
+    public void testTimeout() throws Exception {
+        KeyAttachment ka = register(null, base, 1000);
+
+        poller.timeout(0, false, base + 500);
+        Assert.assertTrue(isOpen(ka));
+        poller.timeout(0, false, base + 900);
+        Assert.assertTrue(isOpen(ka));
+        poller.timeout(0, false, base + 1200);
+        Assert.assertFalse(isOpen(ka));
+    }
+
+
+    @Test
+    public void testAccessMovesDeadline() throws Exception {
+        KeyAttachment ka = register(null, base, 1000);
+
+        // The key is checked at the original deadline and put back in the
+        // wheel for the new one
+        ka.access(base + 800);
+        poller.timeout(0, false, base + 1200);
+        Assert.assertTrue(isOpen(ka));
+        poller.timeout(0, false, base + 1700);
+        Assert.assertTrue(isOpen(ka));
+        poller.timeout(0, false, base + 2000);
+        Assert.assertFalse(isOpen(ka));
+    }
+
+
+    @Test
+    public void testStaleEntry() throws Exception {
+        KeyAttachment ka = register(null, base, 10000);
+
+        // An earlier deadline moves the key at once, leaving a stale entry
+        // in the bucket for the original deadline
+        ka.setTimeout(500);
+        poller.scheduleTimeout(ka);
+        poller.timeout(0, false, base + 700);
+        Assert.assertFalse(isOpen(ka));
+
+        // Reuse the attachment for a new connection, as the endpoint does
+        register(ka, base + 700, 10000);
+        poller.timeout(0, false, base + 10200);
+        Assert.assertTrue(isOpen(ka));
+        poller.timeout(0, false, base + 10900);
+        Assert.assertFalse(isOpen(ka));
+    }
+
+
+    @Test
+    public void testLongPause() throws Exception {
+        KeyAttachment ka1 = register(null, base, 1000);
+        // Longer than one revolution of the wheel
+        KeyAttachment ka2 = register(null, base, 300000);
+
+        // Much longer than one revolution of the wheel since the last check
+        poller.timeout(0, false, base + 200000);
+        Assert.assertFalse(isOpen(ka1));
+        Assert.assertTrue(isOpen(ka2));
+
+        poller.timeout(0, false, base + 299000);
+        Assert.assertTrue(isOpen(ka2));
+        poller.timeout(0, false, base + 300200);
+        Assert.assertFalse(isOpen(ka2));
+    }
+
+
+    @Test
+    public void testAcceptorPollerAffinity() throws Exception {
+        NioEndpoint ep = new NioEndpoint();
+        ep.setHandler(new NoOpHandler());
+        ep.setAddress(InetAddress.getByName("localhost"));
+        ep.setPort(0);
+        ep.setAcceptorPollerAffinity(true);
+        ep.setAcceptorThreadCount(2);
+        ep.setPollerThreadCount(5);
+        try {
+            ep.start();
+            checkShards(ep);
+
+            // The shards are rebuilt from the new pollers after a restart
+            ep.stop();
+            ep.setPollerThreadCount(3);
+            ep.start();
+            checkShards(ep);
+
+            // Fewer pollers than acceptors
+            ep.stop();
+            ep.setPollerThreadCount(1);
+            ep.start();
+            checkShards(ep);
+        } finally {
+            ep.stop();
+            ep.destroy();
+        }
+    }
+
+
+    private static void checkShards(NioEndpoint ep) {
+        Poller[] pollers = ep.pollers;
+        Set<Poller> all = new HashSet<Poller>(Arrays.asList(pollers));
+        Set<Poller> seen = new HashSet<Poller>();
+        for (AbstractEndpoint.Acceptor a : ep.acceptors) {
+            NioEndpoint.Acceptor acceptor = (NioEndpoint.Acceptor) a;
+            // The first round visits each poller of the shard once and the
+            // second one repeats it in the same order
+            List<Poller> round = new ArrayList<Poller>();
+            Poller first = acceptor.nextPoller();
+            round.add(first);
+            Poller next;
+            while ((next = acceptor.nextPoller()) != first) {
+                Assert.assertFalse(round.contains(next));
+                round.add(next);
+            }
+            for (int i = 1; i < round.size(); i++) {
+                Assert.assertSame(round.get(i), acceptor.nextPoller());
+            }
+            Assert.assertTrue(all.containsAll(round));
+            if (pollers.length >= ep.acceptors.length) {
+                // Each poller belongs to one acceptor only
+                for (Poller p : round) {
+                    Assert.assertTrue(seen.add(p));
+                }
+            } else {
+                seen.addAll(round);
+            }
+        }
+        Assert.assertEquals(all, seen);
+    }
+
+
+    private KeyAttachment register(KeyAttachment ka, long lastAccess,
+            long timeout) throws IOException {
+        SocketChannel client = SocketChannel.open(
+                server.socket().getLocalSocketAddress());
+        clients.add(client);
+        SocketChannel sc = server.accept();
+        sc.configureBlocking(false);
+        NioChannel channel = new NioChannel(sc,
+                new NioBufferHandler(1024, 1024, false));
+        if (ka == null) {
+            ka = new KeyAttachment(channel);
+        }
+        ka.reset(poller, channel, timeout);
+        sc.register(poller.getSelector(), SelectionKey.OP_READ, ka);
+        ka.interestOps(SelectionKey.OP_READ);
+        ka.access(lastAccess);
+        poller.scheduleTimeout(ka);
+        return ka;
+    }
+
+
+    private static boolean isOpen(KeyAttachment ka) {
+        return ka.getSocket() != null && ka.getSocket().isOpen();
+    }
+
+
+    private static class NoOpHandler implements NioEndpoint.Handler {
+
+        @Override
+        public SocketState process(SocketWrapper<NioChannel> socket,
+                SocketStatus status) {
+            return SocketState.CLOSED;
+        }
+
+        @Override
+        public void release(SocketWrapper<NioChannel> socket) {
+            // NO-OP
+        }
+
+        @Override
+        public void release(SocketChannel socket) {
+            // NO-OP
+        }
+
+        @Override
+        public SSLImplementation getSslImplementation() {
+            return null;
+        }
+
+        @Override
+        public boolean isAvailable(SocketWrapper<NioChannel> socket) {
+            return false;
+        }
+
+        @Override
+        public boolean isClassifying() {
+            return false;
+        }
+
+        @Override
+        public boolean isHighPriority(ByteBuffer requestStart) {
+            return false;
+        }
+
+        @Override
+        public Object getGlobal() {
+            return null;
+        }
+
+        @Override
+        public void recycle() {
+            // NO-OP
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tomcat.util.net;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSocketBufferPool {
+
+    @Test
+    public void testReuse() {
+        SocketBufferPool pool = new SocketBufferPool(-1);
+        ByteBuffer b1 = pool.acquire(8192, false);
+        Assert.assertEquals(8192, b1.capacity());
+        Assert.assertFalse(b1.isDirect());
+        b1.put((byte) 1);
+        pool.release(b1);
+        Assert.assertEquals(8192, pool.getFreeBytes());
+
+        ByteBuffer b2 = pool.acquire(8192, false);
+        Assert.assertSame(b1, b2);
+        Assert.assertEquals(0, b2.position());
+        Assert.assertEquals(8192, b2.limit());
+        Assert.assertEquals(0, pool.getFreeBytes());
+        Assert.assertEquals(8192, pool.getAllocatedBytes());
+    }
+
+
+    @Test
+    public void testSizeClasses() {
+        SocketBufferPool pool = new SocketBufferPool(-1);
+        ByteBuffer small = pool.acquire(1024, false);
+        pool.release(small);
+        ByteBuffer large = pool.acquire(2048, false);
+        Assert.assertNotSame(small, large);
+        Assert.assertEquals(2048, large.capacity());
+        ByteBuffer direct = pool.acquire(1024, true);
+        Assert.assertNotSame(small, direct);
+        Assert.assertTrue(direct.isDirect());
+    }
+
+
+    @Test
+    public void testDirectSlab() {
+        SocketBufferPool pool = new SocketBufferPool(-1);
+        ByteBuffer b1 = pool.acquire(1000, true);
+        ByteBuffer b2 = pool.acquire(1000, true);
+        Assert.assertEquals(1000, b1.capacity());
+        Assert.assertEquals(1000, b2.capacity());
+        // Both buffers are carved out of the same slab
+        long allocated = pool.getAllocatedBytes();
+        Assert.assertTrue(allocated >= 2000);
+        // Writes to one buffer must not be visible in the other
+        while (b1.hasRemaining()) {
+            b1.put((byte) 1);
+        }
+        Assert.assertEquals(0, b2.get(0));
+        Assert.assertEquals(0, b2.get(999));
+    }
+
+
+    @Test
+    public void testFreeLimit() {
+        SocketBufferPool pool = new SocketBufferPool(1024);
+        ByteBuffer b1 = pool.acquire(1024, false);
+        ByteBuffer b2 = pool.acquire(1024, false);
+        pool.release(b1);
+        pool.release(b2);
+        Assert.assertEquals(1024, pool.getFreeBytes());
+        pool.clear();
+        Assert.assertEquals(0, pool.getFreeBytes());
+    }
+}
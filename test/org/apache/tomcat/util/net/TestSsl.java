@@ -29,13 +29,17 @@ import javax.net.ssl.HandshakeCompletedListener;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
 
 import org.junit.Assert;
 import org.junit.Assume;
 import org.junit.Test;
 
+import org.apache.catalina.Context;
+import org.apache.catalina.startup.TesterServlet;
 import org.apache.catalina.startup.Tomcat;
 import org.apache.catalina.startup.TomcatBaseTest;
+import org.apache.coyote.http11.Http11NioProtocol;
 import org.apache.tomcat.util.buf.ByteChunk;
 
 /**
@@ -81,6 +85,68 @@ public class TestSsl extends TomcatBaseTest {
     }
 
 
+    @Test
+    public void testHandshakeExecutor() throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+
+        Assume.assumeTrue("Only NIO offloads handshake tasks",
+                Http11NioProtocol.class.getName().equals(
+                        tomcat.getConnector().getProtocolHandlerClassName()));
+
+        // No file system docBase required
+        Context ctxt = tomcat.addContext("", null);
+        Tomcat.addServlet(ctxt, "TesterServlet", new TesterServlet());
+        ctxt.addServletMapping("/", "TesterServlet");
+
+        TesterSupport.initSsl(tomcat);
+        Assert.assertTrue(tomcat.getConnector().setProperty(
+                "sslHandshakeThreads", "2"));
+
+        tomcat.start();
+
+        // Only the server side of the handshake is of interest here
+        SSLContext sslCtx = SSLContext.getInstance(Constants.SSL_PROTO_TLS);
+        sslCtx.init(null, new TrustManager[] {new TesterSupport.TrustAllCerts()}, null);
+        SSLSocketFactory socketFactory = sslCtx.getSocketFactory();
+
+        // One connection, and so one handshake, per request
+        for (int i = 0; i < 3; i++) {
+            SSLSocket socket = (SSLSocket) socketFactory.createSocket(
+                    "localhost", getPort());
+            try {
+                OutputStream os = socket.getOutputStream();
+                os.write(("GET / HTTP/1.1\r\n" +
+                        "Host: localhost\r\n" +
+                        "Connection: close\r\n\r\n").getBytes("ISO-8859-1"));
+                os.flush();
+
+                BufferedReader br = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+                Assert.assertTrue(br.readLine().startsWith("HTTP/1.1 200"));
+                String line = br.readLine();
+                String last = null;
+                while (line != null) {
+                    last = line;
+                    line = br.readLine();
+                }
+                Assert.assertEquals("OK", last);
+            } finally {
+                socket.close();
+            }
+        }
+
+        NioEndpoint endpoint =
+                ((Http11NioProtocol) tomcat.getConnector().getProtocolHandler()).getEndpoint();
+        // The delegated tasks went to the handshake executor and every
+        // handshake resumed once they had run
+        Assert.assertTrue(endpoint.handshakeExecutor.getTaskCount() > 0);
+        Assert.assertEquals(0, endpoint.getSslHandshakeQueueSize());
+        Assert.assertEquals(3, endpoint.getSslHandshakeCount());
+        Assert.assertTrue(endpoint.getSslHandshakeMaxTime() <=
+                endpoint.getSslHandshakeTime());
+    }
+
+
     boolean handshakeDone = false;
 
     @Test
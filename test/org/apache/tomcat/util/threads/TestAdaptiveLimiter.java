@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tomcat.util.threads;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestAdaptiveLimiter {
+
+    private static final long MS = 1000000;
+
+    @Test
+    public void testRejectAboveLimit() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(2, 1, 10);
+        Assert.assertTrue(limiter.tryAcquire());
+        Assert.assertTrue(limiter.tryAcquire());
+        Assert.assertFalse(limiter.tryAcquire());
+        Assert.assertEquals(2, limiter.getInFlight());
+        Assert.assertEquals(1, limiter.getRejectedCount());
+        limiter.release();
+        Assert.assertTrue(limiter.tryAcquire());
+    }
+
+
+    @Test
+    public void testGrowWithStableLatency() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(10, 5, 100);
+        for (int i = 0; i < 1000; i++) {
+            saturate(limiter, 10 * MS);
+        }
+        Assert.assertEquals(100, limiter.getLimit());
+    }
+
+
+    @Test
+    public void testShrinkWithRisingLatency() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(50, 5, 100);
+        for (int i = 0; i < 100; i++) {
+            saturate(limiter, 10 * MS);
+        }
+        Assert.assertEquals(100, limiter.getLimit());
+        for (int i = 0; i < 10; i++) {
+            saturate(limiter, 100 * MS);
+        }
+        Assert.assertEquals(5, limiter.getLimit());
+        // The higher latency eventually becomes the new normal
+        for (int i = 0; i < 100; i++) {
+            saturate(limiter, 100 * MS);
+        }
+        Assert.assertEquals(100, limiter.getLimit());
+    }
+
+
+    @Test
+    public void testNoGrowthWhenNotSaturated() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(20, 5, 100);
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertTrue(limiter.tryAcquire());
+            limiter.release(10 * MS);
+        }
+        Assert.assertEquals(20, limiter.getLimit());
+    }
+
+
+    /*
+     * Fill the limiter and return all the permits with the given latency.
+     */
+    private static void saturate(AdaptiveLimiter limiter, long latency) {
+        int count = 0;
+        while (limiter.tryAcquire()) {
+            count++;
+        }
+        for (int i = 0; i < count; i++) {
+            limiter.release(latency);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tomcat.util.threads;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestCoDelController {
+
+    private static final long TARGET = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+
+    @Test
+    public void testBurstIsNotShed() {
+        CoDelController controller = new CoDelController(TARGET, INTERVAL);
+        long now = System.nanoTime();
+        // A burst of long waits followed by a drained queue
+        Assert.assertFalse(controller.onDequeue(5 * TARGET, now));
+        Assert.assertFalse(controller.onDequeue(4 * TARGET, now + TARGET));
+        Assert.assertFalse(controller.onDequeue(TARGET / 10, now + 2 * TARGET));
+        // The interval ends with a short wait on record
+        Assert.assertFalse(controller.onDequeue(5 * TARGET, now + INTERVAL + 1));
+        Assert.assertFalse(controller.isOverloaded());
+    }
+
+
+    @Test
+    public void testStandingQueueIsShed() {
+        CoDelController controller = new CoDelController(TARGET, INTERVAL);
+        long now = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            Assert.assertFalse(controller.onDequeue(5 * TARGET, now + i * TARGET));
+        }
+        // The queue never drained during the interval
+        Assert.assertTrue(controller.onDequeue(5 * TARGET, now + INTERVAL + 1));
+        Assert.assertTrue(controller.isOverloaded());
+        // Waits below twice the target are still processed
+        Assert.assertFalse(controller.onDequeue(2 * TARGET, now + INTERVAL + 2));
+
+        // The queue drains again
+        Assert.assertFalse(controller.onDequeue(TARGET / 10, now + INTERVAL + TARGET));
+        Assert.assertFalse(controller.onDequeue(5 * TARGET, now + 2 * INTERVAL + 2));
+        Assert.assertFalse(controller.isOverloaded());
+    }
+}
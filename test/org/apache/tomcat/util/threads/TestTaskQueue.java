@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tomcat.util.threads;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestTaskQueue {
+
+    @Test
+    public void testPriorityFirst() throws Exception {
+        TaskQueue queue = new TaskQueue();
+        Runnable low1 = new Task(false);
+        Runnable low2 = new Task(false);
+        Runnable high = new Task(true);
+        queue.offer(low1);
+        queue.offer(low2);
+        queue.offer(high);
+        Assert.assertEquals(3, queue.size());
+
+        Assert.assertSame(high, queue.poll());
+        Assert.assertSame(low1, queue.take());
+        Assert.assertSame(low2, queue.poll(10, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertNull(queue.poll());
+        Assert.assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+
+    @Test
+    public void testTakeWakesUp() throws Exception {
+        final TaskQueue queue = new TaskQueue();
+        final AtomicReference<Runnable> taken = new AtomicReference<Runnable>();
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    taken.set(queue.take());
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+                done.countDown();
+            }
+        };
+        t.start();
+        Thread.sleep(100);
+        Runnable high = new Task(true);
+        queue.offer(high);
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertSame(high, taken.get());
+        Assert.assertEquals(0, queue.size());
+    }
+
+
+    @Test
+    public void testPriorityWhenFull() {
+        TaskQueue queue = new TaskQueue(1);
+        Runnable low = new Task(false);
+        Runnable high = new Task(true);
+        Assert.assertTrue(queue.offer(low));
+        Assert.assertFalse(queue.offer(new Task(false)));
+        Assert.assertTrue(queue.offer(high));
+
+        List<Runnable> drained = new ArrayList<Runnable>();
+        Assert.assertEquals(2, queue.drainTo(drained));
+        Assert.assertSame(high, drained.get(0));
+        Assert.assertSame(low, drained.get(1));
+    }
+
+
+    @Test
+    public void testPollZeroTimeout() throws Exception {
+        TaskQueue queue = new TaskQueue();
+        Runnable low = new Task(false);
+        Runnable high = new Task(true);
+        queue.offer(low);
+        queue.offer(high);
+
+        // A zero timeout still returns the tasks that are already queued
+        Assert.assertSame(high, queue.poll(0, TimeUnit.MILLISECONDS));
+        Assert.assertSame(low, queue.poll(0, TimeUnit.MILLISECONDS));
+        Assert.assertNull(queue.poll(0, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+
+    private static class Task implements PriorityTask {
+
+        private final boolean highPriority;
+
+        Task(boolean highPriority) {
+            this.highPriority = highPriority;
+        }
+
+        @Override
+        public boolean isHighPriority() {
+            return highPriority;
+        }
+
+        @Override
+        public void run() {
+            // NO-OP
+        }
+    }
+}
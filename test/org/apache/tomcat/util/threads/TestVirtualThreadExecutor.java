@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tomcat.util.threads;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestVirtualThreadExecutor {
+
+    @Before
+    public void checkSupported() {
+        Assume.assumeTrue(VirtualThreadExecutor.isSupported());
+    }
+
+
+    @Test
+    public void testExecute() throws Exception {
+        VirtualThreadExecutor executor = new VirtualThreadExecutor("test-virt-");
+        final CountDownLatch started = new CountDownLatch(10);
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 10; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        // Ignore
+                    }
+                }
+            });
+        }
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(10, executor.getActiveCount());
+        Assert.assertEquals(10, executor.getLargestActiveCount());
+        Assert.assertEquals(10, executor.getSubmittedTaskCount());
+
+        release.countDown();
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertEquals(0, executor.getActiveCount());
+        Assert.assertEquals(10, executor.getCompletedTaskCount());
+    }
+
+
+    @Test(expected = RejectedExecutionException.class)
+    public void testRejectAfterShutdown() {
+        VirtualThreadExecutor executor = new VirtualThreadExecutor("test-virt-");
+        executor.shutdown();
+        Assert.assertTrue(executor.isTerminated());
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // NO-OP
+            }
+        });
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.tomcat.util.threads;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.startup.SimpleHttpClient;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.catalina.startup.TomcatBaseTest;
+import org.apache.tomcat.util.buf.B2CConverter;
+
+/*
+ * Compares the default connector thread pool with the virtual thread executor
+ * for requests that spend most of their time blocked, as a request waiting on
+ * a database would. The requests block in a servlet, i.e. while the socket
+ * processor holds the lock for the connection. If that lock were a monitor,
+ * every blocked virtual thread would pin its carrier thread and the virtual
+ * threads would only handle as many requests at once as there are carriers.
+ */
+public class TesterVirtualThreadExecutorPerformance extends TomcatBaseTest {
+
+    private static final int REQUESTS = 2000;
+    private static final int CLIENTS = 400;
+    private static final int BLOCK_MILLIS = 50;
+    private static final int MAX_THREADS = 100;
+
+    @Test
+    public void testBlockingRequests() throws Exception {
+        Assume.assumeTrue(VirtualThreadExecutor.isSupported());
+
+        Tomcat tomcat = getTomcatInstance();
+        Connector pool = tomcat.getConnector();
+        pool.setAttribute("maxThreads", Integer.toString(MAX_THREADS));
+        pool.setAttribute("maxConnections", "10000");
+
+        Connector virtual = new Connector(getProtocol());
+        virtual.setAttribute("address",
+                InetAddress.getByName("localhost").getHostAddress());
+        virtual.setPort(0);
+        virtual.setAttribute("useVirtualThreads", "true");
+        virtual.setAttribute("maxConnections", "10000");
+        tomcat.getService().addConnector(virtual);
+
+        // No file system docBase required
+        Context ctx = tomcat.addContext("", null);
+
+        Tomcat.addServlet(ctx, "Blocking", new BlockingServlet());
+        ctx.addServletMapping("/", "Blocking");
+
+        tomcat.start();
+
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        try {
+            // Warm up
+            run(clients, pool.getLocalPort(), REQUESTS / 10);
+            run(clients, virtual.getLocalPort(), REQUESTS / 10);
+
+            long poolTime = run(clients, pool.getLocalPort(), REQUESTS);
+            long virtualTime = run(clients, virtual.getLocalPort(), REQUESTS);
+
+            System.out.println("Thread pool (maxThreads=" + MAX_THREADS + "): " +
+                    poolTime + "ms, virtual threads: " + virtualTime + "ms");
+            Assert.assertTrue(virtualTime < poolTime);
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+
+    private long run(ExecutorService clients, final int port, int requests)
+            throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(requests);
+        final AtomicInteger failures = new AtomicInteger(0);
+        Runnable request = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!request(port)) {
+                        failures.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    failures.incrementAndGet();
+                }
+                done.countDown();
+            }
+        };
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            clients.execute(request);
+        }
+        done.await();
+        long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertEquals(0, failures.get());
+        return time;
+    }
+
+
+    private static boolean request(int port) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        try {
+            OutputStream os = socket.getOutputStream();
+            os.write(("GET / HTTP/1.1" + SimpleHttpClient.CRLF +
+                    "Host: localhost" + SimpleHttpClient.CRLF +
+                    "Connection: close" + SimpleHttpClient.CRLF +
+                    SimpleHttpClient.CRLF).getBytes(B2CConverter.ISO_8859_1));
+            os.flush();
+            InputStream is = socket.getInputStream();
+            StringBuilder response = new StringBuilder();
+            byte[] buf = new byte[1024];
+            int read;
+            while ((read = is.read(buf)) > 0) {
+                response.append(new String(buf, 0, read, B2CConverter.ISO_8859_1));
+            }
+            return response.toString().startsWith("HTTP/1.1 200");
+        } finally {
+            socket.close();
+        }
+    }
+
+
+    private static final class BlockingServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            try {
+                Thread.sleep(BLOCK_MILLIS);
+            } catch (InterruptedException e) {
+                throw new ServletException(e);
+            }
+            resp.setContentType("text/plain");
+            resp.getWriter().print("OK");
+        }
+    }
+}